@@ -0,0 +1,113 @@
+package introdb.heap;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs operations of a blocking {@link Store} on a fixed number of I/O threads, so callers on an event loop
+ * never wait for page reads, writes or locks. Requests wait in a queue of bounded depth; once it is full, new
+ * requests fail at once with {@link RejectedExecutionException} instead of blocking the caller, which is
+ * expected to retry later or shed load.
+ * <p>
+ * Futures are completed on I/O threads, so dependent stages should be run asynchronously on the caller's own
+ * executor when they do any real work.
+ */
+final class AsyncHeapFile implements AsyncStore {
+  private final Store store;
+  private final ThreadPoolExecutor executor;
+
+  /**
+   * @param store
+   *          thread safe store, closed together with this one
+   * @param nrOfIoThreads
+   *          number of operations run on the store concurrently
+   * @param maxQueuedRequests
+   *          number of requests waiting for an I/O thread, beyond which new requests are rejected
+   */
+  AsyncHeapFile(final Store store, final int nrOfIoThreads, final int maxQueuedRequests) {
+    this.store = store;
+    final var threadNumber = new AtomicInteger();
+    this.executor = new ThreadPoolExecutor(nrOfIoThreads, nrOfIoThreads, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(maxQueuedRequests), runnable -> {
+          final var thread = new Thread(runnable, "heap-file-io-" + threadNumber.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        });
+  }
+
+  @Override
+  public CompletableFuture<Object> get(final Serializable key) {
+    return submit(() -> store.get(key));
+  }
+
+  @Override
+  public CompletableFuture<Void> put(final Entry entry) {
+    return submit(() -> {
+      store.put(entry);
+      return null;
+    });
+  }
+
+  @Override
+  public CompletableFuture<Object> remove(final Serializable key) {
+    return submit(() -> store.remove(key));
+  }
+
+  @Override
+  public CompletableFuture<Void> flush() {
+    return submit(() -> {
+      store.flush();
+      return null;
+    });
+  }
+
+  /**
+   * @return number of requests waiting for an I/O thread
+   */
+  int queuedRequests() {
+    return executor.getQueue().size();
+  }
+
+  /**
+   * Completes requests already accepted, then closes the store. Blocks the calling thread.
+   */
+  @Override
+  public void close() throws IOException {
+    executor.shutdown();
+    try {
+      executor.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    store.close();
+  }
+
+  private interface StoreOperation<T> {
+
+    T run() throws IOException, ClassNotFoundException;
+
+  }
+
+  private <T> CompletableFuture<T> submit(final StoreOperation<T> operation) {
+    final var future = new CompletableFuture<T>();
+    try {
+      executor.execute(() -> {
+        try {
+          future.complete(operation.run());
+        } catch (Throwable e) {
+          future.completeExceptionally(e);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      future.completeExceptionally(e);
+    }
+    return future;
+  }
+
+}
@@ -0,0 +1,21 @@
+package introdb.heap;
+
+import java.io.Closeable;
+import java.io.Serializable;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Non-blocking variant of {@link Store}, every operation returns at once and completes its future when done.
+ * Futures fail with the exception the blocking operation would throw.
+ */
+interface AsyncStore extends Closeable {
+
+  CompletableFuture<Object> get(Serializable key);
+
+  CompletableFuture<Void> put(Entry entry);
+
+  CompletableFuture<Object> remove(Serializable key);
+
+  CompletableFuture<Void> flush();
+
+}
@@ -0,0 +1,675 @@
+package introdb.heap;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import introdb.heap.pool.ObjectPool;
+
+/**
+ * Ordered store keeping records in a B+-tree of {@link TreeNode} pages, answering range queries with a
+ * {@link Cursor} walking leaves along their sibling links. Keys are ordered by a comparator over their serialized
+ * bytes, {@link KeyOrder#NATURAL} by default.
+ * <p>
+ * Page 0 holds metadata: page size, root page number and number of pages. Nodes are split when they overflow and
+ * never merged, a removal only deletes the cell from its leaf. Entries take at most a quarter of a page, so every
+ * node holds at least four of them. There is no write-ahead log, modified pages are written according to
+ * {@link WriteMode}. Pages carry no checksum: node and metadata headers use the bytes where {@link Page} keeps its
+ * checksum and checksum flag, so adding one would change the file format.
+ * <p>
+ * Thread safe. Lookups share a store-wide read lock, modifications take it exclusively. Cursors copy one leaf at a
+ * time and are weakly consistent: records neither put nor removed during the scan are returned exactly once, as
+ * splits only move records to new right siblings of the leaf they were in.
+ */
+final class BPlusTreeFile implements Store {
+  private static final int METADATA_MAGIC = 0x42505431;
+  private static final long METADATA_PAGE = 0;
+  private static final int MAGIC_OFFSET = 0;
+  private static final int PAGE_SIZE_OFFSET = MAGIC_OFFSET + Integer.BYTES;
+  private static final int ROOT_OFFSET = PAGE_SIZE_OFFSET + Integer.BYTES;
+  private static final int NR_OF_PAGES_OFFSET = ROOT_OFFSET + Long.BYTES;
+  private static final int BULK_LOAD_FREE_SPACE_PERCENT = 10;
+
+  private final int pageSize;
+  private final int maxCellLength;
+  private final Comparator<ByteBuffer> keyOrder;
+  private final PageFile pageFile;
+  private final BufferPool bufferPool;
+  private final boolean syncOnFlush;
+  private final ObjectPool<Serializer> serializers;
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+  private long root;
+  private long nrOfPages;
+  private boolean closed;
+
+  BPlusTreeFile(final Path path, final int pageSize) throws IOException {
+    this(path, pageSize, HeapFileOptions.defaults(), KeyOrder.NATURAL);
+  }
+
+  /**
+   * Uses page access and compression, buffer pool size, eviction, read-ahead, write mode and codecs of the
+   * options. Page checksums do not apply.
+   *
+   * @param keyOrder
+   *          order of serialized keys, has to be the same whenever the file is opened
+   */
+  BPlusTreeFile(final Path path, final int pageSize, final HeapFileOptions options,
+      final Comparator<ByteBuffer> keyOrder) throws IOException {
+    this.pageSize = pageSize;
+    this.maxCellLength = TreeNode.maxCellLength(pageSize);
+    this.keyOrder = keyOrder;
+    this.pageFile = PageFile.open(path, pageSize, options);
+    this.bufferPool = new BufferPool(pageFile, pageSize, BufferPool.nrOfFramesFor(options.bufferPoolSize(), pageSize),
+        options.eviction(), options.writeMode(), null, false, options.readAheadPages());
+    this.syncOnFlush = options.syncOnFlush();
+    this.serializers = new ObjectPool<>(() -> newSerializer(pageSize, options.codecs()), serializer -> true);
+    if (pageFile.nrOfPages() == 0) {
+      bufferPool.unpin(bufferPool.pinNew(METADATA_PAGE), true);
+      nrOfPages = 1;
+      root = allocateNode(true, TreeNode.NO_PAGE);
+      writeMetadata();
+    } else {
+      readMetadata();
+    }
+  }
+
+  @Override
+  public Object get(final Serializable key) throws IOException, ClassNotFoundException {
+    final var serializer = serializers.borrowObject().join();
+    try {
+      final var serializedKey = serializer.encode(key);
+      lock.readLock().lock();
+      try {
+        final var page = bufferPool.pin(leafFor(serializedKey, null));
+        page.latch().readLock().lock();
+        try {
+          final var leaf = nodeOf(page);
+          final var index = leaf.search(serializedKey, keyOrder);
+          return index >= 0 ? serializer.deserialize(leaf.value(index)) : null;
+        } finally {
+          page.latch().readLock().unlock();
+          bufferPool.unpin(page, false);
+        }
+      } finally {
+        lock.readLock().unlock();
+      }
+    } finally {
+      serializers.returnObject(serializer);
+    }
+  }
+
+  @Override
+  public void put(final Entry entry) throws IOException {
+    final var serializedKey = serialize(entry.key());
+    final var serializedValue = serialize(entry.value());
+    checkCellFits(serializedKey, serializedValue);
+    lock.writeLock().lock();
+    try {
+      final var path = new ArrayList<Long>();
+      final var key = ByteBuffer.wrap(serializedKey);
+      final var leafPageNumber = leafFor(key, path);
+      final var page = bufferPool.pin(leafPageNumber);
+      byte[] separator = null;
+      var rightSibling = TreeNode.NO_PAGE;
+      page.latch().writeLock().lock();
+      try {
+        final var leaf = nodeOf(page);
+        var index = leaf.search(key, keyOrder);
+        if (index >= 0) {
+          leaf.remove(index);
+        } else {
+          index = -index - 1;
+        }
+        if (!leaf.insert(index, serializedKey, serializedValue)) {
+          rightSibling = splitLeaf(leaf, index, serializedKey, serializedValue);
+          separator = firstKeyOf(rightSibling);
+        }
+      } finally {
+        page.latch().writeLock().unlock();
+        bufferPool.unpin(page, true);
+      }
+      if (separator != null) {
+        addSeparator(path, separator, rightSibling);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public Object remove(final Serializable key) throws IOException, ClassNotFoundException {
+    final var serializedKey = ByteBuffer.wrap(serialize(key));
+    byte[] serializedValue = null;
+    lock.writeLock().lock();
+    try {
+      final var page = bufferPool.pin(leafFor(serializedKey, null));
+      page.latch().writeLock().lock();
+      try {
+        final var leaf = nodeOf(page);
+        final var index = leaf.search(serializedKey, keyOrder);
+        if (index >= 0) {
+          serializedValue = TreeNode.bytesOf(leaf.value(index));
+          leaf.remove(index);
+        }
+      } finally {
+        page.latch().writeLock().unlock();
+        bufferPool.unpin(page, serializedValue != null);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+    return serializedValue != null ? deserialize(ByteBuffer.wrap(serializedValue)) : null;
+  }
+
+  @Override
+  public Cursor cursor() {
+    return new RangeCursor(null, null);
+  }
+
+  /**
+   * Opens a cursor over records with keys from {@code fromKey} inclusive to {@code toKey} exclusive, in key order.
+   *
+   * @param fromKey
+   *          lowest key, or null to start with the first record
+   * @param toKey
+   *          key above the highest one, or null to end with the last record
+   */
+  Cursor range(final Serializable fromKey, final Serializable toKey) throws IOException {
+    return new RangeCursor(fromKey != null ? serialize(fromKey) : null, toKey != null ? serialize(toKey) : null);
+  }
+
+  /**
+   * Loads entries sorted in ascending key order into an empty tree. Leaves are filled up to 90% and written
+   * once, inner levels are built bottom up from the first keys of the nodes below.
+   *
+   * @throws IllegalArgumentException
+   *           when entries are not sorted by strictly ascending keys, or an entry exceeds a quarter of a page;
+   *           entries before the offending one stay loaded
+   * @throws IllegalStateException
+   *           when the tree is not empty
+   */
+  void bulkLoad(final Iterable<Entry> sortedEntries) throws IOException {
+    lock.writeLock().lock();
+    try {
+      if (!isEmpty()) {
+        throw new IllegalStateException("Bulk load needs an empty tree.");
+      }
+      final var firstKeys = new ArrayList<byte[]>();
+      final var nodes = new ArrayList<Long>();
+      nodes.add(root);
+      try {
+        loadLeaves(sortedEntries, firstKeys, nodes);
+      } finally {
+        while (nodes.size() > 1) {
+          buildInnerLevel(firstKeys, nodes);
+        }
+        root = nodes.get(0);
+        writeMetadata();
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    lock.writeLock().lock();
+    try {
+      bufferPool.flushAll();
+      if (syncOnFlush) {
+        pageFile.force();
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Closes the store, callers have to make sure it is not used concurrently any more.
+   */
+  @Override
+  public void close() throws IOException {
+    lock.writeLock().lock();
+    try {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      flush();
+      pageFile.close();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * @return number of levels, 1 when the root is a leaf
+   */
+  int height() throws IOException {
+    lock.readLock().lock();
+    try {
+      var height = 1;
+      for (var pageNumber = root; !isLeaf(pageNumber); height++) {
+        pageNumber = readNode(pageNumber, TreeNode::link);
+      }
+      return height;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private void checkCellFits(final byte[] key, final byte[] value) {
+    if (Record.recordLengthFor(key, value) > maxCellLength) {
+      throw new IllegalArgumentException("Entry is too big, it may take at most a quarter of a page.");
+    }
+  }
+
+  /**
+   * Descends from the root to the leaf which may hold given key, or the leftmost leaf when key is null.
+   *
+   * @param path
+   *          receives inner nodes on the way, when not null
+   */
+  private long leafFor(final ByteBuffer key, final List<Long> path) throws IOException {
+    var pageNumber = root;
+    while (true) {
+      final var page = bufferPool.pin(pageNumber);
+      final long child;
+      page.latch().readLock().lock();
+      try {
+        final var node = nodeOf(page);
+        if (node.isLeaf()) {
+          return pageNumber;
+        }
+        child = key != null ? node.childFor(key, keyOrder) : node.link();
+      } finally {
+        page.latch().readLock().unlock();
+        bufferPool.unpin(page, false);
+      }
+      if (path != null) {
+        path.add(pageNumber);
+      }
+      pageNumber = child;
+    }
+  }
+
+  /**
+   * Moves the upper half of a full leaf to a new right sibling and inserts the record into the half it belongs to.
+   *
+   * @return page number of the new sibling
+   */
+  private long splitLeaf(final TreeNode leaf, final int index, final byte[] key, final byte[] value)
+      throws IOException {
+    final var splitIndex = leaf.splitIndex();
+    final var rightPageNumber = nrOfPages;
+    final var rightPage = bufferPool.pinNew(rightPageNumber);
+    nrOfPages++;
+    try {
+      final var right = nodeOf(rightPage);
+      right.initialize(true, leaf.link());
+      leaf.moveCellsTo(splitIndex, right);
+      leaf.setLink(rightPageNumber);
+      if (index >= splitIndex) {
+        right.insert(index - splitIndex, key, value);
+      } else {
+        leaf.insert(index, key, value);
+      }
+    } finally {
+      bufferPool.unpin(rightPage, true);
+    }
+    return rightPageNumber;
+  }
+
+  /**
+   * Adds separator of a new right node to the parents on the path, splitting them as needed, and grows a new root
+   * when the old one splits.
+   */
+  private void addSeparator(final List<Long> path, final byte[] firstSeparator, final long firstRightNode)
+      throws IOException {
+    var separator = firstSeparator;
+    var rightNode = firstRightNode;
+    for (var level = path.size() - 1; level >= 0 && separator != null; level--) {
+      final var page = bufferPool.pin(path.get(level));
+      page.latch().writeLock().lock();
+      try {
+        final var parent = nodeOf(page);
+        final var index = -parent.search(ByteBuffer.wrap(separator), keyOrder) - 1;
+        if (parent.insert(index, separator, pageNumberBytes(rightNode))) {
+          separator = null;
+        } else {
+          final var splitIndex = parent.splitIndex();
+          final var middleKey = TreeNode.bytesOf(parent.key(splitIndex));
+          final var rightPageNumber = allocateNode(false, parent.child(splitIndex));
+          writeNode(rightPageNumber, right -> {
+            parent.moveCellsTo(splitIndex + 1, right);
+            return null;
+          });
+          parent.remove(splitIndex);
+          final var newSeparator = separator;
+          final var newRightNode = rightNode;
+          if (keyOrder.compare(ByteBuffer.wrap(separator), ByteBuffer.wrap(middleKey)) < 0) {
+            parent.insert(index, separator, pageNumberBytes(rightNode));
+          } else {
+            writeNode(rightPageNumber, right -> right.insert(
+                -right.search(ByteBuffer.wrap(newSeparator), keyOrder) - 1, newSeparator, pageNumberBytes(newRightNode)));
+          }
+          separator = middleKey;
+          rightNode = rightPageNumber;
+        }
+      } finally {
+        page.latch().writeLock().unlock();
+        bufferPool.unpin(page, true);
+      }
+    }
+    if (separator != null) {
+      final var newRoot = allocateNode(false, root);
+      final var rootSeparator = separator;
+      final var rootChild = rightNode;
+      writeNode(newRoot, node -> node.insert(0, rootSeparator, pageNumberBytes(rootChild)));
+      root = newRoot;
+    }
+    writeMetadata();
+  }
+
+  private void loadLeaves(final Iterable<Entry> sortedEntries, final List<byte[]> firstKeys, final List<Long> nodes)
+      throws IOException {
+    byte[] previousKey = null;
+    var leafPageNumber = root;
+    var page = bufferPool.pin(leafPageNumber);
+    try {
+      for (final var entry : sortedEntries) {
+        final var key = serialize(entry.key());
+        final var value = serialize(entry.value());
+        checkCellFits(key, value);
+        if (previousKey != null && keyOrder.compare(ByteBuffer.wrap(previousKey), ByteBuffer.wrap(key)) >= 0) {
+          throw new IllegalArgumentException("Entries are not sorted by strictly ascending keys.");
+        }
+        previousKey = key;
+        var leaf = nodeOf(page);
+        if (leaf.nrOfCells() > 0 && !hasBulkLoadRoom(leaf, key, value)) {
+          final var nextPageNumber = allocateNode(true, TreeNode.NO_PAGE);
+          leaf.setLink(nextPageNumber);
+          bufferPool.unpin(page, true);
+          page = bufferPool.pin(nextPageNumber);
+          leafPageNumber = nextPageNumber;
+          leaf = nodeOf(page);
+          firstKeys.add(key);
+          nodes.add(leafPageNumber);
+        }
+        leaf.insert(leaf.nrOfCells(), key, value);
+      }
+    } finally {
+      bufferPool.unpin(page, true);
+    }
+  }
+
+  /**
+   * Builds the level of inner nodes above given nodes, every node but the first being referenced by its first key.
+   */
+  private void buildInnerLevel(final List<byte[]> firstKeys, final List<Long> nodes) throws IOException {
+    final var parentFirstKeys = new ArrayList<byte[]>();
+    final var parents = new ArrayList<Long>();
+    var parentPageNumber = allocateNode(false, nodes.get(0));
+    parents.add(parentPageNumber);
+    var page = bufferPool.pin(parentPageNumber);
+    try {
+      for (var i = 0; i < firstKeys.size(); i++) {
+        final var key = firstKeys.get(i);
+        final var child = pageNumberBytes(nodes.get(i + 1));
+        final var parent = nodeOf(page);
+        if (parent.nrOfCells() > 0 && !hasBulkLoadRoom(parent, key, child)) {
+          // the first key of a new parent moves up instead of being kept in it
+          parentPageNumber = allocateNode(false, nodes.get(i + 1));
+          bufferPool.unpin(page, true);
+          page = bufferPool.pin(parentPageNumber);
+          parentFirstKeys.add(key);
+          parents.add(parentPageNumber);
+        } else {
+          parent.insert(parent.nrOfCells(), key, child);
+        }
+      }
+    } finally {
+      bufferPool.unpin(page, true);
+    }
+    firstKeys.clear();
+    firstKeys.addAll(parentFirstKeys);
+    nodes.clear();
+    nodes.addAll(parents);
+  }
+
+  private boolean hasBulkLoadRoom(final TreeNode node, final byte[] key, final byte[] value) {
+    return node.freeSpace() - Record.recordLengthFor(key, value) >= pageSize * BULK_LOAD_FREE_SPACE_PERCENT / 100;
+  }
+
+  private boolean isEmpty() throws IOException {
+    return isLeaf(root) && readNode(root, TreeNode::nrOfCells) == 0;
+  }
+
+  private boolean isLeaf(final long pageNumber) throws IOException {
+    return readNode(pageNumber, TreeNode::isLeaf);
+  }
+
+  private byte[] firstKeyOf(final long pageNumber) throws IOException {
+    return readNode(pageNumber, node -> TreeNode.bytesOf(node.key(0)));
+  }
+
+  private long allocateNode(final boolean leaf, final long link) throws IOException {
+    final var pageNumber = nrOfPages++;
+    final var page = bufferPool.pinNew(pageNumber);
+    try {
+      nodeOf(page).initialize(leaf, link);
+    } finally {
+      bufferPool.unpin(page, true);
+    }
+    return pageNumber;
+  }
+
+  private interface NodeFunction<T> {
+
+    T apply(TreeNode node) throws IOException;
+
+  }
+
+  private <T> T readNode(final long pageNumber, final NodeFunction<T> function) throws IOException {
+    final var page = bufferPool.pin(pageNumber);
+    page.latch().readLock().lock();
+    try {
+      return function.apply(nodeOf(page));
+    } finally {
+      page.latch().readLock().unlock();
+      bufferPool.unpin(page, false);
+    }
+  }
+
+  private <T> T writeNode(final long pageNumber, final NodeFunction<T> function) throws IOException {
+    final var page = bufferPool.pin(pageNumber);
+    page.latch().writeLock().lock();
+    try {
+      return function.apply(nodeOf(page));
+    } finally {
+      page.latch().writeLock().unlock();
+      bufferPool.unpin(page, true);
+    }
+  }
+
+  private TreeNode nodeOf(final Page page) {
+    return new TreeNode(page.byteBuffer(), pageSize);
+  }
+
+  private static byte[] pageNumberBytes(final long pageNumber) {
+    return ByteBuffer.allocate(Long.BYTES).putLong(pageNumber).array();
+  }
+
+  private void readMetadata() throws IOException {
+    final var page = bufferPool.pin(METADATA_PAGE);
+    try {
+      final var metadata = page.byteBuffer();
+      if (metadata.getInt(MAGIC_OFFSET) != METADATA_MAGIC) {
+        throw new IOException("File is not a B+-tree file.");
+      }
+      final var storedPageSize = metadata.getInt(PAGE_SIZE_OFFSET);
+      if (storedPageSize != pageSize) {
+        throw new IllegalArgumentException("File has page size " + storedPageSize + ", not " + pageSize + ".");
+      }
+      root = metadata.getLong(ROOT_OFFSET);
+      nrOfPages = metadata.getLong(NR_OF_PAGES_OFFSET);
+    } finally {
+      bufferPool.unpin(page, false);
+    }
+  }
+
+  private void writeMetadata() throws IOException {
+    final var page = bufferPool.pin(METADATA_PAGE);
+    page.latch().writeLock().lock();
+    try {
+      page.byteBuffer()
+          .putInt(MAGIC_OFFSET, METADATA_MAGIC)
+          .putInt(PAGE_SIZE_OFFSET, pageSize)
+          .putLong(ROOT_OFFSET, root)
+          .putLong(NR_OF_PAGES_OFFSET, nrOfPages);
+    } finally {
+      page.latch().writeLock().unlock();
+      bufferPool.unpin(page, true);
+    }
+  }
+
+  private byte[] serialize(final Serializable object) throws IOException {
+    final var serializer = serializers.borrowObject().join();
+    try {
+      return serializer.serialize(object);
+    } finally {
+      serializers.returnObject(serializer);
+    }
+  }
+
+  private Object deserialize(final ByteBuffer serializedObject) throws IOException, ClassNotFoundException {
+    final var serializer = serializers.borrowObject().join();
+    try {
+      return serializer.deserialize(serializedObject.duplicate());
+    } finally {
+      serializers.returnObject(serializer);
+    }
+  }
+
+  private static Serializer newSerializer(final int pageSize, final Codecs codecs) {
+    try {
+      return new Serializer(pageSize, codecs);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Copies one leaf at a time under the read lock, and follows the sibling link of the copy to the next one.
+   */
+  private final class RangeCursor implements Cursor {
+    private final byte[] fromKey;
+    private final byte[] toKey;
+    private final ByteBuffer leafBytes = ByteBuffer.allocate(pageSize);
+    private final TreeNode leaf = new TreeNode(leafBytes, pageSize);
+    private long nextLeaf = TreeNode.NO_PAGE;
+    private boolean started;
+    private boolean finished;
+    private int index = -1;
+
+    private RangeCursor(final byte[] fromKey, final byte[] toKey) {
+      this.fromKey = fromKey;
+      this.toKey = toKey;
+    }
+
+    @Override
+    public boolean next() throws IOException {
+      if (finished) {
+        return false;
+      }
+      if (!started) {
+        started = true;
+        copyFirstLeaf();
+      } else {
+        index++;
+      }
+      while (index >= leaf.nrOfCells()) {
+        if (nextLeaf == TreeNode.NO_PAGE) {
+          finished = true;
+          return false;
+        }
+        copyNextLeaf();
+        index = 0;
+      }
+      if (toKey != null && keyOrder.compare(leaf.key(index), ByteBuffer.wrap(toKey)) >= 0) {
+        finished = true;
+        return false;
+      }
+      return true;
+    }
+
+    @Override
+    public Object key() throws IOException, ClassNotFoundException {
+      checkPositioned();
+      return deserialize(leaf.key(index));
+    }
+
+    @Override
+    public Object value() throws IOException, ClassNotFoundException {
+      checkPositioned();
+      return deserialize(leaf.value(index));
+    }
+
+    @Override
+    public void close() {
+      finished = true;
+    }
+
+    private void checkPositioned() {
+      if (!started || finished) {
+        throw new IllegalStateException("Cursor is not positioned on a record.");
+      }
+    }
+
+    private void copyFirstLeaf() throws IOException {
+      lock.readLock().lock();
+      try {
+        copyLeaf(leafFor(fromKey != null ? ByteBuffer.wrap(fromKey) : null, null));
+      } finally {
+        lock.readLock().unlock();
+      }
+      if (fromKey != null) {
+        final var found = leaf.search(ByteBuffer.wrap(fromKey), keyOrder);
+        index = found >= 0 ? found : -found - 1;
+      } else {
+        index = 0;
+      }
+    }
+
+    private void copyNextLeaf() throws IOException {
+      lock.readLock().lock();
+      try {
+        copyLeaf(nextLeaf);
+      } finally {
+        lock.readLock().unlock();
+      }
+    }
+
+    /**
+     * Callers hold the read lock.
+     */
+    private void copyLeaf(final long pageNumber) throws IOException {
+      final var page = bufferPool.pin(pageNumber);
+      page.latch().readLock().lock();
+      try {
+        leafBytes.clear().put(page.byteBuffer().duplicate().clear());
+      } finally {
+        page.latch().readLock().unlock();
+        bufferPool.unpin(page, false);
+      }
+      nextLeaf = leaf.link();
+    }
+  }
+
+}
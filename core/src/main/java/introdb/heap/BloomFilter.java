@@ -0,0 +1,75 @@
+package introdb.heap;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Set of key hashes answering whether a key may be in a sorted table of {@link LsmTreeFile}. Bit positions of a
+ * key are derived from its {@link HashIndex#hash(byte[])} by double hashing.
+ */
+final class BloomFilter {
+  private final long[] bits;
+  private final int nrOfHashes;
+
+  private BloomFilter(final long[] bits, final int nrOfHashes) {
+    this.bits = bits;
+    this.nrOfHashes = nrOfHashes;
+  }
+
+  /**
+   * @param keyHashes
+   *          hashes of all keys from index 0 to {@code nrOfKeys}
+   */
+  static BloomFilter of(final int[] keyHashes, final int nrOfKeys, final int bitsPerKey) {
+    final var nrOfLongs = Math.max(1, (int) (((long) nrOfKeys * bitsPerKey + Long.SIZE - 1) / Long.SIZE));
+    final var nrOfHashes = Math.max(1, Math.min(30, (int) Math.round(bitsPerKey * Math.log(2))));
+    final var filter = new BloomFilter(new long[nrOfLongs], nrOfHashes);
+    for (var i = 0; i < nrOfKeys; i++) {
+      filter.add(keyHashes[i]);
+    }
+    return filter;
+  }
+
+  static BloomFilter read(final ByteBuffer buffer) {
+    final var nrOfHashes = buffer.getInt();
+    final var bits = new long[buffer.getInt()];
+    buffer.asLongBuffer().get(bits);
+    buffer.position(buffer.position() + bits.length * Long.BYTES);
+    return new BloomFilter(bits, nrOfHashes);
+  }
+
+  void write(final DataOutput output) throws IOException {
+    output.writeInt(nrOfHashes);
+    output.writeInt(bits.length);
+    for (final var word : bits) {
+      output.writeLong(word);
+    }
+  }
+
+  boolean mightContain(final int keyHash) {
+    final var nrOfBits = (long) bits.length * Long.SIZE;
+    final var step = Integer.rotateLeft(keyHash, 16) | 1;
+    var hash = keyHash;
+    for (var i = 0; i < nrOfHashes; i++) {
+      final var bit = Math.floorMod((long) hash, nrOfBits);
+      if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+        return false;
+      }
+      hash += step;
+    }
+    return true;
+  }
+
+  private void add(final int keyHash) {
+    final var nrOfBits = (long) bits.length * Long.SIZE;
+    final var step = Integer.rotateLeft(keyHash, 16) | 1;
+    var hash = keyHash;
+    for (var i = 0; i < nrOfHashes; i++) {
+      final var bit = Math.floorMod((long) hash, nrOfBits);
+      bits[(int) (bit >>> 6)] |= 1L << bit;
+      hash += step;
+    }
+  }
+
+}
@@ -0,0 +1,596 @@
+package introdb.heap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Caches heap file pages in a fixed number of frames. Pages handed out by {@link #pin(long)} stay in
+ * memory until they are unpinned. In {@link WriteMode#WRITE_THROUGH} mode pages modified while pinned are
+ * written when they are unpinned, otherwise dirty pages are written when their frame is reused or on
+ * {@link #flushAll()}. When a write-ahead log is given, page image is forced to the log before the page
+ * is written to the heap file. With page checksums, every page gets its checksum stamped when it is written and
+ * verified when it is read, see {@link Page#updateChecksum(ByteBuffer)}.
+ * <p>
+ * A miss of the first page, or of the page right after the previously missed one, is taken for a sequential scan:
+ * the pages following it which are not cached are read along with it, with one read, into frames of their own.
+ * They stay unpinned, so the scan finds them cached, and the next miss after them starts the next read-ahead.
+ * <p>
+ * Thread safe. Page table, pin counts and eviction policy are guarded by a pool lock, which is never held
+ * while waiting for a page latch of a pinned page. Contents of a pinned page are guarded by its
+ * {@link Page#latch()}, a page is read from the file under its write latch, so other threads pinning it at
+ * the same time wait for the read to complete in {@link #pin(long)}, and get the same exception when it fails.
+ * Latches are taken only on pinned pages, so a frame selected for eviction is never latched by anyone else. A dirty
+ * page selected for eviction is pinned and written under its latch with the pool lock released, and its frame is
+ * freed afterwards unless the page was pinned or modified meanwhile, so no pin waits behind the write. Read-ahead
+ * takes only free frames and frames of clean pages.
+ */
+final class BufferPool {
+  private static final Page[] NO_PAGES = new Page[0];
+  private static final int VICTIM_WRITTEN = -2;
+
+  private final PageFile pageFile;
+  private final int pageSize;
+  private final Page[] frames;
+  private final int[] pinCounts;
+  private final boolean[] dirty;
+  private final boolean[] loading;
+  private final Exception[] loadFailures;
+  private final boolean[] writingVictim;
+  private final ArrayDeque<Integer> freeFrames = new ArrayDeque<>();
+  private final Map<Long, Integer> pageTable = new HashMap<>();
+  private final EvictionPolicy evictionPolicy;
+  private final WriteMode writeMode;
+  private final WriteAheadLog writeAheadLog;
+  private final boolean pageChecksums;
+  private final int readAheadPages;
+  private final ReentrantLock lock = new ReentrantLock();
+  private int nrOfUsedFrames;
+  private int nrOfDirtyFrames;
+  private long hits;
+  private long misses;
+  private long evictions;
+  private long readAheads;
+  private long lastMissedPage;
+  private long nrOfPagesInFile;
+
+  BufferPool(final PageFile pageFile, final int pageSize, final int nrOfFrames, final Eviction eviction)
+      throws IOException {
+    this(pageFile, pageSize, nrOfFrames, eviction, WriteMode.WRITE_THROUGH, null);
+  }
+
+  BufferPool(final PageFile pageFile, final int pageSize, final int nrOfFrames, final Eviction eviction,
+      final WriteMode writeMode, final WriteAheadLog writeAheadLog) throws IOException {
+    this(pageFile, pageSize, nrOfFrames, eviction, writeMode, writeAheadLog, false, 0);
+  }
+
+  /**
+   * @param pageChecksums
+   *          whether pages are slotted {@link Page}s with a checksum in their header, which is kept up to date
+   * @param readAheadPages
+   *          number of pages read along with a page missed by a sequential scan, limited to a quarter of frames
+   *          so read-ahead never evicts the pages it just read, 0 turns it off
+   */
+  BufferPool(final PageFile pageFile, final int pageSize, final int nrOfFrames, final Eviction eviction,
+      final WriteMode writeMode, final WriteAheadLog writeAheadLog, final boolean pageChecksums,
+      final int readAheadPages) throws IOException {
+    this.writeMode = writeMode;
+    this.writeAheadLog = writeAheadLog;
+    this.pageChecksums = pageChecksums;
+    this.readAheadPages = Math.min(readAheadPages, nrOfFrames / 4);
+    this.nrOfPagesInFile = pageFile.nrOfPages();
+    this.pageFile = pageFile;
+    this.pageSize = pageSize;
+    this.frames = new Page[nrOfFrames];
+    this.pinCounts = new int[nrOfFrames];
+    this.dirty = new boolean[nrOfFrames];
+    this.loading = new boolean[nrOfFrames];
+    this.loadFailures = new Exception[nrOfFrames];
+    this.writingVictim = new boolean[nrOfFrames];
+    this.evictionPolicy = eviction.newPolicy(nrOfFrames);
+    final var memory = ByteBuffer.allocateDirect(nrOfFrames * pageSize);
+    for (var frame = 0; frame < nrOfFrames; frame++) {
+      memory.limit((frame + 1) * pageSize).position(frame * pageSize);
+      frames[frame] = new Page(memory.slice(), pageSize, frame);
+    }
+  }
+
+  static int nrOfFramesFor(final long bufferPoolSize, final int pageSize) {
+    return (int) Math.max(2, Math.min(Integer.MAX_VALUE / pageSize, bufferPoolSize / pageSize));
+  }
+
+  /**
+   * Checks the first page of a file of slotted {@link Page}s was written with page checksums turned the same way,
+   * otherwise every read would fail with {@link CorruptedPage}, or pages would not be verified.
+   *
+   * @throws IllegalArgumentException
+   *           when the file was written with page checksums and they are turned off, or the other way round
+   */
+  static void checkPageChecksums(final PageFile pageFile, final int pageSize, final boolean pageChecksums)
+      throws IOException {
+    if (pageFile.nrOfPages() == 0) {
+      return;
+    }
+    final var page = ByteBuffer.allocate(pageSize);
+    pageFile.read(0, page);
+    if (Page.isChecksummed(page) != pageChecksums && !Page.isZeroed(page)) {
+      throw new IllegalArgumentException("File is written " + (pageChecksums ? "without" : "with")
+          + " page checksums, they have to be turned " + (pageChecksums ? "off." : "on."));
+    }
+  }
+
+  /**
+   * @throws CorruptedPage
+   *           when the page read from the file, by this or another thread, does not match its checksum
+   */
+  Page pin(final long pageNumber) throws IOException {
+    final Page page;
+    final Page[] readAhead;
+    lock.lock();
+    try {
+      var cachedFrame = pageTable.get(pageNumber);
+      var frame = VICTIM_WRITTEN;
+      while (cachedFrame == null && (frame = allocateFrame()) == VICTIM_WRITTEN) {
+        cachedFrame = pageTable.get(pageNumber);
+      }
+      if (cachedFrame != null) {
+        hits++;
+        if (!writingVictim[cachedFrame]) {
+          evictionPolicy.pageAccessed(cachedFrame);
+        }
+        pinCounts[cachedFrame]++;
+        if (!loading[cachedFrame]) {
+          return frames[cachedFrame];
+        }
+        page = frames[cachedFrame];
+        readAhead = null;
+      } else {
+        misses++;
+        page = frames[frame];
+        page.assignPageNumber(pageNumber);
+        registerLoading(frame, pageNumber);
+        page.latch().writeLock().lock();
+        readAhead = allocateReadAhead(pageNumber);
+      }
+    } finally {
+      lock.unlock();
+    }
+    if (readAhead == null) {
+      awaitLoaded(page);
+      return page;
+    }
+    try {
+      if (readAhead.length == 0) {
+        pageFile.read(pageNumber, page.byteBuffer().duplicate().clear());
+      } else {
+        readWithReadAhead(page, readAhead);
+      }
+      if (pageChecksums && !Page.hasValidChecksum(page.byteBuffer())) {
+        throw new CorruptedPage(pageNumber);
+      }
+      loaded(page, null);
+    } catch (IOException | RuntimeException e) {
+      loaded(page, e);
+      throw e;
+    } finally {
+      page.latch().writeLock().unlock();
+    }
+    return page;
+  }
+
+  /**
+   * Pins a frame for a page which does not exist in the file yet. The page is empty and already dirty.
+   */
+  Page pinNew(final long pageNumber) throws IOException {
+    final Page page;
+    lock.lock();
+    try {
+      var cachedFrame = pageTable.get(pageNumber);
+      var frame = VICTIM_WRITTEN;
+      while (cachedFrame == null && (frame = allocateFrame()) == VICTIM_WRITTEN) {
+        cachedFrame = pageTable.get(pageNumber);
+      }
+      if (cachedFrame == null) {
+        frames[frame].createNewPage(pageNumber);
+        markDirty(frame);
+        register(frame, pageNumber);
+        return frames[frame];
+      }
+      pinCounts[cachedFrame]++;
+      page = frames[cachedFrame];
+    } finally {
+      lock.unlock();
+    }
+    page.latch().writeLock().lock();
+    try {
+      page.createNewPage(pageNumber);
+    } finally {
+      page.latch().writeLock().unlock();
+    }
+    lock.lock();
+    try {
+      markDirty(page.frame());
+    } finally {
+      lock.unlock();
+    }
+    return page;
+  }
+
+  /**
+   * Unpins a page, callers must not hold its latch when the page was modified.
+   */
+  void unpin(final Page page, final boolean modified) throws IOException {
+    final var frame = page.frame();
+    if (modified) {
+      if (writeMode == WriteMode.WRITE_THROUGH) {
+        page.latch().readLock().lock();
+        try {
+          writeFrame(frame);
+        } finally {
+          page.latch().readLock().unlock();
+        }
+      } else {
+        lock.lock();
+        try {
+          markDirty(frame);
+        } finally {
+          lock.unlock();
+        }
+      }
+    }
+    lock.lock();
+    try {
+      pinCounts[frame]--;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Writes all dirty pages in ascending page number order.
+   */
+  void flushAll() throws IOException {
+    final Page[] dirtyPages;
+    lock.lock();
+    try {
+      dirtyPages = new Page[nrOfDirtyFrames];
+      var n = 0;
+      for (var frame = 0; frame < nrOfUsedFrames; frame++) {
+        if (dirty[frame]) {
+          pinCounts[frame]++;
+          dirtyPages[n++] = frames[frame];
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+    try {
+      Arrays.sort(dirtyPages, (left, right) -> Long.compare(left.pageNumber(), right.pageNumber()));
+      if (writeAheadLog != null) {
+        for (final var page : dirtyPages) {
+          page.latch().readLock().lock();
+          try {
+            writeAheadLog.appendPageImage(page);
+          } finally {
+            page.latch().readLock().unlock();
+          }
+        }
+        writeAheadLog.sync();
+      }
+      for (final var page : dirtyPages) {
+        page.latch().readLock().lock();
+        try {
+          writePage(page);
+        } finally {
+          page.latch().readLock().unlock();
+        }
+      }
+    } finally {
+      lock.lock();
+      try {
+        for (final var page : dirtyPages) {
+          pinCounts[page.frame()]--;
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Forgets a page dropped from the heap file without writing it.
+   *
+   * @return false when the page is pinned and cannot be dropped
+   */
+  boolean drop(final long pageNumber) {
+    lock.lock();
+    try {
+      final var frame = pageTable.get(pageNumber);
+      if (frame != null && isPinned(frame)) {
+        return false;
+      }
+      nrOfPagesInFile = Math.min(nrOfPagesInFile, pageNumber);
+      if (frame == null) {
+        return true;
+      }
+      pageTable.remove(pageNumber);
+      if (dirty[frame]) {
+        dirty[frame] = false;
+        nrOfDirtyFrames--;
+      }
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  long dirtyBytes() {
+    lock.lock();
+    try {
+      return (long) nrOfDirtyFrames * pageSize;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  BufferPoolStats stats() {
+    lock.lock();
+    try {
+      return new BufferPoolStats(frames.length, hits, misses, evictions, readAheads);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Takes frames for pages following a page missed by a sequential scan, up to the first cached page or the end
+   * of the file. Callers hold the pool lock.
+   *
+   * @return pages to read ahead, pinned and write latched
+   */
+  private Page[] allocateReadAhead(final long pageNumber) throws IOException {
+    final var sequential = pageNumber == 0 || pageNumber == lastMissedPage + 1;
+    lastMissedPage = pageNumber;
+    if (!sequential || readAheadPages == 0) {
+      return NO_PAGES;
+    }
+    final var readAhead = new Page[(int) Math.max(0, Math.min(readAheadPages, nrOfPagesInFile - pageNumber - 1))];
+    var count = 0;
+    for (var next = pageNumber + 1; count < readAhead.length && !pageTable.containsKey(next); next++) {
+      final var frame = allocateCleanFrame();
+      if (frame < 0) {
+        break;
+      }
+      final var page = frames[frame];
+      page.assignPageNumber(next);
+      registerLoading(frame, next);
+      page.latch().writeLock().lock();
+      readAhead[count++] = page;
+    }
+    lastMissedPage += count;
+    readAheads += count;
+    return Arrays.copyOf(readAhead, count);
+  }
+
+  /**
+   * Reads the page and pages following it with one read straight into their frames, and releases the following
+   * pages. Those which fail to read or do not match their checksum are dropped from the page table, so they are
+   * read again when pinned.
+   */
+  private void readWithReadAhead(final Page page, final Page[] readAhead) throws IOException {
+    final var pages = new ByteBuffer[1 + readAhead.length];
+    pages[0] = page.byteBuffer().duplicate().clear();
+    for (var i = 0; i < readAhead.length; i++) {
+      pages[i + 1] = readAhead[i].byteBuffer().duplicate().clear();
+    }
+    var loaded = false;
+    try {
+      pageFile.readPages(page.pageNumber(), pages);
+      loaded = true;
+    } finally {
+      for (final var next : readAhead) {
+        if (!loaded) {
+          loaded(next, new IOException("Read ahead of page " + next.pageNumber() + " failed."));
+        } else if (pageChecksums && !Page.hasValidChecksum(next.byteBuffer())) {
+          loaded(next, new CorruptedPage(next.pageNumber()));
+        } else {
+          loaded(next, null);
+          lock.lock();
+          try {
+            pinCounts[next.frame()]--;
+          } finally {
+            lock.unlock();
+          }
+        }
+        next.latch().writeLock().unlock();
+      }
+    }
+  }
+
+  private void register(final int frame, final long pageNumber) {
+    pageTable.put(pageNumber, frame);
+    evictionPolicy.pageLoaded(frame, pageNumber);
+    pinCounts[frame] = 1;
+    loading[frame] = false;
+    loadFailures[frame] = null;
+  }
+
+  /**
+   * Registers a frame whose page is about to be read under its write latch.
+   */
+  private void registerLoading(final int frame, final long pageNumber) {
+    register(frame, pageNumber);
+    loading[frame] = true;
+  }
+
+  /**
+   * Completes the read of a page, still write latched by the caller. A page which failed to read is dropped from
+   * the page table and its frame keeps the failure for threads which pinned it meanwhile, the pin of the caller
+   * is released then.
+   */
+  private void loaded(final Page page, final Exception failure) {
+    lock.lock();
+    try {
+      loading[page.frame()] = false;
+      if (failure != null) {
+        loadFailures[page.frame()] = failure;
+        pageTable.remove(page.pageNumber(), page.frame());
+        pinCounts[page.frame()]--;
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Waits for another thread to read a pinned page, and unpins it when the read failed.
+   *
+   * @throws CorruptedPage
+   *           when the page read does not match its checksum
+   */
+  private void awaitLoaded(final Page page) throws IOException {
+    page.latch().readLock().lock();
+    page.latch().readLock().unlock();
+    final Exception failure;
+    lock.lock();
+    try {
+      failure = loadFailures[page.frame()];
+      if (failure != null) {
+        pinCounts[page.frame()]--;
+      }
+    } finally {
+      lock.unlock();
+    }
+    if (failure instanceof CorruptedPage) {
+      throw new CorruptedPage(((CorruptedPage) failure).pageNumber());
+    }
+    if (failure != null) {
+      throw new IOException("Page " + page.pageNumber() + " failed to read.", failure);
+    }
+  }
+
+  /**
+   * Takes a free frame or the frame of an evicted page, callers hold the pool lock once. A dirty victim is written
+   * with the pool lock released instead, see {@link #writeVictim(int)}.
+   *
+   * @return frame, or {@link #VICTIM_WRITTEN} when the pool lock was released, so callers look up the page table
+   *         again before they retry
+   */
+  private int allocateFrame() throws IOException {
+    if (!freeFrames.isEmpty()) {
+      return freeFrames.pop();
+    }
+    if (nrOfUsedFrames < frames.length) {
+      return nrOfUsedFrames++;
+    }
+    final var frame = evictionPolicy.selectVictim(this::isPinned);
+    if (frame < 0) {
+      throw new IllegalStateException("All " + frames.length + " buffer pool frames are pinned.");
+    }
+    if (dirty[frame]) {
+      writeVictim(frame);
+      return VICTIM_WRITTEN;
+    }
+    evict(frame);
+    return frame;
+  }
+
+  /**
+   * @return free frame or frame of an evicted clean page, or -1 when there is none
+   */
+  private int allocateCleanFrame() {
+    if (!freeFrames.isEmpty()) {
+      return freeFrames.pop();
+    }
+    if (nrOfUsedFrames < frames.length) {
+      return nrOfUsedFrames++;
+    }
+    final var frame = evictionPolicy.selectVictim(victim -> isPinned(victim) || dirty[victim]);
+    if (frame >= 0) {
+      evict(frame);
+    }
+    return frame;
+  }
+
+  /**
+   * Writes a dirty page selected for eviction, pinned, under its latch and with the pool lock released. The page
+   * stays in the page table meanwhile, its frame is freed afterwards when the page is neither pinned nor dirty, and
+   * given back to the eviction policy otherwise.
+   */
+  private void writeVictim(final int frame) throws IOException {
+    final var page = frames[frame];
+    pinCounts[frame]++;
+    writingVictim[frame] = true;
+    lock.unlock();
+    try {
+      page.latch().readLock().lock();
+      try {
+        writeFrame(frame);
+      } finally {
+        page.latch().readLock().unlock();
+      }
+    } finally {
+      lock.lock();
+      pinCounts[frame]--;
+      writingVictim[frame] = false;
+      if (!isPinned(frame) && !dirty[frame]) {
+        evict(frame);
+        freeFrames.push(frame);
+      } else {
+        evictionPolicy.pageLoaded(frame, page.pageNumber());
+      }
+    }
+  }
+
+  private void evict(final int frame) {
+    pageTable.remove(frames[frame].pageNumber(), frame);
+    evictions++;
+  }
+
+  private void markDirty(final int frame) {
+    if (!dirty[frame]) {
+      dirty[frame] = true;
+      nrOfDirtyFrames++;
+    }
+  }
+
+  /**
+   * Callers hold the page latch.
+   */
+  private void writeFrame(final int frame) throws IOException {
+    if (writeAheadLog != null) {
+      writeAheadLog.appendPageImage(frames[frame]);
+      writeAheadLog.sync();
+    }
+    writePage(frames[frame]);
+  }
+
+  private boolean isPinned(final int frame) {
+    return pinCounts[frame] > 0;
+  }
+
+  /**
+   * Writes a page, which may not be modified until it is marked clean.
+   */
+  private void writePage(final Page page) throws IOException {
+    if (pageChecksums) {
+      Page.updateChecksum(page.byteBuffer());
+    }
+    pageFile.write(page.pageNumber(), page.byteBuffer().duplicate().clear());
+    lock.lock();
+    try {
+      nrOfPagesInFile = Math.max(nrOfPagesInFile, page.pageNumber() + 1);
+      if (dirty[page.frame()]) {
+        dirty[page.frame()] = false;
+        nrOfDirtyFrames--;
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+}
@@ -0,0 +1,56 @@
+package introdb.heap;
+
+final class BufferPoolStats {
+  private final int nrOfFrames;
+  private final long hits;
+  private final long misses;
+  private final long evictions;
+  private final long readAheads;
+
+  BufferPoolStats(final int nrOfFrames, final long hits, final long misses, final long evictions,
+      final long readAheads) {
+    this.nrOfFrames = nrOfFrames;
+    this.hits = hits;
+    this.misses = misses;
+    this.evictions = evictions;
+    this.readAheads = readAheads;
+  }
+
+  int nrOfFrames() {
+    return nrOfFrames;
+  }
+
+  long hits() {
+    return hits;
+  }
+
+  long misses() {
+    return misses;
+  }
+
+  long evictions() {
+    return evictions;
+  }
+
+  /**
+   * @return number of pages read ahead of a sequential scan
+   */
+  long readAheads() {
+    return readAheads;
+  }
+
+  double hitRatio() {
+    final var requests = hits + misses;
+    return requests == 0 ? 0.0 : (double) hits / requests;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    builder.append("BufferPoolStats [nrOfFrames=").append(nrOfFrames).append(", hits=").append(hits)
+        .append(", misses=").append(misses).append(", evictions=").append(evictions).append(", readAheads=")
+        .append(readAheads).append("]");
+    return builder.toString();
+  }
+
+}
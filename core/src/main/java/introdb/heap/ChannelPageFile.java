@@ -0,0 +1,95 @@
+package introdb.heap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Copies pages between buffers and the file with positional {@link FileChannel} reads and writes. Pages read into
+ * several buffers at once take a scattering read from the channel position, which such reads hold a lock for.
+ */
+final class ChannelPageFile implements PageFile {
+  private final FileChannel fileChannel;
+  private final int pageSize;
+  private final ReentrantLock scatteringReadLock = new ReentrantLock();
+
+  ChannelPageFile(final Path path, final int pageSize) throws IOException {
+    this.fileChannel =
+        FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    this.pageSize = pageSize;
+  }
+
+  @Override
+  public void read(final long pageNumber, final ByteBuffer page) throws IOException {
+    var position = pageNumber * pageSize;
+    while (page.hasRemaining()) {
+      final var read = fileChannel.read(page, position);
+      if (read < 0) {
+        while (page.hasRemaining()) {
+          page.put((byte) 0);
+        }
+        break;
+      }
+      position += read;
+    }
+  }
+
+  /**
+   * Reads all pages with one positional or scattering read, split only when the file returns fewer bytes.
+   */
+  @Override
+  public void readPages(final long firstPageNumber, final ByteBuffer... pages) throws IOException {
+    if (pages.length == 1) {
+      read(firstPageNumber, pages[0]);
+      return;
+    }
+    scatteringReadLock.lock();
+    try {
+      fileChannel.position(firstPageNumber * pageSize);
+      while (pages[pages.length - 1].hasRemaining()) {
+        if (fileChannel.read(pages) < 0) {
+          for (final var page : pages) {
+            while (page.hasRemaining()) {
+              page.put((byte) 0);
+            }
+          }
+          break;
+        }
+      }
+    } finally {
+      scatteringReadLock.unlock();
+    }
+  }
+
+  @Override
+  public void write(final long pageNumber, final ByteBuffer page) throws IOException {
+    var position = pageNumber * pageSize;
+    while (page.hasRemaining()) {
+      position += fileChannel.write(page, position);
+    }
+  }
+
+  @Override
+  public long nrOfPages() throws IOException {
+    return (fileChannel.size() + pageSize - 1) / pageSize;
+  }
+
+  @Override
+  public void truncate(final long nrOfPages) throws IOException {
+    fileChannel.truncate(nrOfPages * pageSize);
+  }
+
+  @Override
+  public void force() throws IOException {
+    fileChannel.force(false);
+  }
+
+  @Override
+  public void close() throws IOException {
+    fileChannel.close();
+  }
+
+}
@@ -0,0 +1,45 @@
+package introdb.heap;
+
+import java.util.function.IntPredicate;
+
+final class ClockEvictionPolicy implements EvictionPolicy {
+  private final boolean[] inUse;
+  private final boolean[] referenced;
+  private int hand;
+
+  ClockEvictionPolicy(final int nrOfFrames) {
+    this.inUse = new boolean[nrOfFrames];
+    this.referenced = new boolean[nrOfFrames];
+  }
+
+  @Override
+  public void pageLoaded(final int frame, final long pageNumber) {
+    inUse[frame] = true;
+    referenced[frame] = true;
+  }
+
+  @Override
+  public void pageAccessed(final int frame) {
+    referenced[frame] = true;
+  }
+
+  @Override
+  public int selectVictim(final IntPredicate isPinned) {
+    // two sweeps are enough to clear every reference bit
+    for (var i = 0; i < 2 * inUse.length; i++) {
+      final var frame = hand;
+      hand = (hand + 1) % inUse.length;
+      if (!inUse[frame] || isPinned.test(frame)) {
+        continue;
+      }
+      if (referenced[frame]) {
+        referenced[frame] = false;
+      } else {
+        inUse[frame] = false;
+        return frame;
+      }
+    }
+    return -1;
+  }
+
+}
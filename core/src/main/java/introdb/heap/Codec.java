@@ -0,0 +1,27 @@
+package introdb.heap;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Binary encoding of keys or values of one type, used by {@link Serializer} instead of Java serialization.
+ * Implementations have to be stateless, as one codec is shared by all threads, and equal objects have to be
+ * encoded to equal bytes, as keys are matched by their encoded form.
+ */
+interface Codec<T> {
+
+  Class<T> type();
+
+  /**
+   * Writes object at the position of the buffer.
+   *
+   * @throws java.nio.BufferOverflowException
+   *           when the buffer is too small, encoding is then repeated with a bigger buffer
+   */
+  void encode(T object, ByteBuffer buffer);
+
+  /**
+   * Reads object written by {@link #encode(Object, ByteBuffer)} from the position of the buffer.
+   */
+  T decode(ByteBuffer buffer);
+
+}
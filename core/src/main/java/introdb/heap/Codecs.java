@@ -0,0 +1,144 @@
+package introdb.heap;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Codecs known to a heap file, each identified by a one byte tag stored in front of every encoded object.
+ * Tags are part of the file format, so a codec has to keep its tag for the lifetime of the file. Built-in codecs
+ * cover {@code byte[]}, {@code String} and boxed primitives, tags from {@link #FIRST_USER_TAG} on are left for
+ * codecs of other types, for example {@link SchemaCodec}. Objects of types without a codec are stored with Java
+ * serialization.
+ */
+final class Codecs {
+  static final byte JAVA_SERIALIZATION_TAG = 0;
+  static final int FIRST_USER_TAG = 64;
+  static final int LAST_USER_TAG = Byte.MAX_VALUE;
+
+  static final Codec<byte[]> BYTES = of(byte[].class, (bytes, buffer) -> {
+    buffer.putInt(bytes.length).put(bytes);
+  }, buffer -> {
+    final var bytes = new byte[buffer.getInt()];
+    buffer.get(bytes);
+    return bytes;
+  });
+  static final Codec<String> STRING = of(String.class, (string, buffer) -> {
+    BYTES.encode(string.getBytes(StandardCharsets.UTF_8), buffer);
+  }, buffer -> {
+    final var length = buffer.getInt();
+    final String string;
+    if (buffer.hasArray()) {
+      string = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+      buffer.position(buffer.position() + length);
+    } else {
+      final var bytes = new byte[length];
+      buffer.get(bytes);
+      string = new String(bytes, StandardCharsets.UTF_8);
+    }
+    return string;
+  });
+  static final Codec<Integer> INTEGER = of(Integer.class, (value, buffer) -> buffer.putInt(value), ByteBuffer::getInt);
+  static final Codec<Long> LONG = of(Long.class, (value, buffer) -> buffer.putLong(value), ByteBuffer::getLong);
+  static final Codec<Short> SHORT = of(Short.class, (value, buffer) -> buffer.putShort(value), ByteBuffer::getShort);
+  static final Codec<Byte> BYTE = of(Byte.class, (value, buffer) -> buffer.put(value), ByteBuffer::get);
+  static final Codec<Character> CHARACTER =
+      of(Character.class, (value, buffer) -> buffer.putChar(value), ByteBuffer::getChar);
+  static final Codec<Boolean> BOOLEAN =
+      of(Boolean.class, (value, buffer) -> buffer.put((byte) (value ? 1 : 0)), buffer -> buffer.get() != 0);
+  static final Codec<Double> DOUBLE =
+      of(Double.class, (value, buffer) -> buffer.putDouble(value), ByteBuffer::getDouble);
+  static final Codec<Float> FLOAT = of(Float.class, (value, buffer) -> buffer.putFloat(value), ByteBuffer::getFloat);
+
+  private static final Codecs BUILT_IN = new Codecs()
+      .register(1, BYTES)
+      .register(2, STRING)
+      .register(3, INTEGER)
+      .register(4, LONG)
+      .register(5, SHORT)
+      .register(6, BYTE)
+      .register(7, CHARACTER)
+      .register(8, BOOLEAN)
+      .register(9, DOUBLE)
+      .register(10, FLOAT);
+
+  private final Codec<?>[] codecsByTag = new Codec<?>[LAST_USER_TAG + 1];
+  private final Map<Class<?>, Byte> tagsByType = new HashMap<>();
+
+  private Codecs() {
+  }
+
+  static Codecs builtIn() {
+    return BUILT_IN;
+  }
+
+  /**
+   * @return codecs which store everything with Java serialization
+   */
+  static Codecs javaSerializationOnly() {
+    return new Codecs();
+  }
+
+  /**
+   * @return copy of these codecs with an additional codec of a user type
+   */
+  Codecs with(final int tag, final Codec<?> codec) {
+    if (tag < FIRST_USER_TAG || tag > LAST_USER_TAG) {
+      throw new IllegalArgumentException(
+          "Codec tag " + tag + " is out of range " + FIRST_USER_TAG + ".." + LAST_USER_TAG + ".");
+    }
+    final var copy = new Codecs();
+    System.arraycopy(codecsByTag, 0, copy.codecsByTag, 0, codecsByTag.length);
+    copy.tagsByType.putAll(tagsByType);
+    return copy.register(tag, codec);
+  }
+
+  /**
+   * @return tag of the codec of given type, or {@link #JAVA_SERIALIZATION_TAG} when there is none
+   */
+  byte tagOf(final Class<?> type) {
+    return tagsByType.getOrDefault(type, JAVA_SERIALIZATION_TAG);
+  }
+
+  /**
+   * @return codec of given tag, or null when there is none
+   */
+  @SuppressWarnings("unchecked")
+  Codec<Object> codecOf(final byte tag) {
+    return tag > 0 ? (Codec<Object>) codecsByTag[tag] : null;
+  }
+
+  private Codecs register(final int tag, final Codec<?> codec) {
+    if (codecsByTag[tag] != null) {
+      throw new IllegalArgumentException("Codec tag " + tag + " is already taken.");
+    }
+    codecsByTag[tag] = codec;
+    tagsByType.put(codec.type(), (byte) tag);
+    return this;
+  }
+
+  private static <T> Codec<T> of(final Class<T> type, final BiConsumer<T, ByteBuffer> encoder,
+      final Function<ByteBuffer, T> decoder) {
+    return new Codec<>() {
+
+      @Override
+      public Class<T> type() {
+        return type;
+      }
+
+      @Override
+      public void encode(final T object, final ByteBuffer buffer) {
+        encoder.accept(object, buffer);
+      }
+
+      @Override
+      public T decode(final ByteBuffer buffer) {
+        return decoder.apply(buffer);
+      }
+    };
+  }
+
+}
@@ -0,0 +1,23 @@
+package introdb.heap;
+
+/**
+ * How {@link LsmTreeFile} merges its sorted tables in background.
+ */
+enum CompactionPolicy {
+
+  /**
+   * Tables form a single tier ordered by age. Once enough consecutive tables are of similar size, they are merged
+   * into one. Every entry is rewritten only a few times, at the cost of lookups checking more tables and of keys
+   * overwritten in different tables taking space until their tables meet.
+   */
+  SIZE_TIERED,
+
+  /**
+   * Memtables are written to level 0, which is merged into level 1 once it holds enough tables. Tables of every
+   * other level cover disjoint key ranges, and a level over its size limit moves one table into the next,
+   * {@code levelSizeMultiplier} times larger level. A lookup checks at most one table per level, and little space
+   * is wasted by overwritten keys, at the cost of rewriting entries more often.
+   */
+  LEVELED
+
+}
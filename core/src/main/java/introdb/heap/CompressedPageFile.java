@@ -0,0 +1,461 @@
+package introdb.heap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32C;
+
+/**
+ * Stores every page compressed in an extent of as many 512 byte sectors as it needs, pages which do not compress
+ * are stored as they are. A page-translation table maps every logical page to the first sector and the stored
+ * length of its extent, it is kept in memory and saved next to the file.
+ * <p>
+ * Pages are never overwritten in place: every write goes to a free extent. The extent of the previous version is
+ * reused right away when it was written since the table was last saved, otherwise only after {@link #force()},
+ * which forces the file and saves the table. Every extent starts with a header of page number, write sequence and
+ * checksum, so extents written after the table was last saved are recovered on open by scanning the space the saved
+ * table considers free, the latest extent of every page wins.
+ * <p>
+ * Decompressed pages are cached by the buffer pool of the store, so only pages missing in the pool are read and
+ * decompressed.
+ */
+final class CompressedPageFile implements PageFile {
+  static final int SECTOR_SIZE = 512;
+
+  private static final int EXTENT_MAGIC = 0x43504745;
+  private static final int TABLE_MAGIC = 0x50545431;
+  private static final int EXTENT_HEADER_BYTES = 3 * Integer.BYTES + 2 * Long.BYTES;
+  private static final int TABLE_HEADER_BYTES = 3 * Integer.BYTES + Long.BYTES;
+  private static final int TABLE_ENTRY_BYTES = Long.BYTES + Integer.BYTES;
+  private static final long NO_EXTENT = -1;
+
+  private final Path tablePath;
+  private final FileChannel fileChannel;
+  private final int pageSize;
+  private final PageCompression compression;
+  private final int maxSectorsPerExtent;
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+  // free extents by their number of sectors
+  private final List<ArrayDeque<Long>> freeExtents = new ArrayList<>();
+  private final List<long[]> freedExtents = new ArrayList<>();
+  // pages written since the table was last saved
+  private final BitSet unsavedPages = new BitSet();
+  private long[] extents = new long[16];
+  // stored length of every page, negative for a page stored as it is
+  private int[] lengths = new int[16];
+  private int nrOfPages;
+  private long sequence;
+  private long endSector;
+
+  /**
+   * Opens or creates the file, loads its page-translation table and recovers pages written after the table was
+   * last saved.
+   *
+   * @throws IllegalArgumentException
+   *           when the file was created with another page size or compression, or without compression
+   */
+  CompressedPageFile(final Path path, final int pageSize, final PageCompression compression) throws IOException {
+    this.tablePath = tablePathFor(path);
+    this.fileChannel =
+        FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    this.pageSize = pageSize;
+    this.compression = compression;
+    this.maxSectorsPerExtent = sectorsFor(pageSize);
+    for (var sectors = 0; sectors <= maxSectorsPerExtent; sectors++) {
+      freeExtents.add(new ArrayDeque<>());
+    }
+    Arrays.fill(extents, NO_EXTENT);
+    try {
+      if (!Files.exists(tablePath)) {
+        if (fileChannel.size() > 0) {
+          throw new IllegalArgumentException("Page file " + path + " is not compressed.");
+        }
+        writeTable();
+      }
+      final var savedSequence = readTable();
+      final var recovered = recoverExtents(savedSequence);
+      rebuildFreeExtents();
+      if (recovered) {
+        fileChannel.force(false);
+        writeTable();
+      }
+      if (fileChannel.size() > endSector * SECTOR_SIZE) {
+        fileChannel.truncate(endSector * SECTOR_SIZE);
+      }
+    } catch (IOException | RuntimeException e) {
+      fileChannel.close();
+      throw e;
+    }
+  }
+
+  static Path tablePathFor(final Path path) {
+    return path.resolveSibling(path.getFileName() + ".ptt");
+  }
+
+  @Override
+  public void read(final long pageNumber, final ByteBuffer page) throws IOException {
+    final int length;
+    final byte[] stored;
+    lock.readLock().lock();
+    try {
+      if (pageNumber >= nrOfPages || extents[(int) pageNumber] == NO_EXTENT) {
+        while (page.hasRemaining()) {
+          page.put((byte) 0);
+        }
+        return;
+      }
+      length = lengths[(int) pageNumber];
+      stored = new byte[Math.abs(length)];
+      readFully(ByteBuffer.wrap(stored), extents[(int) pageNumber] * SECTOR_SIZE + EXTENT_HEADER_BYTES);
+    } finally {
+      lock.readLock().unlock();
+    }
+    if (length < 0) {
+      page.put(stored);
+      return;
+    }
+    final var decompressed = new byte[pageSize];
+    compression.decompress(stored, length, decompressed);
+    page.put(decompressed);
+  }
+
+  @Override
+  public void readPages(final long firstPageNumber, final ByteBuffer... pages) throws IOException {
+    var pageNumber = firstPageNumber;
+    for (final var buffer : pages) {
+      for (; buffer.hasRemaining(); pageNumber++) {
+        final var page = buffer.slice();
+        page.limit(Math.min(pageSize, page.remaining()));
+        read(pageNumber, page);
+        buffer.position(buffer.position() + page.limit());
+      }
+    }
+  }
+
+  /**
+   * Compresses the page outside of the lock, and writes it to a free extent under it.
+   */
+  @Override
+  public void write(final long pageNumber, final ByteBuffer page) throws IOException {
+    if (pageNumber >= Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Compressed page file holds at most " + Integer.MAX_VALUE + " pages.");
+    }
+    final var raw = new byte[pageSize];
+    page.get(raw);
+    // compression has to save at least a sector to be worth decompressing
+    final var compressed = new byte[Math.max(0, (maxSectorsPerExtent - 1) * SECTOR_SIZE - EXTENT_HEADER_BYTES)];
+    final var compressedLength = compression.compress(raw, compressed);
+    final var payload = compressedLength > 0 ? compressed : raw;
+    final var length = compressedLength > 0 ? compressedLength : -pageSize;
+    final var sectors = sectorsFor(Math.abs(length));
+    final var extent = ByteBuffer.allocate(EXTENT_HEADER_BYTES + Math.abs(length));
+    extent.position(EXTENT_HEADER_BYTES);
+    extent.put(payload, 0, Math.abs(length));
+    lock.writeLock().lock();
+    try {
+      final var index = (int) pageNumber;
+      ensureCapacity(index + 1);
+      final var start = allocate(sectors);
+      extent.putInt(0, EXTENT_MAGIC)
+          .putLong(Integer.BYTES, pageNumber)
+          .putLong(Integer.BYTES + Long.BYTES, ++sequence)
+          .putInt(Integer.BYTES + 2 * Long.BYTES, length)
+          .putInt(2 * Integer.BYTES + 2 * Long.BYTES, checksum(extent));
+      extent.clear();
+      while (extent.hasRemaining()) {
+        fileChannel.write(extent, start * SECTOR_SIZE + extent.position());
+      }
+      if (extents[index] != NO_EXTENT && unsavedPages.get(index)) {
+        freeExtents.get(sectorsFor(Math.abs(lengths[index]))).add(extents[index]);
+      } else if (extents[index] != NO_EXTENT) {
+        freedExtents.add(new long[] { extents[index], sectorsFor(Math.abs(lengths[index])) });
+      }
+      unsavedPages.set(index);
+      extents[index] = start;
+      lengths[index] = length;
+      nrOfPages = Math.max(nrOfPages, index + 1);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public long nrOfPages() {
+    lock.readLock().lock();
+    try {
+      return nrOfPages;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Drops pages and saves the table right away, so dropped pages are never recovered.
+   */
+  @Override
+  public void truncate(final long nrOfPages) throws IOException {
+    lock.writeLock().lock();
+    try {
+      for (var page = (int) Math.min(nrOfPages, this.nrOfPages); page < this.nrOfPages; page++) {
+        if (extents[page] != NO_EXTENT) {
+          freedExtents.add(new long[] { extents[page], sectorsFor(Math.abs(lengths[page])) });
+          extents[page] = NO_EXTENT;
+        }
+      }
+      this.nrOfPages = (int) Math.min(nrOfPages, this.nrOfPages);
+      forceAndSaveTable();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Forces the file, saves the table and makes extents of overwritten pages available to new writes.
+   */
+  @Override
+  public void force() throws IOException {
+    lock.writeLock().lock();
+    try {
+      forceAndSaveTable();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    lock.writeLock().lock();
+    try {
+      forceAndSaveTable();
+    } finally {
+      lock.writeLock().unlock();
+      fileChannel.close();
+    }
+  }
+
+  private void forceAndSaveTable() throws IOException {
+    fileChannel.force(false);
+    writeTable();
+    unsavedPages.clear();
+    for (final var extent : freedExtents) {
+      freeExtents.get((int) extent[1]).add(extent[0]);
+    }
+    freedExtents.clear();
+  }
+
+  /**
+   * Takes the smallest free extent which is large enough, splitting off the sectors it does not need, or appends
+   * a new extent at the end of the file.
+   */
+  private long allocate(final int sectors) {
+    for (var size = sectors; size <= maxSectorsPerExtent; size++) {
+      final var start = freeExtents.get(size).poll();
+      if (start != null) {
+        if (size > sectors) {
+          freeExtents.get(size - sectors).add(start + sectors);
+        }
+        return start;
+      }
+    }
+    final var start = endSector;
+    endSector += sectors;
+    return start;
+  }
+
+  /**
+   * @return sequence of the last write included in the table
+   */
+  private long readTable() throws IOException {
+    final var table = ByteBuffer.wrap(Files.readAllBytes(tablePath));
+    if (table.remaining() < TABLE_HEADER_BYTES || table.getInt() != TABLE_MAGIC) {
+      throw new IOException("Page-translation table " + tablePath + " is corrupted.");
+    }
+    final var storedPageSize = table.getInt();
+    if (storedPageSize != pageSize) {
+      throw new IllegalArgumentException("Page file has page size " + storedPageSize + ", not " + pageSize + ".");
+    }
+    final var storedCompression = PageCompression.values()[table.getInt()];
+    if (storedCompression != compression) {
+      throw new IllegalArgumentException("Page file is compressed with " + storedCompression + ", not "
+          + compression + ".");
+    }
+    final var savedSequence = table.getLong();
+    final var savedPages = table.remaining() / TABLE_ENTRY_BYTES;
+    ensureCapacity(savedPages);
+    for (var page = 0; page < savedPages; page++) {
+      extents[page] = table.getLong();
+      lengths[page] = table.getInt();
+    }
+    nrOfPages = savedPages;
+    sequence = savedSequence;
+    return savedSequence;
+  }
+
+  /**
+   * Writes the table to a temporary file first, so a crash never leaves a partially written one behind.
+   */
+  private void writeTable() throws IOException {
+    final var table = ByteBuffer.allocate(TABLE_HEADER_BYTES + nrOfPages * TABLE_ENTRY_BYTES)
+        .putInt(TABLE_MAGIC)
+        .putInt(pageSize)
+        .putInt(compression.ordinal())
+        .putLong(sequence);
+    for (var page = 0; page < nrOfPages; page++) {
+      table.putLong(extents[page]).putInt(lengths[page]);
+    }
+    final var temporary = tablePath.resolveSibling(tablePath.getFileName() + ".tmp");
+    try (var channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      table.flip();
+      while (table.hasRemaining()) {
+        channel.write(table);
+      }
+      channel.force(false);
+    }
+    Files.move(temporary, tablePath, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Scans sectors not used by extents of the saved table for valid extents written after it was saved, the latest
+   * extent of every page wins. Extents are written only to sectors the saved table considers free, and the latest
+   * extent of a page is never overwritten, so a page loses only a write which was not forced.
+   *
+   * @return true when any page was recovered
+   */
+  private boolean recoverExtents(final long savedSequence) throws IOException {
+    final var fileSectors = (fileChannel.size() + SECTOR_SIZE - 1) / SECTOR_SIZE;
+    final var recoveredSequences = new HashMap<Integer, Long>();
+    final var header = ByteBuffer.allocate(EXTENT_HEADER_BYTES);
+    var gapStart = 0L;
+    for (final var live : liveExtents(fileSectors).entrySet()) {
+      for (var sector = gapStart; sector < live.getKey();) {
+        sector += recoverExtent(sector, live.getKey(), savedSequence, recoveredSequences, header);
+      }
+      gapStart = Math.max(gapStart, live.getKey() + live.getValue());
+    }
+    return !recoveredSequences.isEmpty();
+  }
+
+  /**
+   * @return number of sectors to skip, those of a valid extent or one
+   */
+  private int recoverExtent(final long sector, final long gapEnd, final long savedSequence,
+      final HashMap<Integer, Long> recoveredSequences, final ByteBuffer header) throws IOException {
+    if (readAvailable(header.clear(), sector * SECTOR_SIZE) < EXTENT_HEADER_BYTES
+        || header.getInt() != EXTENT_MAGIC) {
+      return 1;
+    }
+    final var pageNumber = header.getLong();
+    final var extentSequence = header.getLong();
+    final var length = header.getInt();
+    final var storedChecksum = header.getInt();
+    if (extentSequence <= savedSequence || pageNumber < 0 || pageNumber >= Integer.MAX_VALUE
+        || !(length == -pageSize || length > 0 && length < pageSize) || sector + sectorsFor(Math.abs(length)) > gapEnd) {
+      return 1;
+    }
+    final var extent = ByteBuffer.allocate(EXTENT_HEADER_BYTES + Math.abs(length));
+    if (readAvailable(extent, sector * SECTOR_SIZE) < extent.capacity() || checksum(extent) != storedChecksum) {
+      return 1;
+    }
+    final var page = (int) pageNumber;
+    final var previous = recoveredSequences.get(page);
+    if (previous == null || previous < extentSequence) {
+      recoveredSequences.put(page, extentSequence);
+      ensureCapacity(page + 1);
+      extents[page] = sector;
+      lengths[page] = length;
+      nrOfPages = Math.max(nrOfPages, page + 1);
+      sequence = Math.max(sequence, extentSequence);
+    }
+    return sectorsFor(Math.abs(length));
+  }
+
+  /**
+   * Collects free extents from the gaps between extents of the table, and moves the end of the file after the last
+   * of them.
+   */
+  private void rebuildFreeExtents() {
+    var gapStart = 0L;
+    for (final var live : liveExtents(0).entrySet()) {
+      addFreeExtents(gapStart, live.getKey());
+      gapStart = Math.max(gapStart, live.getKey() + live.getValue());
+    }
+    endSector = gapStart;
+  }
+
+  /**
+   * @return first sector and number of sectors of every extent of the table, followed by an empty extent at the
+   *         given sector
+   */
+  private TreeMap<Long, Integer> liveExtents(final long endSector) {
+    final var live = new TreeMap<Long, Integer>();
+    for (var page = 0; page < nrOfPages; page++) {
+      if (extents[page] != NO_EXTENT) {
+        live.put(extents[page], sectorsFor(Math.abs(lengths[page])));
+      }
+    }
+    live.put(Math.max(endSector, live.isEmpty() ? 0 : live.lastKey() + live.lastEntry().getValue()), 0);
+    return live;
+  }
+
+  private void addFreeExtents(final long start, final long end) {
+    for (var sector = start; sector < end; sector += maxSectorsPerExtent) {
+      freeExtents.get((int) Math.min(maxSectorsPerExtent, end - sector)).add(sector);
+    }
+  }
+
+  private void ensureCapacity(final int pages) {
+    if (pages > extents.length) {
+      final var capacity = Math.max(pages, 2 * extents.length);
+      final var previous = extents.length;
+      extents = Arrays.copyOf(extents, capacity);
+      lengths = Arrays.copyOf(lengths, capacity);
+      Arrays.fill(extents, previous, capacity, NO_EXTENT);
+    }
+  }
+
+  /**
+   * Checksum of an extent, covering its header without the checksum itself, and its stored page.
+   */
+  private static int checksum(final ByteBuffer extent) {
+    final var crc = new CRC32C();
+    crc.update(extent.array(), 0, EXTENT_HEADER_BYTES - Integer.BYTES);
+    crc.update(extent.array(), EXTENT_HEADER_BYTES, extent.capacity() - EXTENT_HEADER_BYTES);
+    return (int) crc.getValue();
+  }
+
+  private static int sectorsFor(final int storedLength) {
+    return (EXTENT_HEADER_BYTES + storedLength + SECTOR_SIZE - 1) / SECTOR_SIZE;
+  }
+
+  /**
+   * @return number of bytes read before the buffer is full or the file ends
+   */
+  private int readAvailable(final ByteBuffer buffer, final long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (fileChannel.read(buffer, position + buffer.position()) < 0) {
+        break;
+      }
+    }
+    return buffer.flip().remaining();
+  }
+
+  private void readFully(final ByteBuffer buffer, final long position) throws IOException {
+    if (readAvailable(buffer, position) < buffer.capacity()) {
+      throw new IOException("Compressed page file ends within an extent.");
+    }
+  }
+
+}
@@ -0,0 +1,23 @@
+package introdb.heap;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the checksum of a page read from disk does not match its content, like after a torn write or a
+ * flipped bit on the storage device.
+ */
+public final class CorruptedPage extends IOException {
+  private static final long serialVersionUID = 1L;
+
+  private final long pageNumber;
+
+  public CorruptedPage(final long pageNumber) {
+    super("Checksum of page " + pageNumber + " does not match its content.");
+    this.pageNumber = pageNumber;
+  }
+
+  public long pageNumber() {
+    return pageNumber;
+  }
+
+}
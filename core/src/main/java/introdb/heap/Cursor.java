@@ -0,0 +1,23 @@
+package introdb.heap;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Forward-only iteration over records of a {@link Store}. Key and value of the current record are deserialized
+ * only when asked for, so values a caller does not need are never decoded.
+ */
+interface Cursor extends Closeable {
+
+  /**
+   * Moves to the next record.
+   *
+   * @return false when there are no more records
+   */
+  boolean next() throws IOException;
+
+  Object key() throws IOException, ClassNotFoundException;
+
+  Object value() throws IOException, ClassNotFoundException;
+
+}
@@ -0,0 +1,28 @@
+package introdb.heap;
+
+import java.io.IOException;
+
+/**
+ * Forward iteration over serialized entries of {@link LsmTreeFile} in {@link java.util.Arrays#compareUnsigned}
+ * order of keys. An empty value marks a removed key, as serialized values always start with a codec tag.
+ */
+interface EntryScanner {
+
+  /**
+   * Moves to the next entry.
+   *
+   * @return false when there are no more entries
+   */
+  boolean next() throws IOException;
+
+  /**
+   * @return key of the current entry, not modified after the scanner moves on
+   */
+  byte[] key();
+
+  /**
+   * @return value of the current entry, not modified after the scanner moves on
+   */
+  byte[] value();
+
+}
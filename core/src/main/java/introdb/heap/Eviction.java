@@ -0,0 +1,28 @@
+package introdb.heap;
+
+enum Eviction {
+
+  LRU {
+    @Override
+    EvictionPolicy newPolicy(final int nrOfFrames) {
+      return new LruEvictionPolicy(nrOfFrames);
+    }
+  },
+
+  CLOCK {
+    @Override
+    EvictionPolicy newPolicy(final int nrOfFrames) {
+      return new ClockEvictionPolicy(nrOfFrames);
+    }
+  },
+
+  TWO_QUEUE {
+    @Override
+    EvictionPolicy newPolicy(final int nrOfFrames) {
+      return new TwoQueueEvictionPolicy(nrOfFrames);
+    }
+  };
+
+  abstract EvictionPolicy newPolicy(int nrOfFrames);
+
+}
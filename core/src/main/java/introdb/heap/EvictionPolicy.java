@@ -0,0 +1,23 @@
+package introdb.heap;
+
+import java.util.function.IntPredicate;
+
+/**
+ * Decides which buffer pool frame is reused when a page has to be loaded and all frames are taken.
+ */
+interface EvictionPolicy {
+
+  void pageLoaded(int frame, long pageNumber);
+
+  void pageAccessed(int frame);
+
+  /**
+   * Selects a frame to evict and stops tracking it.
+   *
+   * @param isPinned
+   *          tells which frames cannot be evicted
+   * @return frame to evict, or -1 when every frame is pinned
+   */
+  int selectVictim(IntPredicate isPinned);
+
+}
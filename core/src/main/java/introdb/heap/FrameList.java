@@ -0,0 +1,83 @@
+package introdb.heap;
+
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+/**
+ * Intrusive doubly linked list of frame numbers, head is the most recently added frame.
+ */
+final class FrameList {
+  private static final int NONE = -1;
+
+  private final int[] previous;
+  private final int[] next;
+  private final boolean[] linked;
+  private int head = NONE;
+  private int tail = NONE;
+  private int size;
+
+  FrameList(final int nrOfFrames) {
+    this.previous = new int[nrOfFrames];
+    this.next = new int[nrOfFrames];
+    this.linked = new boolean[nrOfFrames];
+    Arrays.fill(previous, NONE);
+    Arrays.fill(next, NONE);
+  }
+
+  boolean contains(final int frame) {
+    return linked[frame];
+  }
+
+  int size() {
+    return size;
+  }
+
+  void addFirst(final int frame) {
+    previous[frame] = NONE;
+    next[frame] = head;
+    if (head != NONE) {
+      previous[head] = frame;
+    } else {
+      tail = frame;
+    }
+    head = frame;
+    linked[frame] = true;
+    size++;
+  }
+
+  void moveToFront(final int frame) {
+    remove(frame);
+    addFirst(frame);
+  }
+
+  void remove(final int frame) {
+    if (previous[frame] != NONE) {
+      next[previous[frame]] = next[frame];
+    } else {
+      head = next[frame];
+    }
+    if (next[frame] != NONE) {
+      previous[next[frame]] = previous[frame];
+    } else {
+      tail = previous[frame];
+    }
+    previous[frame] = NONE;
+    next[frame] = NONE;
+    linked[frame] = false;
+    size--;
+  }
+
+  /**
+   * Removes and returns the oldest frame which is not pinned, or -1 when there is no such frame.
+   */
+  int removeLast(final IntPredicate isPinned) {
+    for (var frame = tail; frame != NONE; frame = previous[frame]) {
+      if (!isPinned.test(frame)) {
+        remove(frame);
+        return frame;
+      }
+    }
+    return NONE;
+  }
+
+}
@@ -0,0 +1,190 @@
+package introdb.heap;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Approximate free space of every heap file page, kept as one byte category per page. A page in category
+ * {@code c} has at least {@code c * pageSize / 256} free bytes. Categories are kept in a max tree, so the first
+ * page with enough free space is found in logarithmic time.
+ * <p>
+ * The map is only a hint: callers verify free space on the page itself and report the actual amount back. It
+ * is saved to a file next to the heap file, without any crash protection.
+ */
+final class FreeSpaceMap implements Closeable {
+  static final long NOT_FOUND = -1L;
+
+  private static final int NR_OF_CATEGORIES = 256;
+  private static final int INITIAL_CAPACITY = 1024;
+
+  private final FileChannel fileChannel;
+  private final int bytesPerCategory;
+  private final ReentrantLock lock = new ReentrantLock();
+  private int[] tree;
+  private int capacity;
+  private int nrOfPages;
+  private boolean modified;
+
+  FreeSpaceMap(final Path path, final int pageSize) throws IOException {
+    this.fileChannel =
+        FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    this.bytesPerCategory = Math.max(1, pageSize / NR_OF_CATEGORIES);
+    allocate(INITIAL_CAPACITY);
+    load();
+  }
+
+  static Path pathFor(final Path heapFilePath) {
+    return heapFilePath.resolveSibling(heapFilePath.getFileName() + ".fsm");
+  }
+
+  /**
+   * @return number of pages known to the map, which may not match the heap file after a crash
+   */
+  int nrOfPages() {
+    lock.lock();
+    try {
+      return nrOfPages;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  void update(final long pageNumber, final int freeBytes) {
+    final var category = Math.min(NR_OF_CATEGORIES - 1, freeBytes / bytesPerCategory);
+    lock.lock();
+    try {
+      while (pageNumber >= capacity) {
+        grow();
+      }
+      nrOfPages = Math.max(nrOfPages, (int) pageNumber + 1);
+      var node = capacity + (int) pageNumber;
+      if (tree[node] == category) {
+        return;
+      }
+      tree[node] = category;
+      for (node >>>= 1; node > 0; node >>>= 1) {
+        tree[node] = Math.max(tree[2 * node], tree[2 * node + 1]);
+      }
+      modified = true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return lowest page number which is expected to have given number of free bytes, or {@link #NOT_FOUND}
+   */
+  long find(final int requiredBytes) {
+    final var category = (requiredBytes + bytesPerCategory - 1) / bytesPerCategory;
+    if (category >= NR_OF_CATEGORIES) {
+      return NOT_FOUND;
+    }
+    lock.lock();
+    try {
+      if (tree[1] < category) {
+        return NOT_FOUND;
+      }
+      var node = 1;
+      while (node < capacity) {
+        node = tree[2 * node] >= category ? 2 * node : 2 * node + 1;
+      }
+      return node - capacity;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Forgets all pages, before the map is built again from the heap file.
+   */
+  void clear() {
+    lock.lock();
+    try {
+      Arrays.fill(tree, 0);
+      nrOfPages = 0;
+      modified = true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Forgets pages from given page number on, after they were dropped from the heap file.
+   */
+  void truncate(final int nrOfPages) {
+    lock.lock();
+    try {
+      for (var pageNumber = nrOfPages; pageNumber < this.nrOfPages; pageNumber++) {
+        update(pageNumber, 0);
+      }
+      this.nrOfPages = Math.min(this.nrOfPages, nrOfPages);
+      modified = true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  void save() throws IOException {
+    final ByteBuffer categories;
+    lock.lock();
+    try {
+      if (!modified) {
+        return;
+      }
+      categories = ByteBuffer.allocate(nrOfPages);
+      for (var pageNumber = 0; pageNumber < nrOfPages; pageNumber++) {
+        categories.put((byte) tree[capacity + pageNumber]);
+      }
+      modified = false;
+    } finally {
+      lock.unlock();
+    }
+    categories.flip();
+    var position = 0L;
+    while (categories.hasRemaining()) {
+      position += fileChannel.write(categories, position);
+    }
+    fileChannel.truncate(position);
+  }
+
+  @Override
+  public void close() throws IOException {
+    save();
+    fileChannel.close();
+  }
+
+  private void load() throws IOException {
+    final var categories = ByteBuffer.allocate((int) fileChannel.size());
+    while (categories.hasRemaining()) {
+      if (fileChannel.read(categories, categories.position()) < 0) {
+        break;
+      }
+    }
+    categories.flip();
+    for (var pageNumber = 0; categories.hasRemaining(); pageNumber++) {
+      update(pageNumber, Byte.toUnsignedInt(categories.get()) * bytesPerCategory);
+    }
+    modified = false;
+  }
+
+  private void grow() {
+    final var leaves = Arrays.copyOfRange(tree, capacity, 2 * capacity);
+    allocate(2 * capacity);
+    System.arraycopy(leaves, 0, tree, capacity, leaves.length);
+    for (var node = capacity - 1; node > 0; node--) {
+      tree[node] = Math.max(tree[2 * node], tree[2 * node + 1]);
+    }
+  }
+
+  private void allocate(final int capacity) {
+    this.capacity = capacity;
+    this.tree = new int[2 * capacity];
+  }
+
+}
@@ -0,0 +1,173 @@
+package introdb.heap;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Maps 32-bit key hashes to record locations, kept in primitive arrays with linear probing.
+ * Keys themselves are not kept in memory, so several locations may be stored for one hash
+ * and the caller has to check the record on the page to confirm a match.
+ * <p>
+ * Thread safe, lookups share a read lock. Callers have to serialize modifications of locations stored for
+ * one key themselves.
+ */
+final class HashIndex {
+  static final long NOT_FOUND = -1L;
+
+  private static final int INITIAL_CAPACITY = 1024;
+  private static final long EMPTY = -1L;
+
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+  private int[] hashes;
+  private long[] locations;
+  private int mask;
+  private int size;
+
+  HashIndex() {
+    allocate(INITIAL_CAPACITY);
+  }
+
+  static int hash(final byte[] key) {
+    return mix(Arrays.hashCode(key));
+  }
+
+  /**
+   * Same as {@link #hash(byte[])} of the bytes from position to limit of the key buffer.
+   */
+  static int hash(final ByteBuffer key) {
+    var h = 1;
+    for (var i = key.position(); i < key.limit(); i++) {
+      h = 31 * h + key.get(i);
+    }
+    return mix(h);
+  }
+
+  private static int mix(final int hash) {
+    var h = hash;
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h;
+  }
+
+  static long location(final long pageNumber, final int recordSlot) {
+    return (pageNumber << Integer.SIZE) | recordSlot;
+  }
+
+  static long pageNumberOf(final long location) {
+    return location >>> Integer.SIZE;
+  }
+
+  static int recordSlotOf(final long location) {
+    return (int) location;
+  }
+
+  /**
+   * Returns n-th location stored for given hash (in probing order), or {@link #NOT_FOUND}
+   * when there are no more locations for this hash.
+   */
+  long get(final int hash, final int n) {
+    lock.readLock().lock();
+    try {
+      var remaining = n;
+      for (var slot = hash & mask; locations[slot] != EMPTY; slot = (slot + 1) & mask) {
+        if (hashes[slot] == hash && remaining-- == 0) {
+          return locations[slot];
+        }
+      }
+      return NOT_FOUND;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  void add(final int hash, final long location) {
+    lock.writeLock().lock();
+    try {
+      if (2 * (size + 1) > locations.length) {
+        resize();
+      }
+      insert(hash, location);
+      size++;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  boolean remove(final int hash, final long location) {
+    lock.writeLock().lock();
+    try {
+      for (var slot = hash & mask; locations[slot] != EMPTY; slot = (slot + 1) & mask) {
+        if (hashes[slot] == hash && locations[slot] == location) {
+          shiftBackwardFrom(slot);
+          size--;
+          return true;
+        }
+      }
+      return false;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  int size() {
+    lock.readLock().lock();
+    try {
+      return size;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private void insert(final int hash, final long location) {
+    var slot = hash & mask;
+    while (locations[slot] != EMPTY) {
+      slot = (slot + 1) & mask;
+    }
+    hashes[slot] = hash;
+    locations[slot] = location;
+  }
+
+  private void shiftBackwardFrom(final int removedSlot) {
+    var hole = removedSlot;
+    var slot = (hole + 1) & mask;
+    while (locations[slot] != EMPTY) {
+      final var home = hashes[slot] & mask;
+      if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+        hashes[hole] = hashes[slot];
+        locations[hole] = locations[slot];
+        hole = slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+    locations[hole] = EMPTY;
+  }
+
+  private void resize() {
+    final var oldHashes = hashes;
+    final var oldLocations = locations;
+    allocate(oldLocations.length * 2);
+    // start from an empty slot, so entries sharing a hash keep their probing order
+    var start = 0;
+    while (oldLocations[start] != EMPTY) {
+      start++;
+    }
+    for (var i = 0; i < oldLocations.length; i++) {
+      final var slot = (start + i) % oldLocations.length;
+      if (oldLocations[slot] != EMPTY) {
+        insert(oldHashes[slot], oldLocations[slot]);
+      }
+    }
+  }
+
+  private void allocate(final int capacity) {
+    hashes = new int[capacity];
+    locations = new long[capacity];
+    Arrays.fill(locations, EMPTY);
+    mask = capacity - 1;
+  }
+
+}
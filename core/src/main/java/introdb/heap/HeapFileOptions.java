@@ -0,0 +1,255 @@
+package introdb.heap;
+
+import java.time.Duration;
+
+/**
+ * Tuning options of {@link UnorderedHeapFile}, every {@code with} method returns a modified copy.
+ */
+final class HeapFileOptions implements Cloneable {
+  static final long DEFAULT_BUFFER_POOL_SIZE = 1024 * 1024;
+  static final long DEFAULT_CHECKPOINT_THRESHOLD = 64 * 1024 * 1024;
+  static final int DEFAULT_READ_AHEAD_PAGES = 32;
+
+  private long bufferPoolSize = DEFAULT_BUFFER_POOL_SIZE;
+  private Eviction eviction = Eviction.LRU;
+  private WriteMode writeMode = WriteMode.WRITE_THROUGH;
+  private long flushThreshold = Long.MAX_VALUE;
+  private Duration flushInterval = Duration.ZERO;
+  private boolean syncOnFlush;
+  private boolean writeAheadLog;
+  private long checkpointThreshold = DEFAULT_CHECKPOINT_THRESHOLD;
+  private PageAccess pageAccess = PageAccess.FILE_CHANNEL;
+  private PageCompression pageCompression = PageCompression.NONE;
+  private boolean pageChecksums = true;
+  private Duration scrubInterval = Duration.ZERO;
+  private int readAheadPages = DEFAULT_READ_AHEAD_PAGES;
+  private int vacuumRate;
+  private Codecs codecs = Codecs.builtIn();
+
+  private HeapFileOptions() {
+  }
+
+  static HeapFileOptions defaults() {
+    return new HeapFileOptions();
+  }
+
+  /**
+   * @param bufferPoolSize
+   *          memory budget of the buffer pool in bytes, it always holds at least two pages
+   */
+  HeapFileOptions withBufferPoolSize(final long bufferPoolSize) {
+    final var copy = copy();
+    copy.bufferPoolSize = bufferPoolSize;
+    return copy;
+  }
+
+  HeapFileOptions withEviction(final Eviction eviction) {
+    final var copy = copy();
+    copy.eviction = eviction;
+    return copy;
+  }
+
+  HeapFileOptions withWriteMode(final WriteMode writeMode) {
+    final var copy = copy();
+    copy.writeMode = writeMode;
+    return copy;
+  }
+
+  /**
+   * @param flushThreshold
+   *          in {@link WriteMode#WRITE_BACK} mode, all dirty pages are flushed once they take this many bytes
+   */
+  HeapFileOptions withFlushThreshold(final long flushThreshold) {
+    final var copy = copy();
+    copy.flushThreshold = flushThreshold;
+    return copy;
+  }
+
+  /**
+   * @param flushInterval
+   *          in {@link WriteMode#WRITE_BACK} mode, dirty pages are flushed in background this often,
+   *          {@link Duration#ZERO} turns it off
+   */
+  HeapFileOptions withFlushInterval(final Duration flushInterval) {
+    final var copy = copy();
+    copy.flushInterval = flushInterval;
+    return copy;
+  }
+
+  /**
+   * @param syncOnFlush
+   *          when true, every flush is followed by {@code FileChannel.force}, so flushed pages survive an OS crash
+   */
+  HeapFileOptions withSyncOnFlush(final boolean syncOnFlush) {
+    final var copy = copy();
+    copy.syncOnFlush = syncOnFlush;
+    return copy;
+  }
+
+  /**
+   * @param writeAheadLog
+   *          when true, every put and remove is forced to a write-ahead log before it returns, and pages are
+   *          written back to the heap file lazily, like in {@link WriteMode#WRITE_BACK} mode
+   */
+  HeapFileOptions withWriteAheadLog(final boolean writeAheadLog) {
+    final var copy = copy();
+    copy.writeAheadLog = writeAheadLog;
+    return copy;
+  }
+
+  /**
+   * @param checkpointThreshold
+   *          size of write-ahead log in bytes, which triggers a checkpoint: all dirty pages are written and forced
+   *          to the heap file, and the log is emptied
+   */
+  HeapFileOptions withCheckpointThreshold(final long checkpointThreshold) {
+    final var copy = copy();
+    copy.checkpointThreshold = checkpointThreshold;
+    return copy;
+  }
+
+  HeapFileOptions withPageAccess(final PageAccess pageAccess) {
+    final var copy = copy();
+    copy.pageAccess = pageAccess;
+    return copy;
+  }
+
+  /**
+   * @param pageCompression
+   *          codec of pages written to the file, which then ignores page access; has to be the same whenever the
+   *          file is opened
+   */
+  HeapFileOptions withPageCompression(final PageCompression pageCompression) {
+    final var copy = copy();
+    copy.pageCompression = pageCompression;
+    return copy;
+  }
+
+  /**
+   * @param pageChecksums
+   *          when true, a CRC32C checksum of every page is written with it and verified when it is read back,
+   *          a mismatch fails the read with {@link CorruptedPage}; has to be the same whenever the file is opened,
+   *          heap and linear hash files written the other way are rejected with {@link IllegalArgumentException}
+   */
+  HeapFileOptions withPageChecksums(final boolean pageChecksums) {
+    final var copy = copy();
+    copy.pageChecksums = pageChecksums;
+    return copy;
+  }
+
+  /**
+   * @param scrubInterval
+   *          with page checksums, all pages of the file are verified in background this often and corrupted ones
+   *          are logged, {@link Duration#ZERO} turns it off
+   */
+  HeapFileOptions withScrubInterval(final Duration scrubInterval) {
+    final var copy = copy();
+    copy.scrubInterval = scrubInterval;
+    return copy;
+  }
+
+  /**
+   * @param readAheadPages
+   *          number of pages the buffer pool reads along with a page missed by a sequential scan, with one read,
+   *          0 turns read-ahead off
+   */
+  HeapFileOptions withReadAheadPages(final int readAheadPages) {
+    final var copy = copy();
+    copy.readAheadPages = readAheadPages;
+    return copy;
+  }
+
+  /**
+   * @param vacuumRate
+   *          number of pages per second a background vacuum compacts or moves records out of, so the empty end of
+   *          the heap file can be truncated, 0 turns it off
+   */
+  HeapFileOptions withVacuumRate(final int vacuumRate) {
+    final var copy = copy();
+    copy.vacuumRate = vacuumRate;
+    return copy;
+  }
+
+  /**
+   * Registers a codec of keys or values of a user type. The same codec has to be registered with the same tag
+   * every time the heap file is opened.
+   *
+   * @param tag
+   *          identifies the codec in stored records, from {@link Codecs#FIRST_USER_TAG} to
+   *          {@link Codecs#LAST_USER_TAG}
+   */
+  HeapFileOptions withCodec(final int tag, final Codec<?> codec) {
+    final var copy = copy();
+    copy.codecs = codecs.with(tag, codec);
+    return copy;
+  }
+
+  long bufferPoolSize() {
+    return bufferPoolSize;
+  }
+
+  Eviction eviction() {
+    return eviction;
+  }
+
+  WriteMode writeMode() {
+    return writeMode;
+  }
+
+  long flushThreshold() {
+    return flushThreshold;
+  }
+
+  Duration flushInterval() {
+    return flushInterval;
+  }
+
+  boolean syncOnFlush() {
+    return syncOnFlush;
+  }
+
+  boolean writeAheadLog() {
+    return writeAheadLog;
+  }
+
+  long checkpointThreshold() {
+    return checkpointThreshold;
+  }
+
+  PageAccess pageAccess() {
+    return pageAccess;
+  }
+
+  PageCompression pageCompression() {
+    return pageCompression;
+  }
+
+  boolean pageChecksums() {
+    return pageChecksums;
+  }
+
+  Duration scrubInterval() {
+    return scrubInterval;
+  }
+
+  int readAheadPages() {
+    return readAheadPages;
+  }
+
+  int vacuumRate() {
+    return vacuumRate;
+  }
+
+  Codecs codecs() {
+    return codecs;
+  }
+
+  private HeapFileOptions copy() {
+    try {
+      return (HeapFileOptions) clone();
+    } catch (CloneNotSupportedException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+}
@@ -0,0 +1,68 @@
+package introdb.heap;
+
+import java.nio.ByteBuffer;
+import java.util.Comparator;
+
+/**
+ * Orders of serialized keys, comparing bytes from position to limit of the buffers without decoding the keys.
+ */
+final class KeyOrder {
+  private static final byte STRING_TAG = Codecs.builtIn().tagOf(String.class);
+  private static final byte INTEGER_TAG = Codecs.builtIn().tagOf(Integer.class);
+  private static final byte LONG_TAG = Codecs.builtIn().tagOf(Long.class);
+  private static final byte SHORT_TAG = Codecs.builtIn().tagOf(Short.class);
+  private static final byte BYTE_TAG = Codecs.builtIn().tagOf(Byte.class);
+
+  /**
+   * Lexicographic order of bytes compared as unsigned numbers, a shorter key goes before keys it is a prefix of.
+   */
+  static final Comparator<ByteBuffer> UNSIGNED_BYTES = KeyOrder::compareUnsignedBytes;
+
+  /**
+   * Natural order of keys encoded by built-in codecs of the same type: strings by their UTF-8 bytes, which is the
+   * order of their code points, and integral numbers by their signed value. Keys of different types are ordered by
+   * their codec tags, keys of other types by {@link #UNSIGNED_BYTES}.
+   */
+  static final Comparator<ByteBuffer> NATURAL = KeyOrder::compareNatural;
+
+  private KeyOrder() {
+  }
+
+  private static int compareUnsignedBytes(final ByteBuffer first, final ByteBuffer second) {
+    final var mismatch = first.mismatch(second);
+    if (mismatch < 0) {
+      return 0;
+    }
+    if (mismatch == first.remaining() || mismatch == second.remaining()) {
+      return first.remaining() - second.remaining();
+    }
+    return Byte.compareUnsigned(first.get(first.position() + mismatch), second.get(second.position() + mismatch));
+  }
+
+  private static int compareNatural(final ByteBuffer first, final ByteBuffer second) {
+    if (!first.hasRemaining() || !second.hasRemaining()) {
+      return compareUnsignedBytes(first, second);
+    }
+    final var tag = first.get(first.position());
+    if (tag != second.get(second.position())) {
+      return Byte.compareUnsigned(tag, second.get(second.position()));
+    }
+    final var firstValue = first.position() + 1;
+    final var secondValue = second.position() + 1;
+    if (tag == INTEGER_TAG) {
+      return Integer.compare(first.getInt(firstValue), second.getInt(secondValue));
+    } else if (tag == LONG_TAG) {
+      return Long.compare(first.getLong(firstValue), second.getLong(secondValue));
+    } else if (tag == SHORT_TAG) {
+      return Short.compare(first.getShort(firstValue), second.getShort(secondValue));
+    } else if (tag == BYTE_TAG) {
+      return Byte.compare(first.get(firstValue), second.get(secondValue));
+    } else if (tag == STRING_TAG) {
+      // skip the length prefix, so strings are not ordered by their length first
+      return compareUnsignedBytes(first.duplicate().position(firstValue + Integer.BYTES),
+          second.duplicate().position(secondValue + Integer.BYTES));
+    }
+    return compareUnsignedBytes(first, second);
+  }
+
+}
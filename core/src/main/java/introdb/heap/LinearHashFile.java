@@ -0,0 +1,776 @@
+package introdb.heap;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import introdb.heap.pool.ObjectPool;
+
+/**
+ * Store placing records by key hash into buckets, grown by linear hashing. Every bucket is one slotted
+ * {@link Page} of the bucket file, page number being the bucket number, followed by a chain of overflow pages
+ * kept in a second file. A record is looked up in its bucket only, so {@code get} reads one or two pages no matter
+ * how many records there are.
+ * <p>
+ * Buckets are split one at a time, in order, whenever records with their slots take more than
+ * {@value #MAX_LOAD_FACTOR} of the space of all bucket pages: bucket at the split pointer moves records, whose next
+ * hash bit is set, to a new bucket appended to the bucket file and packs the remaining ones into as few pages of its
+ * chain as they fit in, so the store grows without ever rehashing more than one bucket at once. Overflow pages freed
+ * by splits and removals are reused.
+ * <p>
+ * Slot 0 of every page holds a link record with an empty key, which is never a serialized key, and the number of
+ * the next overflow page as its value. Level and split pointer are kept in a metadata file, there is no
+ * write-ahead log. On close the metadata file also gets the bytes taken by records and the free overflow pages, so
+ * a closed store opens without reading its buckets. Opening marks the store open again, so after a crash both are
+ * recomputed from all buckets. In {@link WriteMode#WRITE_THROUGH} mode the metadata file is written by every split,
+ * after moved records are added to the new bucket and before the split one is rewritten without them, so a store
+ * reopened without flush finds every record in the bucket it is looked up in; copies left behind in the split
+ * bucket are removed on open.
+ * <p>
+ * Thread safe. Lookups share a store-wide read lock, modifications take it exclusively. Cursors copy one bucket
+ * chain at a time and are weakly consistent, buckets are not split while any cursor is open.
+ */
+final class LinearHashFile implements Store {
+  private static final int METADATA_MAGIC = 0x4c484631;
+  private static final int METADATA_BYTES = 5 * Integer.BYTES + 3 * Long.BYTES;
+  private static final double MAX_LOAD_FACTOR = 0.75;
+  private static final int MAX_LEVEL = Integer.SIZE;
+  private static final int LINK_SLOT = 0;
+  private static final byte[] LINK_KEY = new byte[0];
+  private static final int LINK_KEY_HASH = HashIndex.hash(LINK_KEY);
+  private static final long NO_OVERFLOW_PAGE = -1;
+
+  private final int pageSize;
+  private final int maxRecordLength;
+  /**
+   * Space of a bucket page for records and their slots, next to the link record.
+   */
+  private final int bucketCapacity;
+  private final Path metadataPath;
+  private final PageFile bucketFile;
+  private final PageFile overflowFile;
+  private final BufferPool buckets;
+  private final BufferPool overflowPages;
+  private final boolean syncOnFlush;
+  private final boolean writeThrough;
+  private final ObjectPool<Serializer> serializers;
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+  private final AtomicInteger openCursors = new AtomicInteger();
+  private final ArrayDeque<Long> freeOverflowPages = new ArrayDeque<>();
+  private int level;
+  private long splitPointer;
+  private long nrOfOverflowPages;
+  /**
+   * Bytes taken by records in bucket chains, slots included, which is what the load factor is computed from.
+   */
+  private long recordBytes;
+  private boolean closed;
+
+  LinearHashFile(final Path path, final int pageSize) throws IOException {
+    this(path, pageSize, HeapFileOptions.defaults());
+  }
+
+  /**
+   * Uses page access, compression and checksums, buffer pool size, eviction, read-ahead, write mode and codecs of
+   * the options, buffer pool memory is shared evenly by bucket and overflow pages.
+   */
+  LinearHashFile(final Path path, final int pageSize, final HeapFileOptions options) throws IOException {
+    this.pageSize = pageSize;
+    this.maxRecordLength = maxRecordLength(pageSize);
+    this.bucketCapacity = maxRecordLength + Page.storedLengthFor(0, 0) - Record.recordLengthFor(0, 0);
+    this.metadataPath = metadataPathFor(path);
+    this.bucketFile = PageFile.open(path, pageSize, options);
+    try {
+      BufferPool.checkPageChecksums(bucketFile, pageSize, options.pageChecksums());
+    } catch (IllegalArgumentException e) {
+      bucketFile.close();
+      throw e;
+    }
+    this.overflowFile = PageFile.open(overflowPathFor(path), pageSize, options);
+    final var nrOfFrames = BufferPool.nrOfFramesFor(options.bufferPoolSize() / 2, pageSize);
+    this.buckets = new BufferPool(bucketFile, pageSize, nrOfFrames, options.eviction(), options.writeMode(), null,
+        options.pageChecksums(), options.readAheadPages());
+    this.overflowPages = new BufferPool(overflowFile, pageSize, nrOfFrames, options.eviction(), options.writeMode(),
+        null, options.pageChecksums(), options.readAheadPages());
+    this.syncOnFlush = options.syncOnFlush();
+    this.writeThrough = options.writeMode() == WriteMode.WRITE_THROUGH;
+    this.serializers = new ObjectPool<>(() -> newSerializer(pageSize, options.codecs()), serializer -> true);
+    if (Files.exists(metadataPath)) {
+      if (!readMetadata()) {
+        scanBuckets();
+      }
+    } else {
+      initialize(buckets.pinNew(0), buckets);
+    }
+    writeMetadata(false);
+  }
+
+  static Path overflowPathFor(final Path path) {
+    return path.resolveSibling(path.getFileName() + ".overflow");
+  }
+
+  static Path metadataPathFor(final Path path) {
+    return path.resolveSibling(path.getFileName() + ".meta");
+  }
+
+  @Override
+  public Object get(final Serializable key) throws IOException, ClassNotFoundException {
+    final var serializer = serializers.borrowObject().join();
+    try {
+      final var serializedKey = serializer.encode(key);
+      final var hash = HashIndex.hash(serializedKey);
+      lock.readLock().lock();
+      try {
+        var pool = buckets;
+        var pageNumber = bucketOf(hash);
+        while (pageNumber != NO_OVERFLOW_PAGE) {
+          final var page = pool.pin(pageNumber);
+          page.latch().readLock().lock();
+          try {
+            final var slot = page.slotOf(serializedKey, hash);
+            if (slot >= 0) {
+              return serializer.deserialize(page.valueSlice(slot));
+            }
+            pageNumber = linkOf(page);
+          } finally {
+            page.latch().readLock().unlock();
+            pool.unpin(page, false);
+          }
+          pool = overflowPages;
+        }
+        return null;
+      } finally {
+        lock.readLock().unlock();
+      }
+    } finally {
+      serializers.returnObject(serializer);
+    }
+  }
+
+  @Override
+  public void put(final Entry entry) throws IOException {
+    final var serializedKey = serialize(entry.key());
+    final var serializedValue = serialize(entry.value());
+    if (Record.recordLengthFor(serializedKey, serializedValue) > maxRecordLength) {
+      throw new IllegalArgumentException("Entry is too big.");
+    }
+    final var hash = HashIndex.hash(serializedKey);
+    lock.writeLock().lock();
+    try {
+      final var bucket = bucketOf(hash);
+      final var previousValue = removeFromBucket(bucket, serializedKey, hash);
+      if (previousValue != null) {
+        recordBytes -= storedLength(serializedKey, previousValue);
+      }
+      addToBucket(bucket, serializedKey, serializedValue, hash);
+      recordBytes += storedLength(serializedKey, serializedValue);
+      while (isOverloaded()) {
+        splitBucket();
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public Object remove(final Serializable key) throws IOException, ClassNotFoundException {
+    final var serializedKey = serialize(key);
+    final var hash = HashIndex.hash(serializedKey);
+    final byte[] serializedValue;
+    lock.writeLock().lock();
+    try {
+      serializedValue = removeFromBucket(bucketOf(hash), serializedKey, hash);
+      if (serializedValue != null) {
+        recordBytes -= storedLength(serializedKey, serializedValue);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+    return serializedValue != null ? deserialize(serializedValue) : null;
+  }
+
+  @Override
+  public Cursor cursor() {
+    lock.readLock().lock();
+    try {
+      openCursors.incrementAndGet();
+    } finally {
+      lock.readLock().unlock();
+    }
+    return new BucketCursor();
+  }
+
+  @Override
+  public void flush() throws IOException {
+    lock.writeLock().lock();
+    try {
+      flushPages(syncOnFlush);
+      writeMetadata(false);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Closes the store, callers have to make sure it is not used concurrently any more. Pages are forced to disk
+   * before metadata marks the store closed, as record bytes and free overflow pages it holds are trusted on open.
+   */
+  @Override
+  public void close() throws IOException {
+    lock.writeLock().lock();
+    try {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      flushPages(true);
+      writeMetadata(true);
+      bucketFile.close();
+      overflowFile.close();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private void flushPages(final boolean force) throws IOException {
+    buckets.flushAll();
+    overflowPages.flushAll();
+    if (force) {
+      bucketFile.force();
+      overflowFile.force();
+    }
+  }
+
+  int nrOfBuckets() {
+    lock.readLock().lock();
+    try {
+      return (int) nrOfBuckets0();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return number of overflow pages linked to buckets
+   */
+  long nrOfOverflowPages() {
+    lock.readLock().lock();
+    try {
+      return nrOfOverflowPages - freeOverflowPages.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private long nrOfBuckets0() {
+    return (1L << level) + splitPointer;
+  }
+
+  /**
+   * Buckets before the split pointer are already split at this level, so they are addressed by one more hash
+   * bit.
+   */
+  private long bucketOf(final int hash) {
+    final var unsignedHash = hash & 0xffffffffL;
+    final var bucket = unsignedHash & ((1L << level) - 1);
+    return bucket < splitPointer ? unsignedHash & ((1L << (level + 1)) - 1) : bucket;
+  }
+
+  private boolean isOverloaded() {
+    return level < MAX_LEVEL && openCursors.get() == 0
+        && recordBytes > MAX_LOAD_FACTOR * nrOfBuckets0() * bucketCapacity;
+  }
+
+  private static long storedLength(final byte[] key, final byte[] value) {
+    return Page.storedLengthFor(key.length, value.length);
+  }
+
+  /**
+   * Splits the bucket at the split pointer, moving records addressed by the next hash bit to a new bucket appended
+   * to the bucket file. Records are added to the new bucket before the split is recorded in metadata, and the split
+   * bucket chain is rewritten without them after, so a crash in between leaves only extra copies behind.
+   */
+  private void splitBucket() throws IOException {
+    final var splitBucket = splitPointer;
+    final var newBucket = nrOfBuckets0();
+    final var records = new ArrayList<byte[][]>();
+    final var chain = new ArrayList<Long>();
+    var pool = buckets;
+    var pageNumber = splitBucket;
+    while (pageNumber != NO_OVERFLOW_PAGE) {
+      final var page = pool.pin(pageNumber);
+      try {
+        for (var slot = page.nextRecordSlot(LINK_SLOT + 1); slot >= 0; slot = page.nextRecordSlot(slot + 1)) {
+          records.add(new byte[][] { bytesOf(page.keySlice(slot)), bytesOf(page.valueSlice(slot)) });
+        }
+        pageNumber = linkOf(page);
+      } finally {
+        pool.unpin(page, false);
+      }
+      if (pageNumber != NO_OVERFLOW_PAGE) {
+        chain.add(pageNumber);
+      }
+      pool = overflowPages;
+    }
+    initialize(buckets.pinNew(newBucket), buckets);
+    splitPointer++;
+    if (splitPointer == 1L << level) {
+      level++;
+      splitPointer = 0;
+    }
+    final var remainingRecords = new ArrayList<byte[][]>();
+    for (final var record : records) {
+      final var hash = HashIndex.hash(record[0]);
+      if (bucketOf(hash) == newBucket) {
+        addToBucket(newBucket, record[0], record[1], hash);
+      } else {
+        remainingRecords.add(record);
+      }
+    }
+    if (writeThrough) {
+      writeMetadata(false);
+    }
+    rewriteBucket(splitBucket, chain, remainingRecords);
+  }
+
+  /**
+   * Packs records, in chain order, into the bucket page and its overflow pages from the first one on, and frees
+   * overflow pages left empty. Records are a subset of the chain, so none of them is written to a page after the one
+   * holding it, and a crash in the middle leaves every record in the chain at least once.
+   */
+  private void rewriteBucket(final long bucket, final List<Long> chain, final List<byte[][]> records)
+      throws IOException {
+    var pool = buckets;
+    var pageNumber = bucket;
+    var nextRecord = 0;
+    for (var pageInChain = 0; pageInChain <= chain.size(); pageInChain++) {
+      final var page = pool.pinNew(pageNumber);
+      try {
+        page.add(LINK_KEY, linkValue(NO_OVERFLOW_PAGE), LINK_KEY_HASH);
+        while (nextRecord < records.size()) {
+          final var record = records.get(nextRecord);
+          if (page.add(record[0], record[1], HashIndex.hash(record[0])) < 0) {
+            break;
+          }
+          nextRecord++;
+        }
+        if (nextRecord < records.size() && pageInChain < chain.size()) {
+          pageNumber = chain.get(pageInChain);
+          setLink(page, pageNumber);
+        } else {
+          freeOverflowPages.addAll(chain.subList(pageInChain, chain.size()));
+          break;
+        }
+      } finally {
+        pool.unpin(page, true);
+      }
+      pool = overflowPages;
+    }
+    for (final var record : records.subList(nextRecord, records.size())) {
+      addToBucket(bucket, record[0], record[1], HashIndex.hash(record[0]));
+    }
+  }
+
+  /**
+   * Adds record to the first page of the bucket chain with enough free space, linking a new overflow page to
+   * the end of the chain when there is none.
+   */
+  private void addToBucket(final long bucket, final byte[] key, final byte[] value, final int hash)
+      throws IOException {
+    var pool = buckets;
+    var pageNumber = bucket;
+    while (true) {
+      final var page = pool.pin(pageNumber);
+      var modified = false;
+      page.latch().writeLock().lock();
+      try {
+        modified = page.add(key, value, hash) >= 0;
+        if (modified) {
+          return;
+        }
+        pageNumber = linkOf(page);
+        if (pageNumber == NO_OVERFLOW_PAGE) {
+          final var overflowPage = allocateOverflowPage();
+          try {
+            overflowPage.add(key, value, hash);
+          } finally {
+            overflowPages.unpin(overflowPage, true);
+          }
+          setLink(page, overflowPage.pageNumber());
+          modified = true;
+          return;
+        }
+      } finally {
+        page.latch().writeLock().unlock();
+        pool.unpin(page, modified);
+      }
+      pool = overflowPages;
+    }
+  }
+
+  /**
+   * @return value of the removed record, or null when there is no record of given key
+   */
+  private byte[] removeFromBucket(final long bucket, final byte[] key, final int hash) throws IOException {
+    final var keyBuffer = ByteBuffer.wrap(key);
+    var pool = buckets;
+    var pageNumber = bucket;
+    while (pageNumber != NO_OVERFLOW_PAGE) {
+      final var page = pool.pin(pageNumber);
+      byte[] value = null;
+      final long nextPageNumber;
+      final boolean emptied;
+      page.latch().writeLock().lock();
+      try {
+        final var slot = page.slotOf(keyBuffer, hash);
+        if (slot >= 0) {
+          value = page.remove(slot, key, hash);
+        }
+        nextPageNumber = linkOf(page);
+        emptied = value != null && pool == overflowPages && page.nextRecordSlot(LINK_SLOT + 1) < 0;
+      } finally {
+        page.latch().writeLock().unlock();
+        pool.unpin(page, value != null);
+      }
+      if (value != null) {
+        if (emptied) {
+          unlinkOverflowPage(bucket, pageNumber, nextPageNumber);
+        }
+        return value;
+      }
+      pool = overflowPages;
+      pageNumber = nextPageNumber;
+    }
+    return null;
+  }
+
+  private void unlinkOverflowPage(final long bucket, final long overflowPageNumber, final long nextPageNumber)
+      throws IOException {
+    var pool = buckets;
+    var pageNumber = bucket;
+    while (pageNumber != NO_OVERFLOW_PAGE) {
+      final var page = pool.pin(pageNumber);
+      var modified = false;
+      page.latch().writeLock().lock();
+      try {
+        pageNumber = linkOf(page);
+        if (pageNumber == overflowPageNumber) {
+          setLink(page, nextPageNumber);
+          freeOverflowPages.add(overflowPageNumber);
+          modified = true;
+          return;
+        }
+      } finally {
+        page.latch().writeLock().unlock();
+        pool.unpin(page, modified);
+      }
+      pool = overflowPages;
+    }
+  }
+
+  /**
+   * @return pinned, empty overflow page, callers unpin it as modified
+   */
+  private Page allocateOverflowPage() throws IOException {
+    final var free = freeOverflowPages.poll();
+    final var page = overflowPages.pinNew(free != null ? free : nrOfOverflowPages++);
+    page.add(LINK_KEY, linkValue(NO_OVERFLOW_PAGE), LINK_KEY_HASH);
+    return page;
+  }
+
+  private static void initialize(final Page page, final BufferPool pool) throws IOException {
+    try {
+      page.add(LINK_KEY, linkValue(NO_OVERFLOW_PAGE), LINK_KEY_HASH);
+    } finally {
+      pool.unpin(page, true);
+    }
+  }
+
+  private static long linkOf(final Page page) {
+    return page.valueSlice(LINK_SLOT).getLong(0);
+  }
+
+  /**
+   * Replaces the link record, which takes slot 0 again as the first empty slot.
+   */
+  private static void setLink(final Page page, final long nextPageNumber) {
+    page.remove(LINK_SLOT, LINK_KEY, LINK_KEY_HASH);
+    page.add(LINK_KEY, linkValue(nextPageNumber), LINK_KEY_HASH);
+  }
+
+  private static byte[] linkValue(final long nextPageNumber) {
+    return ByteBuffer.allocate(Long.BYTES).putLong(nextPageNumber).array();
+  }
+
+  private static int maxRecordLength(final int pageSize) {
+    final var page = new Page(ByteBuffer.allocate(pageSize), pageSize);
+    page.createNewPage(0);
+    page.add(LINK_KEY, linkValue(NO_OVERFLOW_PAGE), LINK_KEY_HASH);
+    return page.freeSpace();
+  }
+
+  private static byte[] bytesOf(final ByteBuffer buffer) {
+    final var bytes = new byte[buffer.remaining()];
+    buffer.get(bytes);
+    return bytes;
+  }
+
+  /**
+   * Sums up record lengths and collects overflow pages not linked to any bucket. Records found outside the bucket
+   * they are addressed to, left behind by a split interrupted by a crash, are moved to it unless it already holds
+   * their key, and second copies of a record within a bucket, left behind by an interrupted rewrite, are removed.
+   */
+  private void scanBuckets() throws IOException {
+    nrOfOverflowPages = overflowFile.nrOfPages();
+    final var linkedOverflowPages = new BitSet();
+    final var misplacedRecords = new ArrayList<byte[][]>();
+    final var misplacedInBuckets = new ArrayList<Long>();
+    final var bucketKeys = new HashSet<ByteBuffer>();
+    for (var bucket = 0L; bucket < nrOfBuckets0(); bucket++) {
+      var pool = buckets;
+      var pageNumber = bucket;
+      bucketKeys.clear();
+      while (pageNumber != NO_OVERFLOW_PAGE) {
+        final var page = pool.pin(pageNumber);
+        try {
+          for (var slot = page.nextRecordSlot(LINK_SLOT + 1); slot >= 0; slot = page.nextRecordSlot(slot + 1)) {
+            final var key = page.keySlice(slot);
+            if (bucketOf(HashIndex.hash(key)) != bucket || !bucketKeys.add(ByteBuffer.wrap(bytesOf(key.duplicate())))) {
+              misplacedRecords.add(new byte[][] { bytesOf(key), bytesOf(page.valueSlice(slot)) });
+              misplacedInBuckets.add(bucket);
+            } else {
+              recordBytes += Page.storedLengthFor(key.remaining(), page.valueSlice(slot).remaining());
+            }
+          }
+          pageNumber = linkOf(page);
+        } finally {
+          pool.unpin(page, false);
+        }
+        if (pageNumber != NO_OVERFLOW_PAGE) {
+          linkedOverflowPages.set((int) pageNumber);
+        }
+        pool = overflowPages;
+      }
+    }
+    for (var pageNumber = 0L; pageNumber < nrOfOverflowPages; pageNumber++) {
+      if (!linkedOverflowPages.get((int) pageNumber)) {
+        freeOverflowPages.add(pageNumber);
+      }
+    }
+    for (var i = 0; i < misplacedRecords.size(); i++) {
+      final var key = misplacedRecords.get(i)[0];
+      final var hash = HashIndex.hash(key);
+      removeFromBucket(misplacedInBuckets.get(i), key, hash);
+      final var bucket = bucketOf(hash);
+      if (bucket == misplacedInBuckets.get(i)) {
+        continue;
+      }
+      final var currentValue = removeFromBucket(bucket, key, hash);
+      final var value = currentValue != null ? currentValue : misplacedRecords.get(i)[1];
+      addToBucket(bucket, key, value, hash);
+      recordBytes += storedLength(key, value);
+    }
+  }
+
+  /**
+   * @return whether the store was closed, so record bytes and free overflow pages are read as well
+   */
+  private boolean readMetadata() throws IOException {
+    final var metadata = ByteBuffer.wrap(Files.readAllBytes(metadataPath));
+    if (metadata.remaining() < METADATA_BYTES || metadata.getInt() != METADATA_MAGIC) {
+      throw new IOException("Metadata file " + metadataPath + " is corrupted.");
+    }
+    final var storedPageSize = metadata.getInt();
+    if (storedPageSize != pageSize) {
+      throw new IllegalArgumentException("Store has page size " + storedPageSize + ", not " + pageSize + ".");
+    }
+    level = metadata.getInt();
+    splitPointer = metadata.getLong();
+    final var storeClosed = metadata.getInt() != 0;
+    final var storedRecordBytes = metadata.getLong();
+    final var storedNrOfOverflowPages = metadata.getLong();
+    final var nrOfFreeOverflowPages = metadata.getInt();
+    if (metadata.remaining() != (long) nrOfFreeOverflowPages * Long.BYTES) {
+      throw new IOException("Metadata file " + metadataPath + " is corrupted.");
+    }
+    if (!storeClosed) {
+      return false;
+    }
+    recordBytes = storedRecordBytes;
+    nrOfOverflowPages = storedNrOfOverflowPages;
+    while (metadata.hasRemaining()) {
+      freeOverflowPages.add(metadata.getLong());
+    }
+    return true;
+  }
+
+  /**
+   * Writes metadata to a temporary file, forced to disk before it replaces the metadata file, so a crash never
+   * leaves a partially written one behind.
+   *
+   * @param storeClosed
+   *          whether record bytes and free overflow pages are final, otherwise they are recomputed on open
+   */
+  private void writeMetadata(final boolean storeClosed) throws IOException {
+    final var metadata = ByteBuffer.allocate(METADATA_BYTES + freeOverflowPages.size() * Long.BYTES)
+        .putInt(METADATA_MAGIC)
+        .putInt(pageSize)
+        .putInt(level)
+        .putLong(splitPointer)
+        .putInt(storeClosed ? 1 : 0)
+        .putLong(recordBytes)
+        .putLong(nrOfOverflowPages)
+        .putInt(freeOverflowPages.size());
+    for (final var pageNumber : freeOverflowPages) {
+      metadata.putLong(pageNumber);
+    }
+    metadata.flip();
+    final var temporary = metadataPath.resolveSibling(metadataPath.getFileName() + ".tmp");
+    try (var channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      while (metadata.hasRemaining()) {
+        channel.write(metadata);
+      }
+      channel.force(true);
+    }
+    Files.move(temporary, metadataPath, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private byte[] serialize(final Serializable object) throws IOException {
+    final var serializer = serializers.borrowObject().join();
+    try {
+      return serializer.serialize(object);
+    } finally {
+      serializers.returnObject(serializer);
+    }
+  }
+
+  private Object deserialize(final ByteBuffer serializedObject) throws IOException, ClassNotFoundException {
+    final var serializer = serializers.borrowObject().join();
+    try {
+      return serializer.deserialize(serializedObject.duplicate());
+    } finally {
+      serializers.returnObject(serializer);
+    }
+  }
+
+  private Object deserialize(final byte[] serializedObject) throws IOException, ClassNotFoundException {
+    final var serializer = serializers.borrowObject().join();
+    try {
+      return serializer.deserialize(serializedObject);
+    } finally {
+      serializers.returnObject(serializer);
+    }
+  }
+
+  private static Serializer newSerializer(final int pageSize, final Codecs codecs) {
+    try {
+      return new Serializer(pageSize, codecs);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Copies all pages of one bucket under the read lock, and walks their records without further locking.
+   */
+  private final class BucketCursor implements Cursor {
+    private final List<Page> chain = new ArrayList<>();
+    private long nextBucket;
+    private int nrOfPagesInChain;
+    private int pageInChain;
+    private int slot = LINK_SLOT;
+    private boolean closed;
+
+    @Override
+    public boolean next() throws IOException {
+      if (closed) {
+        return false;
+      }
+      while (true) {
+        if (pageInChain < nrOfPagesInChain) {
+          slot = chain.get(pageInChain).nextRecordSlot(slot + 1);
+          if (slot >= 0) {
+            return true;
+          }
+          pageInChain++;
+          slot = LINK_SLOT;
+        } else if (!copyNextBucket()) {
+          return false;
+        }
+      }
+    }
+
+    @Override
+    public Object key() throws IOException, ClassNotFoundException {
+      return deserialize(current().keySlice(slot));
+    }
+
+    @Override
+    public Object value() throws IOException, ClassNotFoundException {
+      return deserialize(current().valueSlice(slot));
+    }
+
+    @Override
+    public void close() {
+      if (!closed) {
+        closed = true;
+        openCursors.decrementAndGet();
+      }
+    }
+
+    private Page current() {
+      if (closed || slot <= LINK_SLOT || pageInChain >= nrOfPagesInChain) {
+        throw new IllegalStateException("Cursor is not positioned on a record.");
+      }
+      return chain.get(pageInChain);
+    }
+
+    private boolean copyNextBucket() throws IOException {
+      lock.readLock().lock();
+      try {
+        if (nextBucket >= nrOfBuckets0()) {
+          return false;
+        }
+        nrOfPagesInChain = 0;
+        pageInChain = 0;
+        slot = LINK_SLOT;
+        var pool = buckets;
+        var pageNumber = nextBucket++;
+        while (pageNumber != NO_OVERFLOW_PAGE) {
+          if (nrOfPagesInChain == chain.size()) {
+            chain.add(new Page(ByteBuffer.allocate(pageSize), pageSize));
+          }
+          final var copy = chain.get(nrOfPagesInChain++);
+          final var page = pool.pin(pageNumber);
+          page.latch().readLock().lock();
+          try {
+            copy.byteBuffer().duplicate().clear().put(page.byteBuffer().duplicate().clear());
+          } finally {
+            page.latch().readLock().unlock();
+            pool.unpin(page, false);
+          }
+          pageNumber = linkOf(copy);
+          pool = overflowPages;
+        }
+        return true;
+      } finally {
+        lock.readLock().unlock();
+      }
+    }
+  }
+
+}
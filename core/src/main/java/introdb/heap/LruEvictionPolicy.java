@@ -0,0 +1,27 @@
+package introdb.heap;
+
+import java.util.function.IntPredicate;
+
+final class LruEvictionPolicy implements EvictionPolicy {
+  private final FrameList frames;
+
+  LruEvictionPolicy(final int nrOfFrames) {
+    this.frames = new FrameList(nrOfFrames);
+  }
+
+  @Override
+  public void pageLoaded(final int frame, final long pageNumber) {
+    frames.addFirst(frame);
+  }
+
+  @Override
+  public void pageAccessed(final int frame) {
+    frames.moveToFront(frame);
+  }
+
+  @Override
+  public int selectVictim(final IntPredicate isPinned) {
+    return frames.removeLast(isPinned);
+  }
+
+}
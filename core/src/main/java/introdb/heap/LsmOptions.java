@@ -0,0 +1,143 @@
+package introdb.heap;
+
+/**
+ * Tuning options of {@link LsmTreeFile}, every {@code with} method returns a modified copy.
+ */
+final class LsmOptions implements Cloneable {
+  static final long DEFAULT_MEMTABLE_SIZE = 4 * 1024 * 1024;
+  static final long DEFAULT_TABLE_SIZE = 2 * 1024 * 1024;
+
+  private long memtableSize = DEFAULT_MEMTABLE_SIZE;
+  private long tableSize = DEFAULT_TABLE_SIZE;
+  private int blockSize = 4096;
+  private int bloomFilterBitsPerKey = 10;
+  private CompactionPolicy compactionPolicy = CompactionPolicy.LEVELED;
+  private int compactionTrigger = 4;
+  private int levelSizeMultiplier = 10;
+  private Codecs codecs = Codecs.builtIn();
+
+  private LsmOptions() {
+  }
+
+  static LsmOptions defaults() {
+    return new LsmOptions();
+  }
+
+  /**
+   * @param memtableSize
+   *          bytes of keys and values the memtable collects before it is written to a sorted table
+   */
+  LsmOptions withMemtableSize(final long memtableSize) {
+    final var copy = copy();
+    copy.memtableSize = memtableSize;
+    return copy;
+  }
+
+  /**
+   * @param tableSize
+   *          size in bytes, at which {@link CompactionPolicy#LEVELED} compaction starts a new output table
+   */
+  LsmOptions withTableSize(final long tableSize) {
+    final var copy = copy();
+    copy.tableSize = tableSize;
+    return copy;
+  }
+
+  /**
+   * @param blockSize
+   *          size in bytes of the data blocks of sorted tables, a lookup reads one of them, and the sparse index
+   *          holds the first key of each
+   */
+  LsmOptions withBlockSize(final int blockSize) {
+    final var copy = copy();
+    copy.blockSize = blockSize;
+    return copy;
+  }
+
+  /**
+   * @param bloomFilterBitsPerKey
+   *          size of Bloom filters of sorted tables, 10 bits per key give about 1% false positives
+   */
+  LsmOptions withBloomFilterBitsPerKey(final int bloomFilterBitsPerKey) {
+    final var copy = copy();
+    copy.bloomFilterBitsPerKey = bloomFilterBitsPerKey;
+    return copy;
+  }
+
+  LsmOptions withCompactionPolicy(final CompactionPolicy compactionPolicy) {
+    final var copy = copy();
+    copy.compactionPolicy = compactionPolicy;
+    return copy;
+  }
+
+  /**
+   * @param compactionTrigger
+   *          number of similarly sized tables merged by {@link CompactionPolicy#SIZE_TIERED} compaction, and number
+   *          of level 0 tables which start {@link CompactionPolicy#LEVELED} compaction
+   */
+  LsmOptions withCompactionTrigger(final int compactionTrigger) {
+    final var copy = copy();
+    copy.compactionTrigger = compactionTrigger;
+    return copy;
+  }
+
+  /**
+   * @param levelSizeMultiplier
+   *          ratio of sizes of consecutive levels in {@link CompactionPolicy#LEVELED} compaction
+   */
+  LsmOptions withLevelSizeMultiplier(final int levelSizeMultiplier) {
+    final var copy = copy();
+    copy.levelSizeMultiplier = levelSizeMultiplier;
+    return copy;
+  }
+
+  /**
+   * Registers a codec of keys or values of a user type, see {@link HeapFileOptions#withCodec(int, Codec)}.
+   */
+  LsmOptions withCodec(final int tag, final Codec<?> codec) {
+    final var copy = copy();
+    copy.codecs = codecs.with(tag, codec);
+    return copy;
+  }
+
+  long memtableSize() {
+    return memtableSize;
+  }
+
+  long tableSize() {
+    return tableSize;
+  }
+
+  int blockSize() {
+    return blockSize;
+  }
+
+  int bloomFilterBitsPerKey() {
+    return bloomFilterBitsPerKey;
+  }
+
+  CompactionPolicy compactionPolicy() {
+    return compactionPolicy;
+  }
+
+  int compactionTrigger() {
+    return compactionTrigger;
+  }
+
+  int levelSizeMultiplier() {
+    return levelSizeMultiplier;
+  }
+
+  Codecs codecs() {
+    return codecs;
+  }
+
+  private LsmOptions copy() {
+    try {
+      return (LsmOptions) clone();
+    } catch (CloneNotSupportedException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+}
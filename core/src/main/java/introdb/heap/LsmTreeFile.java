@@ -0,0 +1,930 @@
+package introdb.heap;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import introdb.heap.pool.ObjectPool;
+
+/**
+ * Log-structured merge tree store for write-heavy workloads, kept in one directory.
+ * <p>
+ * Puts and removes are appended to a {@link WriteAheadLog} and applied to a sorted in-memory memtable, a removal
+ * is an entry with an empty value shadowing older entries of the key. The log buffer is written and forced
+ * whenever it passes {@value #LOG_WRITE_THRESHOLD} bytes, so the buffer, and writes since the last {@link #flush()}
+ * lost in a crash, stay within twice that size instead of growing with the memtable. A full memtable becomes
+ * immutable and is written to a new {@link SortedTable} by a background thread, while a fresh memtable takes
+ * further writes; a writer filling the fresh one before the previous one is written waits for it. Another
+ * background thread merges tables according to the {@link CompactionPolicy}, dropping shadowed entries, and
+ * removals once nothing older is left below them. A manifest file lists the live tables of every level, it is
+ * replaced atomically whenever tables change, and logs of memtables are deleted once their table is in the
+ * manifest.
+ * <p>
+ * A lookup checks the memtables and then tables from the newest to the oldest one, skipping tables whose key range
+ * or Bloom filter rule the key out. Cursors merge all of them in {@link java.util.Arrays#compareUnsigned} order of
+ * serialized keys.
+ * <p>
+ * Thread safe. Operations on one key are serialized by a lock striped by key hash, so that a removal returns the
+ * value it removed. Writes and lookups share a store-wide read lock, which is taken exclusively only to swap
+ * memtables and tables. Records are not limited by page size.
+ */
+final class LsmTreeFile implements Store {
+  private static final Logger LOG = Logger.getLogger(LsmTreeFile.class.getName());
+  private static final String MANIFEST_FILE_NAME = "manifest";
+  private static final String TABLE_FILE_PREFIX = "table-";
+  private static final String LOG_FILE_PREFIX = "memtable-";
+  private static final int NR_OF_KEY_LOCKS = 64;
+  private static final int MAX_TABLES_PER_COMPACTION = 32;
+  private static final byte[] REMOVED = new byte[0];
+  private static final int LOG_WRITE_THRESHOLD = 1024 * 1024;
+
+  private final Path directory;
+  private final LsmOptions options;
+  private final ObjectPool<Serializer> serializers;
+  private final ReentrantLock[] keyLocks = new ReentrantLock[NR_OF_KEY_LOCKS];
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+  private final Condition memtableWritten = lock.writeLock().newCondition();
+  private final AtomicLong nextFileId = new AtomicLong();
+  private final ExecutorService memtableWriter = newDaemonExecutor("lsm-memtable-writer");
+  private final ExecutorService compaction = newDaemonExecutor("lsm-compaction");
+  private final List<byte[]> compactionPointers = new ArrayList<>();
+  private volatile Version version;
+  private volatile boolean closed;
+  private Exception memtableWriteFailure;
+
+  LsmTreeFile(final Path directory) throws IOException {
+    this(directory, LsmOptions.defaults());
+  }
+
+  /**
+   * Opens store of the directory, or creates an empty one. Logs of memtables not written to tables before the
+   * store was closed last time are replayed and written to tables first.
+   *
+   * @throws IllegalArgumentException
+   *           when the existing store was created with another compaction policy
+   */
+  LsmTreeFile(final Path directory, final LsmOptions options) throws IOException {
+    this.directory = directory;
+    this.options = options;
+    for (var i = 0; i < NR_OF_KEY_LOCKS; i++) {
+      keyLocks[i] = new ReentrantLock();
+    }
+    this.serializers = new ObjectPool<>(() -> newSerializer(options.blockSize(), options.codecs()),
+        serializer -> true);
+    Files.createDirectories(directory);
+    final var tableIds = fileIds(TABLE_FILE_PREFIX);
+    final var logIds = fileIds(LOG_FILE_PREFIX);
+    nextFileId.set(Math.max(lastOf(tableIds), lastOf(logIds)) + 1);
+    final var levels = readManifest();
+    try {
+      deleteUnlistedTables(tableIds, levels);
+      version = new Version(newMemtable(), null, levels);
+      for (final var logId : logIds) {
+        final var memtable = new Memtable(logPathFor(logId));
+        memtable.log.replay(memtable);
+        writeMemtable(memtable);
+      }
+    } catch (IOException | RuntimeException e) {
+      memtableWriter.shutdownNow();
+      compaction.shutdownNow();
+      closeTables(version != null ? version.levels : levels, e);
+      throw e;
+    }
+    compaction.execute(this::compactInBackground);
+  }
+
+  @Override
+  public Object get(final Serializable key) throws IOException, ClassNotFoundException {
+    final var serializedValue = find(serialize(key));
+    return serializedValue != null ? deserialize(serializedValue) : null;
+  }
+
+  @Override
+  public void put(final Entry entry) throws IOException {
+    final var serializedKey = serialize(entry.key());
+    final var serializedValue = serialize(entry.value());
+    final var keyLock = keyLockFor(serializedKey);
+    keyLock.lock();
+    try {
+      apply(serializedKey, serializedValue);
+    } finally {
+      keyLock.unlock();
+    }
+    switchFullMemtable();
+  }
+
+  @Override
+  public Object remove(final Serializable key) throws IOException, ClassNotFoundException {
+    final var serializedKey = serialize(key);
+    final byte[] serializedValue;
+    final var keyLock = keyLockFor(serializedKey);
+    keyLock.lock();
+    try {
+      serializedValue = find(serializedKey);
+      if (serializedValue != null) {
+        apply(serializedKey, REMOVED);
+      }
+    } finally {
+      keyLock.unlock();
+    }
+    if (serializedValue == null) {
+      return null;
+    }
+    switchFullMemtable();
+    return deserialize(serializedValue);
+  }
+
+  /**
+   * Iterates a snapshot of tables and the live memtables, which are weakly consistent: entries put or removed
+   * during the scan may or may not be seen. Tables of the snapshot stay readable until the cursor is closed, even
+   * when compaction replaces them.
+   */
+  @Override
+  public Cursor cursor() {
+    final var tables = new ArrayList<SortedTable>();
+    final Version snapshot;
+    lock.readLock().lock();
+    try {
+      snapshot = version;
+      for (final var level : snapshot.levels) {
+        for (final var table : level) {
+          table.retain();
+          tables.add(table);
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    final var scanners = new ArrayList<EntryScanner>();
+    scanners.add(snapshot.memtable.scanner());
+    if (snapshot.immutable != null) {
+      scanners.add(snapshot.immutable.scanner());
+    }
+    for (final var table : tables) {
+      scanners.add(table.scanner());
+    }
+    return new MergingCursor(tables, new MergingScanner(scanners.toArray(new EntryScanner[0]), true));
+  }
+
+  /**
+   * Forces logs of the memtables, so all puts and removes done so far survive a crash. Memtables are written to
+   * tables only once they are full, or when the store is closed.
+   */
+  @Override
+  public void flush() throws IOException {
+    lock.readLock().lock();
+    try {
+      if (version.immutable != null) {
+        version.immutable.log.sync();
+      }
+      version.memtable.log.sync();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Waits for background work in progress, and writes the memtable to a table. Callers have to make sure the store
+   * is not used concurrently any more.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    shutdown(memtableWriter);
+    shutdown(compaction);
+    if (memtableWriteFailure == null) {
+      writeMemtable(version.memtable);
+    } else {
+      version.memtable.log.close();
+    }
+    final var levels = version.levels;
+    IOException failure = null;
+    for (final var level : levels) {
+      for (final var table : level) {
+        try {
+          table.close();
+        } catch (IOException e) {
+          if (failure == null) {
+            failure = e;
+          } else {
+            failure.addSuppressed(e);
+          }
+        }
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /**
+   * @return number of tables in every level, {@link CompactionPolicy#SIZE_TIERED} keeps all in level 0
+   */
+  int[] nrOfTablesPerLevel() {
+    return version.levels.stream().mapToInt(List::size).toArray();
+  }
+
+  /**
+   * Waits until the immutable memtable is written and compaction has nothing more to do.
+   */
+  void awaitBackgroundWork() throws IOException {
+    try {
+      memtableWriter.submit(() -> {
+      }).get();
+      compaction.submit(() -> {
+      }).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for background work.", e);
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    }
+  }
+
+  /**
+   * @return serialized value of the newest entry of the key, or null when there is none or it was removed
+   */
+  private byte[] find(final byte[] serializedKey) throws IOException {
+    lock.readLock().lock();
+    try {
+      final var current = version;
+      var value = current.memtable.entries.get(serializedKey);
+      if (value == null && current.immutable != null) {
+        value = current.immutable.entries.get(serializedKey);
+      }
+      if (value == null) {
+        final var keyHash = HashIndex.hash(serializedKey);
+        search: for (final var level : current.levels) {
+          for (final var table : level) {
+            value = table.get(serializedKey, keyHash);
+            if (value != null) {
+              break search;
+            }
+          }
+        }
+      }
+      return value == null || value.length == 0 ? null : value;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Appends to the memtable log and applies to the memtable. A writer filling the log buffer past
+   * {@link #LOG_WRITE_THRESHOLD} writes and forces it, along with records appended by others meanwhile.
+   */
+  private void apply(final byte[] serializedKey, final byte[] serializedValue) throws IOException {
+    lock.readLock().lock();
+    try {
+      final var memtable = version.memtable;
+      final long lsn;
+      if (serializedValue.length == 0) {
+        lsn = memtable.log.appendRemove(0, 0, serializedKey);
+      } else {
+        lsn = memtable.log.appendPut(0, serializedKey, serializedValue);
+      }
+      memtable.put(serializedKey, serializedValue);
+      if (memtable.log.bufferedBytes() >= LOG_WRITE_THRESHOLD) {
+        memtable.log.awaitDurable(lsn);
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Makes a full memtable immutable and hands it to the background writer, waiting first for the previous
+   * immutable memtable to be written.
+   */
+  private void switchFullMemtable() throws IOException {
+    if (version.memtable.size() < options.memtableSize()) {
+      return;
+    }
+    lock.writeLock().lock();
+    try {
+      while (version.memtable.size() >= options.memtableSize()) {
+        if (memtableWriteFailure != null) {
+          throw new IOException("Writing memtable to a sorted table failed.", memtableWriteFailure);
+        }
+        if (version.immutable == null) {
+          version = new Version(newMemtable(), version.memtable, version.levels);
+          memtableWriter.execute(this::writeImmutableMemtable);
+          return;
+        }
+        memtableWritten.awaitUninterruptibly();
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private void writeImmutableMemtable() {
+    try {
+      writeMemtable(version.immutable);
+      compaction.execute(this::compactInBackground);
+    } catch (IOException | RuntimeException e) {
+      LOG.log(Level.WARNING, "background write of memtable failed", e);
+      lock.writeLock().lock();
+      try {
+        memtableWriteFailure = e;
+        memtableWritten.signalAll();
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+  }
+
+  /**
+   * Writes memtable to a new level 0 table, and deletes its log once the table is in the manifest.
+   */
+  private void writeMemtable(final Memtable memtable) throws IOException {
+    final var tables = writeTables(memtable.scanner(), Long.MAX_VALUE);
+    lock.writeLock().lock();
+    try {
+      final var levels = mutableCopyOf(version.levels);
+      levels.get(0).addAll(0, tables);
+      writeManifest(levels);
+      version = new Version(version.memtable, version.immutable == memtable ? null : version.immutable, levels);
+      memtableWritten.signalAll();
+    } finally {
+      lock.writeLock().unlock();
+    }
+    memtable.log.close();
+    Files.deleteIfExists(memtable.logPath);
+  }
+
+  private void compactInBackground() {
+    try {
+      while (!closed) {
+        final var next = options.compactionPolicy() == CompactionPolicy.SIZE_TIERED
+            ? pickSizeTieredCompaction(version.levels)
+            : pickLeveledCompaction(version.levels);
+        if (next == null) {
+          return;
+        }
+        compact(next);
+      }
+    } catch (IOException | RuntimeException e) {
+      LOG.log(Level.WARNING, "background compaction failed", e);
+    }
+  }
+
+  /**
+   * Picks the newest run of at least {@code compactionTrigger} consecutive tables, whose sizes differ at most
+   * twice. Tables smaller than a memtable count as memtable sized, so small tables do not stay apart forever.
+   * Only consecutive tables are merged, so the merged table takes their place in the order of age.
+   */
+  private Compaction pickSizeTieredCompaction(final List<List<SortedTable>> levels) {
+    final var tables = levels.get(0);
+    final var trigger = options.compactionTrigger();
+    for (var start = 0; start + trigger <= tables.size(); start++) {
+      var smallest = tierSizeOf(tables.get(start));
+      var largest = smallest;
+      var end = start + 1;
+      while (end < tables.size() && end - start < MAX_TABLES_PER_COMPACTION) {
+        final var size = tierSizeOf(tables.get(end));
+        if (Math.max(largest, size) > 2 * Math.min(smallest, size)) {
+          break;
+        }
+        smallest = Math.min(smallest, size);
+        largest = Math.max(largest, size);
+        end++;
+      }
+      if (end - start >= trigger) {
+        return new Compaction(0, new ArrayList<>(tables.subList(start, end)), 0, end == tables.size());
+      }
+    }
+    return null;
+  }
+
+  private long tierSizeOf(final SortedTable table) {
+    return Math.max(table.size(), options.memtableSize());
+  }
+
+  /**
+   * Merges all of level 0 into level 1 once it holds {@code compactionTrigger} tables, otherwise moves one table
+   * of the first level over its size limit into the next level. Tables of a level are picked round robin by key.
+   */
+  private Compaction pickLeveledCompaction(final List<List<SortedTable>> levels) {
+    final var level0 = levels.get(0);
+    if (level0.size() >= options.compactionTrigger()) {
+      final var inputs = new ArrayList<>(level0);
+      var firstKey = level0.get(0).firstKey();
+      var lastKey = level0.get(0).lastKey();
+      for (final var table : level0) {
+        firstKey = Arrays.compareUnsigned(table.firstKey(), firstKey) < 0 ? table.firstKey() : firstKey;
+        lastKey = Arrays.compareUnsigned(table.lastKey(), lastKey) > 0 ? table.lastKey() : lastKey;
+      }
+      if (levels.size() > 1) {
+        inputs.addAll(overlapping(levels.get(1), firstKey, lastKey));
+      }
+      return new Compaction(0, inputs, 1, isBottom(levels, 1));
+    }
+    var maxLevelSize = options.tableSize();
+    for (var level = 1; level < levels.size(); level++) {
+      maxLevelSize *= options.levelSizeMultiplier();
+      final var tables = levels.get(level);
+      if (tables.stream().mapToLong(SortedTable::size).sum() <= maxLevelSize) {
+        continue;
+      }
+      while (compactionPointers.size() <= level) {
+        compactionPointers.add(null);
+      }
+      final var pointer = compactionPointers.get(level);
+      var picked = tables.get(0);
+      for (final var table : tables) {
+        if (pointer == null || Arrays.compareUnsigned(table.firstKey(), pointer) > 0) {
+          picked = table;
+          break;
+        }
+      }
+      compactionPointers.set(level, picked.lastKey());
+      final var inputs = new ArrayList<SortedTable>();
+      inputs.add(picked);
+      if (level + 1 < levels.size()) {
+        inputs.addAll(overlapping(levels.get(level + 1), picked.firstKey(), picked.lastKey()));
+      }
+      return new Compaction(level, inputs, level + 1, isBottom(levels, level + 1));
+    }
+    return null;
+  }
+
+  private static List<SortedTable> overlapping(final List<SortedTable> tables, final byte[] firstKey,
+      final byte[] lastKey) {
+    final var overlapping = new ArrayList<SortedTable>();
+    for (final var table : tables) {
+      if (table.overlaps(firstKey, lastKey)) {
+        overlapping.add(table);
+      }
+    }
+    return overlapping;
+  }
+
+  private static boolean isBottom(final List<List<SortedTable>> levels, final int level) {
+    for (var lower = level + 1; lower < levels.size(); lower++) {
+      if (!levels.get(lower).isEmpty()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Merges input tables into new ones and swaps them in. Only this thread changes tables below level 0, and the
+   * memtable writer only adds tables in front of level 0, so inputs are still in place when the result is swapped
+   * in. Inputs are deleted once cursors reading them are closed.
+   */
+  private void compact(final Compaction compaction) throws IOException {
+    final var scanners = new EntryScanner[compaction.inputs.size()];
+    for (var i = 0; i < scanners.length; i++) {
+      scanners[i] = compaction.inputs.get(i).scanner();
+    }
+    final var maxTableSize = compaction.outputLevel == compaction.level ? Long.MAX_VALUE : options.tableSize();
+    final var outputs = writeTables(new MergingScanner(scanners, compaction.bottom), maxTableSize);
+    lock.writeLock().lock();
+    try {
+      final var levels = mutableCopyOf(version.levels);
+      final var inputLevel = levels.get(compaction.level);
+      final var position = indexOf(inputLevel, compaction.inputs.get(0));
+      for (final var level : levels) {
+        level.removeIf(table -> compaction.inputs.stream().anyMatch(input -> input == table));
+      }
+      while (levels.size() <= compaction.outputLevel) {
+        levels.add(new ArrayList<>());
+      }
+      if (compaction.outputLevel == compaction.level) {
+        inputLevel.addAll(position, outputs);
+      } else {
+        final var outputLevel = levels.get(compaction.outputLevel);
+        outputLevel.addAll(outputs);
+        outputLevel.sort(Comparator.comparing(SortedTable::firstKey, Arrays::compareUnsigned));
+      }
+      writeManifest(levels);
+      version = new Version(version.memtable, version.immutable, levels);
+    } catch (IOException | RuntimeException e) {
+      for (final var output : outputs) {
+        output.releaseObsolete();
+      }
+      throw e;
+    } finally {
+      lock.writeLock().unlock();
+    }
+    for (final var input : compaction.inputs) {
+      input.releaseObsolete();
+    }
+  }
+
+  private static int indexOf(final List<SortedTable> tables, final SortedTable table) {
+    for (var i = 0; i < tables.size(); i++) {
+      if (tables.get(i) == table) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Writes entries to new tables, starting another one once a table reaches the maximum size.
+   */
+  private List<SortedTable> writeTables(final EntryScanner entries, final long maxTableSize) throws IOException {
+    final var tables = new ArrayList<SortedTable>();
+    SortedTable.Writer writer = null;
+    var id = 0L;
+    try {
+      while (entries.next()) {
+        if (writer == null) {
+          id = nextFileId.getAndIncrement();
+          writer = new SortedTable.Writer(SortedTable.pathFor(directory, id), options.blockSize(),
+              options.bloomFilterBitsPerKey());
+        }
+        writer.add(entries.key(), entries.value());
+        if (writer.size() >= maxTableSize) {
+          final var full = writer;
+          writer = null;
+          tables.add(full.finish(id));
+        }
+      }
+      if (writer != null) {
+        final var last = writer;
+        writer = null;
+        tables.add(last.finish(id));
+      }
+      return tables;
+    } catch (IOException | RuntimeException e) {
+      if (writer != null) {
+        try {
+          writer.abort();
+        } catch (IOException suppressed) {
+          e.addSuppressed(suppressed);
+        }
+      }
+      for (final var table : tables) {
+        try {
+          table.releaseObsolete();
+        } catch (IOException suppressed) {
+          e.addSuppressed(suppressed);
+        }
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Manifest is a text file: compaction policy on the first line, then one line of table ids per level, level 0
+   * from the newest table, other levels in key order. It is written to a temporary file and forced first, so a
+   * crash never leaves a partially written one behind.
+   */
+  private void writeManifest(final List<List<SortedTable>> levels) throws IOException {
+    final var manifest = new StringBuilder(options.compactionPolicy().name()).append('\n');
+    for (final var level : levels) {
+      for (var i = 0; i < level.size(); i++) {
+        manifest.append(i > 0 ? " " : "").append(level.get(i).id());
+      }
+      manifest.append('\n');
+    }
+    final var temporary = directory.resolve(MANIFEST_FILE_NAME + ".tmp");
+    try (var channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      final var bytes = ByteBuffer.wrap(manifest.toString().getBytes(StandardCharsets.UTF_8));
+      while (bytes.hasRemaining()) {
+        channel.write(bytes);
+      }
+      channel.force(true);
+    }
+    Files.move(temporary, directory.resolve(MANIFEST_FILE_NAME), StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private List<List<SortedTable>> readManifest() throws IOException {
+    final var levels = new ArrayList<List<SortedTable>>();
+    final var path = directory.resolve(MANIFEST_FILE_NAME);
+    if (!Files.exists(path)) {
+      levels.add(new ArrayList<>());
+      return levels;
+    }
+    final var lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+    if (lines.size() < 2) {
+      throw new IOException("Manifest of LSM tree store in " + directory + " is corrupted.");
+    }
+    if (!lines.get(0).equals(options.compactionPolicy().name())) {
+      throw new IllegalArgumentException("Store in " + directory + " uses " + lines.get(0) + " compaction, not "
+          + options.compactionPolicy() + ".");
+    }
+    try {
+      for (final var line : lines.subList(1, lines.size())) {
+        final var level = new ArrayList<SortedTable>();
+        levels.add(level);
+        for (final var id : line.split(" ")) {
+          if (!id.isEmpty()) {
+            final var tableId = Long.parseLong(id);
+            level.add(SortedTable.open(tableId, SortedTable.pathFor(directory, tableId)));
+          }
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      closeTables(levels, e);
+      throw e;
+    }
+    return levels;
+  }
+
+  /**
+   * Deletes tables written by a flush or compaction interrupted before the manifest listed them.
+   */
+  private void deleteUnlistedTables(final List<Long> tableIds, final List<List<SortedTable>> levels)
+      throws IOException {
+    final var listed = new HashSet<Long>();
+    levels.forEach(level -> level.forEach(table -> listed.add(table.id())));
+    for (final var id : tableIds) {
+      if (!listed.contains(id)) {
+        Files.deleteIfExists(SortedTable.pathFor(directory, id));
+      }
+    }
+  }
+
+  private List<Long> fileIds(final String prefix) throws IOException {
+    final var ids = new ArrayList<Long>();
+    try (var files = Files.list(directory)) {
+      for (final var iterator = files.iterator(); iterator.hasNext();) {
+        final var name = iterator.next().getFileName().toString();
+        final var end = name.indexOf('.');
+        if (name.startsWith(prefix) && end > prefix.length()) {
+          ids.add(Long.parseLong(name.substring(prefix.length(), end)));
+        }
+      }
+    }
+    ids.sort(null);
+    return ids;
+  }
+
+  private static long lastOf(final List<Long> ids) {
+    return ids.isEmpty() ? -1 : ids.get(ids.size() - 1);
+  }
+
+  private static void closeTables(final List<List<SortedTable>> levels, final Exception failure) {
+    for (final var level : levels) {
+      for (final var table : level) {
+        try {
+          table.close();
+        } catch (IOException e) {
+          failure.addSuppressed(e);
+        }
+      }
+    }
+  }
+
+  private Memtable newMemtable() throws IOException {
+    final var id = nextFileId.getAndIncrement();
+    return new Memtable(logPathFor(id));
+  }
+
+  private Path logPathFor(final long id) {
+    return directory.resolve(String.format(LOG_FILE_PREFIX + "%08d.wal", id));
+  }
+
+  private static List<List<SortedTable>> mutableCopyOf(final List<List<SortedTable>> levels) {
+    final var copy = new ArrayList<List<SortedTable>>(levels.size());
+    for (final var level : levels) {
+      copy.add(new ArrayList<>(level));
+    }
+    return copy;
+  }
+
+  private ReentrantLock keyLockFor(final byte[] serializedKey) {
+    return keyLocks[HashIndex.hash(serializedKey) & (NR_OF_KEY_LOCKS - 1)];
+  }
+
+  private byte[] serialize(final Serializable object) throws IOException {
+    final var serializer = serializers.borrowObject().join();
+    try {
+      return serializer.serialize(object);
+    } finally {
+      serializers.returnObject(serializer);
+    }
+  }
+
+  private Object deserialize(final byte[] serializedObject) throws IOException, ClassNotFoundException {
+    final var serializer = serializers.borrowObject().join();
+    try {
+      return serializer.deserialize(serializedObject);
+    } finally {
+      serializers.returnObject(serializer);
+    }
+  }
+
+  private static Serializer newSerializer(final int initialBufferCapacity, final Codecs codecs) {
+    try {
+      return new Serializer(initialBufferCapacity, codecs);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static ExecutorService newDaemonExecutor(final String threadName) {
+    return Executors.newSingleThreadExecutor(runnable -> {
+      final var thread = new Thread(runnable, threadName);
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  private static void shutdown(final ExecutorService executor) {
+    executor.shutdown();
+    try {
+      executor.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Memtables and tables seen together by lookups and cursors, replaced as a whole under the exclusive lock.
+   */
+  private static final class Version {
+    private final Memtable memtable;
+    private final Memtable immutable;
+    private final List<List<SortedTable>> levels;
+
+    private Version(final Memtable memtable, final Memtable immutable, final List<List<SortedTable>> levels) {
+      this.memtable = memtable;
+      this.immutable = immutable;
+      final var frozen = new ArrayList<List<SortedTable>>(levels.size());
+      for (final var level : levels) {
+        frozen.add(List.copyOf(level));
+      }
+      this.levels = List.copyOf(frozen);
+    }
+  }
+
+  /**
+   * Sorted map of serialized keys to serialized values, or to empty values of removed keys, with its log.
+   */
+  private static final class Memtable implements WriteAheadLog.Replayer {
+    private static final int ENTRY_OVERHEAD_BYTES = 64;
+
+    private final Path logPath;
+    private final WriteAheadLog log;
+    private final ConcurrentSkipListMap<byte[], byte[]> entries = new ConcurrentSkipListMap<>(Arrays::compareUnsigned);
+    private final AtomicLong size = new AtomicLong();
+
+    private Memtable(final Path logPath) throws IOException {
+      this.logPath = logPath;
+      this.log = new WriteAheadLog(logPath);
+    }
+
+    /**
+     * @return approximate memory taken by entries, counting some overhead of the map for each
+     */
+    long size() {
+      return size.get();
+    }
+
+    void put(final byte[] key, final byte[] value) {
+      final var previous = entries.put(key, value);
+      size.addAndGet(previous == null
+          ? key.length + value.length + ENTRY_OVERHEAD_BYTES
+          : value.length - previous.length);
+    }
+
+    EntryScanner scanner() {
+      final Iterator<Map.Entry<byte[], byte[]>> iterator = entries.entrySet().iterator();
+      return new EntryScanner() {
+        private Map.Entry<byte[], byte[]> current;
+
+        @Override
+        public boolean next() {
+          current = iterator.hasNext() ? iterator.next() : null;
+          return current != null;
+        }
+
+        @Override
+        public byte[] key() {
+          return current.getKey();
+        }
+
+        @Override
+        public byte[] value() {
+          return current.getValue();
+        }
+      };
+    }
+
+    @Override
+    public void newPage(final long pageNumber) {
+      throw new IllegalStateException("Log of a memtable has no pages.");
+    }
+
+    @Override
+    public void pageImage(final long pageNumber, final ByteBuffer image) {
+      throw new IllegalStateException("Log of a memtable has no pages.");
+    }
+
+    @Override
+    public void put(final long pageNumber, final byte[] key, final byte[] value) {
+      put(key, value);
+    }
+
+    @Override
+    public void remove(final long pageNumber, final int slot, final byte[] key) {
+      put(key, REMOVED);
+    }
+  }
+
+  /**
+   * Compaction of input tables, from the newest to the oldest one, into the output level.
+   */
+  private static final class Compaction {
+    private final int level;
+    private final List<SortedTable> inputs;
+    private final int outputLevel;
+    private final boolean bottom;
+
+    /**
+     * @param bottom
+     *          whether there are no older tables than the inputs, so removed keys need no entries any more
+     */
+    private Compaction(final int level, final List<SortedTable> inputs, final int outputLevel,
+        final boolean bottom) {
+      this.level = level;
+      this.inputs = inputs;
+      this.outputLevel = outputLevel;
+      this.bottom = bottom;
+    }
+  }
+
+  private final class MergingCursor implements Cursor {
+    private final List<SortedTable> tables;
+    private final MergingScanner scanner;
+    private boolean positioned;
+    private boolean released;
+
+    private MergingCursor(final List<SortedTable> tables, final MergingScanner scanner) {
+      this.tables = tables;
+      this.scanner = scanner;
+    }
+
+    @Override
+    public boolean next() throws IOException {
+      positioned = !released && scanner.next();
+      return positioned;
+    }
+
+    @Override
+    public Object key() throws IOException, ClassNotFoundException {
+      checkPositioned();
+      return deserialize(scanner.key());
+    }
+
+    @Override
+    public Object value() throws IOException, ClassNotFoundException {
+      checkPositioned();
+      return deserialize(scanner.value());
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (released) {
+        return;
+      }
+      released = true;
+      positioned = false;
+      for (final var table : tables) {
+        table.release();
+      }
+    }
+
+    private void checkPositioned() {
+      if (!positioned) {
+        throw new IllegalStateException("Cursor is not positioned on a record.");
+      }
+    }
+  }
+
+}
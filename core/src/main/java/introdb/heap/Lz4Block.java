@@ -0,0 +1,178 @@
+package introdb.heap;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Fast compression in the LZ4 block format: a sequence of literals followed by a match, repeated, where each
+ * sequence starts with a token of literal and match lengths, and a match is a two byte offset back into the
+ * already decompressed output. Matches of at least four bytes are found through a hash table of the last position
+ * of every four byte prefix, there is no entropy coding, which keeps both directions at a few cycles per byte.
+ */
+final class Lz4Block {
+  private static final int MIN_MATCH = 4;
+  private static final int LAST_LITERALS = 5;
+  private static final int MATCH_FIND_LIMIT = 12;
+  private static final int MAX_OFFSET = 65535;
+  private static final int HASH_LOG = 12;
+  private static final int RUN_MASK = 15;
+  private static final int SKIP_TRIGGER = 6;
+
+  private Lz4Block() {
+  }
+
+  /**
+   * @return length of compressed bytes written to target, or -1 when they do not fit into it
+   */
+  static int compress(final byte[] source, final int sourceLength, final byte[] target) {
+    final var positions = new int[1 << HASH_LOG];
+    var anchor = 0;
+    var position = 0;
+    var out = 0;
+    // the longer no match is found, the more positions are skipped, which keeps incompressible data cheap
+    var misses = 1 << SKIP_TRIGGER;
+    while (position < sourceLength - MATCH_FIND_LIMIT) {
+      final var sequence = readInt(source, position);
+      final var hash = hash(sequence);
+      // positions are stored plus one, so zero marks an empty entry
+      final var reference = positions[hash] - 1;
+      positions[hash] = position + 1;
+      if (reference < 0 || position - reference > MAX_OFFSET || readInt(source, reference) != sequence) {
+        position += misses++ >>> SKIP_TRIGGER;
+        continue;
+      }
+      misses = 1 << SKIP_TRIGGER;
+      final var limit = sourceLength - LAST_LITERALS;
+      final var mismatch = Arrays.mismatch(source, reference + MIN_MATCH, reference + limit - position, source,
+          position + MIN_MATCH, limit);
+      final var matchLength = MIN_MATCH + (mismatch < 0 ? limit - position - MIN_MATCH : mismatch);
+      out = writeSequence(source, anchor, position - anchor, position - reference, matchLength, target, out);
+      if (out < 0) {
+        return -1;
+      }
+      position += matchLength;
+      anchor = position;
+      if (position < sourceLength - MATCH_FIND_LIMIT) {
+        positions[hash(readInt(source, position - 2))] = position - 1;
+      }
+    }
+    return writeLastLiterals(source, anchor, sourceLength - anchor, target, out);
+  }
+
+  /**
+   * @throws IOException
+   *           when compressed bytes are corrupted or do not decompress to exactly the target length
+   */
+  static void decompress(final byte[] source, final int sourceLength, final byte[] target, final int targetLength)
+      throws IOException {
+    try {
+      var in = 0;
+      var out = 0;
+      while (in < sourceLength) {
+        final var token = source[in++] & 0xff;
+        var literalLength = token >>> 4;
+        if (literalLength == RUN_MASK) {
+          int next;
+          do {
+            next = source[in++] & 0xff;
+            literalLength += next;
+          } while (next == 255);
+        }
+        System.arraycopy(source, in, target, out, literalLength);
+        in += literalLength;
+        out += literalLength;
+        if (in >= sourceLength) {
+          break;
+        }
+        final var offset = (source[in++] & 0xff) | (source[in++] & 0xff) << 8;
+        var matchLength = token & RUN_MASK;
+        if (matchLength == RUN_MASK) {
+          int next;
+          do {
+            next = source[in++] & 0xff;
+            matchLength += next;
+          } while (next == 255);
+        }
+        matchLength += MIN_MATCH;
+        if (offset == 0 || offset > out || out + matchLength > targetLength) {
+          throw new IOException("Compressed page is corrupted.");
+        }
+        if (offset >= matchLength) {
+          System.arraycopy(target, out - offset, target, out, matchLength);
+        } else {
+          // byte by byte, as the match overlaps the bytes it produces
+          for (var i = 0; i < matchLength; i++) {
+            target[out + i] = target[out - offset + i];
+          }
+        }
+        out += matchLength;
+      }
+      if (out != targetLength) {
+        throw new IOException("Compressed page is corrupted.");
+      }
+    } catch (IndexOutOfBoundsException e) {
+      throw new IOException("Compressed page is corrupted.", e);
+    }
+  }
+
+  private static int writeSequence(final byte[] source, final int literalsOffset, final int literalLength,
+      final int offset, final int matchLength, final byte[] target, final int position) {
+    final var extraMatchLength = matchLength - MIN_MATCH;
+    final var required = 1 + lengthBytes(literalLength) + literalLength + 2 + lengthBytes(extraMatchLength);
+    if (position + required > target.length) {
+      return -1;
+    }
+    var out = position;
+    final var tokenIndex = out++;
+    target[tokenIndex] = (byte) (Math.min(literalLength, RUN_MASK) << 4 | Math.min(extraMatchLength, RUN_MASK));
+    out = writeLength(literalLength, target, out);
+    System.arraycopy(source, literalsOffset, target, out, literalLength);
+    out += literalLength;
+    target[out++] = (byte) offset;
+    target[out++] = (byte) (offset >>> 8);
+    return writeLength(extraMatchLength, target, out);
+  }
+
+  private static int writeLastLiterals(final byte[] source, final int literalsOffset, final int literalLength,
+      final byte[] target, final int position) {
+    if (position + 1 + lengthBytes(literalLength) + literalLength > target.length) {
+      return -1;
+    }
+    var out = position;
+    target[out++] = (byte) (Math.min(literalLength, RUN_MASK) << 4);
+    out = writeLength(literalLength, target, out);
+    System.arraycopy(source, literalsOffset, target, out, literalLength);
+    return out + literalLength;
+  }
+
+  /**
+   * Writes the part of a length not fitting into its token nibble, as bytes of 255 followed by the remainder.
+   */
+  private static int writeLength(final int length, final byte[] target, final int position) {
+    if (length < RUN_MASK) {
+      return position;
+    }
+    var out = position;
+    var remaining = length - RUN_MASK;
+    while (remaining >= 255) {
+      target[out++] = (byte) 255;
+      remaining -= 255;
+    }
+    target[out++] = (byte) remaining;
+    return out;
+  }
+
+  private static int lengthBytes(final int length) {
+    return length < RUN_MASK ? 0 : (length - RUN_MASK) / 255 + 1;
+  }
+
+  private static int hash(final int sequence) {
+    return (sequence * -1640531535) >>> (Integer.SIZE - HASH_LOG);
+  }
+
+  private static int readInt(final byte[] bytes, final int offset) {
+    return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8 | (bytes[offset + 2] & 0xff) << 16
+        | (bytes[offset + 3] & 0xff) << 24;
+  }
+
+}
@@ -0,0 +1,154 @@
+package introdb.heap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Accesses pages through memory mappings of the file, so reading a page is a copy from the page cache
+ * instead of a system call. File is mapped in chunks, a new chunk is mapped (and the file is extended)
+ * when a page beyond already mapped ones is written. On close the file is truncated to its last written page, and
+ * zeroed pages at the end of a file which was not closed are not counted when it is opened again.
+ * <p>
+ * Pages are accessed concurrently under page latches only, so mapped chunks are published through a
+ * copy-on-write array, where each chunk is mapped at the offset of its chunk number. The array is grown under a
+ * {@link ReentrantLock} rather than a monitor, so virtual threads mapping a chunk do not pin their carrier threads.
+ */
+final class MappedPageFile implements PageFile {
+  static final long DEFAULT_CHUNK_SIZE = 64 * 1024 * 1024;
+
+  private final FileChannel fileChannel;
+  private final int pageSize;
+  private final long pagesPerChunk;
+  private final ReentrantLock chunksLock = new ReentrantLock();
+  private final AtomicLong nrOfPages;
+  private volatile MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+
+  MappedPageFile(final Path path, final int pageSize) throws IOException {
+    this(path, pageSize, DEFAULT_CHUNK_SIZE);
+  }
+
+  MappedPageFile(final Path path, final int pageSize, final long chunkSize) throws IOException {
+    this.fileChannel =
+        FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    this.pageSize = pageSize;
+    this.pagesPerChunk = Math.max(1, chunkSize / pageSize);
+    this.nrOfPages = new AtomicLong(nrOfWrittenPages(fileChannel, pageSize));
+  }
+
+  @Override
+  public void read(final long pageNumber, final ByteBuffer page) throws IOException {
+    if (pageNumber >= nrOfPages.get()) {
+      while (page.hasRemaining()) {
+        page.put((byte) 0);
+      }
+      return;
+    }
+    page.put(pageSlice(pageNumber));
+  }
+
+  @Override
+  public void readPages(final long firstPageNumber, final ByteBuffer... pages) throws IOException {
+    var pageNumber = firstPageNumber;
+    for (final var buffer : pages) {
+      for (; buffer.hasRemaining(); pageNumber++) {
+        final var page = buffer.slice();
+        page.limit(Math.min(pageSize, page.remaining()));
+        read(pageNumber, page);
+        buffer.position(buffer.position() + page.limit());
+      }
+    }
+  }
+
+  @Override
+  public void write(final long pageNumber, final ByteBuffer page) throws IOException {
+    pageSlice(pageNumber).put(page);
+    nrOfPages.accumulateAndGet(pageNumber + 1, Math::max);
+  }
+
+  @Override
+  public long nrOfPages() {
+    return nrOfPages.get();
+  }
+
+  /**
+   * Mapped chunks stay as they are, the file is truncated on close.
+   */
+  @Override
+  public void truncate(final long nrOfPages) {
+    this.nrOfPages.accumulateAndGet(nrOfPages, Math::min);
+  }
+
+  @Override
+  public void force() {
+    for (final var chunk : chunks) {
+      if (chunk != null) {
+        chunk.force();
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    force();
+    chunks = new MappedByteBuffer[0];
+    fileChannel.truncate(nrOfPages.get() * pageSize);
+    fileChannel.close();
+  }
+
+  /**
+   * Skips zeroed pages at the end of the file, left behind by a mapped chunk when the process stopped before the
+   * file was truncated on close, so they do not count against the page limit of the heap file.
+   */
+  private static long nrOfWrittenPages(final FileChannel fileChannel, final int pageSize) throws IOException {
+    var nrOfPages = (fileChannel.size() + pageSize - 1) / pageSize;
+    final var page = ByteBuffer.allocate(pageSize);
+    for (; nrOfPages > 0; nrOfPages--) {
+      Arrays.fill(page.array(), (byte) 0);
+      final var position = (nrOfPages - 1) * pageSize;
+      page.clear();
+      while (page.hasRemaining() && fileChannel.read(page, position + page.position()) >= 0) {
+        // read the whole page, the last one may be shorter
+      }
+      if (!Page.isZeroed(page)) {
+        break;
+      }
+    }
+    return nrOfPages;
+  }
+
+  private ByteBuffer pageSlice(final long pageNumber) throws IOException {
+    final var chunkNumber = (int) (pageNumber / pagesPerChunk);
+    final var offset = (int) (pageNumber % pagesPerChunk) * pageSize;
+    return chunk(chunkNumber).duplicate().position(offset).limit(offset + pageSize);
+  }
+
+  private MappedByteBuffer chunk(final int chunkNumber) throws IOException {
+    final var mapped = chunks;
+    if (chunkNumber < mapped.length && mapped[chunkNumber] != null) {
+      return mapped[chunkNumber];
+    }
+    chunksLock.lock();
+    try {
+      final var current = chunks;
+      if (chunkNumber < current.length && current[chunkNumber] != null) {
+        return current[chunkNumber];
+      }
+      final var grown = Arrays.copyOf(current, Math.max(current.length, chunkNumber + 1));
+      final var chunkSize = pagesPerChunk * pageSize;
+      grown[chunkNumber] = fileChannel.map(MapMode.READ_WRITE, chunkNumber * chunkSize, chunkSize);
+      chunks = grown;
+      return grown[chunkNumber];
+    } finally {
+      chunksLock.unlock();
+    }
+  }
+
+}
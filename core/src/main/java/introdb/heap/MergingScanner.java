@@ -0,0 +1,75 @@
+package introdb.heap;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+/**
+ * Merges scanners of overlapping entries, returning only the newest entry of each key. Scanners are given from the
+ * newest to the oldest one, so of entries with equal keys the one of the lowest scanner index wins.
+ */
+final class MergingScanner implements EntryScanner {
+  private final EntryScanner[] scanners;
+  private final boolean skipRemoved;
+  private final PriorityQueue<Integer> queue;
+  private boolean started;
+  private byte[] key;
+  private byte[] value;
+
+  /**
+   * @param skipRemoved
+   *          whether entries marking removed keys are dropped, instead of returned as they shadow older entries
+   */
+  MergingScanner(final EntryScanner[] scanners, final boolean skipRemoved) {
+    this.scanners = scanners;
+    this.skipRemoved = skipRemoved;
+    this.queue = new PriorityQueue<>(Math.max(1, scanners.length), (first, second) -> {
+      final var comparison = Arrays.compareUnsigned(scanners[first].key(), scanners[second].key());
+      return comparison != 0 ? comparison : Integer.compare(first, second);
+    });
+  }
+
+  @Override
+  public boolean next() throws IOException {
+    if (!started) {
+      for (var i = 0; i < scanners.length; i++) {
+        if (scanners[i].next()) {
+          queue.add(i);
+        }
+      }
+      started = true;
+    }
+    while (!queue.isEmpty()) {
+      final int newest = queue.poll();
+      key = scanners[newest].key();
+      value = scanners[newest].value();
+      advance(newest);
+      while (!queue.isEmpty() && Arrays.equals(scanners[queue.peek()].key(), key)) {
+        advance(queue.poll());
+      }
+      if (!skipRemoved || value.length != 0) {
+        return true;
+      }
+    }
+    key = null;
+    value = null;
+    return false;
+  }
+
+  @Override
+  public byte[] key() {
+    return key;
+  }
+
+  @Override
+  public byte[] value() {
+    return value;
+  }
+
+  private void advance(final int scanner) throws IOException {
+    if (scanners[scanner].next()) {
+      queue.add(scanner);
+    }
+  }
+
+}
@@ -0,0 +1,356 @@
+package introdb.heap;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+/**
+ * Chains of pages holding values too large for a page of {@link UnorderedHeapFile}, kept in a file next to the
+ * heap file. The record in the heap page holds a pointer instead of the value: tag {@link #POINTER_TAG}, which no
+ * codec can use, number of the first page of the chain and length of the value.
+ * <p>
+ * Every page starts with the number of the next page of its chain, the number of value bytes it holds, -1 for a
+ * free page, and with page checksums CRC32C of the header and the value bytes, verified when the chain is read and
+ * by {@link #scrub()}. Chains are allocated as runs of consecutive pages whenever possible, and read with one large
+ * read per run. Pages of a freed chain are reused only after {@link #releaseFreedPages()}, which the heap file calls
+ * once the removal of the pointing record is written, so a record restored after a crash never points to a reused
+ * chain. Pages of chains whose records were lost in a crash are not reclaimed.
+ * <p>
+ * Thread safe. Callers make sure a chain is not read while it is freed.
+ */
+final class OverflowFile implements Closeable {
+  static final byte POINTER_TAG = Codecs.FIRST_USER_TAG - 1;
+  static final int POINTER_BYTES = Byte.BYTES + Long.BYTES + Integer.BYTES;
+
+  private static final long NO_PAGE = -1;
+  private static final int NEXT_PAGE_OFFSET = 0;
+  private static final int LENGTH_OFFSET = NEXT_PAGE_OFFSET + Long.BYTES;
+  private static final int CHECKSUM_OFFSET = LENGTH_OFFSET + Integer.BYTES;
+  private static final int HEADER_BYTES = CHECKSUM_OFFSET + Integer.BYTES;
+  private static final int FREE = -1;
+  private static final int MAX_PAGES_PER_READ = 64;
+
+  private final FileChannel fileChannel;
+  private final int pageSize;
+  private final int payloadBytes;
+  private final boolean pageChecksums;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final TreeSet<Long> freePages = new TreeSet<>();
+  private final List<Long> freedPages = new ArrayList<>();
+  private volatile long nrOfPages;
+
+  /**
+   * Opens or creates the file, and collects its free pages by reading the header of every page.
+   *
+   * @param pageChecksums
+   *          whether checksums of pages are written and verified
+   */
+  OverflowFile(final Path path, final int pageSize, final boolean pageChecksums) throws IOException {
+    this.fileChannel =
+        FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    this.pageSize = pageSize;
+    this.payloadBytes = pageSize - HEADER_BYTES;
+    this.pageChecksums = pageChecksums;
+    this.nrOfPages = fileChannel.size() / pageSize;
+    final var header = ByteBuffer.allocate(HEADER_BYTES);
+    for (var page = 0L; page < nrOfPages; page++) {
+      readFully(header.clear(), page * pageSize);
+      if (header.getInt(LENGTH_OFFSET) == FREE) {
+        freePages.add(page);
+      }
+    }
+  }
+
+  static Path pathFor(final Path heapFilePath) {
+    return heapFilePath.resolveSibling(heapFilePath.getFileName() + ".overflow");
+  }
+
+  static boolean isPointer(final byte[] storedValue) {
+    return storedValue != null && storedValue.length == POINTER_BYTES && storedValue[0] == POINTER_TAG;
+  }
+
+  static boolean isPointer(final ByteBuffer storedValue) {
+    return storedValue.remaining() == POINTER_BYTES && storedValue.get(storedValue.position()) == POINTER_TAG;
+  }
+
+  /**
+   * @throws IllegalArgumentException
+   *           when even the record of the key with a pointer would not fit into an empty page
+   */
+  static void checkKeyFits(final int pageSize, final byte[] key) {
+    Page.checkRecordFits(pageSize, key, new byte[POINTER_BYTES]);
+  }
+
+  long nrOfPages() {
+    return nrOfPages;
+  }
+
+  /**
+   * Writes the value to a new chain.
+   *
+   * @return pointer to the chain, to be stored as the value of the record
+   */
+  byte[] write(final byte[] value) throws IOException {
+    final var pages = allocate(Math.max(1, (value.length + payloadBytes - 1) / payloadBytes));
+    var written = 0;
+    for (var start = 0; start < pages.length;) {
+      var end = start + 1;
+      while (end < pages.length && end - start < MAX_PAGES_PER_READ && pages[end] == pages[end - 1] + 1) {
+        end++;
+      }
+      final var run = ByteBuffer.allocate((end - start) * pageSize);
+      for (var i = start; i < end; i++) {
+        final var length = Math.min(payloadBytes, value.length - written);
+        final var base = (i - start) * pageSize;
+        run.putLong(base + NEXT_PAGE_OFFSET, i + 1 < pages.length ? pages[i + 1] : NO_PAGE)
+            .putInt(base + LENGTH_OFFSET, length);
+        run.position(base + HEADER_BYTES);
+        run.put(value, written, length);
+        written += length;
+        if (pageChecksums) {
+          run.putInt(base + CHECKSUM_OFFSET, checksum(run, base));
+        }
+      }
+      run.clear();
+      while (run.hasRemaining()) {
+        fileChannel.write(run, pages[start] * pageSize + run.position());
+      }
+      start = end;
+    }
+    return ByteBuffer.allocate(POINTER_BYTES)
+        .put(POINTER_TAG)
+        .putLong(pages[0])
+        .putInt(value.length)
+        .array();
+  }
+
+  /**
+   * Reads the value of a chain, speculatively reading the following pages along with each page, as long as the
+   * chain continues with consecutive pages.
+   *
+   * @throws CorruptedPage
+   *           when a page of the chain does not match its checksum
+   */
+  byte[] read(final ByteBuffer pointer) throws IOException {
+    var page = pointer.getLong(pointer.position() + Byte.BYTES);
+    final var value = new byte[pointer.getInt(pointer.position() + Byte.BYTES + Long.BYTES)];
+    var copied = 0;
+    while (copied < value.length) {
+      if (page < 0 || page >= nrOfPages) {
+        throw new IOException("Overflow chain points to missing page " + page + ".");
+      }
+      final var pagesLeft = (value.length - copied + payloadBytes - 1) / payloadBytes;
+      final var run = ByteBuffer.allocate(
+          (int) Math.min(Math.min(pagesLeft, MAX_PAGES_PER_READ), nrOfPages - page) * pageSize);
+      // pages following a chain which jumps elsewhere may be allocated, but not written yet
+      final var nrOfRunPages = readAvailable(run, page * pageSize) / pageSize;
+      if (nrOfRunPages == 0) {
+        throw new IOException("Overflow file ends before page " + page + ".");
+      }
+      var next = NO_PAGE;
+      for (var i = 0; i < nrOfRunPages && copied < value.length; i++) {
+        final var base = i * pageSize;
+        next = run.getLong(base + NEXT_PAGE_OFFSET);
+        final var length = run.getInt(base + LENGTH_OFFSET);
+        if (pageChecksums && !hasValidChecksum(run, base)) {
+          throw new CorruptedPage(page + i);
+        }
+        if (length <= 0 || length > payloadBytes || length > value.length - copied) {
+          throw new IOException("Overflow page " + (page + i) + " is corrupted.");
+        }
+        run.limit(base + HEADER_BYTES + length).position(base + HEADER_BYTES);
+        run.get(value, copied, length);
+        run.clear();
+        copied += length;
+        if (next != page + i + 1) {
+          break;
+        }
+      }
+      page = next;
+    }
+    return value;
+  }
+
+  /**
+   * Frees pages of the chain, they are reused after the next {@link #releaseFreedPages()}.
+   */
+  void free(final ByteBuffer pointer) throws IOException {
+    final var pages = new ArrayList<Long>();
+    final var header = ByteBuffer.allocate(HEADER_BYTES);
+    var page = pointer.getLong(pointer.position() + Byte.BYTES);
+    var remaining = pointer.getInt(pointer.position() + Byte.BYTES + Long.BYTES);
+    do {
+      if (page < 0 || page >= nrOfPages) {
+        throw new IOException("Overflow chain points to missing page " + page + ".");
+      }
+      pages.add(page);
+      readFully(header.clear(), page * pageSize);
+      remaining -= header.getInt(LENGTH_OFFSET);
+      page = header.getLong(NEXT_PAGE_OFFSET);
+    } while (remaining > 0);
+    lock.lock();
+    try {
+      freedPages.addAll(pages);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Marks pages of chains freed so far as free in the file and makes them available to new chains. Callers make
+   * sure records which pointed to the chains are removed from the heap file on disk.
+   */
+  void releaseFreedPages() throws IOException {
+    lock.lock();
+    try {
+      final var header = ByteBuffer.allocate(HEADER_BYTES);
+      for (final var page : freedPages) {
+        header.clear();
+        header.putLong(NEXT_PAGE_OFFSET, NO_PAGE).putInt(LENGTH_OFFSET, FREE);
+        if (pageChecksums) {
+          header.putInt(CHECKSUM_OFFSET, checksum(header, 0));
+        }
+        while (header.hasRemaining()) {
+          fileChannel.write(header, page * pageSize + header.position());
+        }
+        freePages.add(page);
+      }
+      freedPages.clear();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Verifies checksums of all pages on disk, in runs of consecutive pages read at once. A page which fails is read
+   * once more, so a page read while it was being written is not reported.
+   *
+   * @return numbers of corrupted pages in ascending order
+   */
+  List<Long> scrub() throws IOException {
+    final var corrupted = new ArrayList<Long>();
+    final var run = ByteBuffer.allocate(MAX_PAGES_PER_READ * pageSize);
+    final var page = ByteBuffer.allocate(pageSize);
+    for (var firstPage = 0L; ; firstPage += MAX_PAGES_PER_READ) {
+      final var nrOfRunPages = readAvailable(run.clear(), firstPage * pageSize) / pageSize;
+      for (var i = 0; i < nrOfRunPages; i++) {
+        if (!hasValidChecksum(run, i * pageSize)) {
+          readFully(page.clear(), (firstPage + i) * pageSize);
+          if (!hasValidChecksum(page, 0)) {
+            corrupted.add(firstPage + i);
+          }
+        }
+      }
+      if (nrOfRunPages < MAX_PAGES_PER_READ) {
+        return corrupted;
+      }
+    }
+  }
+
+  void force() throws IOException {
+    fileChannel.force(false);
+  }
+
+  @Override
+  public void close() throws IOException {
+    fileChannel.close();
+  }
+
+  /**
+   * Takes the first run of enough consecutive free pages, or appends a new run at the end of the file when there
+   * is none, unless free pages are plentiful enough to be used scattered.
+   */
+  private long[] allocate(final int count) {
+    final var pages = new long[count];
+    lock.lock();
+    try {
+      var runStart = NO_PAGE;
+      var runLength = 0;
+      for (final var page : freePages) {
+        if (runLength > 0 && page == runStart + runLength) {
+          runLength++;
+        } else {
+          runStart = page;
+          runLength = 1;
+        }
+        if (runLength == count) {
+          for (var i = 0; i < count; i++) {
+            pages[i] = runStart + i;
+            freePages.remove(pages[i]);
+          }
+          return pages;
+        }
+      }
+      var allocated = 0;
+      if (freePages.size() >= 4 * count) {
+        while (allocated < count) {
+          pages[allocated++] = freePages.pollFirst();
+        }
+        return pages;
+      }
+      while (allocated < count) {
+        pages[allocated++] = nrOfPages;
+        nrOfPages = nrOfPages + 1;
+      }
+      return pages;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Pages allocated but never written are all zeros and valid as well.
+   */
+  private boolean hasValidChecksum(final ByteBuffer pages, final int base) {
+    if (pages.getInt(base + CHECKSUM_OFFSET) == checksum(pages, base)) {
+      return true;
+    }
+    for (var i = base; i < base + pageSize; i++) {
+      if (pages.get(i) != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return CRC32C of the header of the page starting at given offset and of the value bytes it holds
+   */
+  private int checksum(final ByteBuffer pages, final int base) {
+    final var length = Math.max(0, Math.min(payloadBytes, pages.getInt(base + LENGTH_OFFSET)));
+    final var crc = new CRC32C();
+    crc.update(pages.duplicate().limit(base + CHECKSUM_OFFSET).position(base));
+    crc.update(pages.duplicate().limit(base + HEADER_BYTES + length).position(base + HEADER_BYTES));
+    return (int) crc.getValue();
+  }
+
+  /**
+   * @return number of bytes read before the buffer is full or the file ends
+   */
+  private int readAvailable(final ByteBuffer buffer, final long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (fileChannel.read(buffer, position + buffer.position()) < 0) {
+        break;
+      }
+    }
+    return buffer.flip().remaining();
+  }
+
+  private void readFully(final ByteBuffer buffer, final long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (fileChannel.read(buffer, position + buffer.position()) < 0) {
+        throw new IOException("Overflow file ends before page " + (position + buffer.position()) / pageSize + ".");
+      }
+    }
+    buffer.flip();
+  }
+
+}
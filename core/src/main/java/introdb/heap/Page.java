@@ -1,94 +1,424 @@
 package introdb.heap;
 
-import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.ObjIntConsumer;
+import java.util.zip.CRC32C;
 
+/**
+ * Heap file page held in a buffer pool frame. Callers read it under {@link #latch()} read lock and modify it
+ * under write lock.
+ * <p>
+ * Slotted page layout: a header with number of slots, whose top bit flags a page written with checksum, free
+ * space offset and checksum, records growing from the front, and a slot directory of record offsets, lengths and
+ * key hashes growing from the end of the page. Records are addressed by their slot number, which stays the same
+ * when records are moved by compaction. Slots of removed records are reused, and the space of removed records is
+ * reclaimed by compacting the page once a new record does not fit into contiguous free space.
+ * <p>
+ * Key hash kept in the slot lets lookups reject records of other keys by comparing one integer, before the
+ * key itself is compared, and lets the index be rebuilt without reading keys. Methods without key hash
+ * parameter compute it with {@link HashIndex#hash(byte[])}.
+ */
 class Page {
-  private static final int OFFSET_FIELD_BYTES = Integer.BYTES;
-  private static final int FREE_SPACE_OFFSET_OFFSET = 0;
-  private static final int DATA_SEGMENT_OFFSET = FREE_SPACE_OFFSET_OFFSET + OFFSET_FIELD_BYTES;
+  private static final int INT_FIELD_BYTES = Integer.BYTES;
+  private static final int NR_OF_SLOTS_OFFSET = 0;
+  private static final int FREE_SPACE_OFFSET_OFFSET = NR_OF_SLOTS_OFFSET + INT_FIELD_BYTES;
+  private static final int CHECKSUM_OFFSET = FREE_SPACE_OFFSET_OFFSET + INT_FIELD_BYTES;
+  private static final int DATA_SEGMENT_OFFSET = CHECKSUM_OFFSET + INT_FIELD_BYTES;
+  private static final int CHECKSUMMED_FLAG = Integer.MIN_VALUE;
+
+  private static final int SLOT_RECORD_OFFSET = 0;
+  private static final int SLOT_RECORD_LENGTH = SLOT_RECORD_OFFSET + INT_FIELD_BYTES;
+  private static final int SLOT_KEY_HASH = SLOT_RECORD_LENGTH + INT_FIELD_BYTES;
+  private static final int SLOT_BYTES = SLOT_KEY_HASH + INT_FIELD_BYTES;
+  private static final int EMPTY_SLOT = 0;
+
+  /**
+   * Receives key hash and slot of every record.
+   */
+  interface KeyHashVisitor {
+
+    void visit(int keyHash, int slot);
+
+  }
 
-  private final FileChannel fileChannel;
   private final int pageSize;
-  private long currentPageNumber = -1;
   private final ByteBuffer pageByteBuffer;
-  private final Record record = new Record();
+  private final int frame;
+  private final ReentrantReadWriteLock latch = new ReentrantReadWriteLock();
+  private volatile long pageNumber = -1;
+
+  Page(final ByteBuffer pageByteBuffer, final int pageSize) {
+    this(pageByteBuffer, pageSize, -1);
+  }
 
-  Page(final FileChannel fileChannel, final int pageSize) {
-    this.fileChannel = fileChannel;
+  Page(final ByteBuffer pageByteBuffer, final int pageSize, final int frame) {
+    this.pageByteBuffer = pageByteBuffer;
     this.pageSize = pageSize;
-    this.pageByteBuffer = ByteBuffer.allocateDirect(pageSize);
+    this.frame = frame;
   }
 
-  void loadPage(final long pageNumber) throws IOException {
-    if (currentPageNumber != pageNumber) {
-      currentPageNumber = pageNumber;
-      readPage();
-    }
+  long pageNumber() {
+    return pageNumber;
+  }
+
+  ByteBuffer byteBuffer() {
+    return pageByteBuffer;
+  }
+
+  int frame() {
+    return frame;
+  }
+
+  ReentrantReadWriteLock latch() {
+    return latch;
+  }
+
+  void assignPageNumber(final long pageNumber) {
+    this.pageNumber = pageNumber;
   }
 
   void createNewPage(final long pageNumber) {
-    currentPageNumber = pageNumber;
+    assignPageNumber(pageNumber);
+    pageByteBuffer.putInt(NR_OF_SLOTS_OFFSET, 0);
     setFreeSpaceOffset(DATA_SEGMENT_OFFSET);
   }
 
-  byte[] findInCurrentPage(final byte[] key) {
-    return loadRecordWithKey(key) ? record.getValue() : null;
+  /**
+   * @return whether the record fits into an empty page
+   */
+  static boolean recordFits(final int pageSize, final byte[] key, final byte[] value) {
+    return pageSize - DATA_SEGMENT_OFFSET - SLOT_BYTES >= Record.recordLengthFor(key, value);
   }
 
-  boolean addToCurrentPage(final byte[] key, final byte[] value) throws IOException {
-    final var newRecordLength = Record.recordLengthFor(key, value);
-    if (pageSize - DATA_SEGMENT_OFFSET < newRecordLength) {
+  /**
+   * @return bytes a record takes in a page, its slot included
+   */
+  static int storedLengthFor(final int keyLength, final int valueLength) {
+    return Record.recordLengthFor(keyLength, valueLength) + SLOT_BYTES;
+  }
+
+  /**
+   * @throws IllegalArgumentException when the record would not fit even into an empty page
+   */
+  static void checkRecordFits(final int pageSize, final byte[] key, final byte[] value) {
+    if (!recordFits(pageSize, key, value)) {
       throw new IllegalArgumentException("Entry is too big.");
     }
+  }
+
+  /**
+   * Flags the page as checksummed and stores CRC32C of all bytes of the page but the checksum itself in the page
+   * header. Callers hold the page latch, the read latch is enough as readers of records never look at the checksum,
+   * and the flag leaves the number of slots they see as it is.
+   */
+  static void updateChecksum(final ByteBuffer page) {
+    page.putInt(NR_OF_SLOTS_OFFSET, page.getInt(NR_OF_SLOTS_OFFSET) | CHECKSUMMED_FLAG);
+    page.putInt(CHECKSUM_OFFSET, checksum(page));
+  }
+
+  /**
+   * @return whether the checksum stored in the page header matches its content, pages which were never written
+   *     are all zeros and valid as well
+   */
+  static boolean hasValidChecksum(final ByteBuffer page) {
+    return page.getInt(CHECKSUM_OFFSET) == checksum(page) || isZeroed(page);
+  }
+
+  /**
+   * @return whether the page was written with a checksum, false for a page which was never written
+   */
+  static boolean isChecksummed(final ByteBuffer page) {
+    return (page.getInt(NR_OF_SLOTS_OFFSET) & CHECKSUMMED_FLAG) != 0;
+  }
+
+  static boolean isZeroed(final ByteBuffer page) {
+    for (var i = 0; i < page.capacity(); i++) {
+      if (page.get(i) != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int checksum(final ByteBuffer page) {
+    final var crc = new CRC32C();
+    crc.update(page.duplicate().position(0).limit(CHECKSUM_OFFSET));
+    crc.update(page.duplicate().limit(page.capacity()).position(CHECKSUM_OFFSET + INT_FIELD_BYTES));
+    return (int) crc.getValue();
+  }
+
+  boolean contains(final int slot, final byte[] key) {
+    return isRecordWithKey(slot, key, HashIndex.hash(key));
+  }
+
+  byte[] find(final int slot, final byte[] key) {
+    return find(slot, key, HashIndex.hash(key));
+  }
+
+  byte[] find(final int slot, final byte[] key, final int keyHash) {
+    return isRecordWithKey(slot, key, keyHash) ? Record.getValue(pageByteBuffer, recordOffset(slot)) : null;
+  }
+
+  /**
+   * Looks up a record by key given as bytes from position to limit of the key buffer.
+   *
+   * @return read-only view of the value, valid only while the page is latched, or null when there is no
+   *     record of given key in the slot
+   */
+  ByteBuffer valueSlice(final int slot, final ByteBuffer key) {
+    return valueSlice(slot, key, HashIndex.hash(key));
+  }
+
+  ByteBuffer valueSlice(final int slot, final ByteBuffer key, final int keyHash) {
+    return isRecordWithKey(slot, key, keyHash) ? Record.valueSlice(pageByteBuffer, recordOffset(slot)) : null;
+  }
+
+  /**
+   * Copies value of the record with given key to the position of target buffer.
+   *
+   * @return length of the value, or -1 when there is no record of given key in the slot
+   */
+  int copyValue(final int slot, final ByteBuffer key, final ByteBuffer target) {
+    return isRecordWithKey(slot, key, HashIndex.hash(key))
+        ? Record.copyValue(pageByteBuffer, recordOffset(slot), target)
+        : -1;
+  }
+
+  /**
+   * @return slot of the added record, or -1 when there is not enough free space in this page
+   */
+  int add(final byte[] key, final byte[] value) {
+    return add(key, value, HashIndex.hash(key));
+  }
+
+  int add(final byte[] key, final byte[] value, final int keyHash) {
+    checkRecordFits(pageSize, key, value);
+    final var newRecordLength = Record.recordLengthFor(key, value);
+    final var slot = firstEmptySlot();
+    final var nrOfSlots = slot < getNrOfSlots() ? getNrOfSlots() : slot + 1;
+    final var required = newRecordLength + (nrOfSlots - getNrOfSlots()) * SLOT_BYTES;
+    if (contiguousFreeSpace() < required) {
+      if (contiguousFreeSpace() + reclaimableSpace() < required) {
+        return -1;
+      }
+      compact();
+    }
     final var freeSpaceOffset = getFreeSpaceOffset();
-    if (pageSize - freeSpaceOffset >= newRecordLength) {
-      record.createNewRecord(pageByteBuffer, freeSpaceOffset, key, value);
-      setFreeSpaceOffset(freeSpaceOffset + newRecordLength);
-      savePage();
-      return true;
-    } else {
+    Record.createNewRecord(pageByteBuffer, freeSpaceOffset, key, value);
+    setFreeSpaceOffset(freeSpaceOffset + newRecordLength);
+    setNrOfSlots(nrOfSlots);
+    setSlot(slot, freeSpaceOffset, newRecordLength);
+    setKeyHash(slot, keyHash);
+    return slot;
+  }
+
+  byte[] remove(final int slot, final byte[] key) {
+    return remove(slot, key, HashIndex.hash(key));
+  }
+
+  byte[] remove(final int slot, final byte[] key, final int keyHash) {
+    if (!isRecordWithKey(slot, key, keyHash)) {
+      return null;
+    }
+    final var value = Record.getValue(pageByteBuffer, recordOffset(slot));
+    setSlot(slot, EMPTY_SLOT, 0);
+    var nrOfSlots = getNrOfSlots();
+    while (nrOfSlots > 0 && recordOffset(nrOfSlots - 1) == EMPTY_SLOT) {
+      nrOfSlots--;
+    }
+    setNrOfSlots(nrOfSlots);
+    return value;
+  }
+
+  /**
+   * @return length of the longest record which {@link #add(byte[], byte[], int)} would accept, possibly after
+   *     compaction
+   */
+  int freeSpace() {
+    final var freeSpace = contiguousFreeSpace() + reclaimableSpace();
+    return Math.max(0, firstEmptySlot() < getNrOfSlots() ? freeSpace : freeSpace - SLOT_BYTES);
+  }
+
+  boolean isEmpty() {
+    return getNrOfSlots() == 0;
+  }
+
+  /**
+   * @return bytes of removed records which compaction would make contiguous
+   */
+  int fragmentedSpace() {
+    return reclaimableSpace();
+  }
+
+  /**
+   * Looks up a record by key without knowing its slot, rejecting records of other keys by their key hash.
+   *
+   * @return slot of the record with given key, or -1 when this page has none
+   */
+  int slotOf(final ByteBuffer key, final int keyHash) {
+    final var nrOfSlots = getNrOfSlots();
+    for (var slot = 0; slot < nrOfSlots; slot++) {
+      if (isRecordWithKey(slot, key, keyHash)) {
+        return slot;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return the first slot holding a record at or after given slot, or -1 when there is none
+   */
+  int nextRecordSlot(final int fromSlot) {
+    final var nrOfSlots = getNrOfSlots();
+    for (var slot = fromSlot; slot < nrOfSlots; slot++) {
+      if (recordOffset(slot) != EMPTY_SLOT) {
+        return slot;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return read-only view of the key of a record returned by {@link #nextRecordSlot(int)}
+   */
+  ByteBuffer keySlice(final int slot) {
+    return Record.keySlice(pageByteBuffer, recordOffset(slot));
+  }
+
+  /**
+   * @return read-only view of the value of a record returned by {@link #nextRecordSlot(int)}
+   */
+  ByteBuffer valueSlice(final int slot) {
+    return Record.valueSlice(pageByteBuffer, recordOffset(slot));
+  }
+
+  void forEachRecord(final ObjIntConsumer<byte[]> keyAndSlotConsumer) {
+    final var nrOfSlots = getNrOfSlots();
+    for (var slot = 0; slot < nrOfSlots; slot++) {
+      final var recordOffset = recordOffset(slot);
+      if (recordOffset != EMPTY_SLOT) {
+        keyAndSlotConsumer.accept(Record.getKey(pageByteBuffer, recordOffset), slot);
+      }
+    }
+  }
+
+  void forEachKeyHash(final KeyHashVisitor visitor) {
+    final var nrOfSlots = getNrOfSlots();
+    for (var slot = 0; slot < nrOfSlots; slot++) {
+      if (recordOffset(slot) != EMPTY_SLOT) {
+        visitor.visit(keyHash(slot), slot);
+      }
+    }
+  }
+
+  /**
+   * Moves all records to the front of the page, so the space of removed records becomes contiguous.
+   */
+  void compact() {
+    final var nrOfSlots = getNrOfSlots();
+    final var slotsByOffset = new long[nrOfSlots];
+    var nrOfRecords = 0;
+    for (var slot = 0; slot < nrOfSlots; slot++) {
+      final var recordOffset = recordOffset(slot);
+      if (recordOffset != EMPTY_SLOT) {
+        slotsByOffset[nrOfRecords++] = ((long) recordOffset << Integer.SIZE) | slot;
+      }
+    }
+    Arrays.sort(slotsByOffset, 0, nrOfRecords);
+    final var records = new byte[getFreeSpaceOffset() - DATA_SEGMENT_OFFSET];
+    pageByteBuffer.duplicate().position(DATA_SEGMENT_OFFSET).get(records);
+    final var target = pageByteBuffer.duplicate().position(DATA_SEGMENT_OFFSET);
+    for (var i = 0; i < nrOfRecords; i++) {
+      final var slot = (int) slotsByOffset[i];
+      final var recordLength = recordLength(slot);
+      final var newOffset = target.position();
+      target.put(records, recordOffset(slot) - DATA_SEGMENT_OFFSET, recordLength);
+      setSlot(slot, newOffset, recordLength);
+    }
+    setFreeSpaceOffset(target.position());
+  }
+
+  private boolean isRecordWithKey(final int slot, final byte[] wantedKey, final int keyHash) {
+    if (slot < 0 || slot >= getNrOfSlots() || keyHash(slot) != keyHash) {
       return false;
     }
+    final var recordOffset = recordOffset(slot);
+    return recordOffset != EMPTY_SLOT && Record.hasKey(pageByteBuffer, recordOffset, wantedKey);
   }
 
-  byte[] removeFromCurrentPage(final byte[] key) throws IOException {
-    if (loadRecordWithKey(key)) {
-      record.markAsDeleted();
-      savePage();
-      return record.getValue();
-    } else {
-      return null;
+  private boolean isRecordWithKey(final int slot, final ByteBuffer wantedKey, final int keyHash) {
+    if (slot < 0 || slot >= getNrOfSlots() || keyHash(slot) != keyHash) {
+      return false;
     }
+    final var recordOffset = recordOffset(slot);
+    return recordOffset != EMPTY_SLOT && Record.hasKey(pageByteBuffer, recordOffset, wantedKey);
   }
 
-  private boolean loadRecordWithKey(final byte[] wantedKey) {
-    final var freeSpaceOffset = getFreeSpaceOffset();
-    var recordOffset = DATA_SEGMENT_OFFSET;
-    while (recordOffset < freeSpaceOffset) {
-      record.loadRecord(pageByteBuffer, recordOffset);
-      if (record.isNotDeleted() && record.hasKey(wantedKey)) {
-        return true;
+  private int firstEmptySlot() {
+    final var nrOfSlots = getNrOfSlots();
+    for (var slot = 0; slot < nrOfSlots; slot++) {
+      if (recordOffset(slot) == EMPTY_SLOT) {
+        return slot;
       }
-      recordOffset += record.getLength();
     }
-    return false;
+    return nrOfSlots;
+  }
+
+  private int contiguousFreeSpace() {
+    return pageSize - getNrOfSlots() * SLOT_BYTES - getFreeSpaceOffset();
+  }
+
+  private int reclaimableSpace() {
+    var liveBytes = 0;
+    final var nrOfSlots = getNrOfSlots();
+    for (var slot = 0; slot < nrOfSlots; slot++) {
+      if (recordOffset(slot) != EMPTY_SLOT) {
+        liveBytes += recordLength(slot);
+      }
+    }
+    return getFreeSpaceOffset() - DATA_SEGMENT_OFFSET - liveBytes;
+  }
+
+  private int slotPosition(final int slot) {
+    return pageSize - (slot + 1) * SLOT_BYTES;
+  }
+
+  private int recordOffset(final int slot) {
+    return pageByteBuffer.getInt(slotPosition(slot) + SLOT_RECORD_OFFSET);
+  }
+
+  private int recordLength(final int slot) {
+    return pageByteBuffer.getInt(slotPosition(slot) + SLOT_RECORD_LENGTH);
+  }
+
+  private int keyHash(final int slot) {
+    return pageByteBuffer.getInt(slotPosition(slot) + SLOT_KEY_HASH);
+  }
+
+  private void setKeyHash(final int slot, final int keyHash) {
+    pageByteBuffer.putInt(slotPosition(slot) + SLOT_KEY_HASH, keyHash);
+  }
+
+  private void setSlot(final int slot, final int recordOffset, final int recordLength) {
+    pageByteBuffer.putInt(slotPosition(slot) + SLOT_RECORD_OFFSET, recordOffset)
+        .putInt(slotPosition(slot) + SLOT_RECORD_LENGTH, recordLength);
   }
 
-  private void readPage() throws IOException {
-    pageByteBuffer.clear();
-    fileChannel.read(pageByteBuffer, currentPageNumber * pageSize);
+  private int getNrOfSlots() {
+    return pageByteBuffer.getInt(NR_OF_SLOTS_OFFSET) & ~CHECKSUMMED_FLAG;
   }
 
-  private void savePage() throws IOException {
-    pageByteBuffer.flip();
-    fileChannel.write(pageByteBuffer, currentPageNumber * pageSize);
-    pageByteBuffer.clear();
+  private void setNrOfSlots(final int nrOfSlots) {
+    final var flags = pageByteBuffer.getInt(NR_OF_SLOTS_OFFSET) & CHECKSUMMED_FLAG;
+    pageByteBuffer.putInt(NR_OF_SLOTS_OFFSET, nrOfSlots | flags);
   }
 
   private int getFreeSpaceOffset() {
-    return pageByteBuffer.getInt(FREE_SPACE_OFFSET_OFFSET);
+    final var freeSpaceOffset = pageByteBuffer.getInt(FREE_SPACE_OFFSET_OFFSET);
+    // pages which were never written, like ones preallocated by a memory mapped file, are all zeros
+    return freeSpaceOffset == 0 ? DATA_SEGMENT_OFFSET : freeSpaceOffset;
   }
 
   private void setFreeSpaceOffset(final int freeSpaceOffset) {
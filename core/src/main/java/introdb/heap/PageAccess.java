@@ -0,0 +1,24 @@
+package introdb.heap;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+enum PageAccess {
+
+  FILE_CHANNEL {
+    @Override
+    PageFile open(final Path path, final int pageSize) throws IOException {
+      return new ChannelPageFile(path, pageSize);
+    }
+  },
+
+  MEMORY_MAPPED {
+    @Override
+    PageFile open(final Path path, final int pageSize) throws IOException {
+      return new MappedPageFile(path, pageSize);
+    }
+  };
+
+  abstract PageFile open(Path path, int pageSize) throws IOException;
+
+}
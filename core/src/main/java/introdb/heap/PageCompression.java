@@ -0,0 +1,102 @@
+package introdb.heap;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import introdb.heap.pool.ObjectPool;
+
+/**
+ * Codec of pages of a {@link CompressedPageFile}.
+ */
+enum PageCompression {
+
+  /**
+   * Pages are stored as they are.
+   */
+  NONE {
+    @Override
+    int compress(final byte[] page, final byte[] target) {
+      return -1;
+    }
+
+    @Override
+    void decompress(final byte[] source, final int length, final byte[] page) throws IOException {
+      throw new IOException("Page is not compressed.");
+    }
+  },
+
+  /**
+   * Fast codec in the LZ4 block format, see {@link Lz4Block}.
+   */
+  LZ4 {
+    @Override
+    int compress(final byte[] page, final byte[] target) {
+      return Lz4Block.compress(page, page.length, target);
+    }
+
+    @Override
+    void decompress(final byte[] source, final int length, final byte[] page) throws IOException {
+      Lz4Block.decompress(source, length, page, page.length);
+    }
+  },
+
+  /**
+   * Deflate at its fastest level, compresses better than {@link #LZ4} at several times its cost.
+   */
+  DEFLATE {
+    private final ObjectPool<Deflater> deflaters =
+        new ObjectPool<>(() -> new Deflater(Deflater.BEST_SPEED, true), deflater -> true);
+    private final ObjectPool<Inflater> inflaters = new ObjectPool<>(() -> new Inflater(true), inflater -> true);
+
+    @Override
+    int compress(final byte[] page, final byte[] target) {
+      final var deflater = deflaters.borrowObject().join();
+      try {
+        deflater.reset();
+        deflater.setInput(page);
+        deflater.finish();
+        final var length = deflater.deflate(target);
+        return deflater.finished() ? length : -1;
+      } finally {
+        deflaters.returnObject(deflater);
+      }
+    }
+
+    @Override
+    void decompress(final byte[] source, final int length, final byte[] page) throws IOException {
+      final var inflater = inflaters.borrowObject().join();
+      try {
+        inflater.reset();
+        inflater.setInput(source, 0, length);
+        var inflated = 0;
+        while (inflated < page.length && !inflater.finished()) {
+          final var read = inflater.inflate(page, inflated, page.length - inflated);
+          if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+            break;
+          }
+          inflated += read;
+        }
+        if (inflated != page.length) {
+          throw new IOException("Compressed page is corrupted.");
+        }
+      } catch (DataFormatException e) {
+        throw new IOException("Compressed page is corrupted.", e);
+      } finally {
+        inflaters.returnObject(inflater);
+      }
+    }
+  };
+
+  /**
+   * @return length of compressed bytes written to target, or -1 when they do not fit into it
+   */
+  abstract int compress(byte[] page, byte[] target);
+
+  /**
+   * Fills the whole page with decompressed bytes.
+   */
+  abstract void decompress(byte[] source, int length, byte[] page) throws IOException;
+
+}
@@ -0,0 +1,45 @@
+package introdb.heap;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+/**
+ * Reads and writes whole pages of a heap file.
+ */
+interface PageFile extends Closeable {
+
+  /**
+   * Opens the file with page access of the options, or as a {@link CompressedPageFile} when they compress pages.
+   */
+  static PageFile open(final Path path, final int pageSize, final HeapFileOptions options) throws IOException {
+    if (options.pageCompression() != PageCompression.NONE) {
+      return new CompressedPageFile(path, pageSize, options.pageCompression());
+    }
+    return options.pageAccess().open(path, pageSize);
+  }
+
+  /**
+   * Fills page buffer with the content of given page, pages beyond the end of file are read as zeros.
+   */
+  void read(long pageNumber, ByteBuffer page) throws IOException;
+
+  /**
+   * Fills the buffers in order with consecutive pages starting from given page, as if they were one buffer, with as
+   * few reads as the file allows. Every buffer holds whole pages.
+   */
+  void readPages(long firstPageNumber, ByteBuffer... pages) throws IOException;
+
+  void write(long pageNumber, ByteBuffer page) throws IOException;
+
+  long nrOfPages() throws IOException;
+
+  /**
+   * Drops all pages from given page number to the end of file.
+   */
+  void truncate(long nrOfPages) throws IOException;
+
+  void force() throws IOException;
+
+}
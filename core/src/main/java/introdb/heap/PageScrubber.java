@@ -0,0 +1,54 @@
+package introdb.heap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Verifies checksums of all pages of a heap file with checksums, see {@link HeapFileOptions#withPageChecksums}.
+ * Pages are read straight from the file, bypassing the buffer pool, in runs of {@link #PAGES_PER_READ} consecutive
+ * pages with one read each, so a scrub runs at sequential read speed and does not evict cached pages.
+ */
+final class PageScrubber {
+  static final int PAGES_PER_READ = 256;
+
+  private PageScrubber() {
+  }
+
+  /**
+   * Scrubs a heap file which is not open.
+   *
+   * @return numbers of corrupted pages in ascending order
+   */
+  static List<Long> scrub(final Path path, final int pageSize, final HeapFileOptions options) throws IOException {
+    try (var pageFile = PageFile.open(path, pageSize, options)) {
+      return scrub(pageFile, pageSize, pageFile.nrOfPages());
+    }
+  }
+
+  /**
+   * Pages written while they are scrubbed may be read torn, callers of an open heap file check reported pages
+   * again.
+   *
+   * @return numbers of pages whose checksum does not match, in ascending order
+   */
+  static List<Long> scrub(final PageFile pageFile, final int pageSize, final long nrOfPages) throws IOException {
+    final var corrupted = new ArrayList<Long>();
+    final var pages = ByteBuffer.allocateDirect(PAGES_PER_READ * pageSize);
+    for (var firstPage = 0L; firstPage < nrOfPages; firstPage += PAGES_PER_READ) {
+      final var nrOfPagesRead = (int) Math.min(PAGES_PER_READ, nrOfPages - firstPage);
+      pages.clear().limit(nrOfPagesRead * pageSize);
+      pageFile.readPages(firstPage, pages);
+      for (var i = 0; i < nrOfPagesRead; i++) {
+        pages.limit((i + 1) * pageSize).position(i * pageSize);
+        if (!Page.hasValidChecksum(pages.slice())) {
+          corrupted.add(firstPage + i);
+        }
+      }
+    }
+    return corrupted;
+  }
+
+}
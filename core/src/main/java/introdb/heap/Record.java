@@ -1,69 +1,131 @@
 package introdb.heap;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
+import java.nio.ByteOrder;
 
-class Record {
-  private static final int BOOLEAN_FLAG_BYTES = Byte.BYTES;
+/**
+ * Layout of a record stored in a page. All methods use absolute positions only, so many threads can read
+ * records from one page buffer at the same time. Keys are compared in place, eight bytes at a time, without
+ * copying them out of the page.
+ */
+final class Record {
   private static final int SIZE_FIELD_BYTES = Integer.BYTES;
 
-  private static final int IS_NOT_DELETED_FLAG_OFFSET = 0;
-  private static final int KEY_LENGTH_OFFSET = IS_NOT_DELETED_FLAG_OFFSET + BOOLEAN_FLAG_BYTES;
+  private static final int KEY_LENGTH_OFFSET = 0;
   private static final int VALUE_LENGTH_OFFSET = KEY_LENGTH_OFFSET + SIZE_FIELD_BYTES;
   private static final int KEY_OFFSET = VALUE_LENGTH_OFFSET + SIZE_FIELD_BYTES;
 
-  private ByteBuffer byteBuffer;
-  private int offset;
+  private static final VarHandle LONG_IN_BYTES = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+  private Record() {
+  }
 
   static int recordLengthFor(final byte[] key, final byte[] value) {
-    return KEY_OFFSET + key.length + value.length;
+    return recordLengthFor(key.length, value.length);
   }
 
-  void createNewRecord(final ByteBuffer byteBuffer, final int offset, final byte[] key, final byte[] value) {
-    byteBuffer.position(offset)
-        .put((byte) 0)
-        .putInt(key.length)
-        .putInt(value.length)
-        .put(key)
-        .put(value);
-    loadRecord(byteBuffer, offset);
+  static int recordLengthFor(final int keyLength, final int valueLength) {
+    return KEY_OFFSET + keyLength + valueLength;
   }
 
-  void loadRecord(final ByteBuffer byteBuffer, final int offset) {
-    this.byteBuffer = byteBuffer;
-    this.offset = offset;
+  static int recordLength(final ByteBuffer byteBuffer, final int offset) {
+    return recordLengthFor(byteBuffer.getInt(offset + KEY_LENGTH_OFFSET), byteBuffer.getInt(offset + VALUE_LENGTH_OFFSET));
   }
 
-  boolean isNotDeleted() {
-    return byteBuffer.position(offset).get() == (byte) 0;
+  static void createNewRecord(final ByteBuffer byteBuffer, final int offset, final byte[] key, final byte[] value) {
+    byteBuffer.putInt(offset + KEY_LENGTH_OFFSET, key.length)
+        .putInt(offset + VALUE_LENGTH_OFFSET, value.length);
+    byteBuffer.duplicate().position(offset + KEY_OFFSET).put(key).put(value);
   }
 
-  boolean hasKey(final byte[] key) {
-    final var keyLength = byteBuffer.position(offset + KEY_LENGTH_OFFSET).getInt();
-    if (keyLength == key.length) {
-      var recordKey = new byte[keyLength];
-      byteBuffer.position(offset + KEY_OFFSET).get(recordKey);
-      return Arrays.equals(recordKey, key);
+  static boolean hasKey(final ByteBuffer byteBuffer, final int offset, final byte[] key) {
+    if (byteBuffer.getInt(offset + KEY_LENGTH_OFFSET) != key.length) {
+      return false;
+    }
+    final var keyOffset = offset + KEY_OFFSET;
+    var i = 0;
+    for (; i + Long.BYTES <= key.length; i += Long.BYTES) {
+      if (byteBuffer.getLong(keyOffset + i) != (long) LONG_IN_BYTES.get(key, i)) {
+        return false;
+      }
+    }
+    for (; i < key.length; i++) {
+      if (byteBuffer.get(keyOffset + i) != key[i]) {
+        return false;
+      }
     }
-    return false;
+    return true;
   }
 
-  byte[] getValue() {
-    final var keyLength = byteBuffer.position(offset + KEY_LENGTH_OFFSET).getInt();
-    final var valueLength = byteBuffer.getInt();
-    final var recordValue = new byte[valueLength];
-    byteBuffer.position(offset + KEY_OFFSET + keyLength).get(recordValue);
-    return recordValue;
+  /**
+   * Compares record key with bytes from position to limit of given key buffer.
+   */
+  static boolean hasKey(final ByteBuffer byteBuffer, final int offset, final ByteBuffer key) {
+    final var keyLength = key.remaining();
+    if (byteBuffer.getInt(offset + KEY_LENGTH_OFFSET) != keyLength) {
+      return false;
+    }
+    final var recordKeyOffset = offset + KEY_OFFSET;
+    final var keyOffset = key.position();
+    var i = 0;
+    for (; i + Long.BYTES <= keyLength; i += Long.BYTES) {
+      if (byteBuffer.getLong(recordKeyOffset + i) != key.getLong(keyOffset + i)) {
+        return false;
+      }
+    }
+    for (; i < keyLength; i++) {
+      if (byteBuffer.get(recordKeyOffset + i) != key.get(keyOffset + i)) {
+        return false;
+      }
+    }
+    return true;
   }
 
-  void markAsDeleted() {
-    byteBuffer.position(offset + IS_NOT_DELETED_FLAG_OFFSET).put((byte) 1);
+  static byte[] getKey(final ByteBuffer byteBuffer, final int offset) {
+    final var recordKey = new byte[byteBuffer.getInt(offset + KEY_LENGTH_OFFSET)];
+    byteBuffer.duplicate().position(offset + KEY_OFFSET).get(recordKey);
+    return recordKey;
   }
 
-  int getLength() {
-    final var keyLength = byteBuffer.position(offset + KEY_LENGTH_OFFSET).getInt();
-    final var valueLength = byteBuffer.getInt();
-    return KEY_OFFSET + keyLength + valueLength;
+  /**
+   * @return read-only view of the record key, valid only while the page stays latched
+   */
+  static ByteBuffer keySlice(final ByteBuffer byteBuffer, final int offset) {
+    final var keyOffset = offset + KEY_OFFSET;
+    final var keyLength = byteBuffer.getInt(offset + KEY_LENGTH_OFFSET);
+    return byteBuffer.asReadOnlyBuffer().position(keyOffset).limit(keyOffset + keyLength).slice();
+  }
+
+  /**
+   * @return read-only view of the record value, valid only while the page stays latched
+   */
+  static ByteBuffer valueSlice(final ByteBuffer byteBuffer, final int offset) {
+    final var valueOffset = offset + KEY_OFFSET + byteBuffer.getInt(offset + KEY_LENGTH_OFFSET);
+    final var valueLength = byteBuffer.getInt(offset + VALUE_LENGTH_OFFSET);
+    return byteBuffer.asReadOnlyBuffer().position(valueOffset).limit(valueOffset + valueLength).slice();
+  }
+
+  /**
+   * Copies the record value to the position of target buffer.
+   *
+   * @return length of the value
+   * @throws java.nio.BufferOverflowException
+   *           when the value does not fit into target buffer
+   */
+  static int copyValue(final ByteBuffer byteBuffer, final int offset, final ByteBuffer target) {
+    final var valueOffset = offset + KEY_OFFSET + byteBuffer.getInt(offset + KEY_LENGTH_OFFSET);
+    final var valueLength = byteBuffer.getInt(offset + VALUE_LENGTH_OFFSET);
+    target.put(byteBuffer.duplicate().position(valueOffset).limit(valueOffset + valueLength));
+    return valueLength;
+  }
+
+  static byte[] getValue(final ByteBuffer byteBuffer, final int offset) {
+    final var keyLength = byteBuffer.getInt(offset + KEY_LENGTH_OFFSET);
+    final var recordValue = new byte[byteBuffer.getInt(offset + VALUE_LENGTH_OFFSET)];
+    byteBuffer.duplicate().position(offset + KEY_OFFSET + keyLength).get(recordValue);
+    return recordValue;
   }
 
 }
@@ -0,0 +1,102 @@
+package introdb.heap;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Codec of a user type described as a list of fields, each encoded with its own codec. Fields are written in
+ * declaration order, every one preceded by a byte telling whether it is null. Appending fields at the end is
+ * the only schema change which keeps the files readable, and only if the constructor accepts null for them.
+ *
+ * <pre>
+ * SchemaCodec.builder(Point.class)
+ *     .field(Codecs.INTEGER, Point::x)
+ *     .field(Codecs.INTEGER, Point::y)
+ *     .build(fields -&gt; new Point((Integer) fields[0], (Integer) fields[1]));
+ * </pre>
+ */
+final class SchemaCodec<T> implements Codec<T> {
+  private final Class<T> type;
+  private final List<Field<T, ?>> fields;
+  private final Function<Object[], T> constructor;
+
+  private SchemaCodec(final Class<T> type, final List<Field<T, ?>> fields, final Function<Object[], T> constructor) {
+    this.type = type;
+    this.fields = List.copyOf(fields);
+    this.constructor = constructor;
+  }
+
+  static <T> Builder<T> builder(final Class<T> type) {
+    return new Builder<>(type);
+  }
+
+  @Override
+  public Class<T> type() {
+    return type;
+  }
+
+  @Override
+  public void encode(final T object, final ByteBuffer buffer) {
+    for (final var field : fields) {
+      field.encode(object, buffer);
+    }
+  }
+
+  @Override
+  public T decode(final ByteBuffer buffer) {
+    final var values = new Object[fields.size()];
+    for (var i = 0; i < values.length && buffer.hasRemaining(); i++) {
+      values[i] = fields.get(i).decode(buffer);
+    }
+    return constructor.apply(values);
+  }
+
+  static final class Builder<T> {
+    private final Class<T> type;
+    private final List<Field<T, ?>> fields = new ArrayList<>();
+
+    private Builder(final Class<T> type) {
+      this.type = type;
+    }
+
+    <F> Builder<T> field(final Codec<F> codec, final Function<T, F> getter) {
+      fields.add(new Field<>(codec, getter));
+      return this;
+    }
+
+    /**
+     * @param constructor
+     *          creates an object from field values, given in declaration order
+     */
+    SchemaCodec<T> build(final Function<Object[], T> constructor) {
+      return new SchemaCodec<>(type, fields, constructor);
+    }
+  }
+
+  private static final class Field<T, F> {
+    private final Codec<F> codec;
+    private final Function<T, F> getter;
+
+    private Field(final Codec<F> codec, final Function<T, F> getter) {
+      this.codec = codec;
+      this.getter = getter;
+    }
+
+    void encode(final T object, final ByteBuffer buffer) {
+      final var value = getter.apply(object);
+      if (value == null) {
+        buffer.put((byte) 0);
+      } else {
+        buffer.put((byte) 1);
+        codec.encode(value, buffer);
+      }
+    }
+
+    F decode(final ByteBuffer buffer) {
+      return buffer.get() == 0 ? null : codec.decode(buffer);
+    }
+  }
+
+}
@@ -1,35 +1,98 @@
 package introdb.heap;
 
 import java.io.*;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
+/**
+ * Turns keys and values into bytes. The first byte is a tag of the {@link Codec} which encoded the rest, objects
+ * of types without a codec are stored with Java serialization. Not thread safe.
+ */
 final class Serializer {
+  private final Codecs codecs;
   private final ByteArrayOutputStream byteArrayOutputStream;
   private final ObjectOutputStream objectOutputStream;
   private final byte[] serializationMagicAndVersion;
+  private ByteBuffer encodeBuffer;
 
   Serializer(final int initialBufferCapacity) throws IOException {
+    this(initialBufferCapacity, Codecs.builtIn());
+  }
+
+  Serializer(final int initialBufferCapacity, final Codecs codecs) throws IOException {
+    this.codecs = codecs;
     this.byteArrayOutputStream = new ByteArrayOutputStream(initialBufferCapacity);
     this.objectOutputStream = new ObjectOutputStream(byteArrayOutputStream);
     this.serializationMagicAndVersion = byteArrayOutputStream.toByteArray();
+    this.encodeBuffer = ByteBuffer.allocate(initialBufferCapacity);
   }
 
   byte[] serialize(final Serializable object) throws IOException {
-    resetOutputBuffers();
-    objectOutputStream.writeObject(object);
-    return byteArrayOutputStream.toByteArray();
+    final var encoded = encode(object);
+    return encoded.hasArray() && encoded.array() != encodeBuffer.array()
+        ? encoded.array()
+        : Arrays.copyOf(encoded.array(), encoded.limit());
+  }
+
+  /**
+   * Serializes object without copying the result when a codec is used.
+   *
+   * @return buffer with serialized object from position to limit, valid until the next call
+   */
+  ByteBuffer encode(final Serializable object) throws IOException {
+    final var tag = object != null ? codecs.tagOf(object.getClass()) : Codecs.JAVA_SERIALIZATION_TAG;
+    if (tag == Codecs.JAVA_SERIALIZATION_TAG) {
+      resetOutputBuffers();
+      objectOutputStream.writeObject(object);
+      return ByteBuffer.wrap(byteArrayOutputStream.toByteArray());
+    }
+    final var codec = codecs.codecOf(tag);
+    while (true) {
+      try {
+        codec.encode(object, encodeBuffer.clear().put(tag));
+        return encodeBuffer.flip();
+      } catch (BufferOverflowException e) {
+        encodeBuffer = ByteBuffer.allocate(2 * encodeBuffer.capacity());
+      }
+    }
   }
 
   private void resetOutputBuffers() throws IOException {
     byteArrayOutputStream.reset();
+    byteArrayOutputStream.write(Codecs.JAVA_SERIALIZATION_TAG);
     byteArrayOutputStream.writeBytes(serializationMagicAndVersion);
     objectOutputStream.reset();
   }
 
   Object deserialize(final byte[] serializedObject) throws IOException, ClassNotFoundException {
-    final var byteArrayInputStream = new ByteArrayInputStream(serializedObject);
-    try (final var objectInputStream = new ObjectInputStream(byteArrayInputStream)) {
-      return objectInputStream.readObject();
+    return deserialize(ByteBuffer.wrap(serializedObject));
+  }
+
+  /**
+   * Deserializes object from bytes between position and limit of the buffer, moving its position.
+   */
+  Object deserialize(final ByteBuffer serializedObject) throws IOException, ClassNotFoundException {
+    final var tag = serializedObject.get();
+    if (tag == Codecs.JAVA_SERIALIZATION_TAG) {
+      final ByteArrayInputStream byteArrayInputStream;
+      if (serializedObject.hasArray()) {
+        byteArrayInputStream = new ByteArrayInputStream(serializedObject.array(),
+            serializedObject.arrayOffset() + serializedObject.position(), serializedObject.remaining());
+      } else {
+        final var bytes = new byte[serializedObject.remaining()];
+        serializedObject.get(bytes);
+        byteArrayInputStream = new ByteArrayInputStream(bytes);
+      }
+      try (final var objectInputStream = new ObjectInputStream(byteArrayInputStream)) {
+        return objectInputStream.readObject();
+      }
+    }
+    final var codec = codecs.codecOf(tag);
+    if (codec == null) {
+      throw new IOException("No codec registered for tag " + tag + ".");
     }
+    return codec.decode(serializedObject);
   }
 
 }
@@ -0,0 +1,321 @@
+package introdb.heap;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import introdb.heap.pool.ObjectPool;
+
+/**
+ * Store partitioning keys by their hash across a fixed number of independent {@link UnorderedHeapFile}s kept in
+ * one directory. Every shard has its own file, locks, buffer pool and page limit, so operations on different
+ * shards never meet, and capacity grows with the number of shards.
+ * <p>
+ * The number of shards and page size are recorded in a metadata file when the directory is created and checked
+ * whenever it is opened again, as keys of a store opened with another shard count would be looked up in the
+ * wrong shards. Buffer pool size given in options applies to every shard.
+ */
+final class ShardedHeapFile implements Store {
+  private static final String METADATA_FILE_NAME = "shards";
+  private static final int METADATA_MAGIC = 0x53485244;
+
+  private final UnorderedHeapFile[] shards;
+  private final int pageSize;
+  private final ObjectPool<Serializer> serializers;
+
+  /**
+   * Opens sharded store of the directory, which has to exist already.
+   */
+  ShardedHeapFile(final Path directory, final int maxNrPagesPerShard, final int pageSize,
+      final HeapFileOptions options) throws IOException {
+    this(directory, readNrOfShards(directory, pageSize), maxNrPagesPerShard, pageSize, options);
+  }
+
+  /**
+   * Opens sharded store of the directory, or creates it with given number of shards when there is none.
+   *
+   * @throws IllegalArgumentException
+   *           when the existing store has another number of shards or page size
+   */
+  ShardedHeapFile(final Path directory, final int nrOfShards, final int maxNrPagesPerShard, final int pageSize,
+      final HeapFileOptions options) throws IOException {
+    if (nrOfShards <= 0) {
+      throw new IllegalArgumentException("Number of shards has to be positive, is " + nrOfShards + ".");
+    }
+    Files.createDirectories(directory);
+    if (Files.exists(directory.resolve(METADATA_FILE_NAME))) {
+      final var existingNrOfShards = readNrOfShards(directory, pageSize);
+      if (existingNrOfShards != nrOfShards) {
+        throw new IllegalArgumentException(
+            "Store in " + directory + " has " + existingNrOfShards + " shards, not " + nrOfShards + ".");
+      }
+    } else {
+      writeMetadata(directory, nrOfShards, pageSize);
+    }
+    this.pageSize = pageSize;
+    this.shards = new UnorderedHeapFile[nrOfShards];
+    try {
+      for (var shard = 0; shard < nrOfShards; shard++) {
+        shards[shard] = new UnorderedHeapFile(shardPath(directory, shard), maxNrPagesPerShard, pageSize, options);
+      }
+    } catch (IOException | RuntimeException e) {
+      closeOpenedShards(e);
+      throw e;
+    }
+    this.serializers = new ObjectPool<>(() -> newSerializer(pageSize, options.codecs()), serializer -> true);
+  }
+
+  static Path shardPath(final Path directory, final int shard) {
+    return directory.resolve(String.format("shard-%04d.heap", shard));
+  }
+
+  int nrOfShards() {
+    return shards.length;
+  }
+
+  @Override
+  public Object get(final Serializable key) throws IOException, ClassNotFoundException {
+    return shardFor(key).get(key);
+  }
+
+  @Override
+  public void put(final Entry entry) throws IOException {
+    shardFor(entry.key()).put(entry);
+  }
+
+  @Override
+  public Object remove(final Serializable key) throws IOException, ClassNotFoundException {
+    return shardFor(key).remove(key);
+  }
+
+  /**
+   * Checks all keys before any shard is modified, so a key exceeding page size fails the whole batch.
+   */
+  @Override
+  public void putAll(final Collection<Entry> entries) throws IOException {
+    final var entriesByShard = new ArrayList<List<Entry>>(shards.length);
+    for (var shard = 0; shard < shards.length; shard++) {
+      entriesByShard.add(new ArrayList<>());
+    }
+    for (final var entry : entries) {
+      final var shard = shardIndexFor(entry.key());
+      entriesByShard.get(shard).add(entry);
+      OverflowFile.checkKeyFits(pageSize, serialize(entry.key()));
+    }
+    for (var shard = 0; shard < shards.length; shard++) {
+      if (!entriesByShard.get(shard).isEmpty()) {
+        shards[shard].putAll(entriesByShard.get(shard));
+      }
+    }
+  }
+
+  @Override
+  public List<Object> getAll(final List<? extends Serializable> keys) throws IOException, ClassNotFoundException {
+    return forEachShard(keys, false);
+  }
+
+  @Override
+  public List<Object> removeAll(final List<? extends Serializable> keys) throws IOException, ClassNotFoundException {
+    return forEachShard(keys, true);
+  }
+
+  /**
+   * Iterates shard after shard, with the consistency guarantees of {@link UnorderedHeapFile} cursors.
+   */
+  @Override
+  public Cursor cursor() {
+    return new Cursor() {
+      private int shard = -1;
+      private Cursor current;
+
+      @Override
+      public boolean next() throws IOException {
+        while (current == null || !current.next()) {
+          if (current != null) {
+            current.close();
+            current = null;
+          }
+          if (shard + 1 >= shards.length) {
+            return false;
+          }
+          current = shards[++shard].cursor();
+        }
+        return true;
+      }
+
+      @Override
+      public Object key() throws IOException, ClassNotFoundException {
+        return positioned().key();
+      }
+
+      @Override
+      public Object value() throws IOException, ClassNotFoundException {
+        return positioned().value();
+      }
+
+      @Override
+      public void close() throws IOException {
+        if (current != null) {
+          current.close();
+          current = null;
+        }
+        shard = shards.length;
+      }
+
+      private Cursor positioned() {
+        if (current == null) {
+          throw new IllegalStateException("Cursor is not positioned on a record.");
+        }
+        return current;
+      }
+    };
+  }
+
+  @Override
+  public void flush() throws IOException {
+    for (final var shard : shards) {
+      shard.flush();
+    }
+  }
+
+  /**
+   * Closes all shards, callers have to make sure the store is not used concurrently any more.
+   */
+  @Override
+  public void close() throws IOException {
+    IOException failure = null;
+    for (final var shard : shards) {
+      try {
+        shard.close();
+      } catch (IOException e) {
+        if (failure == null) {
+          failure = e;
+        } else {
+          failure.addSuppressed(e);
+        }
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /**
+   * Runs batch operation on every shard with its keys, and puts the results back in the order of keys.
+   */
+  private List<Object> forEachShard(final List<? extends Serializable> keys, final boolean remove)
+      throws IOException, ClassNotFoundException {
+    final var keysByShard = new ArrayList<List<Serializable>>(shards.length);
+    final var positionsByShard = new ArrayList<List<Integer>>(shards.length);
+    for (var shard = 0; shard < shards.length; shard++) {
+      keysByShard.add(new ArrayList<>());
+      positionsByShard.add(new ArrayList<>());
+    }
+    for (var position = 0; position < keys.size(); position++) {
+      final var key = keys.get(position);
+      final var shard = shardIndexFor(key);
+      keysByShard.get(shard).add(key);
+      positionsByShard.get(shard).add(position);
+    }
+    final var values = new ArrayList<Object>(keys.size());
+    for (var i = 0; i < keys.size(); i++) {
+      values.add(null);
+    }
+    for (var shard = 0; shard < shards.length; shard++) {
+      final var shardKeys = keysByShard.get(shard);
+      if (shardKeys.isEmpty()) {
+        continue;
+      }
+      final var shardValues = remove ? shards[shard].removeAll(shardKeys) : shards[shard].getAll(shardKeys);
+      final var positions = positionsByShard.get(shard);
+      for (var i = 0; i < positions.size(); i++) {
+        values.set(positions.get(i), shardValues.get(i));
+      }
+    }
+    return values;
+  }
+
+  private UnorderedHeapFile shardFor(final Serializable key) throws IOException {
+    return shards[shardIndexFor(key)];
+  }
+
+  /**
+   * Picks shard by the high bits of the key hash, as its low bits select index slots and key lock stripes
+   * inside the shard.
+   */
+  private int shardIndexFor(final Serializable key) throws IOException {
+    final var serializer = serializers.borrowObject().join();
+    try {
+      final var hash = HashIndex.hash(serializer.encode(key));
+      return (int) (((hash & 0xffffffffL) * shards.length) >>> Integer.SIZE);
+    } finally {
+      serializers.returnObject(serializer);
+    }
+  }
+
+  private byte[] serialize(final Serializable object) throws IOException {
+    final var serializer = serializers.borrowObject().join();
+    try {
+      return serializer.serialize(object);
+    } finally {
+      serializers.returnObject(serializer);
+    }
+  }
+
+  private void closeOpenedShards(final Exception failure) {
+    for (final var shard : shards) {
+      if (shard == null) {
+        continue;
+      }
+      try {
+        shard.close();
+      } catch (IOException e) {
+        failure.addSuppressed(e);
+      }
+    }
+  }
+
+  private static Serializer newSerializer(final int pageSize, final Codecs codecs) {
+    try {
+      return new Serializer(pageSize, codecs);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static int readNrOfShards(final Path directory, final int pageSize) throws IOException {
+    final var metadata = ByteBuffer.wrap(Files.readAllBytes(directory.resolve(METADATA_FILE_NAME)));
+    if (metadata.remaining() != 3 * Integer.BYTES || metadata.getInt() != METADATA_MAGIC) {
+      throw new IOException("Metadata of sharded store in " + directory + " is corrupted.");
+    }
+    final var nrOfShards = metadata.getInt();
+    final var storedPageSize = metadata.getInt();
+    if (storedPageSize != pageSize) {
+      throw new IllegalArgumentException(
+          "Store in " + directory + " has page size " + storedPageSize + ", not " + pageSize + ".");
+    }
+    return nrOfShards;
+  }
+
+  /**
+   * Writes metadata to a temporary file first, so a crash never leaves a partially written one behind.
+   */
+  private static void writeMetadata(final Path directory, final int nrOfShards, final int pageSize)
+      throws IOException {
+    final var metadata = ByteBuffer.allocate(3 * Integer.BYTES)
+        .putInt(METADATA_MAGIC)
+        .putInt(nrOfShards)
+        .putInt(pageSize);
+    final var temporary = directory.resolve(METADATA_FILE_NAME + ".tmp");
+    Files.write(temporary, metadata.array());
+    Files.move(temporary, directory.resolve(METADATA_FILE_NAME), StandardCopyOption.ATOMIC_MOVE);
+  }
+
+}
@@ -0,0 +1,348 @@
+package introdb.heap;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Immutable file of entries of {@link LsmTreeFile} sorted by key.
+ * <p>
+ * Layout: data blocks of entries {@code [key length][value length][key][value]}, each block starting with a new
+ * entry once the previous one reached block size; then the sparse index with offset and first key of every block,
+ * the last key of the table and a {@link BloomFilter} of all keys; and a footer with offset of the index, number
+ * of entries and magic. Index and filter are kept in memory, so a lookup reads at most one block, and none when the
+ * filter rules the key out.
+ * <p>
+ * Tables are reference counted: the store holds one reference while the table is live, cursors take their own.
+ * File is closed when the last reference is released, and deleted when the table was replaced by compaction.
+ */
+final class SortedTable implements Closeable {
+  private static final int MAGIC = 0x53535431;
+  private static final int FOOTER_BYTES = 2 * Long.BYTES + Integer.BYTES;
+  private static final int ENTRY_HEADER_BYTES = 2 * Integer.BYTES;
+  private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+  private final long id;
+  private final Path path;
+  private final FileChannel fileChannel;
+  private final long size;
+  private final long nrOfEntries;
+  private final long[] blockOffsets;
+  private final byte[][] blockFirstKeys;
+  private final byte[] lastKey;
+  private final BloomFilter bloomFilter;
+  private final AtomicInteger references = new AtomicInteger(1);
+  private volatile boolean obsolete;
+
+  private SortedTable(final long id, final Path path) throws IOException {
+    this.id = id;
+    this.path = path;
+    this.fileChannel = FileChannel.open(path, StandardOpenOption.READ);
+    try {
+      this.size = fileChannel.size();
+      if (size < FOOTER_BYTES) {
+        throw new IOException("Sorted table " + path + " is corrupted.");
+      }
+      final var footer = read(size - FOOTER_BYTES, FOOTER_BYTES);
+      final var indexOffset = footer.getLong();
+      this.nrOfEntries = footer.getLong();
+      if (footer.getInt() != MAGIC || indexOffset < 0 || indexOffset > size - FOOTER_BYTES) {
+        throw new IOException("Sorted table " + path + " is corrupted.");
+      }
+      final var index = read(indexOffset, (int) (size - FOOTER_BYTES - indexOffset));
+      final var nrOfBlocks = index.getInt();
+      this.blockOffsets = new long[nrOfBlocks + 1];
+      this.blockFirstKeys = new byte[nrOfBlocks][];
+      for (var block = 0; block < nrOfBlocks; block++) {
+        blockOffsets[block] = index.getLong();
+        blockFirstKeys[block] = getBytes(index, index.getInt());
+      }
+      blockOffsets[nrOfBlocks] = indexOffset;
+      this.lastKey = getBytes(index, index.getInt());
+      this.bloomFilter = BloomFilter.read(index);
+    } catch (IOException | RuntimeException e) {
+      fileChannel.close();
+      throw e;
+    }
+  }
+
+  static SortedTable open(final long id, final Path path) throws IOException {
+    return new SortedTable(id, path);
+  }
+
+  static Path pathFor(final Path directory, final long id) {
+    return directory.resolve(String.format("table-%08d.sst", id));
+  }
+
+  long id() {
+    return id;
+  }
+
+  /**
+   * @return size of the table file in bytes
+   */
+  long size() {
+    return size;
+  }
+
+  long nrOfEntries() {
+    return nrOfEntries;
+  }
+
+  byte[] firstKey() {
+    return blockFirstKeys.length > 0 ? blockFirstKeys[0] : lastKey;
+  }
+
+  byte[] lastKey() {
+    return lastKey;
+  }
+
+  /**
+   * @return whether key ranges of this table and the given one intersect
+   */
+  boolean overlaps(final byte[] firstKey, final byte[] lastKey) {
+    return Arrays.compareUnsigned(firstKey(), lastKey) <= 0 && Arrays.compareUnsigned(firstKey, this.lastKey) <= 0;
+  }
+
+  /**
+   * @return serialized value, empty when the key was removed, or null when the table has no entry of the key
+   */
+  byte[] get(final byte[] key, final int keyHash) throws IOException {
+    if (blockFirstKeys.length == 0 || Arrays.compareUnsigned(key, firstKey()) < 0
+        || Arrays.compareUnsigned(key, lastKey) > 0 || !bloomFilter.mightContain(keyHash)) {
+      return null;
+    }
+    var low = 0;
+    var high = blockFirstKeys.length - 1;
+    while (low < high) {
+      final var middle = (low + high + 1) >>> 1;
+      if (Arrays.compareUnsigned(blockFirstKeys[middle], key) <= 0) {
+        low = middle;
+      } else {
+        high = middle - 1;
+      }
+    }
+    final var block = readBlock(low);
+    while (block.hasRemaining()) {
+      final var keyLength = block.getInt();
+      final var valueLength = block.getInt();
+      final var comparison = compareUnsigned(block, keyLength, key);
+      if (comparison == 0) {
+        block.position(block.position() + keyLength);
+        return getBytes(block, valueLength);
+      }
+      if (comparison > 0) {
+        return null;
+      }
+      block.position(block.position() + keyLength + valueLength);
+    }
+    return null;
+  }
+
+  /**
+   * @return scanner over all entries, reading one block at a time; callers hold a reference while using it
+   */
+  EntryScanner scanner() {
+    return new EntryScanner() {
+      private int nextBlock;
+      private ByteBuffer block = ByteBuffer.allocate(0);
+      private byte[] key;
+      private byte[] value;
+
+      @Override
+      public boolean next() throws IOException {
+        while (!block.hasRemaining()) {
+          if (nextBlock >= blockFirstKeys.length) {
+            key = null;
+            value = null;
+            return false;
+          }
+          block = readBlock(nextBlock++);
+        }
+        final var keyLength = block.getInt();
+        final var valueLength = block.getInt();
+        key = getBytes(block, keyLength);
+        value = getBytes(block, valueLength);
+        return true;
+      }
+
+      @Override
+      public byte[] key() {
+        return key;
+      }
+
+      @Override
+      public byte[] value() {
+        return value;
+      }
+    };
+  }
+
+  void retain() {
+    references.incrementAndGet();
+  }
+
+  void release() throws IOException {
+    if (references.decrementAndGet() == 0) {
+      fileChannel.close();
+      if (obsolete) {
+        Files.deleteIfExists(path);
+      }
+    }
+  }
+
+  /**
+   * Releases the reference of the store to a table replaced by compaction, its file is deleted once no cursor
+   * reads it any more.
+   */
+  void releaseObsolete() throws IOException {
+    obsolete = true;
+    release();
+  }
+
+  /**
+   * Releases the reference of the store.
+   */
+  @Override
+  public void close() throws IOException {
+    release();
+  }
+
+  private ByteBuffer readBlock(final int block) throws IOException {
+    return read(blockOffsets[block], (int) (blockOffsets[block + 1] - blockOffsets[block]));
+  }
+
+  private ByteBuffer read(final long position, final int length) throws IOException {
+    final var buffer = ByteBuffer.allocate(length);
+    while (buffer.hasRemaining()) {
+      if (fileChannel.read(buffer, position + buffer.position()) < 0) {
+        throw new IOException("Sorted table " + path + " is truncated.");
+      }
+    }
+    return buffer.flip();
+  }
+
+  private static int compareUnsigned(final ByteBuffer buffer, final int length, final byte[] key) {
+    final var offset = buffer.arrayOffset() + buffer.position();
+    return Arrays.compareUnsigned(buffer.array(), offset, offset + length, key, 0, key.length);
+  }
+
+  private static byte[] getBytes(final ByteBuffer buffer, final int length) {
+    final var bytes = new byte[length];
+    buffer.get(bytes);
+    return bytes;
+  }
+
+  /**
+   * Writes entries given in ascending key order to a new table file.
+   */
+  static final class Writer {
+    private final Path path;
+    private final int blockSize;
+    private final int bloomFilterBitsPerKey;
+    private final FileChannel fileChannel;
+    private final DataOutputStream output;
+    private long[] blockOffsets = new long[16];
+    private byte[][] blockFirstKeys = new byte[16][];
+    private int nrOfBlocks;
+    private int[] keyHashes = new int[1024];
+    private int nrOfEntries;
+    private long position;
+    private long blockStart;
+    private byte[] lastKey;
+
+    Writer(final Path path, final int blockSize, final int bloomFilterBitsPerKey) throws IOException {
+      this.path = path;
+      this.blockSize = blockSize;
+      this.bloomFilterBitsPerKey = bloomFilterBitsPerKey;
+      this.fileChannel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+      this.output = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(fileChannel),
+          WRITE_BUFFER_SIZE));
+    }
+
+    /**
+     * @throws IllegalArgumentException
+     *           when the key is not greater than the previous one
+     */
+    void add(final byte[] key, final byte[] value) throws IOException {
+      if (lastKey != null && Arrays.compareUnsigned(lastKey, key) >= 0) {
+        throw new IllegalArgumentException("Keys of a sorted table have to be strictly ascending.");
+      }
+      if (nrOfBlocks == 0 || position - blockStart >= blockSize) {
+        if (nrOfBlocks == blockOffsets.length) {
+          blockOffsets = Arrays.copyOf(blockOffsets, 2 * nrOfBlocks);
+          blockFirstKeys = Arrays.copyOf(blockFirstKeys, 2 * nrOfBlocks);
+        }
+        blockOffsets[nrOfBlocks] = position;
+        blockFirstKeys[nrOfBlocks++] = key;
+        blockStart = position;
+      }
+      if (nrOfEntries == keyHashes.length) {
+        keyHashes = Arrays.copyOf(keyHashes, 2 * nrOfEntries);
+      }
+      keyHashes[nrOfEntries++] = HashIndex.hash(key);
+      output.writeInt(key.length);
+      output.writeInt(value.length);
+      output.write(key);
+      output.write(value);
+      position += ENTRY_HEADER_BYTES + key.length + value.length;
+      lastKey = key;
+    }
+
+    /**
+     * @return bytes of entries written so far
+     */
+    long size() {
+      return position;
+    }
+
+    boolean isEmpty() {
+      return nrOfEntries == 0;
+    }
+
+    /**
+     * Writes index, filter and footer, and forces the file to disk before it is opened as a table.
+     */
+    SortedTable finish(final long id) throws IOException {
+      try {
+        final var indexOffset = position;
+        output.writeInt(nrOfBlocks);
+        for (var block = 0; block < nrOfBlocks; block++) {
+          output.writeLong(blockOffsets[block]);
+          output.writeInt(blockFirstKeys[block].length);
+          output.write(blockFirstKeys[block]);
+        }
+        final var last = lastKey != null ? lastKey : new byte[0];
+        output.writeInt(last.length);
+        output.write(last);
+        BloomFilter.of(keyHashes, nrOfEntries, bloomFilterBitsPerKey).write(output);
+        output.writeLong(indexOffset);
+        output.writeLong(nrOfEntries);
+        output.writeInt(MAGIC);
+        output.flush();
+        fileChannel.force(true);
+      } finally {
+        fileChannel.close();
+      }
+      return open(id, path);
+    }
+
+    /**
+     * Deletes the partially written file.
+     */
+    void abort() throws IOException {
+      fileChannel.close();
+      Files.deleteIfExists(path);
+    }
+  }
+
+}
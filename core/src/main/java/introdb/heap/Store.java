@@ -1,9 +1,20 @@
 package introdb.heap;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
-interface Store {
+interface Store extends Closeable {
 
 	Object remove(Serializable key) throws IOException, ClassNotFoundException;
 
@@ -15,8 +26,117 @@ interface Store {
 	 * @throws ClassNotFoundException 
 	 * @throws IOException 
 	 * @throws IllegalArgumentException
-	 *             when entry exceeds page size
+	 *             when entry key exceeds page size, or when entry exceeds page size in a store which does not
+	 *             keep large values in overflow pages
 	 */
 	void put(Entry entry) throws IOException, ClassNotFoundException;
 
+	/**
+	 * Puts all entries, later entries of the same key win.
+	 * 
+	 * @param entries
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 * @throws IllegalArgumentException
+	 *             when any entry key exceeds page size, or any entry exceeds page size in a store which does not
+	 *             keep large values in overflow pages, no entry is put then
+	 */
+	default void putAll(Collection<Entry> entries) throws IOException, ClassNotFoundException {
+		for (Entry entry : entries) {
+			put(entry);
+		}
+	}
+
+	/**
+	 * @param keys
+	 * @return values in the order of keys, null for missing keys
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	default List<Object> getAll(List<? extends Serializable> keys) throws IOException, ClassNotFoundException {
+		List<Object> values = new ArrayList<>(keys.size());
+		for (Serializable key : keys) {
+			values.add(get(key));
+		}
+		return values;
+	}
+
+	/**
+	 * @param keys
+	 * @return removed values in the order of keys, null for missing keys
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	default List<Object> removeAll(List<? extends Serializable> keys) throws IOException, ClassNotFoundException {
+		List<Object> values = new ArrayList<>(keys.size());
+		for (Serializable key : keys) {
+			values.add(remove(key));
+		}
+		return values;
+	}
+
+	/**
+	 * Opens a cursor over all records, which has to be closed when no longer needed.
+	 * 
+	 * @return cursor positioned before the first record
+	 * @throws IOException
+	 */
+	Cursor cursor() throws IOException;
+
+	/**
+	 * Streams all records through {@link #cursor()}, the stream has to be closed when no longer needed.
+	 * I/O and deserialization failures are thrown as {@link UncheckedIOException}.
+	 * 
+	 * @return ordered, sequential stream of entries
+	 * @throws IOException
+	 */
+	default Stream<Entry> stream() throws IOException {
+		Cursor cursor = cursor();
+		Iterator<Entry> entries = new Iterator<>() {
+			private Boolean hasNext;
+
+			@Override
+			public boolean hasNext() {
+				if (hasNext == null) {
+					try {
+						hasNext = cursor.next();
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				}
+				return hasNext;
+			}
+
+			@Override
+			public Entry next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				hasNext = null;
+				try {
+					return new Entry((Serializable) cursor.key(), (Serializable) cursor.value());
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				} catch (ClassNotFoundException e) {
+					throw new UncheckedIOException(new IOException(e));
+				}
+			}
+		};
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(entries, Spliterator.ORDERED | Spliterator.NONNULL), false)
+				.onClose(() -> {
+					try {
+						cursor.close();
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				});
+	}
+
+	/**
+	 * Writes all modified pages, which are still kept in memory, to the file.
+	 * 
+	 * @throws IOException
+	 */
+	void flush() throws IOException;
+
 }
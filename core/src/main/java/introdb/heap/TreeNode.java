@@ -0,0 +1,229 @@
+package introdb.heap;
+
+import java.nio.ByteBuffer;
+import java.util.Comparator;
+
+/**
+ * View of a page as a node of {@link BPlusTreeFile}, callers latch the underlying page.
+ * <p>
+ * Layout: a header with number of cells, free space offset, node type and link, cells growing from the front, and
+ * a directory of cell offsets growing from the end of the page, kept in key order. Cells are {@link Record}s: leaf
+ * cells hold key and value, inner cells hold a separator key and, as value, the number of the child page with
+ * keys equal or greater than the separator. Link of an inner node is its leftmost child, holding keys lower than
+ * the first separator; link of a leaf is its right sibling. Space of removed cells is reclaimed by compacting the
+ * node once a new cell does not fit into contiguous free space.
+ */
+final class TreeNode {
+  static final long NO_PAGE = -1;
+
+  private static final int NR_OF_CELLS_OFFSET = 0;
+  private static final int FREE_SPACE_OFFSET_OFFSET = NR_OF_CELLS_OFFSET + Integer.BYTES;
+  private static final int LEAF_OFFSET = FREE_SPACE_OFFSET_OFFSET + Integer.BYTES;
+  private static final int LINK_OFFSET = LEAF_OFFSET + Long.BYTES;
+  private static final int HEADER_BYTES = LINK_OFFSET + Long.BYTES;
+  private static final int SLOT_BYTES = Integer.BYTES;
+
+  private final ByteBuffer pageByteBuffer;
+  private final int pageSize;
+
+  TreeNode(final ByteBuffer pageByteBuffer, final int pageSize) {
+    this.pageByteBuffer = pageByteBuffer;
+    this.pageSize = pageSize;
+  }
+
+  /**
+   * @return length of the longest cell, so that every node holds at least four of them
+   */
+  static int maxCellLength(final int pageSize) {
+    return (pageSize - HEADER_BYTES) / 4 - SLOT_BYTES;
+  }
+
+  void initialize(final boolean leaf, final long link) {
+    pageByteBuffer.putInt(NR_OF_CELLS_OFFSET, 0);
+    pageByteBuffer.putInt(FREE_SPACE_OFFSET_OFFSET, HEADER_BYTES);
+    pageByteBuffer.put(LEAF_OFFSET, (byte) (leaf ? 1 : 0));
+    setLink(link);
+  }
+
+  boolean isLeaf() {
+    return pageByteBuffer.get(LEAF_OFFSET) != 0;
+  }
+
+  int nrOfCells() {
+    return pageByteBuffer.getInt(NR_OF_CELLS_OFFSET);
+  }
+
+  long link() {
+    return pageByteBuffer.getLong(LINK_OFFSET);
+  }
+
+  void setLink(final long link) {
+    pageByteBuffer.putLong(LINK_OFFSET, link);
+  }
+
+  /**
+   * @return read-only view of the key, valid only while the page stays latched
+   */
+  ByteBuffer key(final int index) {
+    return Record.keySlice(pageByteBuffer, cellOffset(index));
+  }
+
+  /**
+   * @return read-only view of the value of a leaf cell, valid only while the page stays latched
+   */
+  ByteBuffer value(final int index) {
+    return Record.valueSlice(pageByteBuffer, cellOffset(index));
+  }
+
+  long child(final int index) {
+    return value(index).getLong(0);
+  }
+
+  /**
+   * @return index of the cell with given key, or {@code -(insertion index) - 1} when there is none
+   */
+  int search(final ByteBuffer key, final Comparator<ByteBuffer> keyOrder) {
+    var low = 0;
+    var high = nrOfCells() - 1;
+    while (low <= high) {
+      final var middle = (low + high) >>> 1;
+      final var comparison = keyOrder.compare(key(middle), key);
+      if (comparison < 0) {
+        low = middle + 1;
+      } else if (comparison > 0) {
+        high = middle - 1;
+      } else {
+        return middle;
+      }
+    }
+    return -(low + 1);
+  }
+
+  /**
+   * @return child of an inner node, which may hold given key
+   */
+  long childFor(final ByteBuffer key, final Comparator<ByteBuffer> keyOrder) {
+    final var index = search(key, keyOrder);
+    if (index >= 0) {
+      return child(index);
+    }
+    final var insertionIndex = -index - 1;
+    return insertionIndex == 0 ? link() : child(insertionIndex - 1);
+  }
+
+  /**
+   * @return false when there is not enough free space in this node
+   */
+  boolean insert(final int index, final byte[] key, final byte[] value) {
+    final var cellLength = Record.recordLengthFor(key, value);
+    if (contiguousFreeSpace() < cellLength + SLOT_BYTES) {
+      if (freeSpace() < cellLength + SLOT_BYTES) {
+        return false;
+      }
+      compact();
+    }
+    final var nrOfCells = nrOfCells();
+    final var offset = freeSpaceOffset();
+    Record.createNewRecord(pageByteBuffer, offset, key, value);
+    pageByteBuffer.putInt(FREE_SPACE_OFFSET_OFFSET, offset + cellLength);
+    for (var i = nrOfCells; i > index; i--) {
+      setCellOffset(i, cellOffset(i - 1));
+    }
+    setCellOffset(index, offset);
+    pageByteBuffer.putInt(NR_OF_CELLS_OFFSET, nrOfCells + 1);
+    return true;
+  }
+
+  void remove(final int index) {
+    final var nrOfCells = nrOfCells();
+    for (var i = index; i < nrOfCells - 1; i++) {
+      setCellOffset(i, cellOffset(i + 1));
+    }
+    pageByteBuffer.putInt(NR_OF_CELLS_OFFSET, nrOfCells - 1);
+  }
+
+  /**
+   * Moves cells from given index to the end of the target node, keeping their order.
+   */
+  void moveCellsTo(final int fromIndex, final TreeNode target) {
+    final var nrOfCells = nrOfCells();
+    for (var i = fromIndex; i < nrOfCells; i++) {
+      target.insert(target.nrOfCells(), bytesOf(key(i)), bytesOf(value(i)));
+    }
+    pageByteBuffer.putInt(NR_OF_CELLS_OFFSET, fromIndex);
+  }
+
+  /**
+   * @return index of the first cell of the upper half of the node, by cell bytes
+   */
+  int splitIndex() {
+    final var nrOfCells = nrOfCells();
+    final var half = liveBytes() / 2;
+    var bytes = 0;
+    for (var i = 0; i < nrOfCells - 1; i++) {
+      bytes += Record.recordLength(pageByteBuffer, cellOffset(i));
+      if (bytes >= half) {
+        return i + 1;
+      }
+    }
+    return nrOfCells - 1;
+  }
+
+  /**
+   * @return bytes available for cells and their slots, possibly after compaction
+   */
+  int freeSpace() {
+    return pageSize - HEADER_BYTES - nrOfCells() * SLOT_BYTES - liveBytes();
+  }
+
+  static byte[] bytesOf(final ByteBuffer buffer) {
+    final var bytes = new byte[buffer.remaining()];
+    buffer.duplicate().get(bytes);
+    return bytes;
+  }
+
+  private void compact() {
+    final var nrOfCells = nrOfCells();
+    final var cells = new byte[liveBytes()];
+    final var offsets = new int[nrOfCells];
+    var position = 0;
+    for (var i = 0; i < nrOfCells; i++) {
+      final var offset = cellOffset(i);
+      final var length = Record.recordLength(pageByteBuffer, offset);
+      pageByteBuffer.duplicate().position(offset).get(cells, position, length);
+      offsets[i] = HEADER_BYTES + position;
+      position += length;
+    }
+    pageByteBuffer.duplicate().position(HEADER_BYTES).put(cells);
+    for (var i = 0; i < nrOfCells; i++) {
+      setCellOffset(i, offsets[i]);
+    }
+    pageByteBuffer.putInt(FREE_SPACE_OFFSET_OFFSET, HEADER_BYTES + cells.length);
+  }
+
+  private int liveBytes() {
+    var bytes = 0;
+    final var nrOfCells = nrOfCells();
+    for (var i = 0; i < nrOfCells; i++) {
+      bytes += Record.recordLength(pageByteBuffer, cellOffset(i));
+    }
+    return bytes;
+  }
+
+  private int contiguousFreeSpace() {
+    return pageSize - nrOfCells() * SLOT_BYTES - freeSpaceOffset();
+  }
+
+  private int freeSpaceOffset() {
+    return pageByteBuffer.getInt(FREE_SPACE_OFFSET_OFFSET);
+  }
+
+  private int cellOffset(final int index) {
+    return pageByteBuffer.getInt(pageSize - (index + 1) * SLOT_BYTES);
+  }
+
+  private void setCellOffset(final int index, final int offset) {
+    pageByteBuffer.putInt(pageSize - (index + 1) * SLOT_BYTES, offset);
+  }
+
+}
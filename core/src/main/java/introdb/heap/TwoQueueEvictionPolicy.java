@@ -0,0 +1,72 @@
+package introdb.heap;
+
+import java.util.LinkedHashSet;
+import java.util.function.IntPredicate;
+
+/**
+ * Full 2Q: pages seen once wait in FIFO queue A1in, pages evicted from it are remembered in ghost
+ * queue A1out and go straight to LRU queue Am when requested again.
+ */
+final class TwoQueueEvictionPolicy implements EvictionPolicy {
+  private final FrameList recentlyLoaded;
+  private final FrameList frequentlyUsed;
+  private final LinkedHashSet<Long> recentlyEvicted = new LinkedHashSet<>();
+  private final long[] pageNumbers;
+  private final int recentlyLoadedMaxSize;
+  private final int recentlyEvictedMaxSize;
+
+  TwoQueueEvictionPolicy(final int nrOfFrames) {
+    this.recentlyLoaded = new FrameList(nrOfFrames);
+    this.frequentlyUsed = new FrameList(nrOfFrames);
+    this.pageNumbers = new long[nrOfFrames];
+    this.recentlyLoadedMaxSize = Math.max(1, nrOfFrames / 4);
+    this.recentlyEvictedMaxSize = Math.max(1, nrOfFrames / 2);
+  }
+
+  @Override
+  public void pageLoaded(final int frame, final long pageNumber) {
+    pageNumbers[frame] = pageNumber;
+    if (recentlyEvicted.remove(pageNumber)) {
+      frequentlyUsed.addFirst(frame);
+    } else {
+      recentlyLoaded.addFirst(frame);
+    }
+  }
+
+  @Override
+  public void pageAccessed(final int frame) {
+    if (frequentlyUsed.contains(frame)) {
+      frequentlyUsed.moveToFront(frame);
+    }
+  }
+
+  @Override
+  public int selectVictim(final IntPredicate isPinned) {
+    if (recentlyLoaded.size() > recentlyLoadedMaxSize || frequentlyUsed.size() == 0) {
+      final var frame = recentlyLoaded.removeLast(isPinned);
+      if (frame >= 0) {
+        rememberEvicted(pageNumbers[frame]);
+        return frame;
+      }
+    }
+    final var frame = frequentlyUsed.removeLast(isPinned);
+    if (frame >= 0) {
+      return frame;
+    }
+    final var recentFrame = recentlyLoaded.removeLast(isPinned);
+    if (recentFrame >= 0) {
+      rememberEvicted(pageNumbers[recentFrame]);
+    }
+    return recentFrame;
+  }
+
+  private void rememberEvicted(final long pageNumber) {
+    recentlyEvicted.add(pageNumber);
+    if (recentlyEvicted.size() > recentlyEvictedMaxSize) {
+      final var oldest = recentlyEvicted.iterator();
+      oldest.next();
+      oldest.remove();
+    }
+  }
+
+}
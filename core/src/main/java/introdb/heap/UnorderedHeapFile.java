@@ -2,87 +2,1264 @@ package introdb.heap;
 
 import java.io.IOException;
 import java.io.Serializable;
-import java.nio.channels.FileChannel;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
-import java.util.Map;
-import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+import introdb.heap.pool.ObjectPool;
+
+/**
+ * Heap file keeping records in no particular order, with in-memory hash index over their locations. New records
+ * go to the first page which the free space map expects to have room for them, a new page is added only when
+ * there is none.
+ * <p>
+ * Thread safe. Operations on one key are serialized by a lock striped by key hash, so operations on different
+ * keys run concurrently and only meet at latches of the pages they touch. Adding new pages is serialized by the
+ * append lock. Lock order is modification lock, key stripe, append lock, page latch. Modifications share the
+ * modification lock, which checkpoint and truncation of the file take exclusively. All locks are
+ * {@link java.util.concurrent.locks.Lock}s rather than monitors, so virtual threads blocked on them, or doing
+ * I/O while holding them, do not pin their carrier threads.
+ * <p>
+ * Values too large for a page are stored out of line in chains of an {@link OverflowFile}, which is created next
+ * to the heap file once the first such value is put. Records of other values stay in their page.
+ * <p>
+ * Optional background vacuum compacts fragmented pages, moves records from the last page to earlier pages with
+ * free space and truncates the file once its last pages are empty.
+ * <p>
+ * Cursors scan pages in ascending order, copying a window of pages at a time under their read latches, and are
+ * weakly consistent: records neither put nor removed during the scan are returned exactly once, records put or
+ * removed meanwhile may or may not be returned, and a key put during the scan may be returned with both old and
+ * new value. Vacuum does not move records between pages while any cursor is open.
+ */
 final class UnorderedHeapFile implements Store {
+  private static final Logger LOG = Logger.getLogger(UnorderedHeapFile.class.getName());
+  private static final int NR_OF_KEY_LOCKS = 64;
+  private static final int CURSOR_READ_AHEAD_PAGES = 8;
+
   private final int maxNrPages;
-  private final Page page;
-  private final Serializer serializer;
-  private final Map<Object, Long> recordPageNumberCache = new WeakHashMap<>();
-  private long numberOfPages;
+  private final int pageSize;
+  private final PageFile pageFile;
+  private final HeapFileOptions options;
+  private final WriteMode writeMode;
+  private final WriteAheadLog writeAheadLog;
+  private final BufferPool bufferPool;
+  private final ObjectPool<Serializer> serializers;
+  private final HashIndex index = new HashIndex();
+  private final FreeSpaceMap freeSpaceMap;
+  private final Path overflowPath;
+  private final ReentrantReadWriteLock[] keyLocks = new ReentrantReadWriteLock[NR_OF_KEY_LOCKS];
+  private final ReentrantLock appendLock = new ReentrantLock();
+  private final ReentrantReadWriteLock modificationLock = new ReentrantReadWriteLock();
+  private final ScheduledExecutorService flusher;
+  private final ScheduledExecutorService vacuum;
+  private final ScheduledExecutorService scrubber;
+  private final ReentrantLock vacuumLock = new ReentrantLock();
+  private final ReentrantLock closeLock = new ReentrantLock();
+  private final AtomicInteger openCursors = new AtomicInteger();
+  /**
+   * Pages found corrupted when the file was opened, vacuum leaves them alone.
+   */
+  private final Set<Long> corruptedPages = ConcurrentHashMap.newKeySet();
+  private volatile OverflowFile overflowFile;
+  private long nextPageToCompact;
+  private volatile long numberOfPages;
+  private volatile boolean closed;
 
   UnorderedHeapFile(final Path path, final int maxNrPages, final int pageSize) throws IOException {
-    final var fileChannel =
-        FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    this(path, maxNrPages, pageSize, HeapFileOptions.defaults());
+  }
+
+  UnorderedHeapFile(final Path path, final int maxNrPages, final int pageSize, final HeapFileOptions options)
+      throws IOException {
+    this.pageFile = PageFile.open(path, pageSize, options);
+    try {
+      BufferPool.checkPageChecksums(pageFile, pageSize, options.pageChecksums());
+    } catch (IllegalArgumentException e) {
+      pageFile.close();
+      throw e;
+    }
     this.maxNrPages = maxNrPages;
-    this.numberOfPages = fileChannel.size() / pageSize;
-    this.page = new Page(fileChannel, pageSize);
-    this.serializer = new Serializer(pageSize);
+    this.pageSize = pageSize;
+    this.options = options;
+    this.numberOfPages = pageFile.nrOfPages();
+    this.writeAheadLog = options.writeAheadLog() ? new WriteAheadLog(WriteAheadLog.pathFor(path)) : null;
+    this.writeMode = writeAheadLog != null ? WriteMode.WRITE_BACK : options.writeMode();
+    this.bufferPool = new BufferPool(pageFile, pageSize,
+        BufferPool.nrOfFramesFor(options.bufferPoolSize(), pageSize), options.eviction(), writeMode, writeAheadLog,
+        options.pageChecksums(), options.readAheadPages());
+    this.freeSpaceMap = new FreeSpaceMap(FreeSpaceMap.pathFor(path), pageSize);
+    this.overflowPath = OverflowFile.pathFor(path);
+    this.overflowFile =
+        Files.exists(overflowPath) ? new OverflowFile(overflowPath, pageSize, options.pageChecksums()) : null;
+    this.serializers = new ObjectPool<>(() -> newSerializer(pageSize, options.codecs()), serializer -> true);
+    for (var i = 0; i < keyLocks.length; i++) {
+      keyLocks[i] = new ReentrantReadWriteLock();
+    }
+    final var recovered = recover();
     addFirstPageIfNoneExistsYet();
+    rebuildIndex(recovered || freeSpaceMap.nrOfPages() != numberOfPages);
+    this.flusher = startFlusher();
+    this.vacuum = startVacuum();
+    this.scrubber = startScrubber();
+  }
+
+  /**
+   * @return true when modifications were redone from write-ahead log
+   */
+  private boolean recover() throws IOException {
+    if (writeAheadLog == null || writeAheadLog.size() == 0) {
+      return false;
+    }
+    writeAheadLog.replay(new WriteAheadLog.Replayer() {
+
+      @Override
+      public void newPage(final long pageNumber) throws IOException {
+        numberOfPages = Math.max(numberOfPages, pageNumber + 1);
+        bufferPool.unpin(bufferPool.pinNew(pageNumber), true);
+      }
+
+      @Override
+      public void pageImage(final long pageNumber, final ByteBuffer image) throws IOException {
+        numberOfPages = Math.max(numberOfPages, pageNumber + 1);
+        // the page on disk may be torn, it is replaced without being read
+        final var page = bufferPool.pinNew(pageNumber);
+        page.byteBuffer().duplicate().clear().put(image);
+        bufferPool.unpin(page, true);
+      }
+
+      @Override
+      public void put(final long pageNumber, final byte[] key, final byte[] value) throws IOException {
+        final var page = bufferPool.pin(pageNumber);
+        final var slot = page.add(key, value);
+        bufferPool.unpin(page, true);
+        if (slot < 0) {
+          throw new IllegalStateException("Write-ahead log does not match page " + pageNumber + " of heap file.");
+        }
+      }
+
+      @Override
+      public void remove(final long pageNumber, final int slot, final byte[] key) throws IOException {
+        final var page = bufferPool.pin(pageNumber);
+        page.remove(slot, key);
+        bufferPool.unpin(page, true);
+      }
+    });
+    checkpoint();
+    return true;
+  }
+
+  private ScheduledExecutorService startFlusher() {
+    final var interval = options.flushInterval();
+    if (writeMode != WriteMode.WRITE_BACK || interval.isZero()) {
+      return null;
+    }
+    final var executor = newDaemonExecutor("heap-file-flusher");
+    executor.scheduleWithFixedDelay(this::flushInBackground, interval.toNanos(), interval.toNanos(),
+        TimeUnit.NANOSECONDS);
+    return executor;
+  }
+
+  /**
+   * Vacuums one page per tick, which bounds the I/O it adds to the foreground traffic.
+   */
+  private ScheduledExecutorService startVacuum() {
+    final var vacuumRate = options.vacuumRate();
+    if (vacuumRate <= 0) {
+      return null;
+    }
+    final var executor = newDaemonExecutor("heap-file-vacuum");
+    final var tick = TimeUnit.SECONDS.toNanos(1) / vacuumRate;
+    executor.scheduleWithFixedDelay(this::vacuumInBackground, tick, tick, TimeUnit.NANOSECONDS);
+    return executor;
+  }
+
+  private ScheduledExecutorService startScrubber() {
+    final var interval = options.scrubInterval();
+    if (!options.pageChecksums() || interval.isZero()) {
+      return null;
+    }
+    final var executor = newDaemonExecutor("heap-file-scrubber");
+    executor.scheduleWithFixedDelay(this::scrubInBackground, interval.toNanos(), interval.toNanos(),
+        TimeUnit.NANOSECONDS);
+    return executor;
+  }
+
+  private static ScheduledExecutorService newDaemonExecutor(final String threadName) {
+    return Executors.newSingleThreadScheduledExecutor(runnable -> {
+      final var thread = new Thread(runnable, threadName);
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  private static Serializer newSerializer(final int pageSize, final Codecs codecs) {
+    try {
+      return new Serializer(pageSize, codecs);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private void flushInBackground() {
+    try {
+      if (!closed) {
+        flush();
+      }
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "background flush of heap file failed", e);
+    }
+  }
+
+  private void vacuumInBackground() {
+    try {
+      if (!closed) {
+        vacuum();
+      }
+    } catch (IOException | RuntimeException e) {
+      LOG.log(Level.WARNING, "background vacuum of heap file failed", e);
+    }
+  }
+
+  private void scrubInBackground() {
+    try {
+      if (!closed) {
+        scrub();
+      }
+    } catch (IOException | RuntimeException e) {
+      LOG.log(Level.WARNING, "background scrub of heap file failed", e);
+    }
   }
 
-  private void addFirstPageIfNoneExistsYet() {
+  private void addFirstPageIfNoneExistsYet() throws IOException {
     if (numberOfPages == 0) {
-      addNextPage();
+      bufferPool.unpin(addNextPage(), false);
+    }
+  }
+
+  /**
+   * Builds hash index from all pages and, when the saved free space map does not match the heap file, also
+   * the free space map. Corrupted pages are logged and skipped, their records stay unindexed and no record is put
+   * to them, so the file still opens after a torn write and {@link #scrub()} reports them.
+   */
+  private void rebuildIndex(final boolean rebuildFreeSpaceMap) throws IOException {
+    if (rebuildFreeSpaceMap) {
+      freeSpaceMap.clear();
+    }
+    for (var pageNumber = 0L; pageNumber < numberOfPages; pageNumber++) {
+      final var currentPageNumber = pageNumber;
+      final Page page;
+      try {
+        page = bufferPool.pin(pageNumber);
+      } catch (CorruptedPage e) {
+        LOG.log(Level.WARNING, "page " + pageNumber + " of heap file is corrupted, its records are not indexed");
+        corruptedPages.add(pageNumber);
+        freeSpaceMap.update(pageNumber, 0);
+        continue;
+      }
+      page.latch().readLock().lock();
+      try {
+        page.forEachKeyHash((keyHash, slot) -> index.add(keyHash, HashIndex.location(currentPageNumber, slot)));
+        if (rebuildFreeSpaceMap) {
+          freeSpaceMap.update(pageNumber, page.freeSpace());
+        }
+      } finally {
+        page.latch().readLock().unlock();
+        bufferPool.unpin(page, false);
+      }
     }
   }
 
   @Override
-  public synchronized Object get(final Serializable key) throws IOException, ClassNotFoundException {
-    final var serializedKey = serializer.serialize(key);
-    final var startFromPage = recordPageNumberCache.getOrDefault(key, 0L);
-    for (var pageNumber = startFromPage; pageNumber < numberOfPages; pageNumber++) {
-      page.loadPage(pageNumber);
-      final var serializedValue = page.findInCurrentPage(serializedKey);
-      if (serializedValue != null) {
-        recordPageNumberCache.put(key, pageNumber);
-        return serializer.deserialize(serializedValue);
+  public Object get(final Serializable key) throws IOException, ClassNotFoundException {
+    final var serializer = serializers.borrowObject().join();
+    try {
+      final var serializedKey = serializer.encode(key);
+      final var hash = HashIndex.hash(serializedKey);
+      final var keyLock = keyLockFor(hash).readLock();
+      keyLock.lock();
+      try {
+        return findRecord(serializer, serializedKey, hash);
+      } finally {
+        keyLock.unlock();
+      }
+    } finally {
+      serializers.returnObject(serializer);
+    }
+  }
+
+  @Override
+  public void put(final Entry entry) throws IOException {
+    final var serializedKey = serialize(entry.key());
+    final var serializedValue = storedValue(serializedKey, serialize(entry.value()));
+    final var hash = HashIndex.hash(serializedKey);
+    modificationLock.readLock().lock();
+    try {
+      final var keyLock = keyLockFor(hash).writeLock();
+      keyLock.lock();
+      try {
+        freeOverflowChain(removeRecord(serializedKey, hash));
+        putRecord(serializedKey, serializedValue, hash);
+      } catch (IOException | RuntimeException e) {
+        freeOverflowChain(serializedValue);
+        throw e;
+      } finally {
+        keyLock.unlock();
+      }
+    } finally {
+      modificationLock.readLock().unlock();
+    }
+    afterModification(true);
+  }
+
+  @Override
+  public Object remove(final Serializable key) throws IOException, ClassNotFoundException {
+    final var serializedKey = serialize(key);
+    final var hash = HashIndex.hash(serializedKey);
+    final byte[] serializedValue;
+    modificationLock.readLock().lock();
+    try {
+      final var keyLock = keyLockFor(hash).writeLock();
+      keyLock.lock();
+      try {
+        serializedValue = takeOverflowValue(removeRecord(serializedKey, hash));
+      } finally {
+        keyLock.unlock();
       }
+    } finally {
+      modificationLock.readLock().unlock();
     }
-    return null;
+    afterModification(serializedValue != null);
+    return serializedValue != null ? deserialize(serializedValue) : null;
   }
 
+  /**
+   * Puts entries grouped by page: existing records of all keys are removed page by page, then new records fill
+   * one page after another, so every page is latched, and in {@link WriteMode#WRITE_THROUGH} mode written, once.
+   */
   @Override
-  public synchronized void put(final Entry entry) throws IOException {
-    removeRecord(entry.key());
-    final var serializedKey = serializer.serialize(entry.key());
-    final var serializedValue = serializer.serialize(entry.value());
-    page.loadPage(numberOfPages - 1);
-    if (!page.addToCurrentPage(serializedKey, serializedValue)) {
-      addNextPage();
-      page.addToCurrentPage(serializedKey, serializedValue);
+  public void putAll(final Collection<Entry> entries) throws IOException {
+    final var batch = new ArrayList<BatchRecord>(entries.size());
+    final var positions = new HashMap<ByteBuffer, Integer>();
+    for (final var entry : entries) {
+      final var key = serialize(entry.key());
+      OverflowFile.checkKeyFits(pageSize, key);
+      final var record = new BatchRecord(key, serialize(entry.value()));
+      final var previous = positions.put(ByteBuffer.wrap(record.key), batch.size());
+      if (previous != null) {
+        batch.set(previous, null);
+      }
+      batch.add(record);
+    }
+    batch.removeIf(Objects::isNull);
+    for (final var record : batch) {
+      record.value = storedValue(record.key, record.value);
+    }
+    modificationLock.readLock().lock();
+    try {
+      final var keyLocks = lockKeys(batch, true);
+      try {
+        removeRecords(batch);
+        for (final var record : batch) {
+          freeOverflowChain(record.removedValue);
+        }
+        addRecords(batch);
+      } finally {
+        unlock(keyLocks);
+      }
+    } finally {
+      modificationLock.readLock().unlock();
     }
-    recordPageNumberCache.put(entry.key(), numberOfPages - 1);
+    afterModification(!batch.isEmpty());
   }
 
+  /**
+   * Looks keys up grouped by page, every page is pinned and latched once.
+   */
   @Override
-  public synchronized Object remove(final Serializable key) throws IOException, ClassNotFoundException {
-    final var serializedValue = removeRecord(key);
-    return serializedValue != null ? serializer.deserialize(serializedValue) : null;
+  public List<Object> getAll(final List<? extends Serializable> keys) throws IOException, ClassNotFoundException {
+    final var batch = new ArrayList<BatchRecord>(keys.size());
+    for (final var key : keys) {
+      batch.add(new BatchRecord(serialize(key), null));
+    }
+    final var keyLocks = lockKeys(batch, false);
+    try {
+      for (final var page : candidatesByPage(batch)) {
+        final var pinned = bufferPool.pin(page.pageNumber);
+        pinned.latch().readLock().lock();
+        try {
+          for (final var candidate : page.candidates) {
+            final var record = candidate.record;
+            if (record.value == null) {
+              record.value = pinned.find(HashIndex.recordSlotOf(candidate.location), record.key, record.hash);
+            }
+          }
+        } finally {
+          pinned.latch().readLock().unlock();
+          bufferPool.unpin(pinned, false);
+        }
+      }
+      for (final var record : batch) {
+        record.value = overflowValue(record.value);
+      }
+    } finally {
+      unlock(keyLocks);
+    }
+    final var values = new ArrayList<Object>(batch.size());
+    for (final var record : batch) {
+      values.add(record.value != null ? deserialize(record.value) : null);
+    }
+    return values;
+  }
+
+  /**
+   * Removes keys grouped by page, every page is latched, and in {@link WriteMode#WRITE_THROUGH} mode written, once.
+   */
+  @Override
+  public List<Object> removeAll(final List<? extends Serializable> keys) throws IOException, ClassNotFoundException {
+    final var batch = new ArrayList<BatchRecord>(keys.size());
+    for (final var key : keys) {
+      batch.add(new BatchRecord(serialize(key), null));
+    }
+    final boolean removed;
+    modificationLock.readLock().lock();
+    try {
+      final var keyLocks = lockKeys(batch, true);
+      try {
+        removed = removeRecords(batch);
+        for (final var record : batch) {
+          record.removedValue = takeOverflowValue(record.removedValue);
+        }
+      } finally {
+        unlock(keyLocks);
+      }
+    } finally {
+      modificationLock.readLock().unlock();
+    }
+    afterModification(removed);
+    final var values = new ArrayList<Object>(batch.size());
+    for (final var record : batch) {
+      values.add(record.removedValue != null ? deserialize(record.removedValue) : null);
+    }
+    return values;
+  }
+
+  @Override
+  public Cursor cursor() {
+    vacuumLock.lock();
+    try {
+      openCursors.incrementAndGet();
+    } finally {
+      vacuumLock.unlock();
+    }
+    return new HeapFileCursor();
+  }
+
+  /**
+   * Writes dirty pages to the heap file. With write-ahead log it is a checkpoint, which also forces the heap
+   * file and empties the log.
+   */
+  @Override
+  public void flush() throws IOException {
+    if (writeAheadLog != null) {
+      checkpoint();
+      return;
+    }
+    bufferPool.flushAll();
+    if (options.syncOnFlush()) {
+      pageFile.force();
+    }
+    freeSpaceMap.save();
+    releaseFreedOverflowPages();
+  }
+
+  /**
+   * Flushes dirty pages and forces them to the storage device, regardless of {@link HeapFileOptions#syncOnFlush()}.
+   */
+  void sync() throws IOException {
+    if (writeAheadLog != null) {
+      checkpoint();
+      return;
+    }
+    bufferPool.flushAll();
+    pageFile.force();
+    freeSpaceMap.save();
+    releaseFreedOverflowPages();
+  }
+
+  /**
+   * Closes the heap file, callers have to make sure it is not used concurrently any more.
+   */
+  @Override
+  public void close() throws IOException {
+    closeLock.lock();
+    try {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      shutdown(vacuum);
+      shutdown(scrubber);
+      shutdown(flusher);
+      flush();
+      pageFile.close();
+      freeSpaceMap.close();
+      if (overflowFile != null) {
+        overflowFile.close();
+      }
+      if (writeAheadLog != null) {
+        writeAheadLog.close();
+      }
+    } finally {
+      closeLock.unlock();
+    }
+  }
+
+  /**
+   * Runs one vacuum step: compacts the next fragmented page, moves records of the last page to earlier pages
+   * with enough free space, and truncates empty pages at the end of the file.
+   *
+   * @return true when the file was truncated
+   */
+  boolean vacuum() throws IOException {
+    vacuumLock.lock();
+    try {
+      compactNextFragmentedPage();
+      // records moved from a page not yet scanned to a scanned one would be missed by open cursors
+      if (openCursors.get() == 0 && moveRecordsFromLastPage()) {
+        return truncateEmptyPages();
+      }
+      return false;
+    } finally {
+      vacuumLock.unlock();
+    }
+  }
+
+  /**
+   * Verifies checksums of all pages on disk while the heap file is in use, see {@link PageScrubber}, and of all
+   * pages of the overflow file, see {@link OverflowFile#scrub()}. A page which fails is read once more, so a page
+   * read while it was being written is not reported, and corrupted pages are logged.
+   *
+   * @return numbers of corrupted heap file pages in ascending order, corrupted overflow pages are only logged
+   * @throws IllegalStateException
+   *           when page checksums are turned off
+   */
+  List<Long> scrub() throws IOException {
+    if (!options.pageChecksums()) {
+      throw new IllegalStateException("Heap file has no page checksums to scrub.");
+    }
+    final var corrupted = new ArrayList<Long>();
+    final var page = ByteBuffer.allocate(pageSize);
+    for (final var pageNumber : PageScrubber.scrub(pageFile, pageSize, numberOfPages)) {
+      pageFile.read(pageNumber, page.clear());
+      if (!Page.hasValidChecksum(page)) {
+        LOG.log(Level.WARNING, "page " + pageNumber + " of heap file is corrupted");
+        corrupted.add(pageNumber);
+      }
+    }
+    final var overflow = overflowFile;
+    if (overflow != null) {
+      for (final var pageNumber : overflow.scrub()) {
+        LOG.log(Level.WARNING, "overflow page " + pageNumber + " of heap file is corrupted");
+      }
+    }
+    return corrupted;
+  }
+
+  /**
+   * @return number of pages of the overflow file, including free ones
+   */
+  long nrOfOverflowPages() {
+    return overflowFile != null ? overflowFile.nrOfPages() : 0;
+  }
+
+  BufferPoolStats bufferPoolStats() {
+    return bufferPool.stats();
+  }
+
+  private static void shutdown(final ScheduledExecutorService executor) {
+    if (executor == null) {
+      return;
+    }
+    executor.shutdown();
+    try {
+      executor.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void compactNextFragmentedPage() throws IOException {
+    final var pageNumber = nextPageToCompact < numberOfPages ? nextPageToCompact : 0;
+    nextPageToCompact = pageNumber + 1;
+    modificationLock.readLock().lock();
+    try {
+      if (pageNumber >= numberOfPages || corruptedPages.contains(pageNumber)) {
+        return;
+      }
+      final var page = bufferPool.pin(pageNumber);
+      var compacted = false;
+      page.latch().writeLock().lock();
+      try {
+        if (page.fragmentedSpace() >= pageSize / 4) {
+          page.compact();
+          compacted = true;
+        }
+      } finally {
+        page.latch().writeLock().unlock();
+        bufferPool.unpin(page, compacted);
+      }
+    } finally {
+      modificationLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return true when the last page is empty
+   */
+  private boolean moveRecordsFromLastPage() throws IOException {
+    final var keys = new ArrayList<byte[]>();
+    final long pageNumber;
+    modificationLock.readLock().lock();
+    try {
+      pageNumber = numberOfPages - 1;
+      if (pageNumber == 0 || corruptedPages.contains(pageNumber)) {
+        return false;
+      }
+      final var page = bufferPool.pin(pageNumber);
+      page.latch().readLock().lock();
+      try {
+        page.forEachRecord((key, slot) -> keys.add(key));
+      } finally {
+        page.latch().readLock().unlock();
+        bufferPool.unpin(page, false);
+      }
+      for (final var key : keys) {
+        if (!moveRecord(key, pageNumber)) {
+          return false;
+        }
+      }
+      return true;
+    } finally {
+      modificationLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Moves record of given key from given page to a page before it, callers hold the modification lock.
+   *
+   * @return false when there is no earlier page with enough free space
+   */
+  private boolean moveRecord(final byte[] serializedKey, final long fromPageNumber) throws IOException {
+    final var hash = HashIndex.hash(serializedKey);
+    final var keyLock = keyLockFor(hash).writeLock();
+    keyLock.lock();
+    try {
+      for (var n = 0; ; n++) {
+        final var location = index.get(hash, n);
+        if (location == HashIndex.NOT_FOUND) {
+          // removed in the meantime
+          return true;
+        }
+        if (HashIndex.pageNumberOf(location) != fromPageNumber) {
+          continue;
+        }
+        final var page = bufferPool.pin(fromPageNumber);
+        final byte[] serializedValue;
+        page.latch().readLock().lock();
+        try {
+          serializedValue = page.find(HashIndex.recordSlotOf(location), serializedKey, hash);
+        } finally {
+          page.latch().readLock().unlock();
+          bufferPool.unpin(page, false);
+        }
+        if (serializedValue == null) {
+          continue;
+        }
+        final var toPageNumber = freeSpaceMap.find(Record.recordLengthFor(serializedKey, serializedValue));
+        if (toPageNumber == FreeSpaceMap.NOT_FOUND || toPageNumber >= fromPageNumber) {
+          return false;
+        }
+        final var slot = addToPage(bufferPool.pin(toPageNumber), serializedKey, serializedValue, hash);
+        if (slot < 0) {
+          return false;
+        }
+        index.add(hash, HashIndex.location(toPageNumber, slot));
+        removeFromPage(location, serializedKey, hash);
+        return true;
+      }
+    } finally {
+      keyLock.unlock();
+    }
+  }
+
+  /**
+   * Drops empty pages at the end of the file. With write-ahead log it checkpoints first, so the log does not
+   * refer to dropped pages.
+   *
+   * @return true when the file was truncated
+   */
+  private boolean truncateEmptyPages() throws IOException {
+    modificationLock.writeLock().lock();
+    try {
+      var newNumberOfPages = numberOfPages;
+      while (newNumberOfPages > 1 && isEmpty(newNumberOfPages - 1)) {
+        newNumberOfPages--;
+      }
+      if (newNumberOfPages == numberOfPages) {
+        return false;
+      }
+      if (writeAheadLog != null) {
+        checkpoint();
+      }
+      var dropped = numberOfPages;
+      while (dropped > newNumberOfPages && bufferPool.drop(dropped - 1)) {
+        dropped--;
+      }
+      if (dropped == numberOfPages) {
+        return false;
+      }
+      pageFile.truncate(dropped);
+      freeSpaceMap.truncate((int) dropped);
+      numberOfPages = dropped;
+      return true;
+    } finally {
+      modificationLock.writeLock().unlock();
+    }
+  }
+
+  private boolean isEmpty(final long pageNumber) throws IOException {
+    final var page = bufferPool.pin(pageNumber);
+    page.latch().readLock().lock();
+    try {
+      return page.isEmpty();
+    } finally {
+      page.latch().readLock().unlock();
+      bufferPool.unpin(page, false);
+    }
+  }
+
+  /**
+   * Locks key stripes of all records in ascending order, so batches never deadlock with each other.
+   */
+  private List<Lock> lockKeys(final List<BatchRecord> batch, final boolean exclusive) {
+    final var stripes = new TreeSet<Integer>();
+    for (final var record : batch) {
+      stripes.add(record.hash & (NR_OF_KEY_LOCKS - 1));
+    }
+    final var locks = new ArrayList<Lock>(stripes.size());
+    for (final var stripe : stripes) {
+      final var lock = exclusive ? keyLocks[stripe].writeLock() : keyLocks[stripe].readLock();
+      lock.lock();
+      locks.add(lock);
+    }
+    return locks;
+  }
+
+  private static void unlock(final List<Lock> locks) {
+    for (final var lock : locks) {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return all index locations of batch records, grouped by page in ascending page number order
+   */
+  private List<PageCandidates> candidatesByPage(final List<BatchRecord> batch) {
+    final var pages = new TreeMap<Long, PageCandidates>();
+    for (final var record : batch) {
+      for (var n = 0; ; n++) {
+        final var location = index.get(record.hash, n);
+        if (location == HashIndex.NOT_FOUND) {
+          break;
+        }
+        pages.computeIfAbsent(HashIndex.pageNumberOf(location), PageCandidates::new).candidates
+            .add(new Candidate(location, record));
+      }
+    }
+    return new ArrayList<>(pages.values());
+  }
+
+  /**
+   * Removes existing records of all batch keys, visiting every page once. Callers hold key locks.
+   *
+   * @return true when any record was removed
+   */
+  private boolean removeRecords(final List<BatchRecord> batch) throws IOException {
+    var removed = false;
+    for (final var page : candidatesByPage(batch)) {
+      final var pinned = bufferPool.pin(page.pageNumber);
+      var modified = false;
+      pinned.latch().writeLock().lock();
+      try {
+        for (final var candidate : page.candidates) {
+          final var record = candidate.record;
+          if (record.removedValue != null) {
+            continue;
+          }
+          final var slot = HashIndex.recordSlotOf(candidate.location);
+          record.removedValue = pinned.remove(slot, record.key, record.hash);
+          if (record.removedValue != null) {
+            if (writeAheadLog != null) {
+              writeAheadLog.appendRemove(page.pageNumber, slot, record.key);
+            }
+            index.remove(record.hash, candidate.location);
+            modified = true;
+          }
+        }
+        if (modified) {
+          freeSpaceMap.update(page.pageNumber, pinned.freeSpace());
+        }
+      } finally {
+        pinned.latch().writeLock().unlock();
+        bufferPool.unpin(pinned, modified);
+      }
+      removed |= modified;
+    }
+    return removed;
+  }
+
+  /**
+   * Adds batch records filling one page after another. Callers hold key locks.
+   */
+  private void addRecords(final List<BatchRecord> batch) throws IOException {
+    var next = 0;
+    while (next < batch.size()) {
+      final var record = batch.get(next);
+      final var pageNumber = freeSpaceMap.find(Record.recordLengthFor(record.key, record.value));
+      final Page page;
+      if (pageNumber != FreeSpaceMap.NOT_FOUND) {
+        page = bufferPool.pin(pageNumber);
+      } else {
+        appendLock.lock();
+        try {
+          // another writer may have added a page in the meantime
+          if (freeSpaceMap.find(Record.recordLengthFor(record.key, record.value)) != FreeSpaceMap.NOT_FOUND) {
+            continue;
+          }
+          page = addNextPage();
+        } finally {
+          appendLock.unlock();
+        }
+      }
+      final var first = next;
+      page.latch().writeLock().lock();
+      try {
+        while (next < batch.size()) {
+          final var added = batch.get(next);
+          final var slot = page.add(added.key, added.value, added.hash);
+          if (slot < 0) {
+            break;
+          }
+          if (writeAheadLog != null) {
+            writeAheadLog.appendPut(page.pageNumber(), added.key, added.value);
+          }
+          index.add(added.hash, HashIndex.location(page.pageNumber(), slot));
+          next++;
+        }
+        freeSpaceMap.update(page.pageNumber(), page.freeSpace());
+      } finally {
+        page.latch().writeLock().unlock();
+        bufferPool.unpin(page, next > first);
+      }
+    }
+  }
+
+  private ReentrantReadWriteLock keyLockFor(final int hash) {
+    return keyLocks[hash & (NR_OF_KEY_LOCKS - 1)];
+  }
+
+  /**
+   * Deserializes the value straight from the page, so the only allocation is the value object itself, unless the
+   * value is stored out of line.
+   */
+  private Object findRecord(final Serializer serializer, final ByteBuffer serializedKey, final int hash)
+      throws IOException, ClassNotFoundException {
+    for (var n = 0; ; n++) {
+      final var location = index.get(hash, n);
+      if (location == HashIndex.NOT_FOUND) {
+        return null;
+      }
+      final var page = bufferPool.pin(HashIndex.pageNumberOf(location));
+      byte[] pointer = null;
+      page.latch().readLock().lock();
+      try {
+        final var serializedValue = page.valueSlice(HashIndex.recordSlotOf(location), serializedKey, hash);
+        if (serializedValue != null && !OverflowFile.isPointer(serializedValue)) {
+          return serializer.deserialize(serializedValue);
+        }
+        if (serializedValue != null) {
+          pointer = TreeNode.bytesOf(serializedValue);
+        }
+      } finally {
+        page.latch().readLock().unlock();
+        bufferPool.unpin(page, false);
+      }
+      if (pointer != null) {
+        // the chain is read without holding the page latch, the key lock keeps it from being freed
+        return serializer.deserialize(overflowFile.read(ByteBuffer.wrap(pointer)));
+      }
+    }
+  }
+
+  private void putRecord(final byte[] serializedKey, final byte[] serializedValue, final int hash)
+      throws IOException {
+    final var recordLength = Record.recordLengthFor(serializedKey, serializedValue);
+    while (true) {
+      final var pageNumber = freeSpaceMap.find(recordLength);
+      final Page page;
+      if (pageNumber != FreeSpaceMap.NOT_FOUND) {
+        page = bufferPool.pin(pageNumber);
+      } else {
+        appendLock.lock();
+        try {
+          // another writer may have added a page in the meantime
+          if (freeSpaceMap.find(recordLength) != FreeSpaceMap.NOT_FOUND) {
+            continue;
+          }
+          page = addNextPage();
+        } finally {
+          appendLock.unlock();
+        }
+      }
+      final var slot = addToPage(page, serializedKey, serializedValue, hash);
+      if (slot >= 0) {
+        index.add(hash, HashIndex.location(page.pageNumber(), slot));
+        return;
+      }
+    }
+  }
+
+  /**
+   * Adds a record to a pinned page and unpins it. Actual free space of the page is reported to the free space
+   * map, also when the record does not fit.
+   */
+  private int addToPage(final Page page, final byte[] serializedKey, final byte[] serializedValue, final int hash)
+      throws IOException {
+    var slot = -1;
+    page.latch().writeLock().lock();
+    try {
+      slot = page.add(serializedKey, serializedValue, hash);
+      if (slot >= 0 && writeAheadLog != null) {
+        writeAheadLog.appendPut(page.pageNumber(), serializedKey, serializedValue);
+      }
+      freeSpaceMap.update(page.pageNumber(), page.freeSpace());
+    } finally {
+      page.latch().writeLock().unlock();
+      bufferPool.unpin(page, slot >= 0);
+    }
+    return slot;
   }
 
-  private byte[] removeRecord(final Serializable key) throws IOException {
-    final var serializedKey = serializer.serialize(key);
-    final var startFromPage = recordPageNumberCache.getOrDefault(key, 0L);
-    for (var pageNumber = startFromPage; pageNumber < numberOfPages; pageNumber++) {
-      page.loadPage(pageNumber);
-      final var serializedValue = page.removeFromCurrentPage(serializedKey);
+  private byte[] removeRecord(final byte[] serializedKey, final int hash) throws IOException {
+    for (var n = 0; ; n++) {
+      final var location = index.get(hash, n);
+      if (location == HashIndex.NOT_FOUND) {
+        return null;
+      }
+      final var serializedValue = removeFromPage(location, serializedKey, hash);
       if (serializedValue != null) {
         return serializedValue;
       }
     }
-    return null;
   }
 
-  private void addNextPage() {
-    if (numberOfPages == maxNrPages) {
+  /**
+   * @return value of the removed record, or null when there is no record of given key at given location
+   */
+  private byte[] removeFromPage(final long location, final byte[] serializedKey, final int hash)
+      throws IOException {
+    final var slot = HashIndex.recordSlotOf(location);
+    final var page = bufferPool.pin(HashIndex.pageNumberOf(location));
+    byte[] serializedValue = null;
+    page.latch().writeLock().lock();
+    try {
+      serializedValue = page.remove(slot, serializedKey, hash);
+      if (serializedValue != null) {
+        if (writeAheadLog != null) {
+          writeAheadLog.appendRemove(page.pageNumber(), slot, serializedKey);
+        }
+        freeSpaceMap.update(page.pageNumber(), page.freeSpace());
+      }
+    } finally {
+      page.latch().writeLock().unlock();
+      bufferPool.unpin(page, serializedValue != null);
+    }
+    if (serializedValue != null) {
+      index.remove(hash, location);
+    }
+    return serializedValue;
+  }
+
+  /**
+   * @return the value itself when its record fits into a page, otherwise pointer to the overflow chain it was
+   *     written to; with write-ahead log the chain is forced before the pointer is logged
+   * @throws IllegalArgumentException
+   *           when even the key does not fit into a page
+   */
+  private byte[] storedValue(final byte[] serializedKey, final byte[] serializedValue) throws IOException {
+    if (Page.recordFits(pageSize, serializedKey, serializedValue)) {
+      return serializedValue;
+    }
+    OverflowFile.checkKeyFits(pageSize, serializedKey);
+    final var overflow = overflowFile();
+    final var pointer = overflow.write(serializedValue);
+    if (writeAheadLog != null || options.syncOnFlush()) {
+      overflow.force();
+    }
+    return pointer;
+  }
+
+  private OverflowFile overflowFile() throws IOException {
+    if (overflowFile == null) {
+      appendLock.lock();
+      try {
+        if (overflowFile == null) {
+          overflowFile = new OverflowFile(overflowPath, pageSize, options.pageChecksums());
+        }
+      } finally {
+        appendLock.unlock();
+      }
+    }
+    return overflowFile;
+  }
+
+  /**
+   * @return value of the overflow chain the stored value points to, or the stored value itself
+   */
+  private byte[] overflowValue(final byte[] storedValue) throws IOException {
+    return OverflowFile.isPointer(storedValue) ? overflowFile.read(ByteBuffer.wrap(storedValue)) : storedValue;
+  }
+
+  /**
+   * Reads and frees the overflow chain of a removed record, callers hold its key lock.
+   */
+  private byte[] takeOverflowValue(final byte[] storedValue) throws IOException {
+    final var value = overflowValue(storedValue);
+    freeOverflowChain(storedValue);
+    return value;
+  }
+
+  private void freeOverflowChain(final byte[] storedValue) throws IOException {
+    if (OverflowFile.isPointer(storedValue)) {
+      overflowFile.free(ByteBuffer.wrap(storedValue));
+    }
+  }
+
+  /**
+   * Lets new chains reuse pages of freed ones once removals of their records are written. Open cursors may still
+   * read a chain of a record removed after they copied its page, so pages are kept until they are closed.
+   */
+  private void releaseFreedOverflowPages() throws IOException {
+    if (overflowFile != null && openCursors.get() == 0) {
+      overflowFile.releaseFreedPages();
+    }
+  }
+
+  private byte[] serialize(final Serializable object) throws IOException {
+    final var serializer = serializers.borrowObject().join();
+    try {
+      return serializer.serialize(object);
+    } finally {
+      serializers.returnObject(serializer);
+    }
+  }
+
+  private Object deserialize(final byte[] serializedObject) throws IOException, ClassNotFoundException {
+    final var serializer = serializers.borrowObject().join();
+    try {
+      return serializer.deserialize(serializedObject);
+    } finally {
+      serializers.returnObject(serializer);
+    }
+  }
+
+  private Object deserialize(final ByteBuffer serializedObject) throws IOException, ClassNotFoundException {
+    final var serializer = serializers.borrowObject().join();
+    try {
+      return serializer.deserialize(serializedObject.duplicate());
+    } finally {
+      serializers.returnObject(serializer);
+    }
+  }
+
+  /**
+   * Copies up to {@link #CURSOR_READ_AHEAD_PAGES} consecutive pages into its own buffer, holding each page latch
+   * only for the copy, and walks their records without further locking.
+   */
+  private final class HeapFileCursor implements Cursor {
+    private final Page[] window = new Page[CURSOR_READ_AHEAD_PAGES];
+    private long nextPageNumber;
+    private int nrOfPagesInWindow;
+    private int pageInWindow;
+    private int slot = -1;
+    private boolean closed;
+
+    private HeapFileCursor() {
+      final var buffer = ByteBuffer.allocate(CURSOR_READ_AHEAD_PAGES * pageSize);
+      for (var i = 0; i < window.length; i++) {
+        buffer.limit((i + 1) * pageSize).position(i * pageSize);
+        window[i] = new Page(buffer.slice(), pageSize);
+      }
+    }
+
+    @Override
+    public boolean next() throws IOException {
+      if (closed) {
+        return false;
+      }
+      while (true) {
+        if (pageInWindow < nrOfPagesInWindow) {
+          slot = window[pageInWindow].nextRecordSlot(slot + 1);
+          if (slot >= 0) {
+            return true;
+          }
+          pageInWindow++;
+        } else if (!readAhead()) {
+          return false;
+        }
+      }
+    }
+
+    @Override
+    public Object key() throws IOException, ClassNotFoundException {
+      return deserialize(current().keySlice(slot));
+    }
+
+    @Override
+    public Object value() throws IOException, ClassNotFoundException {
+      final var serializedValue = current().valueSlice(slot);
+      if (OverflowFile.isPointer(serializedValue)) {
+        return deserialize(overflowFile.read(serializedValue));
+      }
+      return deserialize(serializedValue);
+    }
+
+    @Override
+    public void close() {
+      if (!closed) {
+        closed = true;
+        openCursors.decrementAndGet();
+      }
+    }
+
+    private Page current() {
+      if (closed || slot < 0 || pageInWindow >= nrOfPagesInWindow) {
+        throw new IllegalStateException("Cursor is not positioned on a record.");
+      }
+      return window[pageInWindow];
+    }
+
+    private boolean readAhead() throws IOException {
+      final var lastPageNumber = Math.min(numberOfPages, nextPageNumber + window.length);
+      nrOfPagesInWindow = 0;
+      pageInWindow = 0;
+      slot = -1;
+      for (; nextPageNumber < lastPageNumber; nextPageNumber++) {
+        final var page = bufferPool.pin(nextPageNumber);
+        page.latch().readLock().lock();
+        try {
+          window[nrOfPagesInWindow++].byteBuffer().duplicate().clear().put(page.byteBuffer().duplicate().clear());
+        } finally {
+          page.latch().readLock().unlock();
+          bufferPool.unpin(page, false);
+        }
+      }
+      return nrOfPagesInWindow > 0;
+    }
+  }
+
+  private static final class BatchRecord {
+    private final byte[] key;
+    private final int hash;
+    private byte[] value;
+    private byte[] removedValue;
+
+    private BatchRecord(final byte[] key, final byte[] value) {
+      this.key = key;
+      this.hash = HashIndex.hash(key);
+      this.value = value;
+    }
+  }
+
+  private static final class Candidate {
+    private final long location;
+    private final BatchRecord record;
+
+    private Candidate(final long location, final BatchRecord record) {
+      this.location = location;
+      this.record = record;
+    }
+  }
+
+  private static final class PageCandidates {
+    private final long pageNumber;
+    private final List<Candidate> candidates = new ArrayList<>();
+
+    private PageCandidates(final long pageNumber) {
+      this.pageNumber = pageNumber;
+    }
+  }
+
+  /**
+   * Waits for the log records of a finished modification, then flushes or checkpoints when thresholds are
+   * exceeded. Waiting for all records appended so far lets concurrent writers share log forces.
+   */
+  private void afterModification(final boolean modified) throws IOException {
+    if (writeAheadLog != null && modified) {
+      writeAheadLog.sync();
+    }
+    if (writeAheadLog != null && writeAheadLog.size() >= options.checkpointThreshold()) {
+      checkpoint();
+    } else if (bufferPool.dirtyBytes() >= options.flushThreshold()) {
+      flush();
+    }
+  }
+
+  private void checkpoint() throws IOException {
+    modificationLock.writeLock().lock();
+    try {
+      bufferPool.flushAll();
+      pageFile.force();
+      writeAheadLog.truncate();
+      freeSpaceMap.save();
+      releaseFreedOverflowPages();
+    } finally {
+      modificationLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Callers hold the append lock, or have exclusive access during start up.
+   */
+  private Page addNextPage() throws IOException {
+    if (numberOfPages >= maxNrPages) {
       throw new TooManyPages(maxNrPages);
     }
-    page.createNewPage(numberOfPages);
+    if (writeAheadLog != null) {
+      writeAheadLog.appendNewPage(numberOfPages);
+    }
+    final var page = bufferPool.pinNew(numberOfPages);
+    freeSpaceMap.update(numberOfPages, page.freeSpace());
     numberOfPages++;
+    return page;
   }
 }
@@ -0,0 +1,351 @@
+package introdb.heap;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+/**
+ * Sequential redo log of heap file page modifications.
+ * <p>
+ * Every record is {@code [body length][CRC32C of body][body]}, where body starts with record type and page
+ * number. Before a page is written to the heap file its full image is appended to the log, so a page torn by
+ * a crash can be restored from the log. The log is emptied at checkpoint, once all pages are written and
+ * forced to the heap file.
+ * <p>
+ * Records are appended to an in-memory buffer. {@link #awaitDurable(long)} implements group commit: the
+ * first waiting thread writes and forces everything appended so far, the others wait for it to finish.
+ */
+final class WriteAheadLog implements Closeable {
+  private static final byte PUT = 1;
+  private static final byte REMOVE = 2;
+  private static final byte NEW_PAGE = 3;
+  private static final byte PAGE_IMAGE = 4;
+
+  private static final int RECORD_HEADER_BYTES = 2 * Integer.BYTES;
+  private static final int BODY_HEADER_BYTES = Byte.BYTES + Long.BYTES;
+  private static final int INITIAL_BUFFER_CAPACITY = 64 * 1024;
+
+  /**
+   * Receives log records which have to be redone during recovery.
+   */
+  interface Replayer {
+
+    void newPage(long pageNumber) throws IOException;
+
+    void pageImage(long pageNumber, ByteBuffer image) throws IOException;
+
+    void put(long pageNumber, byte[] key, byte[] value) throws IOException;
+
+    void remove(long pageNumber, int slot, byte[] key) throws IOException;
+
+  }
+
+  private final FileChannel fileChannel;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition durable = lock.newCondition();
+  private final CRC32C crc = new CRC32C();
+  private ByteBuffer appendBuffer = ByteBuffer.allocate(INITIAL_BUFFER_CAPACITY);
+  private ByteBuffer writeBuffer = ByteBuffer.allocate(INITIAL_BUFFER_CAPACITY);
+  private int recordStart;
+  private IOException failure;
+  private long filePosition;
+  private long appendedLsn;
+  private long durableLsn;
+  private boolean writing;
+
+  WriteAheadLog(final Path path) throws IOException {
+    this.fileChannel =
+        FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    this.filePosition = validLength();
+    fileChannel.truncate(filePosition);
+    this.appendedLsn = filePosition;
+    this.durableLsn = filePosition;
+  }
+
+  static Path pathFor(final Path heapFilePath) {
+    return heapFilePath.resolveSibling(heapFilePath.getFileName() + ".wal");
+  }
+
+  long appendNewPage(final long pageNumber) {
+    lock.lock();
+    try {
+      startRecord(NEW_PAGE, pageNumber, 0);
+      return endRecord();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  long appendPut(final long pageNumber, final byte[] key, final byte[] value) {
+    lock.lock();
+    try {
+      startRecord(PUT, pageNumber, 2 * Integer.BYTES + key.length + value.length)
+          .putInt(key.length)
+          .put(key)
+          .putInt(value.length)
+          .put(value);
+      return endRecord();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  long appendRemove(final long pageNumber, final int slot, final byte[] key) {
+    lock.lock();
+    try {
+      startRecord(REMOVE, pageNumber, 2 * Integer.BYTES + key.length)
+          .putInt(slot)
+          .putInt(key.length)
+          .put(key);
+      return endRecord();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  long appendPageImage(final Page page) {
+    final var image = page.byteBuffer().duplicate().clear();
+    lock.lock();
+    try {
+      startRecord(PAGE_IMAGE, page.pageNumber(), image.remaining()).put(image);
+      return endRecord();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Blocks until all records up to given log sequence number are forced to the log file.
+   */
+  void awaitDurable(final long lsn) throws IOException {
+    lock.lock();
+    try {
+      while (durableLsn < lsn) {
+        if (writing) {
+          durable.awaitUninterruptibly();
+        } else {
+          writeAppendedRecords();
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Blocks until all appended records are forced to the log file.
+   */
+  void sync() throws IOException {
+    final long lsn;
+    lock.lock();
+    try {
+      lsn = appendedLsn;
+    } finally {
+      lock.unlock();
+    }
+    awaitDurable(lsn);
+  }
+
+  /**
+   * @return bytes of records appended since the last write of the log was started
+   */
+  int bufferedBytes() {
+    lock.lock();
+    try {
+      return appendBuffer.position();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  long size() {
+    lock.lock();
+    try {
+      return appendedLsn - durableLsn + filePosition;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Drops all records, callers have to make sure that effects of all of them are already forced to the heap file
+   * and that nothing is appended concurrently.
+   */
+  void truncate() throws IOException {
+    sync();
+    lock.lock();
+    try {
+      while (writing) {
+        durable.awaitUninterruptibly();
+      }
+      fileChannel.truncate(0);
+      fileChannel.force(false);
+      filePosition = 0;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Passes records to replayer in log order. Records of a page appended before its last image are skipped,
+   * as the image already contains their effects.
+   */
+  void replay(final Replayer replayer) throws IOException {
+    final var lastImagePositions = new HashMap<Long, Long>();
+    forEachRecord((position, type, pageNumber, body) -> {
+      if (type == PAGE_IMAGE) {
+        lastImagePositions.put(pageNumber, position);
+      }
+    });
+    forEachRecord((position, type, pageNumber, body) -> {
+      if (position < lastImagePositions.getOrDefault(pageNumber, -1L)) {
+        return;
+      }
+      switch (type) {
+        case NEW_PAGE:
+          replayer.newPage(pageNumber);
+          break;
+        case PAGE_IMAGE:
+          replayer.pageImage(pageNumber, body);
+          break;
+        case PUT:
+          final var key = getBytes(body);
+          replayer.put(pageNumber, key, getBytes(body));
+          break;
+        case REMOVE:
+          final var slot = body.getInt();
+          replayer.remove(pageNumber, slot, getBytes(body));
+          break;
+        default:
+          throw new IllegalStateException("Unknown write-ahead log record type " + type);
+      }
+    });
+  }
+
+  @Override
+  public void close() throws IOException {
+    sync();
+    fileChannel.close();
+  }
+
+  private ByteBuffer startRecord(final byte type, final long pageNumber, final int payloadLength) {
+    final var recordLength = RECORD_HEADER_BYTES + BODY_HEADER_BYTES + payloadLength;
+    if (appendBuffer.remaining() < recordLength) {
+      final var grown = ByteBuffer.allocate(Math.max(2 * appendBuffer.capacity(), appendBuffer.position() + recordLength));
+      grown.put(appendBuffer.flip());
+      appendBuffer = grown;
+    }
+    recordStart = appendBuffer.position();
+    return appendBuffer
+        .putInt(BODY_HEADER_BYTES + payloadLength)
+        .putInt(0)
+        .put(type)
+        .putLong(pageNumber);
+  }
+
+  private long endRecord() {
+    final var end = appendBuffer.position();
+    crc.reset();
+    crc.update(appendBuffer.duplicate().position(recordStart + RECORD_HEADER_BYTES).limit(end));
+    appendBuffer.putInt(recordStart + Integer.BYTES, (int) crc.getValue());
+    appendedLsn += end - recordStart;
+    return appendedLsn;
+  }
+
+  private void writeAppendedRecords() throws IOException {
+    if (failure != null) {
+      throw new IOException("Write-ahead log is unusable after earlier write failure.", failure);
+    }
+    final var buffer = appendBuffer;
+    appendBuffer = writeBuffer.clear();
+    writeBuffer = buffer;
+    final var targetLsn = appendedLsn;
+    var position = filePosition;
+    writing = true;
+    lock.unlock();
+    try {
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        position += fileChannel.write(buffer, position);
+      }
+      fileChannel.force(false);
+    } catch (IOException e) {
+      failure = e;
+      throw e;
+    } finally {
+      lock.lock();
+      writing = false;
+      if (failure == null) {
+        filePosition = position;
+        durableLsn = targetLsn;
+      }
+      durable.signalAll();
+    }
+  }
+
+  private interface RecordVisitor {
+
+    void visit(long position, byte type, long pageNumber, ByteBuffer body) throws IOException;
+
+  }
+
+  private long validLength() throws IOException {
+    return forEachRecord((position, type, pageNumber, body) -> {
+    });
+  }
+
+  /**
+   * @return position right after the last valid record
+   */
+  private long forEachRecord(final RecordVisitor visitor) throws IOException {
+    final var size = fileChannel.size();
+    final var header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+    final var checksum = new CRC32C();
+    var position = 0L;
+    while (position + RECORD_HEADER_BYTES <= size) {
+      readFully(header.clear(), position);
+      final var bodyLength = header.getInt(0);
+      if (bodyLength < BODY_HEADER_BYTES || position + RECORD_HEADER_BYTES + bodyLength > size) {
+        break;
+      }
+      final var body = ByteBuffer.allocate(bodyLength);
+      readFully(body, position + RECORD_HEADER_BYTES);
+      checksum.reset();
+      checksum.update(body.flip());
+      if ((int) checksum.getValue() != header.getInt(Integer.BYTES)) {
+        break;
+      }
+      body.flip();
+      final var type = body.get();
+      final var pageNumber = body.getLong();
+      visitor.visit(position, type, pageNumber, body.slice());
+      position += RECORD_HEADER_BYTES + bodyLength;
+    }
+    return position;
+  }
+
+  private void readFully(final ByteBuffer buffer, final long position) throws IOException {
+    var current = position;
+    while (buffer.hasRemaining()) {
+      final var read = fileChannel.read(buffer, current);
+      if (read < 0) {
+        throw new IOException("Unexpected end of write-ahead log at " + current);
+      }
+      current += read;
+    }
+  }
+
+  private static byte[] getBytes(final ByteBuffer buffer) {
+    final var bytes = new byte[buffer.getInt()];
+    buffer.get(bytes);
+    return bytes;
+  }
+
+}
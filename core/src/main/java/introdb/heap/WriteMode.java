@@ -0,0 +1,16 @@
+package introdb.heap;
+
+enum WriteMode {
+
+  /**
+   * Page is written to the file as soon as a put or remove modifying it is done.
+   */
+  WRITE_THROUGH,
+
+  /**
+   * Modified pages stay in the buffer pool and are written when their frame is reused, on
+   * {@link Store#flush()}, or when a flush threshold is reached.
+   */
+  WRITE_BACK
+
+}
@@ -1,16 +1,22 @@
 package introdb.heap.pool;
 
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.ArrayDeque;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Pool of at most {@code maxPoolSize} objects. Borrowers which find the pool exhausted get a future completed
+ * by the thread returning the next object, so no thread is ever blocked waiting inside the pool.
+ */
 public class ObjectPool<T> {
 
   private final ObjectFactory<T> fcty;
   private final ObjectValidator<T> validator;
   private final int maxPoolSize;
-  private final ArrayBlockingQueue<T> queue;
-  private final AtomicInteger atomicCreatedCount;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final ArrayDeque<T> idle;
+  private final ArrayDeque<CompletableFuture<T>> waiters = new ArrayDeque<>();
+  private int createdCount;
 
   public ObjectPool(ObjectFactory<T> fcty, ObjectValidator<T> validator) {
     this(fcty, validator, 25);
@@ -20,8 +26,7 @@ public class ObjectPool<T> {
     this.fcty = fcty;
     this.validator = validator;
     this.maxPoolSize = maxPoolSize;
-    this.queue = new ArrayBlockingQueue<>(maxPoolSize);
-    this.atomicCreatedCount = new AtomicInteger(0);
+    this.idle = new ArrayDeque<>(maxPoolSize);
   }
 
   /**
@@ -32,45 +37,59 @@ public class ObjectPool<T> {
    * @return
    */
   public CompletableFuture<T> borrowObject() {
-    final var obj = queue.poll();
-    if (obj != null) {
-      return CompletableFuture.completedFuture(obj);
-    }
-    var createdCount = atomicCreatedCount.get();
-    while (createdCount < maxPoolSize) {
-      if (atomicCreatedCount.compareAndSet(createdCount, createdCount + 1)) {
-        return CompletableFuture.completedFuture(fcty.create());
-      }
-      createdCount = atomicCreatedCount.get();
-    }
-    return CompletableFuture.supplyAsync(this::takeFromQueueWithoutUncheckedException);
-  }
-
-  private T takeFromQueueWithoutUncheckedException() {
+    lock.lock();
     try {
-      return queue.take();
-    } catch (InterruptedException e) {
-      throw new RuntimeException(e);
+      final var obj = idle.poll();
+      if (obj != null) {
+        return CompletableFuture.completedFuture(obj);
+      }
+      if (createdCount == maxPoolSize) {
+        final var waiter = new CompletableFuture<T>();
+        waiters.add(waiter);
+        return waiter;
+      }
+      createdCount++;
+    } finally {
+      lock.unlock();
     }
+    return CompletableFuture.completedFuture(fcty.create());
   }
 
   public void returnObject(T object) {
-    if (validator.validate(object)) {
-      queue.add(object);
-    } else {
-      queue.add(fcty.create());
+    final var obj = validator.validate(object) ? object : fcty.create();
+    final CompletableFuture<T> waiter;
+    lock.lock();
+    try {
+      waiter = waiters.poll();
+      if (waiter == null) {
+        idle.add(obj);
+        return;
+      }
+    } finally {
+      lock.unlock();
     }
+    waiter.complete(obj);
   }
 
   public void shutdown() throws InterruptedException {
   }
 
   public int getPoolSize() {
-    return atomicCreatedCount.get();
+    lock.lock();
+    try {
+      return createdCount;
+    } finally {
+      lock.unlock();
+    }
   }
 
   public int getInUse() {
-    return atomicCreatedCount.get() - queue.size();
+    lock.lock();
+    try {
+      return createdCount - idle.size();
+    } finally {
+      lock.unlock();
+    }
   }
 
 }
@@ -0,0 +1,149 @@
+package introdb.heap;
+
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class AsyncHeapFileTest {
+
+	private Path heapFilePath;
+	private AsyncHeapFile heapFile;
+
+	@BeforeEach
+	public void setUp() throws IOException {
+		heapFilePath = Files.createTempFile("heap", "0001");
+		heapFile = new AsyncHeapFile(new UnorderedHeapFile(heapFilePath, 1024, 4*1024), 4, 1024);
+	}
+
+	@AfterEach
+	public void tearDown() throws IOException {
+		heapFile.close();
+		Files.delete(heapFilePath);
+		Files.deleteIfExists(FreeSpaceMap.pathFor(heapFilePath));
+	}
+
+	@Test
+	void put_get_and_remove_records() {
+
+		// given
+		var puts = new ArrayList<CompletableFuture<Void>>();
+		for(int i=0;i<500;i++) {
+			puts.add(heapFile.put(new Entry(i, "value" + i)));
+		}
+		CompletableFuture.allOf(puts.toArray(new CompletableFuture[0])).join();
+
+		// when
+		var removed = heapFile.remove(7).join();
+		var gets = new ArrayList<CompletableFuture<Object>>();
+		for(int i=0;i<500;i++) {
+			gets.add(heapFile.get(i));
+		}
+
+		// then
+		assertEquals("value7", removed);
+		for(int i=0;i<500;i++) {
+			assertEquals(i == 7 ? null : "value" + i, gets.get(i).join());
+		}
+
+	}
+
+	@Test
+	void fail_future_when_key_too_large() {
+
+		// when
+		var put = heapFile.put(new Entry(new byte[4*1024], "0"));
+
+		// then
+		assertThatThrownBy(put::join)
+		.isInstanceOf(CompletionException.class)
+		.hasCauseInstanceOf(IllegalArgumentException.class);
+		assertNull(heapFile.get(new byte[4*1024]).join());
+
+	}
+
+	@Test
+	void reject_requests_beyond_queue_depth() throws IOException, InterruptedException {
+
+		// given
+		heapFile.close();
+		var blockingStore = new BlockingStore(new UnorderedHeapFile(heapFilePath, 1024, 4*1024));
+		heapFile = new AsyncHeapFile(blockingStore, 1, 1);
+		var running = heapFile.get("running");
+		blockingStore.started.await();
+		var queued = heapFile.get("queued");
+
+		// when
+		var rejected = heapFile.get("rejected");
+
+		// then
+		assertThatThrownBy(rejected::join)
+		.hasCauseInstanceOf(RejectedExecutionException.class);
+		blockingStore.release.countDown();
+		assertNull(running.join());
+		assertNull(queued.join());
+
+	}
+
+	private static class BlockingStore implements Store {
+
+		private final Store store;
+		private final CountDownLatch started = new CountDownLatch(1);
+		private final CountDownLatch release = new CountDownLatch(1);
+
+		BlockingStore(Store store) {
+			this.store = store;
+		}
+
+		@Override
+		public Object get(Serializable key) throws IOException, ClassNotFoundException {
+			started.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return store.get(key);
+		}
+
+		@Override
+		public Object remove(Serializable key) throws IOException, ClassNotFoundException {
+			return store.remove(key);
+		}
+
+		@Override
+		public void put(Entry entry) throws IOException, ClassNotFoundException {
+			store.put(entry);
+		}
+
+		@Override
+		public Cursor cursor() throws IOException {
+			return store.cursor();
+		}
+
+		@Override
+		public void flush() throws IOException {
+			store.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			store.close();
+		}
+
+	}
+
+}
@@ -0,0 +1,195 @@
+package introdb.heap;
+
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class BPlusTreeFileTest {
+
+	private Path path;
+	private BPlusTreeFile treeFile;
+
+	@BeforeEach
+	public void setUp() throws IOException {
+		path = Files.createTempFile("tree", "0001");
+		treeFile = new BPlusTreeFile(path, 4*1024);
+	}
+
+	@AfterEach
+	public void tearDown() throws IOException {
+		treeFile.close();
+		Files.delete(path);
+	}
+
+	@Test
+	void put_update_get_and_remove_records_in_random_order() throws IOException, ClassNotFoundException {
+
+		// given
+		var keys = shuffledKeys(10_000);
+		for(var key : keys) {
+			treeFile.put(new Entry(key, value(key)));
+		}
+
+		// when
+		treeFile.put(new Entry(7, "updated"));
+		var removed = treeFile.remove(8);
+
+		// then
+		assertEquals(value(8), removed);
+		assertNull(treeFile.remove(8));
+		assertTrue(treeFile.height() > 2);
+		for(int i=0;i<10_000;i++) {
+			assertEquals(i == 7 ? "updated" : i == 8 ? null : value(i), treeFile.get(i));
+		}
+
+	}
+
+	@Test
+	void range_returns_keys_in_order() throws IOException, ClassNotFoundException {
+
+		// given
+		for(var key : shuffledKeys(5_000)) {
+			treeFile.put(new Entry(key - 2_500, value(key)));
+		}
+
+		// when
+		var keys = new ArrayList<Object>();
+		try(var cursor = treeFile.range(-100, 1_000)) {
+			while(cursor.next()) {
+				keys.add(cursor.key());
+				assertEquals(value((Integer)cursor.key() + 2_500), cursor.value());
+			}
+		}
+
+		// then
+		assertEquals(1_100, keys.size());
+		for(int i=0;i<keys.size();i++) {
+			assertEquals(i - 100, keys.get(i));
+		}
+
+	}
+
+	@Test
+	void range_of_strings_follows_their_natural_order() throws IOException, ClassNotFoundException {
+
+		// given
+		for(var key : List.of("b", "abc", "a", "ab", "c", "bb")) {
+			treeFile.put(new Entry(key, key));
+		}
+
+		// when
+		var keys = new ArrayList<Object>();
+		try(var cursor = treeFile.range("ab", "bb")) {
+			while(cursor.next()) {
+				keys.add(cursor.key());
+			}
+		}
+
+		// then
+		assertEquals(List.of("ab", "abc", "b"), keys);
+
+	}
+
+	@Test
+	void bulk_load_sorted_entries() throws IOException, ClassNotFoundException {
+
+		// given
+		var entries = new ArrayList<Entry>();
+		for(int i=0;i<20_000;i++) {
+			entries.add(new Entry(i, value(i)));
+		}
+
+		// when
+		treeFile.bulkLoad(entries);
+		treeFile.put(new Entry(20_000, value(20_000)));
+		treeFile.close();
+		treeFile = new BPlusTreeFile(path, 4*1024);
+
+		// then
+		for(int i=0;i<=20_000;i++) {
+			assertEquals(value(i), treeFile.get(i));
+		}
+		var count = 0;
+		try(var cursor = treeFile.cursor()) {
+			while(cursor.next()) {
+				assertEquals(count++, cursor.key());
+			}
+		}
+		assertEquals(20_001, count);
+
+	}
+
+	@Test
+	void bulk_load_rejects_unsorted_entries() throws IOException, ClassNotFoundException {
+
+		// when
+		assertThatThrownBy(() -> treeFile.bulkLoad(List.of(new Entry(1, "1"), new Entry(3, "3"), new Entry(2, "2"))))
+		.isInstanceOf(IllegalArgumentException.class);
+
+		// then
+		assertEquals("3", treeFile.get(3));
+		assertNull(treeFile.get(2));
+
+	}
+
+	@Test
+	void cursor_returns_records_not_modified_during_scan() throws IOException, ClassNotFoundException {
+
+		// given
+		for(int i=0;i<5_000;i+=2) {
+			treeFile.put(new Entry(i, value(i)));
+		}
+
+		// when
+		var keys = new ArrayList<Object>();
+		try(var cursor = treeFile.cursor()) {
+			while(cursor.next()) {
+				var key = (Integer)cursor.key();
+				keys.add(key);
+				treeFile.put(new Entry(key + 1, value(key + 1)));
+				treeFile.put(new Entry(5_000 - key - 1, value(key)));
+			}
+		}
+
+		// then
+		for(int i=0;i<5_000;i+=2) {
+			assertTrue(keys.contains(i));
+		}
+
+	}
+
+	@Test
+	void throw_exception_when_entry_too_large() {
+
+		assertThatThrownBy(() -> treeFile.put(new Entry("0", new byte[1024])))
+		.isInstanceOf(IllegalArgumentException.class);
+
+	}
+
+	private static List<Integer> shuffledKeys(int count) {
+		var keys = new ArrayList<Integer>();
+		for(int i=0;i<count;i++) {
+			keys.add(i);
+		}
+		Collections.shuffle(keys, new Random(1));
+		return keys;
+	}
+
+	private static String value(int i) {
+		return "value".repeat(16) + i;
+	}
+
+}
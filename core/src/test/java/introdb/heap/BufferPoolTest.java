@@ -0,0 +1,258 @@
+package introdb.heap;
+
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class BufferPoolTest {
+
+	private static final int PAGE_SIZE = 4 * 1024;
+
+	private Path heapFilePath;
+	private PageFile pageFile;
+
+	@BeforeEach
+	public void setUp() throws IOException {
+		heapFilePath = Files.createTempFile("heap", "0001");
+		pageFile = new ChannelPageFile(heapFilePath, PAGE_SIZE);
+	}
+
+	@AfterEach
+	public void tearDown() throws IOException {
+		pageFile.close();
+		Files.delete(heapFilePath);
+	}
+
+	@Test
+	void count_hits_misses_and_evictions() throws IOException {
+		// given
+		var bufferPool = new BufferPool(pageFile, PAGE_SIZE, 2, Eviction.LRU);
+		for (int i = 0; i < 3; i++) {
+			bufferPool.unpin(bufferPool.pinNew(i), true);
+		}
+
+		// when
+		bufferPool.unpin(bufferPool.pin(2), false);
+		bufferPool.unpin(bufferPool.pin(0), false);
+
+		// then
+		var stats = bufferPool.stats();
+		assertEquals(1, stats.hits());
+		assertEquals(1, stats.misses());
+		assertEquals(2, stats.evictions());
+	}
+
+	@Test
+	void read_back_evicted_page() throws IOException {
+		// given
+		var bufferPool = new BufferPool(pageFile, PAGE_SIZE, 2, Eviction.CLOCK);
+		var page = bufferPool.pinNew(0);
+		var offset = page.add(new byte[] { 1 }, new byte[] { 2, 3 });
+		bufferPool.unpin(page, true);
+
+		// when
+		for (int i = 1; i < 4; i++) {
+			bufferPool.unpin(bufferPool.pinNew(i), true);
+		}
+		page = bufferPool.pin(0);
+
+		// then
+		assertArrayEquals(new byte[] { 2, 3 }, page.find(offset, new byte[] { 1 }));
+	}
+
+	@Test
+	void keep_dirty_pages_in_memory_until_flush_in_write_back_mode() throws IOException {
+		// given
+		var bufferPool = new BufferPool(pageFile, PAGE_SIZE, 4, Eviction.LRU, WriteMode.WRITE_BACK, null);
+		for (int i = 0; i < 3; i++) {
+			var page = bufferPool.pinNew(i);
+			page.add(new byte[] { (byte) i }, new byte[] { 1 });
+			bufferPool.unpin(page, true);
+		}
+
+		// when
+		var dirtyBytesBeforeFlush = bufferPool.dirtyBytes();
+		var fileSizeBeforeFlush = pageFile.nrOfPages();
+		bufferPool.flushAll();
+
+		// then
+		assertEquals(3 * PAGE_SIZE, dirtyBytesBeforeFlush);
+		assertEquals(0, fileSizeBeforeFlush);
+		assertEquals(0, bufferPool.dirtyBytes());
+		assertEquals(3, pageFile.nrOfPages());
+	}
+
+	@Test
+	void fail_when_all_frames_are_pinned() throws IOException {
+		// given
+		var bufferPool = new BufferPool(pageFile, PAGE_SIZE, 2, Eviction.TWO_QUEUE);
+		bufferPool.pinNew(0);
+		bufferPool.pinNew(1);
+
+		// when
+		assertThatThrownBy(() -> bufferPool.pinNew(2))
+		.isInstanceOf(IllegalStateException.class);
+	}
+
+	@Test
+	void read_ahead_pages_of_sequential_scan() throws IOException {
+		// given
+		var writer = new BufferPool(pageFile, PAGE_SIZE, 2, Eviction.LRU, WriteMode.WRITE_THROUGH, null, true, 0);
+		for (int i = 0; i < 64; i++) {
+			var page = writer.pinNew(i);
+			page.add(new byte[] { (byte) i }, new byte[] { (byte) i });
+			writer.unpin(page, true);
+		}
+		var bufferPool = new BufferPool(pageFile, PAGE_SIZE, 64, Eviction.LRU, WriteMode.WRITE_THROUGH, null, true, 8);
+
+		// when
+		for (int i = 0; i < 32; i++) {
+			var page = bufferPool.pin(i);
+			assertArrayEquals(new byte[] { (byte) i }, page.find(0, new byte[] { (byte) i }));
+			bufferPool.unpin(page, false);
+		}
+
+		// then
+		var stats = bufferPool.stats();
+		// a scan from the first page is sequential right away, every ninth page is missed
+		assertEquals(4, stats.misses());
+		assertEquals(28, stats.hits());
+		assertEquals(32, stats.readAheads());
+	}
+
+	@Test
+	void fail_every_thread_pinning_page_corrupted_on_disk() throws Exception {
+		// given
+		var writer = new BufferPool(pageFile, PAGE_SIZE, 2, Eviction.LRU, WriteMode.WRITE_THROUGH, null, true, 0);
+		var page = writer.pinNew(0);
+		page.add(new byte[] { 1 }, new byte[] { 2 });
+		writer.unpin(page, true);
+		pageFile.write(0, ByteBuffer.wrap(new byte[] { 1, 2, 3 }));
+		var slowFile = new SlowPageFile(pageFile);
+		var bufferPool = new BufferPool(slowFile, PAGE_SIZE, 2, Eviction.LRU, WriteMode.WRITE_THROUGH, null, true, 0);
+		var executor = Executors.newFixedThreadPool(2);
+
+		try {
+			// when
+			var first = executor.submit(() -> bufferPool.pin(0));
+			slowFile.reading.await();
+			var second = executor.submit(() -> bufferPool.pin(0));
+			while (bufferPool.stats().hits() == 0) {
+				Thread.sleep(1);
+			}
+			slowFile.readAllowed.countDown();
+
+			// then
+			assertThatThrownBy(first::get).isInstanceOf(ExecutionException.class).hasCauseInstanceOf(CorruptedPage.class);
+			assertThatThrownBy(second::get).isInstanceOf(ExecutionException.class).hasCauseInstanceOf(CorruptedPage.class);
+			bufferPool.pinNew(1);
+			bufferPool.pinNew(2);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	void pin_cached_page_while_dirty_victim_is_written() throws Exception {
+		// given
+		var slowFile = new SlowPageFile(pageFile);
+		var bufferPool = new BufferPool(slowFile, PAGE_SIZE, 2, Eviction.LRU, WriteMode.WRITE_BACK, null);
+		for (int i = 0; i < 2; i++) {
+			bufferPool.unpin(bufferPool.pinNew(i), true);
+		}
+		var executor = Executors.newFixedThreadPool(2);
+
+		try {
+			// when
+			var evicting = executor.submit(() -> bufferPool.pinNew(2));
+			slowFile.writing.await();
+			var cached = executor.submit(() -> bufferPool.pin(1));
+
+			// then
+			assertEquals(1, cached.get(5, TimeUnit.SECONDS).pageNumber());
+			slowFile.writeAllowed.countDown();
+			assertEquals(2, evicting.get().pageNumber());
+			assertEquals(1, bufferPool.stats().evictions());
+		} finally {
+			slowFile.writeAllowed.countDown();
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Holds reads and writes until they are allowed, so other threads can pin pages meanwhile.
+	 */
+	private static final class SlowPageFile implements PageFile {
+		private final PageFile pageFile;
+		private final CountDownLatch reading = new CountDownLatch(1);
+		private final CountDownLatch readAllowed = new CountDownLatch(1);
+		private final CountDownLatch writing = new CountDownLatch(1);
+		private final CountDownLatch writeAllowed = new CountDownLatch(1);
+
+		private SlowPageFile(PageFile pageFile) {
+			this.pageFile = pageFile;
+		}
+
+		@Override
+		public void read(long pageNumber, ByteBuffer page) throws IOException {
+			reading.countDown();
+			try {
+				readAllowed.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			}
+			pageFile.read(pageNumber, page);
+		}
+
+		@Override
+		public void readPages(long firstPageNumber, ByteBuffer... pages) throws IOException {
+			pageFile.readPages(firstPageNumber, pages);
+		}
+
+		@Override
+		public void write(long pageNumber, ByteBuffer page) throws IOException {
+			writing.countDown();
+			try {
+				writeAllowed.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			}
+			pageFile.write(pageNumber, page);
+		}
+
+		@Override
+		public long nrOfPages() throws IOException {
+			return pageFile.nrOfPages();
+		}
+
+		@Override
+		public void truncate(long nrOfPages) throws IOException {
+			pageFile.truncate(nrOfPages);
+		}
+
+		@Override
+		public void force() throws IOException {
+			pageFile.force();
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+}
@@ -0,0 +1,157 @@
+package introdb.heap;
+
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class CompressedPageFileTest {
+
+	private static final int PAGE_SIZE = 4 * 1024;
+
+	private Path heapFilePath;
+
+	@BeforeEach
+	public void setUp() throws IOException {
+		heapFilePath = Files.createTempFile("heap", "0001");
+	}
+
+	@AfterEach
+	public void tearDown() throws IOException {
+		Files.delete(heapFilePath);
+		Files.deleteIfExists(CompressedPageFile.tablePathFor(heapFilePath));
+		Files.deleteIfExists(FreeSpaceMap.pathFor(heapFilePath));
+	}
+
+	@Test
+	void read_pages_written_with_every_compression() throws IOException {
+		for (var compression : PageCompression.values()) {
+			// given
+			try (var pageFile = new CompressedPageFile(heapFilePath, PAGE_SIZE, compression)) {
+				pageFile.write(0, textPage(0));
+				pageFile.write(1, randomPage(1));
+				pageFile.write(3, textPage(3));
+
+				// when
+				var page = ByteBuffer.allocate(PAGE_SIZE);
+				pageFile.read(2, page);
+
+				// then
+				assertEquals(ByteBuffer.allocate(PAGE_SIZE), page.flip());
+				assertEquals(textPage(0), read(pageFile, 0));
+				assertEquals(randomPage(1), read(pageFile, 1));
+				assertEquals(textPage(3), read(pageFile, 3));
+				assertEquals(4, pageFile.nrOfPages());
+			}
+			Files.delete(CompressedPageFile.tablePathFor(heapFilePath));
+			Files.write(heapFilePath, new byte[0]);
+		}
+	}
+
+	@Test
+	void recover_pages_written_after_table_was_saved() throws IOException {
+		// given
+		var copy = Files.createTempFile("heap", "0002");
+		try (var pageFile = new CompressedPageFile(heapFilePath, PAGE_SIZE, PageCompression.LZ4)) {
+			for (int i = 0; i < 10; i++) {
+				pageFile.write(i, textPage(i));
+			}
+			pageFile.force();
+			pageFile.write(3, textPage(30));
+			pageFile.write(12, randomPage(12));
+			pageFile.write(3, textPage(31));
+
+			// when
+			Files.copy(heapFilePath, copy, StandardCopyOption.REPLACE_EXISTING);
+			Files.copy(CompressedPageFile.tablePathFor(heapFilePath), CompressedPageFile.tablePathFor(copy));
+		}
+		try (var pageFile = new CompressedPageFile(copy, PAGE_SIZE, PageCompression.LZ4)) {
+
+			// then
+			assertEquals(13, pageFile.nrOfPages());
+			assertEquals(textPage(31), read(pageFile, 3));
+			assertEquals(randomPage(12), read(pageFile, 12));
+			assertEquals(textPage(9), read(pageFile, 9));
+		} finally {
+			Files.delete(copy);
+			Files.delete(CompressedPageFile.tablePathFor(copy));
+		}
+	}
+
+	@Test
+	void store_records_in_smaller_compressed_heap_file() throws IOException, ClassNotFoundException {
+		// given
+		var uncompressedPath = Files.createTempFile("heap", "0002");
+		try (var heapFile = new UnorderedHeapFile(uncompressedPath, 1024, PAGE_SIZE)) {
+			for (int i = 0; i < 1000; i++) {
+				heapFile.put(new Entry(i, value(i)));
+			}
+		}
+		var options = HeapFileOptions.defaults().withPageCompression(PageCompression.LZ4);
+		try (var heapFile = new UnorderedHeapFile(heapFilePath, 1024, PAGE_SIZE, options)) {
+			for (int i = 0; i < 1000; i++) {
+				heapFile.put(new Entry(i, value(i)));
+			}
+		}
+
+		// when
+		try (var heapFile = new UnorderedHeapFile(heapFilePath, 1024, PAGE_SIZE, options)) {
+
+			// then
+			for (int i = 0; i < 1000; i++) {
+				assertEquals(value(i), heapFile.get(i));
+			}
+			assertTrue(Files.size(heapFilePath) < Files.size(uncompressedPath) / 2);
+		} finally {
+			Files.delete(uncompressedPath);
+			Files.deleteIfExists(FreeSpaceMap.pathFor(uncompressedPath));
+		}
+	}
+
+	@Test
+	void throw_exception_when_opened_with_another_compression() throws IOException {
+		// given
+		try (var pageFile = new CompressedPageFile(heapFilePath, PAGE_SIZE, PageCompression.LZ4)) {
+			pageFile.write(0, textPage(0));
+		}
+
+		// then
+		assertThatThrownBy(() -> new CompressedPageFile(heapFilePath, PAGE_SIZE, PageCompression.DEFLATE))
+		.isInstanceOf(IllegalArgumentException.class);
+	}
+
+	private static ByteBuffer read(PageFile pageFile, long pageNumber) throws IOException {
+		var page = ByteBuffer.allocate(PAGE_SIZE);
+		pageFile.read(pageNumber, page);
+		return page.flip();
+	}
+
+	private static ByteBuffer textPage(int seed) {
+		var page = ByteBuffer.allocate(PAGE_SIZE);
+		for (int i = 0; page.hasRemaining(); i++) {
+			var text = value(seed * 1000 + i).getBytes();
+			page.put(text, 0, Math.min(text.length, page.remaining()));
+		}
+		return page.flip();
+	}
+
+	private static ByteBuffer randomPage(int seed) {
+		var bytes = new byte[PAGE_SIZE];
+		new Random(seed).nextBytes(bytes);
+		return ByteBuffer.wrap(bytes);
+	}
+
+	private static String value(int i) {
+		return "{\"id\":" + i + ",\"name\":\"user" + i + "\",\"active\":true,\"tags\":[\"a\",\"b\"]}";
+	}
+}
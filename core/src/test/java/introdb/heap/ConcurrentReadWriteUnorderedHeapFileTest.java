@@ -51,7 +51,9 @@ public class ConcurrentReadWriteUnorderedHeapFileTest {
 
 	@AfterEach
 	public void tearDown() throws IOException, InterruptedException {
+		heapFile.close();
 		Files.delete(heapFilePath);
+		Files.deleteIfExists(FreeSpaceMap.pathFor(heapFilePath));
 		
 		executors.shutdown();
 		executors.awaitTermination(1, TimeUnit.MINUTES);
@@ -82,6 +84,28 @@ public class ConcurrentReadWriteUnorderedHeapFileTest {
 		
 	}
 
+	@Test
+	public void concurrentWritesOfSameKeysLeaveOneRecordPerKey() throws Exception {
+
+		writersLatch = new CountDownLatch(nrOfWriters);
+
+		var ws = range(0, nrOfWriters)
+				.mapToObj(writersTasksWith(executors))
+				.collect(toList());
+
+		CompletableFuture.allOf(ws.toArray(new CompletableFuture[ws.size()])).get(5,TimeUnit.MINUTES);
+
+		for (int key = 0; key < 20; key++) {
+			Object removed = heapFile.remove(key);
+			if (removed != null && !removed.equals(Integer.valueOf(key))) {
+				fail("incorrect value removed from heap file");
+			}
+			if (heapFile.remove(key) != null) {
+				fail(format("more than one record stored for key %d", key));
+			}
+		}
+	}
+
 	private IntFunction<CompletableFuture<Void>> readersTasksWith(ExecutorService executorService) {
 		return (i) -> {
 			return new CompletableFuture<>()
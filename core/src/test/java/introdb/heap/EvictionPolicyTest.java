@@ -0,0 +1,62 @@
+package introdb.heap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+class EvictionPolicyTest {
+
+	@Test
+	void lru_evicts_least_recently_accessed_frame() {
+		// given
+		var policy = Eviction.LRU.newPolicy(3);
+		policy.pageLoaded(0, 10);
+		policy.pageLoaded(1, 11);
+		policy.pageLoaded(2, 12);
+
+		// when
+		policy.pageAccessed(0);
+
+		// then
+		assertEquals(1, policy.selectVictim(frame -> false));
+		assertEquals(0, policy.selectVictim(frame -> frame == 2));
+	}
+
+	@Test
+	void clock_gives_referenced_frames_second_chance() {
+		// given
+		var policy = Eviction.CLOCK.newPolicy(3);
+		policy.pageLoaded(0, 10);
+		policy.pageLoaded(1, 11);
+		policy.pageLoaded(2, 12);
+
+		// when
+		var first = policy.selectVictim(frame -> false);
+		policy.pageLoaded(first, 13);
+		policy.pageAccessed(first);
+
+		// then
+		assertEquals(0, first);
+		assertEquals(1, policy.selectVictim(frame -> false));
+	}
+
+	@Test
+	void two_queue_protects_pages_requested_again_after_eviction() {
+		// given
+		var policy = Eviction.TWO_QUEUE.newPolicy(4);
+		policy.pageLoaded(0, 10);
+		policy.pageLoaded(1, 11);
+		policy.pageLoaded(2, 12);
+		policy.pageLoaded(3, 13);
+
+		// when
+		var evicted = policy.selectVictim(frame -> false);
+		policy.pageLoaded(evicted, 10);
+
+		// then
+		assertEquals(0, evicted);
+		assertEquals(1, policy.selectVictim(frame -> false));
+		assertEquals(2, policy.selectVictim(frame -> false));
+		assertEquals(0, policy.selectVictim(frame -> frame == 3));
+	}
+}
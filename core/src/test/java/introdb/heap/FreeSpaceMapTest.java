@@ -0,0 +1,64 @@
+package introdb.heap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class FreeSpaceMapTest {
+
+	private static final int PAGE_SIZE = 4 * 1024;
+
+	private Path mapPath;
+	private FreeSpaceMap freeSpaceMap;
+
+	@BeforeEach
+	void setUp() throws IOException {
+		mapPath = Files.createTempFile("heap", "fsm");
+		freeSpaceMap = new FreeSpaceMap(mapPath, PAGE_SIZE);
+	}
+
+	@AfterEach
+	void tearDown() throws IOException {
+		freeSpaceMap.close();
+		Files.delete(mapPath);
+	}
+
+	@Test
+	void find_lowest_page_with_enough_free_space() {
+		// given
+		for (int pageNumber = 0; pageNumber < 5000; pageNumber++) {
+			freeSpaceMap.update(pageNumber, 100);
+		}
+		freeSpaceMap.update(3000, 2000);
+		freeSpaceMap.update(4000, 2000);
+
+		// when
+		var found = freeSpaceMap.find(1000);
+		var notFound = freeSpaceMap.find(3000);
+
+		// then
+		assertEquals(3000, found);
+		assertEquals(FreeSpaceMap.NOT_FOUND, notFound);
+	}
+
+	@Test
+	void load_saved_map() throws IOException {
+		// given
+		freeSpaceMap.update(0, 100);
+		freeSpaceMap.update(1, 2000);
+		freeSpaceMap.close();
+
+		// when
+		freeSpaceMap = new FreeSpaceMap(mapPath, PAGE_SIZE);
+
+		// then
+		assertEquals(2, freeSpaceMap.nrOfPages());
+		assertEquals(1, freeSpaceMap.find(1000));
+	}
+}
@@ -0,0 +1,66 @@
+package introdb.heap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class HashIndexTest {
+
+	private HashIndex index;
+
+	@BeforeEach
+	void setUp() {
+		index = new HashIndex();
+	}
+
+	@Test
+	void return_all_locations_with_colliding_hash() {
+		// given
+		index.add(7, 1L);
+		index.add(7, 2L);
+
+		// when
+		var first = index.get(7, 0);
+		var second = index.get(7, 1);
+		var third = index.get(7, 2);
+
+		// then
+		assertEquals(1L, first);
+		assertEquals(2L, second);
+		assertEquals(HashIndex.NOT_FOUND, third);
+	}
+
+	@Test
+	void keep_locations_reachable_after_removal_and_resize() {
+		// given
+		for (int i = 0; i < 10_000; i++) {
+			index.add(i * 31, i);
+		}
+
+		// when
+		for (int i = 0; i < 10_000; i += 2) {
+			assertTrue(index.remove(i * 31, i));
+		}
+
+		// then
+		assertEquals(5_000, index.size());
+		for (int i = 1; i < 10_000; i += 2) {
+			assertEquals(i, index.get(i * 31, 0));
+		}
+		for (int i = 0; i < 10_000; i += 2) {
+			assertEquals(HashIndex.NOT_FOUND, index.get(i * 31, 0));
+		}
+	}
+
+	@Test
+	void encode_page_number_and_record_slot_in_location() {
+		// when
+		var location = HashIndex.location(3_000_000_000L, 511);
+
+		// then
+		assertEquals(3_000_000_000L, HashIndex.pageNumberOf(location));
+		assertEquals(511, HashIndex.recordSlotOf(location));
+	}
+}
@@ -0,0 +1,249 @@
+package introdb.heap;
+
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class LinearHashFileTest {
+
+	private Path path;
+	private LinearHashFile hashFile;
+
+	@BeforeEach
+	public void setUp() throws IOException {
+		path = Files.createTempFile("hash", "0001");
+		hashFile = new LinearHashFile(path, 4*1024);
+	}
+
+	@AfterEach
+	public void tearDown() throws IOException {
+		hashFile.close();
+		Files.delete(path);
+		Files.deleteIfExists(LinearHashFile.overflowPathFor(path));
+		Files.deleteIfExists(LinearHashFile.metadataPathFor(path));
+	}
+
+	@Test
+	void put_update_get_and_remove_records() throws IOException, ClassNotFoundException {
+
+		// given
+		for(int i=0;i<10_000;i++) {
+			hashFile.put(new Entry(i, value(i)));
+		}
+
+		// when
+		hashFile.put(new Entry(7, "updated"));
+		var removed = hashFile.remove(8);
+
+		// then
+		assertEquals(value(8), removed);
+		assertNull(hashFile.remove(8));
+		for(int i=0;i<10_000;i++) {
+			assertEquals(i == 7 ? "updated" : i == 8 ? null : value(i), hashFile.get(i));
+		}
+
+	}
+
+	@Test
+	void buckets_grow_with_records_and_keep_overflow_chains_short() throws IOException, ClassNotFoundException {
+
+		// when
+		for(int i=0;i<10_000;i++) {
+			hashFile.put(new Entry(i, value(i)));
+		}
+
+		// then
+		assertTrue(hashFile.nrOfBuckets() > 10_000 * 100 / (4*1024));
+		assertTrue(hashFile.nrOfOverflowPages() < hashFile.nrOfBuckets());
+
+	}
+
+	@Test
+	void buckets_grow_with_small_records_and_keep_overflow_chains_short() throws IOException, ClassNotFoundException {
+
+		// when
+		for(int i=0;i<100_000;i++) {
+			hashFile.put(new Entry(i, i));
+		}
+
+		// then
+		assertTrue(hashFile.nrOfOverflowPages() < hashFile.nrOfBuckets() / 3);
+		for(int i=0;i<100_000;i++) {
+			assertEquals(i, hashFile.get(i));
+		}
+
+	}
+
+	@Test
+	void reuse_overflow_pages_of_removed_records() throws IOException, ClassNotFoundException {
+
+		// given
+		for(int i=0;i<10_000;i++) {
+			hashFile.put(new Entry(i, value(i)));
+		}
+
+		// when
+		for(int i=0;i<10_000;i++) {
+			hashFile.remove(i);
+		}
+		var overflowPagesAfterRemoval = hashFile.nrOfOverflowPages();
+		for(int i=0;i<10_000;i++) {
+			hashFile.put(new Entry(i, value(i)));
+		}
+		hashFile.close();
+
+		// then
+		assertEquals(0, overflowPagesAfterRemoval);
+		assertTrue(Files.size(LinearHashFile.overflowPathFor(path)) <= hashFile.nrOfBuckets() * 4L * 1024);
+
+	}
+
+	@Test
+	void get_records_after_reopen() throws IOException, ClassNotFoundException {
+
+		// given
+		for(int i=0;i<5_000;i++) {
+			hashFile.put(new Entry(i, value(i)));
+		}
+		var nrOfBuckets = hashFile.nrOfBuckets();
+		hashFile.close();
+
+		// when
+		hashFile = new LinearHashFile(path, 4*1024);
+		hashFile.put(new Entry(5_000, value(5_000)));
+
+		// then
+		assertTrue(hashFile.nrOfBuckets() >= nrOfBuckets);
+		for(int i=0;i<=5_000;i++) {
+			assertEquals(value(i), hashFile.get(i));
+		}
+
+	}
+
+	@Test
+	void keep_load_and_free_overflow_pages_of_closed_store() throws IOException, ClassNotFoundException {
+
+		// given
+		var otherPath = Files.createTempFile("hash", "0002");
+		try(var notReopened = new LinearHashFile(otherPath, 4*1024)) {
+			for(var store : new LinearHashFile[] { hashFile, notReopened }) {
+				for(int i=0;i<10_000;i++) {
+					store.put(new Entry(i, value(i)));
+				}
+				for(int i=0;i<5_000;i++) {
+					store.remove(i);
+				}
+			}
+			hashFile.close();
+
+			// when
+			hashFile = new LinearHashFile(path, 4*1024);
+			for(var store : new LinearHashFile[] { hashFile, notReopened }) {
+				for(int i=10_000;i<20_000;i++) {
+					store.put(new Entry(i, value(i)));
+				}
+				store.flush();
+			}
+
+			// then
+			assertEquals(notReopened.nrOfBuckets(), hashFile.nrOfBuckets());
+			assertEquals(notReopened.nrOfOverflowPages(), hashFile.nrOfOverflowPages());
+			assertEquals(Files.size(LinearHashFile.overflowPathFor(otherPath)),
+					Files.size(LinearHashFile.overflowPathFor(path)));
+			for(int i=5_000;i<20_000;i++) {
+				assertEquals(value(i), hashFile.get(i));
+			}
+		} finally {
+			Files.delete(otherPath);
+			Files.delete(LinearHashFile.overflowPathFor(otherPath));
+			Files.delete(LinearHashFile.metadataPathFor(otherPath));
+		}
+
+	}
+
+	@Test
+	void get_records_moved_by_splits_after_reopen_without_flush() throws IOException, ClassNotFoundException {
+
+		// given
+		hashFile.put(new Entry(0, value(0)));
+		hashFile.flush();
+		var nrOfBuckets = hashFile.nrOfBuckets();
+		for(int i=1;i<5_000;i++) {
+			hashFile.put(new Entry(i, value(i)));
+		}
+
+		// when
+		var copy = Files.createTempFile("hash", "0002");
+		Files.copy(path, copy, StandardCopyOption.REPLACE_EXISTING);
+		Files.copy(LinearHashFile.overflowPathFor(path), LinearHashFile.overflowPathFor(copy));
+		Files.copy(LinearHashFile.metadataPathFor(path), LinearHashFile.metadataPathFor(copy));
+		try(var reopened = new LinearHashFile(copy, 4*1024)) {
+
+			// then
+			assertTrue(reopened.nrOfBuckets() > nrOfBuckets);
+			for(int i=0;i<5_000;i++) {
+				assertEquals(value(i), reopened.get(i));
+			}
+			var keys = new HashSet<Object>();
+			try(var cursor = reopened.cursor()) {
+				while(cursor.next()) {
+					assertTrue(keys.add(cursor.key()));
+				}
+			}
+			assertEquals(5_000, keys.size());
+		} finally {
+			Files.delete(copy);
+			Files.delete(LinearHashFile.overflowPathFor(copy));
+			Files.delete(LinearHashFile.metadataPathFor(copy));
+		}
+
+	}
+
+	@Test
+	void cursor_returns_every_record_once() throws IOException, ClassNotFoundException {
+
+		// given
+		for(int i=0;i<3_000;i++) {
+			hashFile.put(new Entry(i, value(i)));
+		}
+
+		// when
+		var keys = new HashSet<Object>();
+		try(var cursor = hashFile.cursor()) {
+			while(cursor.next()) {
+				assertTrue(keys.add(cursor.key()));
+				hashFile.put(new Entry(10_000 + keys.size(), value(keys.size())));
+			}
+		}
+
+		// then
+		for(int i=0;i<3_000;i++) {
+			assertTrue(keys.contains(i));
+		}
+
+	}
+
+	@Test
+	void throw_exception_when_entry_too_large() {
+
+		assertThatThrownBy(() -> hashFile.put(new Entry("0", new byte[4*1024 - 64])))
+		.isInstanceOf(IllegalArgumentException.class);
+
+	}
+
+	private static String value(int i) {
+		return "value".repeat(16) + i;
+	}
+
+}
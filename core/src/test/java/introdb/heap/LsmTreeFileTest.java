@@ -0,0 +1,258 @@
+package introdb.heap;
+
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class LsmTreeFileTest {
+
+	private static final LsmOptions OPTIONS = LsmOptions.defaults()
+			.withMemtableSize(16*1024)
+			.withTableSize(32*1024)
+			.withBlockSize(1024);
+
+	private Path directory;
+	private LsmTreeFile lsmFile;
+
+	@BeforeEach
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("lsm");
+		lsmFile = new LsmTreeFile(directory, OPTIONS);
+	}
+
+	@AfterEach
+	public void tearDown() throws IOException {
+		lsmFile.close();
+		deleteDirectory(directory);
+	}
+
+	@Test
+	void put_update_get_and_remove_records() throws IOException, ClassNotFoundException {
+
+		// given
+		for(int i=0;i<5_000;i++) {
+			lsmFile.put(new Entry(i, value(i)));
+		}
+
+		// when
+		lsmFile.put(new Entry(7, "updated"));
+		var removed = lsmFile.remove(8);
+
+		// then
+		assertEquals(value(8), removed);
+		assertNull(lsmFile.remove(8));
+		for(int i=0;i<5_000;i++) {
+			assertEquals(i == 7 ? "updated" : i == 8 ? null : value(i), lsmFile.get(i));
+		}
+
+	}
+
+	@Test
+	void leveled_compaction_moves_tables_to_lower_levels() throws IOException, ClassNotFoundException {
+
+		// when
+		for(int round=0;round<5;round++) {
+			for(int i=0;i<5_000;i++) {
+				lsmFile.put(new Entry(i, value(round * i)));
+			}
+		}
+		lsmFile.awaitBackgroundWork();
+
+		// then
+		var tablesPerLevel = lsmFile.nrOfTablesPerLevel();
+		assertTrue(tablesPerLevel.length > 1);
+		assertTrue(tablesPerLevel[0] < OPTIONS.compactionTrigger());
+		for(int i=0;i<5_000;i++) {
+			assertEquals(value(4 * i), lsmFile.get(i));
+		}
+
+	}
+
+	@Test
+	void size_tiered_compaction_merges_tables_of_similar_size() throws IOException, ClassNotFoundException {
+
+		// given
+		lsmFile.close();
+		deleteDirectory(directory);
+		lsmFile = new LsmTreeFile(directory, OPTIONS.withCompactionPolicy(CompactionPolicy.SIZE_TIERED));
+
+		// when
+		for(int round=0;round<5;round++) {
+			for(int i=0;i<5_000;i++) {
+				lsmFile.put(new Entry(i, value(round * i)));
+			}
+		}
+		for(int i=0;i<5_000;i+=2) {
+			lsmFile.remove(i);
+		}
+		lsmFile.awaitBackgroundWork();
+
+		// then
+		var tablesPerLevel = lsmFile.nrOfTablesPerLevel();
+		assertEquals(1, tablesPerLevel.length);
+		// about 200 memtables end up in a few tiers of at most three tables each
+		assertTrue(tablesPerLevel[0] < 4 * OPTIONS.compactionTrigger());
+		for(int i=0;i<5_000;i++) {
+			assertEquals(i % 2 == 0 ? null : value(4 * i), lsmFile.get(i));
+		}
+
+	}
+
+	@Test
+	void get_records_after_reopen() throws IOException, ClassNotFoundException {
+
+		// given
+		for(int i=0;i<3_000;i++) {
+			lsmFile.put(new Entry(i, value(i)));
+		}
+		lsmFile.remove(5);
+		lsmFile.close();
+
+		// when
+		lsmFile = new LsmTreeFile(directory, OPTIONS);
+		lsmFile.put(new Entry(3_000, value(3_000)));
+
+		// then
+		for(int i=0;i<=3_000;i++) {
+			assertEquals(i == 5 ? null : value(i), lsmFile.get(i));
+		}
+
+	}
+
+	@Test
+	void recover_records_of_memtables_from_their_logs() throws IOException, ClassNotFoundException {
+
+		// given
+		for(int i=0;i<1_000;i++) {
+			lsmFile.put(new Entry(i, value(i)));
+		}
+		lsmFile.remove(5);
+		lsmFile.flush();
+		lsmFile.awaitBackgroundWork();
+
+		// when
+		var copy = Files.createTempDirectory("lsm");
+		try(Stream<Path> files = Files.list(directory)) {
+			for(var file : (Iterable<Path>) files::iterator) {
+				Files.copy(file, copy.resolve(file.getFileName()));
+			}
+		}
+		var recovered = new LsmTreeFile(copy, OPTIONS);
+
+		// then
+		try {
+			for(int i=0;i<1_000;i++) {
+				assertEquals(i == 5 ? null : value(i), recovered.get(i));
+			}
+		} finally {
+			recovered.close();
+			deleteDirectory(copy);
+		}
+
+	}
+
+	@Test
+	void recover_records_written_out_of_full_log_buffer_without_flush() throws IOException, ClassNotFoundException {
+
+		// given
+		lsmFile.close();
+		deleteDirectory(directory);
+		lsmFile = new LsmTreeFile(directory, OPTIONS.withMemtableSize(64*1024*1024));
+		for(int i=0;i<30_000;i++) {
+			lsmFile.put(new Entry(i, value(i)));
+		}
+
+		// when
+		var copy = Files.createTempDirectory("lsm");
+		try(Stream<Path> files = Files.list(directory)) {
+			for(var file : (Iterable<Path>) files::iterator) {
+				Files.copy(file, copy.resolve(file.getFileName()));
+			}
+		}
+		var recovered = new LsmTreeFile(copy, OPTIONS);
+
+		// then
+		try {
+			var nrOfRecovered = 0;
+			while(nrOfRecovered < 30_000 && recovered.get(nrOfRecovered) != null) {
+				assertEquals(value(nrOfRecovered), recovered.get(nrOfRecovered));
+				nrOfRecovered++;
+			}
+			assertTrue(nrOfRecovered > 0);
+			for(int i=nrOfRecovered;i<30_000;i++) {
+				assertNull(recovered.get(i));
+			}
+		} finally {
+			recovered.close();
+			deleteDirectory(copy);
+		}
+
+	}
+
+	@Test
+	void cursor_returns_records_in_key_order_without_removed_ones() throws IOException, ClassNotFoundException {
+
+		// given
+		for(int i=0;i<3_000;i++) {
+			lsmFile.put(new Entry("key" + (10_000 + i), value(i)));
+		}
+		for(int i=0;i<3_000;i+=3) {
+			lsmFile.remove("key" + (10_000 + i));
+		}
+
+		// when
+		var keys = new ArrayList<Object>();
+		try(var cursor = lsmFile.cursor()) {
+			while(cursor.next()) {
+				keys.add(cursor.key());
+				assertEquals(value(keys.size() - 1 + (keys.size() - 1) / 2 + 1), cursor.value());
+			}
+			assertFalse(cursor.next());
+		}
+
+		// then
+		assertEquals(2_000, keys.size());
+		for(int i=1;i<keys.size();i++) {
+			assertTrue(((String) keys.get(i - 1)).compareTo((String) keys.get(i)) < 0);
+		}
+
+	}
+
+	@Test
+	void throw_exception_when_opened_with_another_compaction_policy() throws IOException {
+
+		// given
+		lsmFile.put(new Entry(1, value(1)));
+		lsmFile.close();
+
+		// then
+		assertThatThrownBy(() -> new LsmTreeFile(directory, OPTIONS.withCompactionPolicy(CompactionPolicy.SIZE_TIERED)))
+		.isInstanceOf(IllegalArgumentException.class);
+		lsmFile = new LsmTreeFile(directory, OPTIONS);
+
+	}
+
+	private static void deleteDirectory(Path directory) throws IOException {
+		try(Stream<Path> files = Files.walk(directory)) {
+			files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+
+	private static String value(int i) {
+		return "value".repeat(16) + i;
+	}
+
+}
@@ -0,0 +1,150 @@
+package introdb.heap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class MappedPageFileTest {
+
+	private static final int PAGE_SIZE = 4 * 1024;
+	private static final long CHUNK_SIZE = 4 * PAGE_SIZE;
+
+	private Path heapFilePath;
+
+	@BeforeEach
+	public void setUp() throws IOException {
+		heapFilePath = Files.createTempFile("heap", "0001");
+	}
+
+	@AfterEach
+	public void tearDown() throws IOException {
+		Files.delete(heapFilePath);
+	}
+
+	@Test
+	void read_pages_written_across_chunks() throws IOException {
+		// given
+		try (var pageFile = new MappedPageFile(heapFilePath, PAGE_SIZE, CHUNK_SIZE)) {
+			for (int i = 0; i < 10; i++) {
+				pageFile.write(i, pageFilledWith(i));
+			}
+
+			// when
+			var page = ByteBuffer.allocate(PAGE_SIZE);
+			pageFile.read(9, page);
+
+			// then
+			assertEquals(pageFilledWith(9), page.flip());
+			assertEquals(10, pageFile.nrOfPages());
+		}
+	}
+
+	@Test
+	void truncate_file_to_written_pages_on_close() throws IOException {
+		// given
+		try (var pageFile = new MappedPageFile(heapFilePath, PAGE_SIZE, CHUNK_SIZE)) {
+			pageFile.write(0, pageFilledWith(1));
+			pageFile.write(4, pageFilledWith(2));
+		}
+
+		// when
+		try (var pageFile = new ChannelPageFile(heapFilePath, PAGE_SIZE)) {
+			var page = ByteBuffer.allocate(PAGE_SIZE);
+			pageFile.read(4, page);
+
+			// then
+			assertEquals(5, pageFile.nrOfPages());
+			assertEquals(pageFilledWith(2), page.flip());
+		}
+	}
+
+	@Test
+	void skip_zeroed_pages_of_chunk_left_by_file_not_closed() throws IOException {
+		// given
+		var notClosed = new MappedPageFile(heapFilePath, PAGE_SIZE, CHUNK_SIZE);
+		notClosed.write(0, pageFilledWith(1));
+		notClosed.write(1, pageFilledWith(2));
+		notClosed.force();
+
+		// when
+		try (var pageFile = new MappedPageFile(heapFilePath, PAGE_SIZE, CHUNK_SIZE)) {
+
+			// then
+			assertEquals(4 * PAGE_SIZE, Files.size(heapFilePath));
+			assertEquals(2, pageFile.nrOfPages());
+		} finally {
+			notClosed.close();
+		}
+	}
+
+	@Test
+	void write_pages_of_new_chunks_from_many_threads() throws Exception {
+		// given
+		var executor = Executors.newFixedThreadPool(4);
+		try (var pageFile = new MappedPageFile(heapFilePath, PAGE_SIZE, CHUNK_SIZE)) {
+			var tasks = new ArrayList<Callable<Void>>();
+			for (int t = 0; t < 4; t++) {
+				var thread = t;
+				tasks.add(() -> {
+					for (int i = thread; i < 200; i += 4) {
+						pageFile.write(i, pageFilledWith(i));
+					}
+					return null;
+				});
+			}
+
+			// when
+			for (var future : executor.invokeAll(tasks)) {
+				future.get();
+			}
+
+			// then
+			assertEquals(200, pageFile.nrOfPages());
+			for (int i = 0; i < 200; i++) {
+				var page = ByteBuffer.allocate(PAGE_SIZE);
+				pageFile.read(i, page);
+				assertEquals(pageFilledWith(i), page.flip());
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	void store_records_in_memory_mapped_heap_file() throws IOException, ClassNotFoundException {
+		// given
+		var options = HeapFileOptions.defaults().withPageAccess(PageAccess.MEMORY_MAPPED);
+		try (var heapFile = new UnorderedHeapFile(heapFilePath, 1024, PAGE_SIZE, options)) {
+			for (int i = 0; i < 1000; i++) {
+				heapFile.put(new Entry(i, "value" + i));
+			}
+		}
+
+		// when
+		try (var heapFile = new UnorderedHeapFile(heapFilePath, 1024, PAGE_SIZE, options)) {
+
+			// then
+			for (int i = 0; i < 1000; i++) {
+				assertEquals("value" + i, heapFile.get(i));
+			}
+		}
+	}
+
+	private static ByteBuffer pageFilledWith(int value) {
+		var page = ByteBuffer.allocate(PAGE_SIZE);
+		while (page.hasRemaining()) {
+			page.put((byte) value);
+		}
+		return page.flip();
+	}
+}
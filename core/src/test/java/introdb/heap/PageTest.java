@@ -0,0 +1,121 @@
+package introdb.heap;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class PageTest {
+
+	private static final int PAGE_SIZE = 256;
+
+	private Page page;
+
+	@BeforeEach
+	void setUp() {
+		page = new Page(ByteBuffer.allocate(PAGE_SIZE), PAGE_SIZE);
+		page.createNewPage(0);
+	}
+
+	@Test
+	void reuse_slot_of_removed_record() {
+		// given
+		var first = page.add(key(1), new byte[8]);
+		var second = page.add(key(2), new byte[8]);
+		page.remove(first, key(1));
+
+		// when
+		var third = page.add(key(3), new byte[8]);
+
+		// then
+		assertEquals(first, third);
+		assertArrayEquals(new byte[8], page.find(second, key(2)));
+		assertArrayEquals(new byte[8], page.find(third, key(3)));
+		assertNull(page.find(first, key(1)));
+	}
+
+	@Test
+	void compact_page_when_removed_records_leave_no_contiguous_space() {
+		// given
+		var slots = new int[4];
+		for (int i = 0; i < slots.length; i++) {
+			slots[i] = page.add(key(i), value(i, 40));
+		}
+		assertEquals(-1, page.add(key(9), value(9, 40)));
+		page.remove(slots[0], key(0));
+		page.remove(slots[2], key(2));
+
+		// when
+		var added = page.add(key(9), value(9, 80));
+
+		// then
+		assertTrue(added >= 0);
+		assertArrayEquals(value(1, 40), page.find(slots[1], key(1)));
+		assertArrayEquals(value(3, 40), page.find(slots[3], key(3)));
+		assertArrayEquals(value(9, 80), page.find(added, key(9)));
+	}
+
+	@Test
+	void visit_live_records_with_their_slots() {
+		// given
+		var first = page.add(key(1), new byte[1]);
+		var second = page.add(key(2), new byte[1]);
+		page.remove(first, key(1));
+
+		// when
+		var visited = new StringBuilder();
+		page.forEachRecord((key, slot) -> visited.append(key[0]).append('@').append(slot));
+
+		// then
+		assertEquals("2@" + second, visited.toString());
+	}
+
+	@Test
+	void access_value_in_place() {
+		// given
+		var slot = page.add(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9 }, value(7, 20));
+		var target = ByteBuffer.allocate(32);
+
+		// when
+		var slice = page.valueSlice(slot, ByteBuffer.wrap(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9 }));
+		var copied = page.copyValue(slot, ByteBuffer.wrap(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9 }), target);
+		var missing = page.valueSlice(slot, ByteBuffer.wrap(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 0 }));
+
+		// then
+		assertTrue(slice.isReadOnly());
+		assertEquals(ByteBuffer.wrap(value(7, 20)), slice);
+		assertEquals(20, copied);
+		assertEquals(ByteBuffer.wrap(value(7, 20)), target.flip());
+		assertNull(missing);
+	}
+
+	@Test
+	void keep_key_hash_in_slot() {
+		// given
+		var slot = page.add(key(1), new byte[1], 42);
+
+		// when
+		var hashes = new StringBuilder();
+		page.forEachKeyHash((keyHash, visitedSlot) -> hashes.append(keyHash).append('@').append(visitedSlot));
+
+		// then
+		assertEquals("42@" + slot, hashes.toString());
+		assertArrayEquals(new byte[1], page.find(slot, key(1), 42));
+		assertNull(page.find(slot, key(1), 43));
+	}
+
+	private static byte[] key(int i) {
+		return new byte[] { (byte) i };
+	}
+
+	private static byte[] value(int i, int length) {
+		var value = new byte[length];
+		value[0] = (byte) i;
+		return value;
+	}
+}
@@ -4,8 +4,14 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class SerializerTest {
   private Serializer serializer;
@@ -45,4 +51,77 @@ class SerializerTest {
     assertEquals(entry2, deserializedEntry2, "second serialized and then deserialized value is different from original");
   }
 
-}
\ No newline at end of file
+  @Test
+  void builtInCodecsTest() throws ClassNotFoundException, IOException {
+    // given
+    List<Serializable> entries = List.of("zażółć", 123, 123L, (short) 12, (byte) 1, 'c', true, 1.5d, 2.5f);
+
+    for (var entry : entries) {
+      // when
+      var serializedEntry = serializer.serialize(entry);
+
+      // then
+      assertEquals(entry, serializer.deserialize(serializedEntry), "value of " + entry.getClass() + " is different");
+    }
+    assertArrayEquals(new byte[] { 1, 2 }, (byte[]) serializer.deserialize(serializer.serialize(new byte[] { 1, 2 })));
+    assertEquals(1 + Integer.BYTES, serializer.serialize(123).length);
+  }
+
+  @Test
+  void javaSerializationFallbackTest() throws ClassNotFoundException, IOException {
+    // given
+    var entry = new ArrayList<>(List.of(1, 2, 3));
+
+    // when
+    var serializedEntry = serializer.serialize(entry);
+
+    // then
+    assertEquals(Codecs.JAVA_SERIALIZATION_TAG, serializedEntry[0]);
+    assertEquals(entry, serializer.deserialize(serializedEntry));
+  }
+
+  @Test
+  void schemaCodecTest() throws ClassNotFoundException, IOException {
+    // given
+    var codec = SchemaCodec.builder(Point.class)
+        .field(Codecs.INTEGER, point -> point.x)
+        .field(Codecs.STRING, point -> point.label)
+        .build(fields -> new Point((Integer) fields[0], (String) fields[1]));
+    serializer = new Serializer(16, Codecs.builtIn().with(Codecs.FIRST_USER_TAG, codec));
+    var entry = new Point(7, "a label longer than the initial buffer");
+    var entryWithNull = new Point(8, null);
+
+    // when
+    var serializedEntry = serializer.serialize(entry);
+    var serializedEntryWithNull = serializer.serialize(entryWithNull);
+
+    // then
+    assertEquals(Codecs.FIRST_USER_TAG, serializedEntry[0]);
+    assertEquals(entry, serializer.deserialize(serializedEntry));
+    assertEquals(entryWithNull, serializer.deserialize(serializedEntryWithNull));
+    assertTrue(serializedEntry.length < new Serializer(16, Codecs.javaSerializationOnly()).serialize(entry).length);
+  }
+
+  private static final class Point implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final int x;
+    private final String label;
+
+    Point(int x, String label) {
+      this.x = x;
+      this.label = label;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof Point && ((Point) other).x == x && Objects.equals(((Point) other).label, label);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(x, label);
+    }
+  }
+
+}
@@ -0,0 +1,136 @@
+package introdb.heap;
+
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class ShardedHeapFileTest {
+
+	private Path directory;
+	private Store heapFile;
+
+	@BeforeEach
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("heap");
+		heapFile = new ShardedHeapFile(directory, 4, 16, 4*1024, HeapFileOptions.defaults());
+	}
+
+	@AfterEach
+	public void tearDown() throws IOException {
+		heapFile.close();
+		try(Stream<Path> files = Files.walk(directory)) {
+			files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+
+	@Test
+	void put_get_and_remove_records_across_shards() throws IOException, ClassNotFoundException {
+
+		// when
+		for(int i=0;i<1000;i++) {
+			heapFile.put(new Entry(i, "value" + i));
+		}
+		heapFile.remove(7);
+
+		// then
+		for(int i=0;i<1000;i++) {
+			assertEquals(i == 7 ? null : "value" + i, heapFile.get(i));
+		}
+		for(int shard=0;shard<4;shard++) {
+			assertTrue(Files.size(ShardedHeapFile.shardPath(directory, shard)) > 0);
+		}
+
+	}
+
+	@Test
+	void capacity_grows_with_number_of_shards() throws IOException, ClassNotFoundException {
+
+		// when, a single heap file of 16 pages holds only 48 such records
+		for(int i=0;i<120;i++) {
+			heapFile.put(new Entry(i, new byte[1024]));
+		}
+
+		// then
+		for(int i=0;i<120;i++) {
+			assertEquals(1024, ((byte[])heapFile.get(i)).length);
+		}
+
+	}
+
+	@Test
+	void batches_and_cursor_span_all_shards() throws IOException, ClassNotFoundException {
+
+		// given
+		var entries = new ArrayList<Entry>();
+		for(int i=0;i<100;i++) {
+			entries.add(new Entry(i, "value" + i));
+		}
+		heapFile.putAll(entries);
+
+		// when
+		var values = heapFile.getAll(List.of(3, 100, 42));
+		var removed = heapFile.removeAll(List.of(42, 43));
+		var keys = new HashSet<Object>();
+		try(var cursor = heapFile.cursor()) {
+			while(cursor.next()) {
+				keys.add(cursor.key());
+			}
+		}
+
+		// then
+		assertEquals(Arrays.asList("value3", null, "value42"), values);
+		assertEquals(List.of("value42", "value43"), removed);
+		assertEquals(98, keys.size());
+
+	}
+
+	@Test
+	void reopen_finds_existing_shards() throws IOException, ClassNotFoundException {
+
+		// given
+		for(int i=0;i<100;i++) {
+			heapFile.put(new Entry(i, "value" + i));
+		}
+		heapFile.close();
+
+		// when
+		heapFile = new ShardedHeapFile(directory, 16, 4*1024, HeapFileOptions.defaults());
+
+		// then
+		assertEquals(4, ((ShardedHeapFile)heapFile).nrOfShards());
+		for(int i=0;i<100;i++) {
+			assertEquals("value" + i, heapFile.get(i));
+		}
+
+	}
+
+	@Test
+	void refuse_to_open_with_other_number_of_shards() throws IOException, ClassNotFoundException {
+
+		// given
+		heapFile.close();
+
+		// then
+		assertThatThrownBy(() -> new ShardedHeapFile(directory, 8, 16, 4*1024, HeapFileOptions.defaults()))
+		.isInstanceOf(IllegalArgumentException.class);
+		heapFile = new ShardedHeapFile(directory, 4, 16, 4*1024, HeapFileOptions.defaults());
+		assertNull(heapFile.get(0));
+
+	}
+
+}
@@ -4,13 +4,25 @@ import static java.util.Arrays.fill;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
@@ -29,7 +41,10 @@ class UnorderedHeapFileTest {
 	
 	@AfterEach
 	public void tearDown() throws IOException {
+		heapFile.close();
 		Files.delete(heapFilePath);
+		Files.deleteIfExists(FreeSpaceMap.pathFor(heapFilePath));
+		Files.deleteIfExists(OverflowFile.pathFor(heapFilePath));
 	}
 
 	@Test
@@ -140,24 +155,518 @@ class UnorderedHeapFileTest {
 	}
 	
 	@Test
-	void throw_exception_when_entry_too_large() throws ClassNotFoundException, IOException {
+	void get_records_after_reopen() throws ClassNotFoundException, IOException {
 
 		// given
-		byte[] value = new byte[4*1024];
-		new Random().nextBytes(value);
+		for(int i=0;i<100;i++) {
+			heapFile.put(new Entry(i, "value" + i));
+		}
+		heapFile.remove(50);
+
+		// when
+		heapFile.close();
+		heapFile = new UnorderedHeapFile(heapFilePath, 1024, 4*1024);
+
+		// then
+		assertEquals("value0", heapFile.get(0));
+		assertEquals("value99", heapFile.get(99));
+		assertNull(heapFile.get(50));
+
+	}
+
+	@Test
+	void get_records_written_back_on_close() throws ClassNotFoundException, IOException {
+
+		// given
+		heapFile.close();
+		heapFile = new UnorderedHeapFile(heapFilePath, 1024, 4*1024,
+				HeapFileOptions.defaults().withWriteMode(WriteMode.WRITE_BACK));
+		for(int i=0;i<100;i++) {
+			heapFile.put(new Entry(i, "value" + i));
+		}
+
+		// when
+		heapFile.close();
+		heapFile = new UnorderedHeapFile(heapFilePath, 1024, 4*1024);
+
+		// then
+		for(int i=0;i<100;i++) {
+			assertEquals("value" + i, heapFile.get(i));
+		}
+
+	}
+
+	@Test
+	void reuse_space_of_removed_records() throws ClassNotFoundException, IOException {
+
+		// given
+		heapFile.close();
+		heapFile = new UnorderedHeapFile(heapFilePath, 4, 4*1024);
+
+		// when
+		for(int round=0;round<100;round++) {
+			for(int i=0;i<20;i++) {
+				heapFile.put(new Entry(i, new byte[100 + round]));
+			}
+		}
+
+		// then
+		for(int i=0;i<20;i++) {
+			assertEquals(199, ((byte[])heapFile.get(i)).length);
+		}
+		heapFile.close();
+		assertTrue(Files.size(heapFilePath) <= 4*4*1024);
+
+	}
+
+	@Test
+	void vacuum_moves_records_and_truncates_file() throws ClassNotFoundException, IOException {
+
+		// given
+		for(int i=0;i<1000;i++) {
+			heapFile.put(new Entry(i, longValue(i)));
+		}
+		for(int i=0;i<1000;i+=2) {
+			heapFile.remove(i);
+		}
+		heapFile.flush();
+		var sizeBeforeVacuum = Files.size(heapFilePath);
+
+		// when
+		for(int i=0;i<1000;i++) {
+			((UnorderedHeapFile)heapFile).vacuum();
+		}
+		heapFile.close();
+
+		// then
+		assertTrue(Files.size(heapFilePath) < sizeBeforeVacuum * 2 / 3);
+		heapFile = new UnorderedHeapFile(heapFilePath, 1024, 4*1024);
+		for(int i=0;i<1000;i++) {
+			assertEquals(i % 2 == 0 ? null : longValue(i), heapFile.get(i));
+		}
+
+	}
+
+	@Test
+	void vacuum_in_background_while_reading() throws ClassNotFoundException, IOException, InterruptedException {
+
+		// given
+		heapFile.close();
+		heapFile = new UnorderedHeapFile(heapFilePath, 1024, 4*1024,
+				HeapFileOptions.defaults().withVacuumRate(1000));
+		for(int i=0;i<1000;i++) {
+			heapFile.put(new Entry(i, longValue(i)));
+		}
+		for(int i=0;i<1000;i+=2) {
+			heapFile.remove(i);
+		}
+		heapFile.flush();
+		var sizeBeforeVacuum = Files.size(heapFilePath);
+
+		// when
+		var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+		while(Files.size(heapFilePath) >= sizeBeforeVacuum * 2 / 3 && System.nanoTime() < deadline) {
+			for(int i=1;i<1000;i+=2) {
+				assertEquals(longValue(i), heapFile.get(i));
+			}
+		}
+
+		// then
+		assertTrue(Files.size(heapFilePath) < sizeBeforeVacuum * 2 / 3);
+
+	}
+
+	@Test
+	void put_all_get_all_and_remove_all_records() throws ClassNotFoundException, IOException {
+
+		// given
+		var entries = new ArrayList<Entry>();
+		for(int i=0;i<1000;i++) {
+			entries.add(new Entry(i, longValue(i)));
+		}
+		entries.add(new Entry(7, "updated"));
+		heapFile.putAll(entries);
+
+		// when
+		var keys = List.of(7, 1000, 3, 999);
+		var values = heapFile.getAll(keys);
+		var removed = heapFile.removeAll(List.of(3, 3, 1000));
+
+		// then
+		assertEquals(Arrays.asList("updated", null, longValue(3), longValue(999)), values);
+		assertEquals(Arrays.asList(longValue(3), null, null), removed);
+		assertNull(heapFile.get(3));
+		heapFile.close();
+		heapFile = new UnorderedHeapFile(heapFilePath, 1024, 4*1024);
+		for(int i=0;i<1000;i++) {
+			assertEquals(i == 3 ? null : i == 7 ? "updated" : longValue(i), heapFile.get(i));
+		}
+
+	}
+
+	@Test
+	void put_all_replaces_existing_records() throws ClassNotFoundException, IOException {
+
+		// given
+		for(int i=0;i<100;i++) {
+			heapFile.put(new Entry(i, longValue(i)));
+		}
+
+		// when
+		var entries = new ArrayList<Entry>();
+		for(int i=50;i<150;i++) {
+			entries.add(new Entry(i, "batch" + i));
+		}
+		heapFile.putAll(entries);
+
+		// then
+		for(int i=0;i<150;i++) {
+			assertEquals(i < 50 ? longValue(i) : "batch" + i, heapFile.get(i));
+		}
+		assertEquals(1, heapFile.removeAll(List.of(60)).size());
+		assertNull(heapFile.get(60));
+
+	}
+
+	@Test
+	void put_all_rejects_whole_batch_when_key_too_large() throws ClassNotFoundException, IOException {
+
+		// when
+		assertThatThrownBy(() -> {
+			heapFile.putAll(List.of(new Entry("0", "value"), new Entry(new byte[4*1024], "1")));
+		})
+		.isInstanceOf(IllegalArgumentException.class);
+
+		// then
+		assertNull(heapFile.get("0"));
+
+	}
+
+	@Test
+	void cursor_returns_every_live_record_once() throws ClassNotFoundException, IOException {
+
+		// given
+		for(int i=0;i<1000;i++) {
+			heapFile.put(new Entry(i, longValue(i)));
+		}
+		for(int i=0;i<1000;i+=3) {
+			heapFile.remove(i);
+		}
+
+		// when
+		var keys = new HashSet<Object>();
+		try(var cursor = heapFile.cursor()) {
+			while(cursor.next()) {
+				var key = (Integer)cursor.key();
+				assertTrue(keys.add(key));
+				if(key % 10 == 0) {
+					assertEquals(longValue(key), cursor.value());
+				}
+			}
+			assertFalse(cursor.next());
+		}
+
+		// then
+		assertEquals(666, keys.size());
+		assertTrue(keys.stream().allMatch(key -> (Integer)key % 3 != 0));
+
+	}
+
+	@Test
+	void stream_entries() throws ClassNotFoundException, IOException {
+
+		// given
+		for(int i=0;i<100;i++) {
+			heapFile.put(new Entry(i, longValue(i)));
+		}
+
+		// when
+		Map<Serializable,Serializable> entries;
+		try(var stream = heapFile.stream()) {
+			entries = stream.collect(Collectors.toMap(Entry::key, Entry::value));
+		}
+
+		// then
+		assertEquals(100, entries.size());
+		for(int i=0;i<100;i++) {
+			assertEquals(longValue(i), entries.get(i));
+		}
+
+	}
+
+	@Test
+	void cursor_returns_records_not_modified_during_scan() throws ClassNotFoundException, IOException {
+
+		// given
+		for(int i=0;i<1000;i++) {
+			heapFile.put(new Entry(i, longValue(i)));
+		}
+
+		// when
+		var keys = new HashSet<Object>();
+		try(var cursor = heapFile.cursor()) {
+			var next = 1000;
+			while(cursor.next()) {
+				keys.add(cursor.key());
+				heapFile.put(new Entry(next++, longValue(next)));
+				heapFile.remove(next - 1000);
+				((UnorderedHeapFile)heapFile).vacuum();
+			}
+		}
+
+		// then
+		for(int i=0;i<1000;i++) {
+			assertTrue(keys.contains(i) || heapFile.get(i) == null);
+		}
+
+	}
+
+	@Test
+	void throw_exception_when_key_too_large() throws ClassNotFoundException, IOException {
+
+		// given
+		byte[] key = new byte[4*1024];
+		new Random().nextBytes(key);
 
 		// when
 		
 		assertThatThrownBy(() -> {
-			heapFile.put(new Entry("0",value ));
+			heapFile.put(new Entry(key, "0"));
 		})
 		.isInstanceOf(IllegalArgumentException.class);
 
 	}
+
+	@Test
+	void put_get_and_remove_values_larger_than_page() throws ClassNotFoundException, IOException {
+
+		// given
+		var values = new ArrayList<byte[]>();
+		for(int i=0;i<20;i++) {
+			byte[] value = new byte[i * 3*1024 + 1];
+			new Random(i).nextBytes(value);
+			values.add(value);
+			heapFile.put(new Entry(i, value));
+		}
+
+		// when
+		var removed = heapFile.remove(7);
+		heapFile.put(new Entry(8, "small"));
+
+		// then
+		assertArrayEquals(values.get(7), (byte[])removed);
+		assertNull(heapFile.get(7));
+		assertEquals("small", heapFile.get(8));
+		for(int i=0;i<20;i++) {
+			if(i != 7 && i != 8) {
+				assertArrayEquals(values.get(i), (byte[])heapFile.get(i));
+			}
+		}
+		assertArrayEquals(values.get(19), (byte[])heapFile.getAll(List.of(19)).get(0));
+		assertArrayEquals(values.get(18), (byte[])heapFile.removeAll(List.of(18)).get(0));
+
+	}
+
+	@Test
+	void get_values_larger_than_page_after_reopen_and_with_cursor() throws ClassNotFoundException, IOException {
+
+		// given
+		byte[] value = new byte[64*1024];
+		new Random().nextBytes(value);
+		for(int i=0;i<10;i++) {
+			heapFile.put(new Entry(i, i % 2 == 0 ? value : "value" + i));
+		}
+
+		// when
+		heapFile.close();
+		heapFile = new UnorderedHeapFile(heapFilePath, 1024, 4*1024);
+
+		// then
+		for(int i=0;i<10;i++) {
+			if(i % 2 == 0) {
+				assertArrayEquals(value, (byte[])heapFile.get(i));
+			} else {
+				assertEquals("value" + i, heapFile.get(i));
+			}
+		}
+		var nrOfValues = 0;
+		try(var cursor = heapFile.cursor()) {
+			while(cursor.next()) {
+				if(cursor.value() instanceof byte[]) {
+					assertArrayEquals(value, (byte[])cursor.value());
+				}
+				nrOfValues++;
+			}
+		}
+		assertEquals(10, nrOfValues);
+
+	}
+
+	@Test
+	void reuse_overflow_pages_of_removed_values_after_flush() throws ClassNotFoundException, IOException {
+
+		// given
+		byte[] value = new byte[32*1024];
+		for(int i=0;i<10;i++) {
+			heapFile.put(new Entry(i, value));
+		}
+		var nrOfOverflowPages = ((UnorderedHeapFile)heapFile).nrOfOverflowPages();
+
+		// when
+		for(int round=0;round<5;round++) {
+			for(int i=0;i<10;i++) {
+				heapFile.remove(i);
+			}
+			heapFile.flush();
+			for(int i=0;i<10;i++) {
+				heapFile.put(new Entry(i, value));
+			}
+		}
+
+		// then
+		assertEquals(nrOfOverflowPages, ((UnorderedHeapFile)heapFile).nrOfOverflowPages());
+		for(int i=0;i<10;i++) {
+			assertArrayEquals(value, (byte[])heapFile.get(i));
+		}
+
+	}
+
+	@Test
+	void scrub_reports_page_corrupted_on_disk() throws ClassNotFoundException, IOException {
+
+		// given
+		for(int i=0;i<1000;i++) {
+			heapFile.put(new Entry(i, "value" + i));
+		}
+		heapFile.flush();
+
+		// when
+		corruptPage(heapFilePath, 2);
+
+		// then
+		assertEquals(List.of(2L), ((UnorderedHeapFile)heapFile).scrub());
+		heapFile.close();
+		assertEquals(List.of(2L), PageScrubber.scrub(heapFilePath, 4*1024, HeapFileOptions.defaults()));
+
+	}
+
+	@Test
+	void open_file_with_page_corrupted_on_disk_leaving_its_records_out() throws ClassNotFoundException, IOException {
+
+		// given
+		for(int i=0;i<1000;i++) {
+			heapFile.put(new Entry(i, "value" + i));
+		}
+		heapFile.close();
+		corruptPage(heapFilePath, 2);
+
+		// when
+		heapFile = new UnorderedHeapFile(heapFilePath, 1024, 4*1024);
+		heapFile.put(new Entry(1000, "value1000"));
+
+		// then
+		var missing = 0;
+		for(int i=0;i<=1000;i++) {
+			var value = heapFile.get(i);
+			if(value == null) {
+				missing++;
+			} else {
+				assertEquals("value" + i, value);
+			}
+		}
+		assertTrue(missing > 0 && missing < 1000);
+		assertEquals("value1000", heapFile.get(1000));
+		assertEquals(List.of(2L), ((UnorderedHeapFile)heapFile).scrub());
+
+	}
+
+	@Test
+	void read_pages_without_checksums() throws ClassNotFoundException, IOException {
+
+		// given
+		heapFile.close();
+		Files.delete(heapFilePath);
+		var options = HeapFileOptions.defaults().withPageChecksums(false);
+		heapFile = new UnorderedHeapFile(heapFilePath, 1024, 4*1024, options);
+		for(int i=0;i<1000;i++) {
+			heapFile.put(new Entry(i, "value" + i));
+		}
+		heapFile.close();
+
+		// when
+		heapFile = new UnorderedHeapFile(heapFilePath, 1024, 4*1024, options);
+
+		// then
+		for(int i=0;i<1000;i++) {
+			assertEquals("value" + i, heapFile.get(i));
+		}
+		assertThatThrownBy(() -> ((UnorderedHeapFile)heapFile).scrub())
+		.isInstanceOf(IllegalStateException.class);
+
+	}
+
+	@Test
+	void reject_heap_file_opened_with_page_checksums_turned_the_other_way() throws ClassNotFoundException, IOException {
+
+		// given
+		heapFile.put(new Entry(1, "value"));
+		heapFile.close();
+		var withoutChecksumsPath = Files.createTempFile("heap", "0002");
+		var withoutChecksums = HeapFileOptions.defaults().withPageChecksums(false);
+		try(var store = new UnorderedHeapFile(withoutChecksumsPath, 1024, 4*1024, withoutChecksums)) {
+			store.put(new Entry(1, "value"));
+		}
+
+		try {
+			// then
+			assertThatThrownBy(() -> new UnorderedHeapFile(heapFilePath, 1024, 4*1024, withoutChecksums))
+			.isInstanceOf(IllegalArgumentException.class);
+			assertThatThrownBy(() -> new UnorderedHeapFile(withoutChecksumsPath, 1024, 4*1024))
+			.isInstanceOf(IllegalArgumentException.class);
+		} finally {
+			Files.delete(withoutChecksumsPath);
+			Files.deleteIfExists(FreeSpaceMap.pathFor(withoutChecksumsPath));
+		}
+
+	}
+
+	@Test
+	void fail_to_read_value_from_overflow_page_corrupted_on_disk() throws ClassNotFoundException, IOException {
+
+		// given
+		byte[] value = new byte[64*1024];
+		new Random().nextBytes(value);
+		heapFile.put(new Entry(0, value));
+		heapFile.put(new Entry(1, value));
+
+		// when
+		corruptPage(OverflowFile.pathFor(heapFilePath), 3);
+
+		// then
+		assertArrayEquals(value, (byte[])heapFile.get(1));
+		assertThatThrownBy(() -> heapFile.get(0))
+		.isInstanceOf(CorruptedPage.class);
+		assertEquals(List.of(), ((UnorderedHeapFile)heapFile).scrub());
+		heapFile.close();
+		try(var overflowFile = new OverflowFile(OverflowFile.pathFor(heapFilePath), 4*1024, true)) {
+			assertEquals(List.of(3L), overflowFile.scrub());
+		}
+
+	}
 	
+	private static String longValue(int i) {
+		return "value".repeat(20) + i;
+	}
+
 	private Entry newEntry(Serializable firstkey, Serializable firstvalue) {
 		Entry entry = new Entry(firstkey,firstvalue);
 		return entry;
 	}
 
+	private static void corruptPage(Path path, long pageNumber) throws IOException {
+		try(var channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+			channel.write(ByteBuffer.wrap(new byte[] {42}), pageNumber * 4*1024 + 100);
+		}
+	}
+
 }
@@ -0,0 +1,182 @@
+package introdb.heap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class WriteAheadLogTest {
+
+	private static final int PAGE_SIZE = 4 * 1024;
+	private static final HeapFileOptions OPTIONS = HeapFileOptions.defaults().withWriteAheadLog(true);
+
+	private Path heapFilePath;
+	private Store heapFile;
+
+	@BeforeEach
+	public void setUp() throws IOException {
+		heapFilePath = Files.createTempFile("heap", "0001");
+		heapFile = new UnorderedHeapFile(heapFilePath, 1024, PAGE_SIZE, OPTIONS);
+	}
+
+	@AfterEach
+	public void tearDown() throws IOException {
+		heapFile.close();
+		Files.delete(heapFilePath);
+		Files.deleteIfExists(WriteAheadLog.pathFor(heapFilePath));
+		Files.deleteIfExists(FreeSpaceMap.pathFor(heapFilePath));
+	}
+
+	@Test
+	void recover_puts_and_removes_not_written_to_heap_file() throws IOException, ClassNotFoundException {
+		// given
+		for (int i = 0; i < 100; i++) {
+			heapFile.put(new Entry(i, "value" + i));
+		}
+		heapFile.remove(50);
+
+		// when heap file is reopened without close, like after a crash
+		heapFile = new UnorderedHeapFile(heapFilePath, 1024, PAGE_SIZE, OPTIONS);
+
+		// then
+		assertEquals("value0", heapFile.get(0));
+		assertEquals("value99", heapFile.get(99));
+		assertNull(heapFile.get(50));
+	}
+
+	@Test
+	void rebuild_torn_page_from_write_ahead_log() throws IOException, ClassNotFoundException {
+		// given
+		for (int i = 0; i < 10; i++) {
+			heapFile.put(new Entry(i, "value" + i));
+		}
+		try (var logChannel = FileChannel.open(WriteAheadLog.pathFor(heapFilePath), StandardOpenOption.READ)) {
+			var logBeforeFlush = ByteBuffer.allocate((int) logChannel.size());
+			logChannel.read(logBeforeFlush, 0);
+
+			// when page write is torn while log still holds records of the page
+			heapFile.flush();
+			try (var channel = FileChannel.open(heapFilePath, StandardOpenOption.WRITE);
+					var log = FileChannel.open(WriteAheadLog.pathFor(heapFilePath), StandardOpenOption.WRITE)) {
+				channel.write(ByteBuffer.wrap(new byte[PAGE_SIZE / 2]), PAGE_SIZE / 4);
+				log.write(logBeforeFlush.flip(), 0);
+			}
+		}
+		heapFile = new UnorderedHeapFile(heapFilePath, 1024, PAGE_SIZE, OPTIONS);
+
+		// then
+		for (int i = 0; i < 10; i++) {
+			assertEquals("value" + i, heapFile.get(i));
+		}
+	}
+
+	@Test
+	void skip_records_of_page_appended_before_its_image() throws IOException {
+		// given
+		var logPath = Files.createTempFile("heap", "wal");
+		var replayed = new StringBuilder();
+		var page = new Page(ByteBuffer.allocate(PAGE_SIZE), PAGE_SIZE);
+		page.createNewPage(1);
+		try (var log = new WriteAheadLog(logPath)) {
+			log.appendNewPage(1);
+			log.appendPut(1, new byte[] { 1 }, new byte[] { 1 });
+			log.appendPut(2, new byte[] { 2 }, new byte[] { 2 });
+			log.appendPageImage(page);
+			log.appendRemove(1, 4, new byte[] { 1 });
+			log.sync();
+		}
+
+		// when
+		try (var log = new WriteAheadLog(logPath)) {
+			log.replay(new WriteAheadLog.Replayer() {
+
+				@Override
+				public void newPage(long pageNumber) {
+					replayed.append("new:").append(pageNumber).append(' ');
+				}
+
+				@Override
+				public void pageImage(long pageNumber, ByteBuffer image) {
+					replayed.append("image:").append(pageNumber).append(' ');
+				}
+
+				@Override
+				public void put(long pageNumber, byte[] key, byte[] value) {
+					replayed.append("put:").append(pageNumber).append(' ');
+				}
+
+				@Override
+				public void remove(long pageNumber, int slot, byte[] key) {
+					replayed.append("remove:").append(pageNumber).append(' ');
+				}
+			});
+		} finally {
+			Files.delete(logPath);
+		}
+
+		// then
+		assertEquals("put:2 image:1 remove:1 ", replayed.toString());
+	}
+
+	@Test
+	void ignore_incomplete_record_at_the_end_of_log() throws IOException, ClassNotFoundException {
+		// given
+		heapFile.put(new Entry(1, "value1"));
+		heapFile.put(new Entry(2, "value2"));
+
+		// when
+		var logPath = WriteAheadLog.pathFor(heapFilePath);
+		try (var log = FileChannel.open(logPath, StandardOpenOption.WRITE)) {
+			log.truncate(log.size() - 1);
+		}
+		heapFile = new UnorderedHeapFile(heapFilePath, 1024, PAGE_SIZE, OPTIONS);
+
+		// then
+		assertEquals("value1", heapFile.get(1));
+		assertNull(heapFile.get(2));
+	}
+
+	@Test
+	void commit_concurrent_puts_durably() throws Exception {
+		// given
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		var writes = new CompletableFuture<?>[8];
+
+		// when
+		for (int t = 0; t < writes.length; t++) {
+			int thread = t;
+			writes[t] = CompletableFuture.runAsync(() -> {
+				for (int i = 0; i < 100; i++) {
+					try {
+						heapFile.put(new Entry(thread * 1000 + i, i));
+					} catch (IOException | ClassNotFoundException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			}, executor);
+		}
+		CompletableFuture.allOf(writes).get(1, TimeUnit.MINUTES);
+		executor.shutdown();
+		heapFile = new UnorderedHeapFile(heapFilePath, 1024, PAGE_SIZE, OPTIONS);
+
+		// then
+		for (int t = 0; t < writes.length; t++) {
+			for (int i = 0; i < 100; i++) {
+				assertEquals(i, heapFile.get(t * 1000 + i));
+			}
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package introdb.heap;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Throughput of requests kept in flight by a single caller, as an event loop would do.
+ */
+@State(Scope.Benchmark)
+public class AsyncUnorderedHeapFileBenchmark {
+
+	private static final int RECORD_COUNT = 100_000;
+	private static final int REQUESTS_IN_FLIGHT = 256;
+
+	private static final byte[] buffer = new byte[512];
+
+	@Param({"1","4","16"})
+	public int nrOfIoThreads;
+
+	@Param({"FILE_CHANNEL","MEMORY_MAPPED"})
+	public String pageAccess;
+
+	private AsyncHeapFile heapFile;
+	private Path tempFile;
+	private int key;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		tempFile = Files.createTempFile("heap", "0001");
+		var store = new UnorderedHeapFile(tempFile, 500_000, 4*1024,
+				HeapFileOptions.defaults().withPageAccess(PageAccess.valueOf(pageAccess)));
+		for(int i=0;i<RECORD_COUNT;i++) {
+			store.put(new Entry(i,buffer));
+		}
+		heapFile = new AsyncHeapFile(store, nrOfIoThreads, REQUESTS_IN_FLIGHT);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception{
+		heapFile.close();
+		Files.delete(tempFile);
+		Files.deleteIfExists(FreeSpaceMap.pathFor(tempFile));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(REQUESTS_IN_FLIGHT)
+	public void readInFlight() {
+		var random = ThreadLocalRandom.current();
+		var requests = new CompletableFuture[REQUESTS_IN_FLIGHT];
+		for(int i=0;i<REQUESTS_IN_FLIGHT;i++) {
+			requests[i] = heapFile.get(random.nextInt(RECORD_COUNT));
+		}
+		CompletableFuture.allOf(requests).join();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(REQUESTS_IN_FLIGHT)
+	public void writeInFlight() {
+		var requests = new CompletableFuture[REQUESTS_IN_FLIGHT];
+		for(int i=0;i<REQUESTS_IN_FLIGHT;i++) {
+			requests[i] = heapFile.put(new Entry(key++ % RECORD_COUNT,buffer));
+		}
+		CompletableFuture.allOf(requests).join();
+	}
+
+}
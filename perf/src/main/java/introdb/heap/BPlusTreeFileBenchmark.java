@@ -0,0 +1,71 @@
+package introdb.heap;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+@State(Scope.Benchmark)
+public class BPlusTreeFileBenchmark {
+
+	private static final byte[] buffer = new byte[512];
+
+	@Param({"1000","100000","1000000"})
+	public int recordCount;
+
+	@Param({"10","100","1000"})
+	public int rangeSize;
+
+	private BPlusTreeFile treeFile;
+	private Path tempFile;
+	private int key;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		tempFile = Files.createTempFile("tree", "0001");
+		treeFile = new BPlusTreeFile(tempFile, 4*1024);
+		var entries = new ArrayList<Entry>(recordCount);
+		for(int i=0;i<recordCount;i++) {
+			entries.add(new Entry(i,buffer));
+		}
+		treeFile.bulkLoad(entries);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception{
+		treeFile.close();
+		Files.delete(tempFile);
+	}
+
+	@Benchmark
+	public Object readKey() throws Exception {
+		key = (key + 7919) % recordCount;
+		return treeFile.get(key);
+	}
+
+	@Benchmark
+	public int scanRange() throws Exception {
+		key = (key + 7919) % recordCount;
+		var count = 0;
+		try(var cursor = treeFile.range(key, key + rangeSize)) {
+			while(cursor.next()) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	@Benchmark
+	public void updateKey() throws Exception {
+		key = (key + 7919) % recordCount;
+		treeFile.put(new Entry(key,buffer));
+	}
+
+}
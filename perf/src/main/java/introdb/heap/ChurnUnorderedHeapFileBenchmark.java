@@ -0,0 +1,62 @@
+package introdb.heap;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Steady update and delete workload over a fixed set of keys. Heap file size printed after every iteration
+ * should level off once freed space is reused.
+ */
+@State(Scope.Benchmark)
+public class ChurnUnorderedHeapFileBenchmark {
+
+	@Param( {"10000"})
+	public int keyCount;
+
+	@Param( {"1024"})
+	public int maxValueSize;
+
+	private Store heapFile;
+	private Path tempFile;
+	private Random random;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		tempFile = Files.createTempFile("heap", "0001");
+		heapFile = new UnorderedHeapFile(tempFile, 500_000, 4*1024);
+		random = new Random(0);
+	}
+
+	@TearDown(Level.Iteration)
+	public void printFileSize() throws Exception {
+		heapFile.flush();
+		System.out.println("heap file size: " + Files.size(tempFile) + " bytes");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		heapFile.close();
+		Files.delete(tempFile);
+		Files.deleteIfExists(FreeSpaceMap.pathFor(tempFile));
+	}
+
+	@Benchmark
+	public void churn() throws Exception {
+		int key = random.nextInt(keyCount);
+		if (random.nextInt(5) == 0) {
+			heapFile.remove(key);
+		} else {
+			heapFile.put(new Entry(key, new byte[1 + random.nextInt(maxValueSize)]));
+		}
+	}
+
+}
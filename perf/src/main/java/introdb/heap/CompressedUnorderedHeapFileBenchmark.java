@@ -0,0 +1,73 @@
+package introdb.heap;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Random reads and updates of JSON-like values with a buffer pool much smaller than the heap file, so most
+ * operations read a page from disk. Heap file size printed after the trial shows how many bytes a page read
+ * costs with each compression.
+ */
+@State(Scope.Benchmark)
+public class CompressedUnorderedHeapFileBenchmark {
+
+	@Param( {"NONE","LZ4","DEFLATE"})
+	public String compression;
+
+	@Param( {"100000"})
+	public int recordCount;
+
+	private UnorderedHeapFile heapFile;
+	private Path tempFile;
+	private Random random;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		tempFile = Files.createTempFile("heap", "0001");
+		heapFile = new UnorderedHeapFile(tempFile, 500_000, 4*1024, HeapFileOptions.defaults()
+				.withBufferPoolSize(256*1024)
+				.withPageCompression(PageCompression.valueOf(compression)));
+		for(int i=0;i<recordCount;i++) {
+			heapFile.put(new Entry(i, value(i)));
+		}
+		heapFile.flush();
+		random = new Random(0);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		heapFile.flush();
+		System.out.println(compression + " heap file size: " + Files.size(tempFile) + " bytes, "
+				+ heapFile.bufferPoolStats());
+		heapFile.close();
+		Files.delete(tempFile);
+		Files.deleteIfExists(FreeSpaceMap.pathFor(tempFile));
+		Files.deleteIfExists(CompressedPageFile.tablePathFor(tempFile));
+	}
+
+	@Benchmark
+	public Object readRecord() throws Exception {
+		return heapFile.get(random.nextInt(recordCount));
+	}
+
+	@Benchmark
+	public void updateRecord() throws Exception {
+		var key = random.nextInt(recordCount);
+		heapFile.put(new Entry(key, value(key)));
+	}
+
+	private static String value(int i) {
+		return "{\"id\":" + i + ",\"name\":\"user" + i + "\",\"email\":\"user" + i + "@example.com\","
+				+ "\"active\":" + (i % 2 == 0) + ",\"roles\":[\"reader\",\"writer\"],\"score\":" + (i % 100) + "}";
+	}
+
+}
@@ -15,11 +15,19 @@ import org.openjdk.jmh.annotations.Scope;
 import org.openjdk.jmh.annotations.Setup;
 import org.openjdk.jmh.annotations.State;
 import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
 
+/**
+ * Readers of one key run next to a writer of another key. Run {@link #main(String[])} to measure how reads
+ * scale with 1, 2, 4, 8 and 16 reader threads.
+ */
 @State(Scope.Benchmark)
 public class ConcurrentReadWriteUnorderedHeapFileBenchmark {
 
 	private static final int MAX_PAGES = 100_000;
+	private static final int[] READER_THREADS = {1, 2, 4, 8, 16};
 	
 	@Param( {"512","1024","2048"})
 	public int bufferSize;
@@ -55,7 +63,9 @@ public class ConcurrentReadWriteUnorderedHeapFileBenchmark {
 	
 	@TearDown(Level.Iteration)
 	public void tearDown() throws IOException{
+		heapFile.close();
 		Files.delete(tempFile);
+		Files.deleteIfExists(FreeSpaceMap.pathFor(tempFile));
 	}
 	
     @Benchmark
@@ -74,6 +84,18 @@ public class ConcurrentReadWriteUnorderedHeapFileBenchmark {
 		return (byte[]) heapFile.get(readKey_0);
 	}
     
+    public static void main(String[] args) throws RunnerException {
+    	for (int readers : READER_THREADS) {
+    		new Runner(new OptionsBuilder()
+    				.include(ConcurrentReadWriteUnorderedHeapFileBenchmark.class.getSimpleName())
+    				// group methods in alphabetical order: readEntry, writeEntry
+    				.threadGroups(readers, 1)
+    				.output("concurrent_read_write_" + readers + "_readers.log")
+    				.build())
+    			.run();
+    	}
+    }
+
     private static byte[] toArrayWithPadding(int value, int padding) {
     	byte[] bytes = Integer.toString(value).getBytes();
     	return Arrays.copyOf(bytes, padding);
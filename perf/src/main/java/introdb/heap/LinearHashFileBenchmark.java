@@ -0,0 +1,65 @@
+package introdb.heap;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+@State(Scope.Benchmark)
+public class LinearHashFileBenchmark {
+
+	private static final byte[] buffer = new byte[512];
+
+	@Param({"1000","100000","1000000"})
+	public int recordCount;
+
+	@Param({"FILE_CHANNEL","MEMORY_MAPPED"})
+	public String pageAccess;
+
+	private LinearHashFile hashFile;
+	private Path tempFile;
+	private int key;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		tempFile = Files.createTempFile("hash", "0001");
+		hashFile = new LinearHashFile(tempFile, 4*1024,
+				HeapFileOptions.defaults().withPageAccess(PageAccess.valueOf(pageAccess)));
+		for(int i=0;i<recordCount;i++) {
+			hashFile.put(new Entry(i,buffer));
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception{
+		hashFile.close();
+		Files.delete(tempFile);
+		Files.deleteIfExists(LinearHashFile.overflowPathFor(tempFile));
+		Files.deleteIfExists(LinearHashFile.metadataPathFor(tempFile));
+	}
+
+	@Benchmark
+	public Object readKey() throws Exception {
+		key = (key + 7919) % recordCount;
+		return hashFile.get(key);
+	}
+
+	@Benchmark
+	public Object readMissingKey() throws Exception {
+		key = (key + 7919) % recordCount;
+		return hashFile.get(-1 - key);
+	}
+
+	@Benchmark
+	public void updateKey() throws Exception {
+		key = (key + 7919) % recordCount;
+		hashFile.put(new Entry(key,buffer));
+	}
+
+}
@@ -0,0 +1,91 @@
+package introdb.heap;
+
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Counterpart of {@link ReadUnorderedHeapFileBenchmark} for {@link LsmTreeFile}, records are written to sorted
+ * tables and compacted before the measurement, so lookups of missing keys show the effect of Bloom filters.
+ */
+@State(Scope.Benchmark)
+public class ReadLsmTreeFileBenchmark {
+	
+	private static final byte[] buffer = new byte[512];
+	
+	@Param({"10","100","500"})
+	public String key;
+
+	@Param({"1000","100000","1000000"})
+	public int recordCount;
+
+	@Param({"LEVELED","SIZE_TIERED"})
+	public String compactionPolicy;
+
+	@Param({"0","10"})
+	public int bloomFilterBitsPerKey;
+	
+	private LsmTreeFile lsmFile;
+	private Path tempDirectory;
+	private Serializable readKey;
+	private Serializable missingKey;
+	
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		tempDirectory = Files.createTempDirectory("lsm");
+		var options = LsmOptions.defaults()
+				.withCompactionPolicy(CompactionPolicy.valueOf(compactionPolicy))
+				.withBloomFilterBitsPerKey(bloomFilterBitsPerKey);
+		lsmFile = new LsmTreeFile(tempDirectory, options);
+		for(int i=0;i<recordCount;i++) {
+			lsmFile.put(new Entry(Integer.toString(i),buffer));
+		}
+		lsmFile.close();
+		lsmFile = new LsmTreeFile(tempDirectory, options);
+		lsmFile.awaitBackgroundWork();
+		readKey = key;
+		missingKey = "missing-" + key;
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception{
+		lsmFile.close();
+		try(Stream<Path> files = Files.walk(tempDirectory)) {
+			files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+	
+    @Benchmark
+    public Object readKey() throws Exception {
+    	return lsmFile.get(readKey);
+    }
+
+    @Benchmark
+    public Object readMissingKey() throws Exception {
+    	return lsmFile.get(missingKey);
+    }
+
+    @Benchmark
+    public int scanKeys() throws Exception {
+    	var count = 0;
+    	try(var cursor = lsmFile.cursor()) {
+    		while(cursor.next()) {
+    			if(cursor.key() != null) {
+    				count++;
+    			}
+    		}
+    	}
+    	return count;
+    }
+
+}
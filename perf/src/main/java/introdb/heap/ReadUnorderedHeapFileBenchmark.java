@@ -1,5 +1,6 @@
 package introdb.heap;
 
+import java.io.Serializable;
 import java.nio.file.Files;
 import java.nio.file.Path;
 
@@ -18,27 +19,65 @@ public class ReadUnorderedHeapFileBenchmark {
 	
 	@Param({"10","100","500"})
 	public String key;
+
+	@Param({"1000","100000","1000000"})
+	public int recordCount;
+
+	@Param({"FILE_CHANNEL","MEMORY_MAPPED"})
+	public String pageAccess;
+
+	@Param({"STRING","BYTES"})
+	public String keyType;
 	
 	private Store heapFile;
 	private Path tempFile;
+	private Serializable readKey;
+	private Serializable missingKey;
 	
 	@Setup(Level.Trial)
 	public void setUp() throws Exception {
 		tempFile = Files.createTempFile("heap", "0001");
-		heapFile = new UnorderedHeapFile(tempFile, 50000, 4*1024);
-		for(int i=0;i<1000;i++) {
-			heapFile.put(new Entry(Integer.toString(i),buffer));			
+		heapFile = new UnorderedHeapFile(tempFile, 500_000, 4*1024,
+				HeapFileOptions.defaults().withPageAccess(PageAccess.valueOf(pageAccess)));
+		for(int i=0;i<recordCount;i++) {
+			heapFile.put(new Entry(keyOf(Integer.toString(i)),buffer));
 		}
+		readKey = keyOf(key);
+		missingKey = keyOf("missing-" + key);
 	}
 	
 	@TearDown(Level.Trial)
 	public void tearDown() throws Exception{
+		heapFile.close();
 		Files.delete(tempFile);
+		Files.deleteIfExists(FreeSpaceMap.pathFor(tempFile));
 	}
 	
     @Benchmark
     public Object readKey() throws Exception {
-    	return heapFile.get(key);
+    	return heapFile.get(readKey);
+    }
+
+    @Benchmark
+    public Object readMissingKey() throws Exception {
+    	return heapFile.get(missingKey);
+    }
+
+    @Benchmark
+    public int scanKeys() throws Exception {
+    	var count = 0;
+    	try(var cursor = heapFile.cursor()) {
+    		while(cursor.next()) {
+    			if(cursor.key() != null) {
+    				count++;
+    			}
+    		}
+    	}
+    	return count;
+    }
+
+    private Serializable keyOf(String key) {
+    	return "BYTES".equals(keyType) ? key.getBytes() : key;
     }
 
 }
@@ -0,0 +1,79 @@
+package introdb.heap;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Opens a heap file with cold page cache, which reads every page in order to rebuild the index, and scans all
+ * records with a cursor through a buffer pool much smaller than the file. Without read-ahead every page costs
+ * its own read.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+public class ScanUnorderedHeapFileBenchmark {
+
+	@Param( {"0","8","32"})
+	public int readAheadPages;
+
+	@Param( {"100000"})
+	public int recordCount;
+
+	private Path tempFile;
+	private HeapFileOptions options;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		tempFile = Files.createTempFile("heap", "0001");
+		options = HeapFileOptions.defaults()
+				.withBufferPoolSize(1024*1024)
+				.withReadAheadPages(readAheadPages);
+		try(var heapFile = new UnorderedHeapFile(tempFile, 500_000, 4*1024, options)) {
+			for(int i=0;i<recordCount;i++) {
+				heapFile.put(new Entry(i, new byte[512]));
+			}
+		}
+	}
+
+	@Setup(Level.Iteration)
+	public void dropCaches() throws IOException, InterruptedException {
+		Process sync = new ProcessBuilder("sync").start();
+		if(sync.waitFor()!=0) {
+			throw new IllegalStateException("sync command failed");
+		}
+
+		Process sysctl= new ProcessBuilder("sysctl","-w","vm.drop_caches=1").start();
+		if(sysctl.waitFor()!=0) {
+			throw new IllegalStateException("sysctl command failed");
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		Files.delete(tempFile);
+		Files.deleteIfExists(FreeSpaceMap.pathFor(tempFile));
+	}
+
+	@Benchmark
+	public int openAndScan() throws Exception {
+		var count = 0;
+		try(var heapFile = new UnorderedHeapFile(tempFile, 500_000, 4*1024, options);
+				var cursor = heapFile.cursor()) {
+			while(cursor.next()) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+}
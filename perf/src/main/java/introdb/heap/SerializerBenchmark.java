@@ -0,0 +1,65 @@
+package introdb.heap;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Compares built-in codecs with Java serialization. Size of the serialized key and value, which is what a
+ * record stores on disk, is printed at setup.
+ */
+@State(Scope.Thread)
+public class SerializerBenchmark {
+
+	@Param( {"CODECS","JAVA_SERIALIZATION"})
+	public String codecs;
+
+	@Param( {"INTEGER","STRING","BYTES"})
+	public String type;
+
+	private Serializer serializer;
+	private Serializable key;
+	private Serializable value;
+	private byte[] serializedKey;
+	private byte[] serializedValue;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		serializer = new Serializer(4*1024,
+				"CODECS".equals(codecs) ? Codecs.builtIn() : Codecs.javaSerializationOnly());
+		switch (type) {
+		case "INTEGER":
+			key = 123456;
+			value = 654321;
+			break;
+		case "STRING":
+			key = "key-123456";
+			value = "value-".repeat(20);
+			break;
+		default:
+			key = "key-123456".getBytes();
+			value = new byte[128];
+		}
+		serializedKey = serializer.serialize(key);
+		serializedValue = serializer.serialize(value);
+		System.out.println(codecs + " " + type + " record size: key " + serializedKey.length + " bytes, value "
+				+ serializedValue.length + " bytes");
+	}
+
+	@Benchmark
+	public byte[] serializeValue() throws IOException {
+		return serializer.serialize(value);
+	}
+
+	@Benchmark
+	public Object deserializeValue() throws IOException, ClassNotFoundException {
+		return serializer.deserialize(serializedValue);
+	}
+
+}
@@ -0,0 +1,67 @@
+package introdb.heap;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Mixed reads and writes of 8 threads against stores with a growing number of shards.
+ */
+@State(Scope.Benchmark)
+public class ShardedHeapFileBenchmark {
+
+	private static final int RECORD_COUNT = 100_000;
+
+	private static final byte[] buffer = new byte[512];
+
+	@Param({"1","4","16"})
+	public int nrOfShards;
+
+	@Param({"WRITE_THROUGH","WRITE_BACK"})
+	public String writeMode;
+
+	private Store heapFile;
+	private Path directory;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		directory = Files.createTempDirectory("heap");
+		heapFile = new ShardedHeapFile(directory, nrOfShards, 500_000, 4*1024,
+				HeapFileOptions.defaults().withWriteMode(WriteMode.valueOf(writeMode)));
+		for(int i=0;i<RECORD_COUNT;i++) {
+			heapFile.put(new Entry(i,buffer));
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception{
+		heapFile.close();
+		try(Stream<Path> files = Files.walk(directory)) {
+			files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+
+	@Benchmark
+	@Threads(8)
+	public Object readAndWrite() throws Exception {
+		var random = ThreadLocalRandom.current();
+		var key = random.nextInt(RECORD_COUNT);
+		if(random.nextInt(5) == 0) {
+			heapFile.put(new Entry(key,buffer));
+			return null;
+		}
+		return heapFile.get(key);
+	}
+
+}
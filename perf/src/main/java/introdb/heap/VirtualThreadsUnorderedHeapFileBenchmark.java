@@ -0,0 +1,97 @@
+package introdb.heap;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * 10K concurrent clients, each one reading and writing a few records, run on virtual threads or on a pool of
+ * platform threads. Virtual threads need JDK 21 or newer at run time, they are created reflectively as the
+ * project is compiled for Java 11.
+ */
+@State(Scope.Benchmark)
+public class VirtualThreadsUnorderedHeapFileBenchmark {
+
+	private static final int CLIENTS = 10_000;
+	private static final int OPERATIONS_PER_CLIENT = 10;
+	private static final int RECORD_COUNT = 100_000;
+	private static final int PLATFORM_THREADS = 256;
+
+	private static final byte[] buffer = new byte[512];
+
+	@Param({"VIRTUAL","PLATFORM"})
+	public String threads;
+
+	@Param({"FILE_CHANNEL","MEMORY_MAPPED"})
+	public String pageAccess;
+
+	private Store heapFile;
+	private Path tempFile;
+	private ExecutorService executor;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		tempFile = Files.createTempFile("heap", "0001");
+		heapFile = new UnorderedHeapFile(tempFile, 500_000, 4*1024,
+				HeapFileOptions.defaults().withPageAccess(PageAccess.valueOf(pageAccess)));
+		for(int i=0;i<RECORD_COUNT;i++) {
+			heapFile.put(new Entry(i,buffer));
+		}
+		executor = "VIRTUAL".equals(threads)
+				? newVirtualThreadPerTaskExecutor()
+				: Executors.newFixedThreadPool(PLATFORM_THREADS);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception{
+		executor.shutdown();
+		heapFile.close();
+		Files.delete(tempFile);
+		Files.deleteIfExists(FreeSpaceMap.pathFor(tempFile));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(CLIENTS * OPERATIONS_PER_CLIENT)
+	public void clients() throws Exception {
+		var clients = new ArrayList<Future<?>>(CLIENTS);
+		for(int i=0;i<CLIENTS;i++) {
+			clients.add(executor.submit(() -> {
+				var random = ThreadLocalRandom.current();
+				for(int j=0;j<OPERATIONS_PER_CLIENT;j++) {
+					var key = random.nextInt(RECORD_COUNT);
+					if(j % 5 == 0) {
+						heapFile.put(new Entry(key,buffer));
+					} else {
+						heapFile.get(key);
+					}
+				}
+				return null;
+			}));
+		}
+		for(var client : clients) {
+			client.get();
+		}
+	}
+
+	private static ExecutorService newVirtualThreadPerTaskExecutor() throws Exception {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (NoSuchMethodException e) {
+			throw new UnsupportedOperationException("Virtual threads need JDK 21 or newer.", e);
+		}
+	}
+
+}
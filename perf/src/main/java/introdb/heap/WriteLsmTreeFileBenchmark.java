@@ -0,0 +1,61 @@
+package introdb.heap;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Counterpart of {@link WriteUnorderedHeapFileBenchmark} for {@link LsmTreeFile}, writes are absorbed by the
+ * memtable and compacted in background.
+ */
+@State(Scope.Benchmark)
+public class WriteLsmTreeFileBenchmark {
+
+	@Param( {"512","1024","2048"})
+	public int bufferSize; 
+
+	@Param( {"LEVELED","SIZE_TIERED"})
+	public String compactionPolicy;
+
+	private byte[] buffer;
+	private Store lsmFile;
+	private int key;
+	private Path tempDirectory;
+	
+	@Setup(Level.Iteration)
+	public void setUp() throws Exception {
+		tempDirectory = Files.createTempDirectory("lsm");
+		lsmFile = new LsmTreeFile(tempDirectory, LsmOptions.defaults()
+				.withCompactionPolicy(CompactionPolicy.valueOf(compactionPolicy)));
+		buffer = new byte[bufferSize];
+		key = 0;
+	}
+	
+	@TearDown(Level.Iteration)
+	public void tearDown() throws Exception{
+		lsmFile.close();
+		try(Stream<Path> files = Files.walk(tempDirectory)) {
+			files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+	
+    @Benchmark
+    public void writeBuffer() throws Exception {
+    	lsmFile.put(new Entry(key++,buffer));
+    }
+
+    @Benchmark
+    public void overwriteBuffer() throws Exception {
+    	lsmFile.put(new Entry(key++ % 10_000,buffer));
+    }
+
+}
@@ -2,9 +2,11 @@ package introdb.heap;
 
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 
 import org.openjdk.jmh.annotations.Benchmark;
 import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
 import org.openjdk.jmh.annotations.Param;
 import org.openjdk.jmh.annotations.Scope;
 import org.openjdk.jmh.annotations.Setup;
@@ -13,9 +15,21 @@ import org.openjdk.jmh.annotations.TearDown;
 
 @State(Scope.Benchmark)
 public class WriteUnorderedHeapFileBenchmark {
+
+	private static final int BATCH_SIZE = 64;
 		
-	@Param( {"512","1024","2048"})
+	@Param( {"512","1024","2048","16384"})
 	public int bufferSize; 
+
+	@Param( {"WRITE_THROUGH","WRITE_BACK"})
+	public String writeMode;
+
+	@Param( {"FILE_CHANNEL","MEMORY_MAPPED"})
+	public String pageAccess;
+
+	@Param( {"true","false"})
+	public String pageChecksums;
+
 	private byte[] buffer;
 	private Store heapFile;
 	private int key;
@@ -24,14 +38,20 @@ public class WriteUnorderedHeapFileBenchmark {
 	@Setup(Level.Iteration)
 	public void setUp() throws Exception {
 		tempFile = Files.createTempFile("heap", "0001");
-		heapFile = new UnorderedHeapFile(tempFile, 50000, 4*1024);
+		heapFile = new UnorderedHeapFile(tempFile, 50000, 4*1024, HeapFileOptions.defaults()
+				.withWriteMode(WriteMode.valueOf(writeMode))
+				.withPageAccess(PageAccess.valueOf(pageAccess))
+				.withPageChecksums(Boolean.parseBoolean(pageChecksums)));
 		buffer = new byte[bufferSize];
 		key = 0;
 	}
 	
 	@TearDown(Level.Iteration)
 	public void tearDown() throws Exception{
+		heapFile.close();
 		Files.delete(tempFile);
+		Files.deleteIfExists(FreeSpaceMap.pathFor(tempFile));
+		Files.deleteIfExists(OverflowFile.pathFor(tempFile));
 	}
 	
     @Benchmark
@@ -39,4 +59,14 @@ public class WriteUnorderedHeapFileBenchmark {
     	heapFile.put(new Entry(key++,buffer));
     }
 
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void writeBatch() throws Exception {
+    	var entries = new ArrayList<Entry>(BATCH_SIZE);
+    	for(int i=0;i<BATCH_SIZE;i++) {
+    		entries.add(new Entry(key++,buffer));
+    	}
+    	heapFile.putAll(entries);
+    }
+
 }